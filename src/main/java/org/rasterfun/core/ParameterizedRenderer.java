@@ -0,0 +1,17 @@
+package org.rasterfun.core;
+
+/**
+ * A renderer whose parameters can be replaced after it has been created, so that it can be reused when
+ * only the values of the parameters change, instead of creating a new renderer.
+ * Generated renderers implement this if they were compiled with constants as parameters.
+ */
+public interface ParameterizedRenderer extends Renderer {
+
+    /**
+     * Replaces the parameters of the renderer, and clears any earlier stop request.
+     * Must not be called while the renderer is calculating, the parameters are not synchronized with the calculation.
+     * Stop the calculation, and wait for it to complete first.
+     * @param parameters new values for the non-literal parameters, with the same types as the ones passed to the constructor.
+     */
+    void setParameters(Object[] parameters);
+}
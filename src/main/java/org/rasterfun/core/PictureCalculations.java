@@ -4,15 +4,23 @@ import org.rasterfun.core.compiler.RendererBuilder;
 import org.rasterfun.core.listeners.CalculationListener;
 import org.rasterfun.core.listeners.PictureCalculationsListener;
 import org.rasterfun.core.listeners.PictureCalculationsListenerDelegate;
+import org.rasterfun.core.listeners.PictureRefinementListener;
+import org.rasterfun.core.listeners.TileListener;
 import org.rasterfun.core.tasks.CompileTask;
 import org.rasterfun.core.tasks.RenderTask;
+import org.rasterfun.picture.ArrayPictureFactory;
+import org.rasterfun.picture.MipPyramid;
 import org.rasterfun.picture.Picture;
-import org.rasterfun.picture.PictureImpl;
+import org.rasterfun.picture.PictureFactory;
 import org.rasterfun.utils.ParameterChecker;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -25,20 +33,31 @@ public class PictureCalculations {
 
     public static final double DEFAULT_PREVIEW_IMAGE_SCALE_FACTOR = 0.1;
     public static final int DEFAULT_MIN_PREVIEW_IMAGE_SIZE = 8;
+    public static final int DEFAULT_PROGRESSIVE_PIXEL_STEP = 8;
 
     private final List<RendererBuilder> rendererBuilders = new ArrayList<RendererBuilder>();
     private final List<Picture> pictures = new ArrayList<Picture>();
     private final List<Picture> previews = new ArrayList<Picture>();
+    private final List<MipPyramid> mipPyramids = new ArrayList<MipPyramid>();
+    // Pictures and previews created by this calculation, only these are released to the factories, not the ones passed in
+    private final Set<Picture> createdPictures = Collections.newSetFromMap(new IdentityHashMap<Picture, Boolean>());
     private final boolean generatePreviews;
     private final double previewImageScaleFactor;
     private final int minPreviewImageSize;
     private final ExecutorService executorService;
 
     private boolean started = false;
+    private int progressivePixelStep = 1;
+    private boolean generateMipPyramids = false;
+    private boolean interpretWhileCompiling = false;
+    private PictureFactory pictureFactory = new ArrayPictureFactory();
+    private PictureFactory previewFactory = new ArrayPictureFactory();
 
     private final PictureCalculationsListenerDelegate listeners = new PictureCalculationsListenerDelegate();
 
     private final List<Future<Picture>> rendererFutures = new ArrayList<Future<Picture>>();
+    private final List<CompileTask> compileTasks = new ArrayList<CompileTask>();
+    private final List<Renderer> renderersToReuse = new ArrayList<Renderer>();
     private final List<RenderTask> renderTasks = new ArrayList<RenderTask>();
 
     private int calculationIndex;
@@ -87,6 +106,10 @@ public class PictureCalculations {
                         "pictureSlicesReady:" + pictureSlicesReady;
 
                 if (pictureSlicesReady == slicesPerPicture) {
+                    // Calculate the mip levels that depend on more than one tile
+                    final MipPyramid mipPyramid = getMipPyramidAtOrNull(pictureIndex);
+                    if (mipPyramid != null) mipPyramid.complete();
+
                     // The picture is complete, notify listeners
                     listeners.onPictureReady(calculationIndex, pictureIndex, picture);
 
@@ -107,6 +130,14 @@ public class PictureCalculations {
         }
     };
 
+    private final PictureRefinementListener refinementListener = new PictureRefinementListener() {
+        @Override
+        public void onPictureRefined(int calculationIndex, int pictureIndex, Picture picture, int pixelStep) {
+            // There is one slice per picture when rendering progressively, so a refined slice means a refined picture
+            listeners.onPictureRefined(calculationIndex, pictureIndex, picture, pixelStep);
+        }
+    };
+
 
     /**
      * Creates a calculation to generate the specified picture, and a preview picture as well if they would be large enough.
@@ -224,10 +255,11 @@ public class PictureCalculations {
                 final int      width        = builder.getWidth();
                 final int      height       = builder.getHeight();
                 final List<String> channels = builder.getPictureChannels();
+                final boolean  planar       = builder.isPlanar();
 
                 // Check the passed in images, if any are missing or the wrong size then we re-create them
                 Picture picture = getPictureAtOrNull(pictures, pictureIndex);
-                picture = reuseOrRecreate(picture, name, width, height, channels);
+                picture = reuseOrRecreate(pictureFactory, picture, name, width, height, channels, planar);
                 pictures.set(pictureIndex, picture);
 
                 // Calculate preview size
@@ -237,19 +269,19 @@ public class PictureCalculations {
                 // Create or reuse preview if we should generate one
                 Picture preview = getPictureAtOrNull(previews, pictureIndex);
                 if (shouldGeneratePreview(previewWidth, previewHeight)) {
-                    preview = reuseOrRecreate(preview, name + " Preview", previewWidth, previewHeight, channels);
+                    preview = reuseOrRecreate(previewFactory, preview, name + " Preview", previewWidth, previewHeight, channels, planar);
                     previews.set(pictureIndex, preview);
                 }
                 else {
+                    releaseIfCreated(previewFactory, preview);
                     previews.set(pictureIndex, null);
                 }
 
                 pictureIndex++;
             }
         } catch (OutOfMemoryError outOfMemoryError) {
-            // Abort this calculation
-            pictures.clear();
-            previews.clear();
+            // Abort this calculation, and give back the pictures created so far, they may hold memory outside the heap too
+            releaseCreatedPictures();
 
             // Notify user
             listeners.onError(calculationIndex,
@@ -272,8 +304,15 @@ public class PictureCalculations {
         }
 
         // Discard unused pictures
-        discardDownToLength(pictures, rendererBuilders.size());
-        discardDownToLength(previews, rendererBuilders.size());
+        discardDownToLength(pictures, rendererBuilders.size(), pictureFactory);
+        discardDownToLength(previews, rendererBuilders.size(), previewFactory);
+
+        // Create the mip levels, they are calculated as the tiles of the pictures are completed
+        if (generateMipPyramids) {
+            for (Picture picture : pictures) {
+                mipPyramids.add(picture != null ? new MipPyramid(picture) : null);
+            }
+        }
 
         // Calculate total pixels to calculate, so that we can estimate progress
         for (Picture picture : pictures) {
@@ -282,35 +321,41 @@ public class PictureCalculations {
 
         // Calculate number of slices to divide the previews and pictures in for processing
         slicesPerPreview = 1; // Just do one task per preview for now
-        slicesPerPicture = 1 + Runtime.getRuntime().availableProcessors() / totalPictures;
+        // One task per picture, the render tasks split themselves into tiles that idle threads steal when run in a fork join pool
+        slicesPerPicture = 1;
         pictureSlicesCompleted = new AtomicIntegerArray(pictures.size());
         previewSlicesCompleted = new AtomicIntegerArray(previews.size());
 
-        // Start compiling all the image calculators
-        List<Future<Renderer>> pixelCalculatorFutures = new ArrayList<Future<Renderer>>();
-        for (RendererBuilder rendererBuilder : rendererBuilders) {
-            pixelCalculatorFutures.add(executorService.submit(new CompileTask(calculationIndex,
-                    rendererBuilder,
-                                                                                                 renderListener)));
+        // Create compile tasks for all the image calculators, they start the rendering tasks when done
+        for (int i = 0; i < rendererBuilders.size(); i++) {
+            final Renderer rendererToReuse = i < renderersToReuse.size() ? renderersToReuse.get(i) : null;
+            final CompileTask compileTask = new CompileTask(calculationIndex, rendererBuilders.get(i), renderListener, executorService, rendererToReuse);
+            compileTask.setInterpretWhileCompiling(interpretWhileCompiling);
+            compileTasks.add(compileTask);
         }
 
-        // Start calculating preview pictures
+        // Calculate preview pictures first
         createPictureRenderingTasks(calculationIndex,
-                                    pixelCalculatorFutures,
+                                    compileTasks,
                                     previews,
                                     true,
                                     slicesPerPreview);
 
-        // Start calculating actual pictures
+        // Then calculate actual pictures
         createPictureRenderingTasks(calculationIndex,
-                                    pixelCalculatorFutures,
+                                    compileTasks,
                                     pictures,
                                     false,
                                     slicesPerPicture);
+
+        // Start compiling, the rendering tasks are started as each renderer is compiled
+        for (CompileTask compileTask : compileTasks) {
+            executorService.submit(compileTask);
+        }
     }
 
     private void createPictureRenderingTasks(int calculationIndex,
-                                             List<Future<Renderer>> pixelCalculatorFutures,
+                                             List<CompileTask> compileTasks,
                                              final List<Picture> pictures,
                                              final boolean forPreviews,
                                              final int slicesPerPicture) {
@@ -338,14 +383,16 @@ public class PictureCalculations {
                                                                  startY,
                                                                  endY,
                                                                  picture,
-                                                                 pixelCalculatorFutures.get(pictureIndex),
-                                                                 renderListener);
+                                                                 forPreviews ? 1 : progressivePixelStep,
+                                                                 renderListener,
+                                                                 forPreviews ? null : createTileListener(pictureIndex),
+                                                                 forPreviews ? null : refinementListener);
 
                     // Keep track of the task instance so that we can stop it if needed.
                     renderTasks.add(renderTask);
 
                     // Keep track of the future so that we can wait for all tasks to complete if we want.
-                    rendererFutures.add(executorService.submit(renderTask));
+                    rendererFutures.add(compileTasks.get(pictureIndex).addRenderTask(renderTask));
                 }
             }
 
@@ -353,6 +400,26 @@ public class PictureCalculations {
         }
     }
 
+    private TileListener createTileListener(final int pictureIndex) {
+        final MipPyramid mipPyramid = getMipPyramidAtOrNull(pictureIndex);
+        if (mipPyramid == null && !listeners.hasAreaListeners()) return null;
+
+        return new TileListener() {
+            @Override
+            public void onTileReady(Picture picture, int startX, int startY, int endX, int endY) {
+                // Downsample in the rendering thread, while other threads are still rendering other tiles
+                if (mipPyramid != null) mipPyramid.downsampleArea(startX, startY, endX, endY);
+
+                listeners.onPictureAreaReady(calculationIndex, pictureIndex, picture, startX, startY, endX, endY);
+            }
+        };
+    }
+
+    private MipPyramid getMipPyramidAtOrNull(int pictureIndex) {
+        if (pictureIndex < mipPyramids.size()) return mipPyramids.get(pictureIndex);
+        else return null;
+    }
+
     /**
      * @return the calculation index specified for this set of picture calculations.
      *         It is specified when calling start, and reported in the listeners, to help distinguish calculation runs.
@@ -400,6 +467,22 @@ public class PictureCalculations {
         }
     }
 
+    /**
+     * Waits until all calculation tasks have completed or been stopped, e.g. before reusing the pictures
+     * of a stopped calculation.  Unlike getPicturesAndWait, stopped and cancelled tasks are not treated as errors.
+     */
+    public void waitUntilDone() throws InterruptedException {
+        for (Future<Picture> rendererFuture : rendererFutures) {
+            try {
+                rendererFuture.get();
+            } catch (CancellationException e) {
+                // The task was cancelled before it started, so it is not using its picture
+            } catch (ExecutionException e) {
+                // Errors are reported to the listeners by the tasks
+            }
+        }
+    }
+
     /**
      * @return a read only list with the builders that are used to build the pictures.
      * Contain some picture metadata such as picture size and name.
@@ -410,13 +493,65 @@ public class PictureCalculations {
 
     /**
      * Stops the calculations.
+     * Render tasks still waiting for their renderer to compile are cancelled, so waitUntilDone does not wait for the compilation.
      */
     public void stop() {
+        for (CompileTask compileTask : compileTasks) {
+            compileTask.stop();
+        }
         for (RenderTask renderTask : renderTasks) {
             renderTask.stop();
         }
     }
 
+    /**
+     * @return a list with the mip levels of each picture, or an empty list if mip levels are not generated.
+     *         The mip levels of a picture are complete when the picture is reported ready.
+     */
+    public List<MipPyramid> getMipPyramids() {
+        return mipPyramids;
+    }
+
+    /**
+     * @return true if mip levels are generated for the pictures.
+     */
+    public boolean isGenerateMipPyramids() {
+        return generateMipPyramids;
+    }
+
+    /**
+     * Sets whether mip levels are generated for the pictures, see MipPyramid.  Must be called before the calculation is started.
+     *
+     * The levels are calculated from each render tile as soon as it is completed, in the same thread that rendered it,
+     * so most of the work overlaps with the rendering of the rest of the picture.
+     * The few pixels that depend on several tiles are calculated when the picture is completed,
+     * before the listeners are notified that it is ready.
+     */
+    public void setGenerateMipPyramids(boolean generateMipPyramids) {
+        if (started) throw new IllegalStateException("Can not change mip level generation, the calculation has already been started.");
+
+        this.generateMipPyramids = generateMipPyramids;
+    }
+
+    /**
+     * @return true if rendering starts right away with interpreted renderers, while the renderers are compiled.
+     */
+    public boolean isInterpretWhileCompiling() {
+        return interpretWhileCompiling;
+    }
+
+    /**
+     * Sets whether rendering starts right away with renderers that interpret the code of the renderer builders,
+     * instead of waiting for the renderers to compile.  Tiles started after a renderer has been compiled are
+     * rendered with the compiled renderer.  The pictures are the same either way, but the first tiles are ready
+     * sooner, which helps when the pictures are re-rendered while editing.  Must be called before the calculation is started.
+     */
+    public void setInterpretWhileCompiling(boolean interpretWhileCompiling) {
+        if (started) throw new IllegalStateException("Can not change interpretation while compiling, the calculation has already been started.");
+
+        this.interpretWhileCompiling = interpretWhileCompiling;
+    }
+
     /**
      * Add a listener that gets notified about progress, completed pictures and previews, and when all pictures are completed.
      *
@@ -424,6 +559,8 @@ public class PictureCalculations {
      * it should call SwingUtils.invokeLater or similar, and if it does state updates they should
      * take into account concurrency concerns.
      *
+     * Listeners that implement PictureRefinementListener or PictureAreaListener get those notifications too.
+     * The completed area notifications are only sent if such a listener is added before the calculation is started.
      */
     public void addListener(PictureCalculationsListener listener) {
         listeners.addListener(listener);
@@ -437,22 +574,184 @@ public class PictureCalculations {
     }
 
 
+    /**
+     * @return the renderers compiled for each picture, with null for pictures whose renderer has not been compiled
+     *         or failed to compile.  Empty if the calculation has not been started.
+     */
+    public List<Renderer> getRenderers() {
+        final List<Renderer> renderers = new ArrayList<Renderer>();
+        for (CompileTask compileTask : compileTasks) {
+            renderers.add(compileTask.getRenderer());
+        }
+        return renderers;
+    }
+
+    /**
+     * Specifies renderers from an earlier, completed calculation to reuse if they were compiled from the same source,
+     * so that a change of parameter values does not need a new renderer.  Must be called before the calculation is started.
+     * The earlier calculation must not be running anymore, as the parameters of its renderers are replaced.
+     *
+     * @param renderers renderers to try to reuse for each picture, null entries are ignored.
+     */
+    public void setRenderersToReuse(List<Renderer> renderers) {
+        if (started) throw new IllegalStateException("Can not set renderers to reuse, the calculation has already been started.");
+
+        renderersToReuse.clear();
+        if (renderers != null) renderersToReuse.addAll(renderers);
+    }
+
+    /**
+     * Reuses the pictures and previews of an earlier calculation, and takes over the ones it created, along with its factories.
+     * Taken over pictures that do not fit this calculation, e.g. because the size changed, are released to the factories
+     * when the calculation is started, and the rest are released by releasePictures of this calculation instead of the earlier one.
+     * Must be called before the calculation is started.
+     * The earlier calculation must not be running anymore, see waitUntilDone, as its pictures are rendered to.
+     *
+     * @param previousCalculation the calculation to take the pictures and factories from.
+     */
+    public void reusePicturesOf(PictureCalculations previousCalculation) {
+        ParameterChecker.checkNotNull(previousCalculation, "previousCalculation");
+        if (started) throw new IllegalStateException("Can not reuse pictures, the calculation has already been started.");
+
+        pictures.clear();
+        pictures.addAll(previousCalculation.pictures);
+        previews.clear();
+        previews.addAll(previousCalculation.previews);
+        pictureFactory = previousCalculation.pictureFactory;
+        previewFactory = previousCalculation.previewFactory;
+
+        // The earlier calculation no longer owns its pictures, so they are only released once
+        createdPictures.addAll(previousCalculation.createdPictures);
+        previousCalculation.createdPictures.clear();
+    }
+
+    /**
+     * @return the factory used to create the pictures, when the passed in pictures can not be reused.
+     */
+    public PictureFactory getPictureFactory() {
+        return pictureFactory;
+    }
+
+    /**
+     * Sets the factory used to create the pictures, when the passed in pictures can not be reused.
+     * E.g. a MappedPictureFactory renders to memory mapped files, for pictures larger than the available memory,
+     * and a PicturePool reuses the memory of pictures released from earlier calculations.
+     * Preview pictures are created with the preview factory, see setPreviewFactory.
+     * Must be called before the calculation is started.  Defaults to an ArrayPictureFactory.
+     */
+    public void setPictureFactory(PictureFactory pictureFactory) {
+        ParameterChecker.checkNotNull(pictureFactory, "pictureFactory");
+        if (started) throw new IllegalStateException("Can not change the picture factory, the calculation has already been started.");
+
+        this.pictureFactory = pictureFactory;
+    }
+
+    /**
+     * @return the factory used to create the preview pictures, when the passed in previews can not be reused.
+     */
+    public PictureFactory getPreviewFactory() {
+        return previewFactory;
+    }
+
+    /**
+     * Sets the factory used to create the preview pictures, when the passed in previews can not be reused.
+     * Must be called before the calculation is started.  Defaults to an ArrayPictureFactory.
+     */
+    public void setPreviewFactory(PictureFactory previewFactory) {
+        ParameterChecker.checkNotNull(previewFactory, "previewFactory");
+        if (started) throw new IllegalStateException("Can not change the preview factory, the calculation has already been started.");
+
+        this.previewFactory = previewFactory;
+    }
+
+    /**
+     * Releases the pictures and previews of a completed or stopped calculation to the factories that created them,
+     * so that a PicturePool can reuse their memory for later calculations.
+     * The pictures and previews must not be used after they have been released.
+     * Pictures and previews that were passed in to the calculation are not released, they belong to the caller.
+     * Waits for any render tasks that are still running.
+     */
+    public void releasePictures() {
+        // Make sure nothing is rendering to the pictures anymore
+        for (Future<Picture> rendererFuture : rendererFutures) {
+            try {
+                rendererFuture.get();
+            } catch (Exception e) {
+                // Stopped or failed, either way the task is no longer using the picture
+            }
+        }
+
+        releaseCreatedPictures();
+        mipPyramids.clear();
+    }
+
+    /**
+     * Releases the pictures and previews created by this calculation, and clears the picture and preview lists.
+     */
+    private void releaseCreatedPictures() {
+        for (Picture picture : pictures) {
+            releaseIfCreated(pictureFactory, picture);
+        }
+        for (Picture preview : previews) {
+            releaseIfCreated(previewFactory, preview);
+        }
+        pictures.clear();
+        previews.clear();
+    }
+
+    /**
+     * @return true if the pictures are rendered progressively.
+     */
+    public boolean isProgressive() {
+        return progressivePixelStep > 1;
+    }
+
+    /**
+     * Sets progressive rendering on or off.  Must be called before the calculation is started.
+     *
+     * When rendering progressively, each picture is first calculated for every DEFAULT_PROGRESSIVE_PIXEL_STEP:th pixel
+     * along x and y, and then the step is halved until all pixels are calculated.  No pixel is calculated twice.
+     * Listeners implementing PictureRefinementListener are notified after each pass except the last, and the picture is
+     * filled in with copies of the calculated pixels so that it can be shown.
+     * No separate preview pictures are rendered in this mode, the refined pictures serve as previews instead.
+     */
+    public void setProgressive(boolean progressive) {
+        setProgressivePixelStep(progressive ? DEFAULT_PROGRESSIVE_PIXEL_STEP : 1);
+    }
+
+    /**
+     * @param initialPixelStep the distance between calculated pixels in the first progressive pass,
+     *                         must be a power of two.  1 disables progressive rendering.
+     *                         Must be called before the calculation is started.
+     */
+    public void setProgressivePixelStep(int initialPixelStep) {
+        ParameterChecker.checkPositiveNonZeroInteger(initialPixelStep, "initialPixelStep");
+        if (Integer.bitCount(initialPixelStep) != 1) throw new IllegalArgumentException("The initialPixelStep should be a power of two, but was " + initialPixelStep);
+        if (started) throw new IllegalStateException("Can not change progressive rendering, the calculation has already been started.");
+
+        progressivePixelStep = initialPixelStep;
+    }
+
     private boolean shouldGeneratePreview(int previewWidth, int previewHeight) {
         return generatePreviews &&
+               !isProgressive() &&
                previewHeight >= minPreviewImageSize &&
                previewWidth  >= minPreviewImageSize;
     }
 
-    private Picture reuseOrRecreate(Picture picture, String name, int width, int height, List<String> channels) {
+    private Picture reuseOrRecreate(PictureFactory factory, Picture picture, String name, int width, int height, List<String> channels, boolean planar) {
         if (picture == null ||
             // Recreate
             picture.getWidth()  != width ||
             picture.getHeight() != height ||
             picture.getChannelCount() != channels.size()) {
-            picture = new PictureImpl(name, width, height, channels);
+            // The old picture can not be used, let the factory reuse its memory if we created it
+            releaseIfCreated(factory, picture);
+            picture = factory.createPicture(name, width, height, channels, planar);
+            createdPictures.add(picture);
         }
         else {
-            // Reuse
+            // Reuse, pictures without the layout that the renderer expects are rendered to through a scratch array
             picture.setName(name);
             picture.setChannelNames(channels);
         }
@@ -474,10 +773,20 @@ public class PictureCalculations {
         return picture;
     }
 
-    private void discardDownToLength(List<Picture> list, int targetLength) {
+    private void discardDownToLength(List<Picture> list, int targetLength, PictureFactory factory) {
         while (list.size() > targetLength) {
             // Remove last
-            list.remove(list.size() - 1);
+            releaseIfCreated(factory, list.remove(list.size() - 1));
+        }
+    }
+
+    /**
+     * Releases the picture to the factory if this calculation created it.
+     * Pictures passed in by the caller belong to the caller, who decides when to release them.
+     */
+    private void releaseIfCreated(PictureFactory factory, Picture picture) {
+        if (picture != null && createdPictures.remove(picture)) {
+            factory.releasePicture(picture);
         }
     }
 
@@ -13,6 +13,10 @@ import org.rasterfun.core.listeners.CalculationListener;
  * Must have a constructor that takes as parameter an array of Objects, which contains any non-literal
  * parameters that could not be compiled directly into the code.
  * The code should be generated so that it knows what parameter is at which index.
+ *
+ * Only the first calculatePixels method and stop need to be implemented.  The other methods have default
+ * implementations based on them, which calculate one pixel at a time, so override them for speed.
+ * Renderers whose parameters can be updated in place implement ParameterizedRenderer.
  */
 public interface Renderer {
 
@@ -44,6 +48,113 @@ public interface Renderer {
                          CalculationListener listener,
                          int calculatorIndex);
 
+    /**
+     * Generates the pixels on a grid with the specified spacing, for progressive rendering where a coarse
+     * version of the picture is calculated first, and then refined.
+     * Only pixels whose x and y coordinates are both multiples of pixelStep are calculated.
+     * Other parameters are the same as for the calculatePixels method without a pixel step.
+     *
+     * @param pixelStep distance between calculated pixels.  1 calculates all pixels.
+     * @param skipCoarserPixels if true, pixels whose x and y coordinates are both multiples of pixelStep * 2 are skipped,
+     *                          as they have already been calculated by an earlier pass with twice the pixel step.
+     */
+    default void calculatePixels(int width,
+                                 int height,
+                                 String[] channelNames,
+                                 float[] pixelData,
+                                 int startX,
+                                 int startY,
+                                 int endX,
+                                 int endY,
+                                 int pixelStep,
+                                 boolean skipCoarserPixels,
+                                 CalculationListener listener,
+                                 int calculatorIndex) {
+        if (pixelStep == 1 && !skipCoarserPixels) {
+            calculatePixels(width, height, channelNames, pixelData, startX, startY, endX, endY, listener, calculatorIndex);
+            return;
+        }
+
+        // Calculate the pixels on the grid one at a time
+        final int firstX = startX + (pixelStep - startX % pixelStep) % pixelStep;
+        final int firstY = startY + (pixelStep - startY % pixelStep) % pixelStep;
+        for (int y = firstY; y < endY; y += pixelStep) {
+            for (int x = firstX; x < endX; x += pixelStep) {
+                if (skipCoarserPixels && x % (pixelStep * 2) == 0 && y % (pixelStep * 2) == 0) continue;
+
+                calculatePixels(width, height, channelNames, pixelData, x, y, x + 1, y + 1, listener, calculatorIndex);
+            }
+        }
+    }
+
+    /**
+     * Generates the pixels of an area into an array with the specified layout, e.g. a scratch buffer for a tile
+     * that is copied to a picture that is not stored in a java array.
+     * The value of channel number c for the pixel at x, y is stored at
+     * dataOffset + y * rowStride + x * pixelStride + c * channelStride,
+     * where the pixel stride is 1 for planar renderers, and the number of channels otherwise.
+     * Other parameters are the same as for the calculatePixels method without the layout parameters.
+     *
+     * @param dataOffset position in pixelData of the first channel of the pixel at 0, 0.
+     *                   Negative if the array only holds the calculated area.
+     * @param rowStride distance in pixelData between vertically adjacent pixels.
+     * @param channelStride distance in pixelData between the channels of a pixel.  Only used by planar renderers,
+     *                      for other renderers the channels of a pixel always follow each other.
+     */
+    default void calculatePixels(int width,
+                                 int height,
+                                 String[] channelNames,
+                                 float[] pixelData,
+                                 int dataOffset,
+                                 int rowStride,
+                                 int channelStride,
+                                 int startX,
+                                 int startY,
+                                 int endX,
+                                 int endY,
+                                 int pixelStep,
+                                 boolean skipCoarserPixels,
+                                 CalculationListener listener,
+                                 int calculatorIndex) {
+        // Layout of the whole picture, used by the calculatePixels method without a data layout
+        final int channelCount = channelNames.length;
+        final int pixelStride = isPlanar() ? 1 : channelCount;
+        final int pictureRowStride = width * pixelStride;
+        final int pictureChannelStride = isPlanar() ? width * height : 1;
+        if (dataOffset == 0 && rowStride == pictureRowStride && (!isPlanar() || channelStride == pictureChannelStride)) {
+            calculatePixels(width, height, channelNames, pixelData, startX, startY, endX, endY,
+                            pixelStep, skipCoarserPixels, listener, calculatorIndex);
+            return;
+        }
+
+        // Calculate into an array with the layout of the whole picture, and copy the calculated pixels to the specified layout
+        final float[] pictureData = new float[width * height * channelCount];
+        calculatePixels(width, height, channelNames, pictureData, startX, startY, endX, endY,
+                        pixelStep, skipCoarserPixels, listener, calculatorIndex);
+        final int targetChannelStride = isPlanar() ? channelStride : 1;
+        final int firstX = startX + (pixelStep - startX % pixelStep) % pixelStep;
+        final int firstY = startY + (pixelStep - startY % pixelStep) % pixelStep;
+        for (int y = firstY; y < endY; y += pixelStep) {
+            for (int x = firstX; x < endX; x += pixelStep) {
+                if (skipCoarserPixels && x % (pixelStep * 2) == 0 && y % (pixelStep * 2) == 0) continue;
+
+                final int sourceIndex = y * pictureRowStride + x * pixelStride;
+                final int targetIndex = dataOffset + y * rowStride + x * pixelStride;
+                for (int c = 0; c < channelCount; c++) {
+                    pixelData[targetIndex + c * targetChannelStride] = pictureData[sourceIndex + c * pictureChannelStride];
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the renderer stores each channel in its own plane, false if the channels of a pixel
+     *         are stored next to each other.  Defaults to false.
+     */
+    default boolean isPlanar() {
+        return false;
+    }
+
     /**
      * Stops the calculation after the next calculated pixel.
      */
@@ -0,0 +1,124 @@
+package org.rasterfun.core;
+
+import org.rasterfun.core.listeners.CalculationListener;
+import org.rasterfun.utils.ParameterChecker;
+
+/**
+ * Renderer that starts out rendering with a slow renderer that is available right away, e.g. an interpreting renderer,
+ * and switches to a faster compiled renderer once it has been compiled.
+ * The switch happens between calls to calculatePixels, so each rendered tile is calculated completely
+ * by one of the renderers.  Both renderers should calculate the same pixel values.
+ */
+public final class TieredRenderer implements Renderer {
+
+    private final Renderer initialRenderer;
+    private volatile Renderer promotedRenderer = null;
+    private volatile Renderer currentRenderer;
+    private volatile boolean stopped = false;
+
+    /**
+     * @param initialRenderer renderer to use until a faster renderer is available.
+     */
+    public TieredRenderer(Renderer initialRenderer) {
+        ParameterChecker.checkNotNull(initialRenderer, "initialRenderer");
+
+        this.initialRenderer = initialRenderer;
+        this.currentRenderer = initialRenderer;
+    }
+
+    /**
+     * Switches to the specified renderer for all following calls to calculatePixels.
+     * Calculations already in progress complete with the renderer they were started with.
+     *
+     * @param renderer the faster renderer, it should have the same planarity as the initial renderer.
+     */
+    public void promote(Renderer renderer) {
+        ParameterChecker.checkNotNull(renderer, "renderer");
+        if (renderer.isPlanar() != initialRenderer.isPlanar()) throw new IllegalArgumentException("The promoted renderer should have the same planarity as the initial renderer");
+
+        promotedRenderer = renderer;
+        currentRenderer = renderer;
+
+        // Do not let the promoted renderer start anything if we were stopped while it was prepared
+        if (stopped) renderer.stop();
+    }
+
+    /**
+     * @return true if the renderer has switched to the promoted renderer.
+     */
+    public boolean isPromoted() {
+        return promotedRenderer != null;
+    }
+
+    /**
+     * @return the renderer currently used for new calculations.
+     */
+    public Renderer getCurrentRenderer() {
+        return currentRenderer;
+    }
+
+    @Override
+    public void calculatePixels(int width,
+                                int height,
+                                String[] channelNames,
+                                float[] pixelData,
+                                int startX,
+                                int startY,
+                                int endX,
+                                int endY,
+                                CalculationListener listener,
+                                int calculatorIndex) {
+        currentRenderer.calculatePixels(width, height, channelNames, pixelData,
+                                        startX, startY, endX, endY, listener, calculatorIndex);
+    }
+
+    @Override
+    public void calculatePixels(int width,
+                                int height,
+                                String[] channelNames,
+                                float[] pixelData,
+                                int startX,
+                                int startY,
+                                int endX,
+                                int endY,
+                                int pixelStep,
+                                boolean skipCoarserPixels,
+                                CalculationListener listener,
+                                int calculatorIndex) {
+        currentRenderer.calculatePixels(width, height, channelNames, pixelData,
+                                        startX, startY, endX, endY, pixelStep, skipCoarserPixels, listener, calculatorIndex);
+    }
+
+    @Override
+    public void calculatePixels(int width,
+                                int height,
+                                String[] channelNames,
+                                float[] pixelData,
+                                int dataOffset,
+                                int rowStride,
+                                int channelStride,
+                                int startX,
+                                int startY,
+                                int endX,
+                                int endY,
+                                int pixelStep,
+                                boolean skipCoarserPixels,
+                                CalculationListener listener,
+                                int calculatorIndex) {
+        currentRenderer.calculatePixels(width, height, channelNames, pixelData, dataOffset, rowStride, channelStride,
+                                        startX, startY, endX, endY, pixelStep, skipCoarserPixels, listener, calculatorIndex);
+    }
+
+    @Override
+    public boolean isPlanar() {
+        return initialRenderer.isPlanar();
+    }
+
+    @Override
+    public void stop() {
+        stopped = true;
+        initialRenderer.stop();
+        final Renderer promotedRenderer = this.promotedRenderer;
+        if (promotedRenderer != null) promotedRenderer.stop();
+    }
+}
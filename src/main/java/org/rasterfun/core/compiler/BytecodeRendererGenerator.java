@@ -0,0 +1,673 @@
+package org.rasterfun.core.compiler;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.rasterfun.core.ParameterizedRenderer;
+import org.rasterfun.core.Renderer;
+import org.rasterfun.core.listeners.CalculationListener;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.rasterfun.core.compiler.ExpressionParser.*;
+import static org.rasterfun.core.compiler.RendererBuilder.*;
+import static org.rasterfun.core.compiler.SourceLocation.*;
+
+/**
+ * Generates the bytecode of a renderer directly from the statements collected by a RendererBuilder, without
+ * generating and compiling any java source.  The generated class does the same as the class compiled from the
+ * source that the builder generates.
+ *
+ * Only statements that declare or assign primitive local variables are supported.  Their expressions may contain
+ * literals, local variables, parameters, arithmetic operators, primitive casts, and static methods and fields of
+ * imported classes.  Anything else causes an UnsupportedCodeException, and should be compiled from source instead.
+ */
+final class BytecodeRendererGenerator implements Opcodes {
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final String STRING_BUILDER = "java/lang/StringBuilder";
+    private static final String ILLEGAL_ARGUMENT_EXCEPTION = "java/lang/IllegalArgumentException";
+    private static final String LISTENER = Type.getInternalName(CalculationListener.class);
+    private static final String RUNNING = "running";
+    private static final String CALCULATE_PIXELS = "calculatePixels";
+    private static final String SHORT_CALCULATE_DESCRIPTOR = "(II[Ljava/lang/String;[FIIIIL" + LISTENER + ";I)V";
+    private static final String STEPPED_CALCULATE_DESCRIPTOR = "(II[Ljava/lang/String;[FIIIIIZL" + LISTENER + ";I)V";
+    private static final String FULL_CALCULATE_DESCRIPTOR = "(II[Ljava/lang/String;[FIIIIIIIIZL" + LISTENER + ";I)V";
+
+    private static final Map<Class<?>, Class<?>> UNWRAPPED_TYPES = new HashMap<Class<?>, Class<?>>();
+    static {
+        UNWRAPPED_TYPES.put(Boolean.class, boolean.class);
+        UNWRAPPED_TYPES.put(Byte.class, byte.class);
+        UNWRAPPED_TYPES.put(Short.class, short.class);
+        UNWRAPPED_TYPES.put(Character.class, char.class);
+        UNWRAPPED_TYPES.put(Integer.class, int.class);
+        UNWRAPPED_TYPES.put(Long.class, long.class);
+        UNWRAPPED_TYPES.put(Float.class, float.class);
+        UNWRAPPED_TYPES.put(Double.class, double.class);
+    }
+
+    private final RendererBuilder builder;
+    private final Map<String, Expression> parameterFields = new HashMap<String, Expression>();
+
+    private String classInternalName;
+    private MethodVisitor mv;
+
+    // Parses expressions and keeps track of the local variables of the method being generated
+    private ExpressionParser parser;
+
+    BytecodeRendererGenerator(RendererBuilder builder) {
+        this.builder = builder;
+    }
+
+    /**
+     * @return the bytecode of a renderer class with the specified fully qualified name.
+     * @throws UnsupportedCodeException if the builder contains code that is not supported.
+     */
+    byte[] generate(String fullClassName) throws UnsupportedCodeException {
+        if (!builder.getStatements(FIELDS).isEmpty() || !builder.getStatements(METHODS).isEmpty()) {
+            throw new UnsupportedCodeException("Fields and methods can not be generated directly");
+        }
+        for (SourceStatement statement : builder.getStatements(IMPORTS)) {
+            if (!isKnownImport(statement.getCode())) throw new UnsupportedCodeException("Unknown import " + statement.getCode());
+        }
+
+        classInternalName = fullClassName.replace('.', '/');
+        final ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        final Class<?> rendererInterface = builder.isConstantsAsParameters() ? ParameterizedRenderer.class : Renderer.class;
+        classWriter.visit(V1_5, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, classInternalName, null, OBJECT,
+                          new String[]{Type.getInternalName(rendererInterface)});
+
+        classWriter.visitField(ACC_PRIVATE, RUNNING, "Z", null, null).visitEnd();
+        for (ObjectParameter parameter : builder.getObjectParameters()) {
+            final Class<?> fieldType = getParameterFieldType(parameter.getType());
+            parameterFields.put(parameter.getIdentifier(), new ParameterField(classInternalName, parameter.getIdentifier(), fieldType));
+            final int fieldAccess = builder.isConstantsAsParameters() ? ACC_PRIVATE : ACC_PRIVATE | ACC_FINAL;
+            classWriter.visitField(fieldAccess, parameter.getIdentifier(), Type.getDescriptor(fieldType), null, null).visitEnd();
+        }
+
+        generateConstructor(classWriter);
+        if (builder.isConstantsAsParameters()) generateSetParameters(classWriter);
+        generateIsPlanar(classWriter);
+        generateStop(classWriter);
+        generateCalculatePixelsDelegates(classWriter);
+        generateCalculatePixels(classWriter);
+        classWriter.visitEnd();
+
+        try {
+            return classWriter.toByteArray();
+        } catch (RuntimeException e) {
+            // Thrown e.g. if a method grows too large
+            throw new UnsupportedCodeException("Could not generate the class: " + e.getMessage());
+        }
+    }
+
+    private boolean isKnownImport(String importLine) {
+        for (Class<?> importedClass : builder.getImportedClasses()) {
+            if (importLine.equals("import " + importedClass.getName())) return true;
+        }
+        return false;
+    }
+
+    private Class<?> getParameterFieldType(Class<?> parameterType) throws UnsupportedCodeException {
+        final Class<?> unwrappedType = UNWRAPPED_TYPES.get(parameterType);
+        if (unwrappedType != null) return unwrappedType;
+
+        if (parameterType.isPrimitive() || !ExpressionParser.isAccessible(parameterType)) {
+            throw new UnsupportedCodeException("Unsupported parameter type " + parameterType);
+        }
+        return parameterType;
+    }
+
+    private void generateConstructor(ClassVisitor classVisitor) {
+        mv = classVisitor.visitMethod(ACC_PUBLIC, "<init>", "([Ljava/lang/Object;)V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, OBJECT, "<init>", "()V");
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitInsn(ICONST_1);
+        mv.visitFieldInsn(PUTFIELD, classInternalName, RUNNING, "Z");
+        if (builder.isConstantsAsParameters()) {
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitMethodInsn(INVOKEVIRTUAL, classInternalName, "setParameters", "([Ljava/lang/Object;)V");
+        }
+        else {
+            // The parameter fields are final, so they can only be assigned here
+            generateParameterAssignments();
+        }
+        mv.visitInsn(RETURN);
+        endMethod();
+    }
+
+    private void generateSetParameters(ClassVisitor classVisitor) {
+        mv = classVisitor.visitMethod(ACC_PUBLIC | ACC_FINAL, "setParameters", "([Ljava/lang/Object;)V", null, null);
+        mv.visitCode();
+        generateParameterAssignments();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitInsn(ICONST_1);
+        mv.visitFieldInsn(PUTFIELD, classInternalName, RUNNING, "Z");
+        mv.visitInsn(RETURN);
+        endMethod();
+    }
+
+    /**
+     * Assigns the parameter fields from the parameter array in local variable 1.
+     */
+    private void generateParameterAssignments() {
+        for (ObjectParameter parameter : builder.getObjectParameters()) {
+            final Class<?> fieldType = parameterFields.get(parameter.getIdentifier()).type;
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitVarInsn(ALOAD, 1);
+            pushInt(parameter.getIndex());
+            mv.visitInsn(AALOAD);
+            mv.visitTypeInsn(CHECKCAST, Type.getInternalName(parameter.getType()));
+            if (fieldType.isPrimitive()) {
+                // Unbox the parameter
+                mv.visitMethodInsn(INVOKEVIRTUAL, Type.getInternalName(parameter.getType()),
+                                   fieldType.getName() + "Value", "()" + Type.getDescriptor(fieldType));
+            }
+            mv.visitFieldInsn(PUTFIELD, classInternalName, parameter.getIdentifier(), Type.getDescriptor(fieldType));
+        }
+    }
+
+    private void generateIsPlanar(ClassVisitor classVisitor) {
+        mv = classVisitor.visitMethod(ACC_PUBLIC | ACC_FINAL, "isPlanar", "()Z", null, null);
+        mv.visitCode();
+        mv.visitInsn(builder.isPlanar() ? ICONST_1 : ICONST_0);
+        mv.visitInsn(IRETURN);
+        endMethod();
+    }
+
+    private void generateStop(ClassVisitor classVisitor) {
+        mv = classVisitor.visitMethod(ACC_PUBLIC | ACC_FINAL, "stop", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitInsn(ICONST_0);
+        mv.visitFieldInsn(PUTFIELD, classInternalName, RUNNING, "Z");
+        mv.visitInsn(RETURN);
+        endMethod();
+    }
+
+    /**
+     * Generates the calculatePixels variants with fewer parameters, which call the full variant with default values.
+     */
+    private void generateCalculatePixelsDelegates(ClassVisitor classVisitor) {
+        // Calculate all pixels
+        mv = classVisitor.visitMethod(ACC_PUBLIC | ACC_FINAL, CALCULATE_PIXELS, SHORT_CALCULATE_DESCRIPTOR, null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ILOAD, 1);
+        mv.visitVarInsn(ILOAD, 2);
+        mv.visitVarInsn(ALOAD, 3);
+        mv.visitVarInsn(ALOAD, 4);
+        for (int slot = 5; slot <= 8; slot++) mv.visitVarInsn(ILOAD, slot);
+        mv.visitInsn(ICONST_1);
+        mv.visitInsn(ICONST_0);
+        mv.visitVarInsn(ALOAD, 9);
+        mv.visitVarInsn(ILOAD, 10);
+        mv.visitMethodInsn(INVOKEVIRTUAL, classInternalName, CALCULATE_PIXELS, STEPPED_CALCULATE_DESCRIPTOR);
+        mv.visitInsn(RETURN);
+        endMethod();
+
+        // Calculate a whole picture with the default layout
+        mv = classVisitor.visitMethod(ACC_PUBLIC | ACC_FINAL, CALCULATE_PIXELS, STEPPED_CALCULATE_DESCRIPTOR, null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitVarInsn(ILOAD, 1);
+        mv.visitVarInsn(ILOAD, 2);
+        mv.visitVarInsn(ALOAD, 3);
+        mv.visitVarInsn(ALOAD, 4);
+        mv.visitInsn(ICONST_0);
+        mv.visitVarInsn(ILOAD, 1);
+        pushInt(builder.getPixelStride());
+        mv.visitInsn(IMUL);
+        if (builder.isPlanar()) {
+            mv.visitVarInsn(ILOAD, 1);
+            mv.visitVarInsn(ILOAD, 2);
+            mv.visitInsn(IMUL);
+        }
+        else {
+            mv.visitInsn(ICONST_1);
+        }
+        for (int slot = 5; slot <= 10; slot++) mv.visitVarInsn(ILOAD, slot);
+        mv.visitVarInsn(ALOAD, 11);
+        mv.visitVarInsn(ILOAD, 12);
+        mv.visitMethodInsn(INVOKEVIRTUAL, classInternalName, CALCULATE_PIXELS, FULL_CALCULATE_DESCRIPTOR);
+        mv.visitInsn(RETURN);
+        endMethod();
+    }
+
+    /**
+     * Generates the pixel calculation loop, with the same structure as the generated source.
+     */
+    private void generateCalculatePixels(ClassVisitor classVisitor) throws UnsupportedCodeException {
+        mv = classVisitor.visitMethod(ACC_PUBLIC | ACC_FINAL, CALCULATE_PIXELS, FULL_CALCULATE_DESCRIPTOR, null, null);
+        mv.visitCode();
+        parser = new ExpressionParser(builder.getImportedClasses(), parameterFields, 1);
+
+        // Parameters
+        declareLocal("width", int.class);
+        declareLocal("height", int.class);
+        declareLocal("channelNames", String[].class);
+        declareLocal(PIXEL_DATA, float[].class);
+        for (String intParameter : new String[]{"dataOffset", "rowStride", "channelStride",
+                                                "startX", "startY", "endX", "endY", "pixelStep"}) {
+            declareLocal(intParameter, int.class);
+        }
+        declareLocal("skipCoarserPixels", boolean.class);
+        declareLocal("listener", CalculationListener.class);
+        declareLocal("calculatorIndex", int.class);
+
+        // Check that the passed in picture has the correct number of channels
+        final int channelCount = builder.getPictureChannelCount();
+        final Label channelCountOk = new Label();
+        load("channelNames");
+        mv.visitInsn(ARRAYLENGTH);
+        pushInt(channelCount);
+        mv.visitJumpInsn(IF_ICMPEQ, channelCountOk);
+        mv.visitTypeInsn(NEW, ILLEGAL_ARGUMENT_EXCEPTION);
+        mv.visitInsn(DUP);
+        mv.visitTypeInsn(NEW, STRING_BUILDER);
+        mv.visitInsn(DUP);
+        mv.visitLdcInsn("The channel count should be correct, expected " + channelCount + ", but got ");
+        mv.visitMethodInsn(INVOKESPECIAL, STRING_BUILDER, "<init>", "(Ljava/lang/String;)V");
+        load("channelNames");
+        mv.visitInsn(ARRAYLENGTH);
+        mv.visitMethodInsn(INVOKEVIRTUAL, STRING_BUILDER, "append", "(I)Ljava/lang/StringBuilder;");
+        mv.visitLdcInsn(".");
+        mv.visitMethodInsn(INVOKEVIRTUAL, STRING_BUILDER, "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;");
+        mv.visitMethodInsn(INVOKEVIRTUAL, STRING_BUILDER, "toString", "()Ljava/lang/String;");
+        mv.visitMethodInsn(INVOKESPECIAL, ILLEGAL_ARGUMENT_EXCEPTION, "<init>", "(Ljava/lang/String;)V");
+        mv.visitInsn(ATHROW);
+        mv.visitLabel(channelCountOk);
+
+        // Setup variables visible to generators
+        load("width");
+        mv.visitInsn(I2F);
+        storeNew(W_NAME, float.class);
+        load("height");
+        mv.visitInsn(I2F);
+        storeNew(H_NAME, float.class);
+        mv.visitInsn(FCONST_0);
+        storeNew(Y_NAME, float.class);
+        mv.visitInsn(FCONST_0);
+        storeNew(X_NAME, float.class);
+
+        // Channel layout
+        pushInt(builder.getPixelStride());
+        storeNew("pixelStride", int.class);
+        int channelIndex = 0;
+        for (String channel : builder.getPictureChannels()) {
+            pushInt(channelIndex++);
+            if (builder.isPlanar()) {
+                load("channelStride");
+                mv.visitInsn(IMUL);
+            }
+            storeNew(CHANNEL_OFFSET_PREFIX + channel, int.class);
+        }
+
+        generateStatements(BEFORE_LOOP);
+
+        // Set up progress reporting
+        load("endY");
+        load("startY");
+        mv.visitInsn(ISUB);
+        load("pixelStep");
+        pushInt(PROGRESS_REPORT_STEPS);
+        mv.visitInsn(IMUL);
+        mv.visitInsn(IDIV);
+        storeNew("progressReportInterval", int.class);
+        mv.visitInsn(ICONST_0);
+        storeNew("completedScanLines", int.class);
+        mv.visitInsn(ICONST_0);
+        storeNew("completedPixels", int.class);
+
+        // Pixel steps
+        load("pixelStep");
+        mv.visitInsn(ICONST_2);
+        mv.visitInsn(IMUL);
+        storeNew("coarserStep", int.class);
+        generateRoundUpToStep("startX");
+        storeNew("firstX", int.class);
+        generateRoundUpToStep("startY");
+        storeNew("firstY", int.class);
+
+        generateRelativeCoordinate("width", null);
+        storeNew("relXStep", float.class);
+        declareLocal(RELATIVE_X, float.class);
+        declareLocal(RELATIVE_Y, float.class);
+        declareLocal(PIXEL_INDEX, int.class);
+
+        // Loop the lines
+        pushScope();
+        load("firstY");
+        storeNew("y", int.class);
+        final Label lineLoop = new Label();
+        final Label linesDone = new Label();
+        mv.visitLabel(lineLoop);
+        generateLoopCondition("y", "endY", linesDone);
+        pushScope();
+
+        load("y");
+        mv.visitInsn(I2F);
+        store(Y_NAME);
+        generateRelativeCoordinate("height", "y");
+        store(RELATIVE_Y);
+
+        // coarserLine = skipCoarserPixels && y % coarserStep == 0
+        final Label notCoarserLine = new Label();
+        final Label coarserLineDone = new Label();
+        load("skipCoarserPixels");
+        mv.visitJumpInsn(IFEQ, notCoarserLine);
+        load("y");
+        load("coarserStep");
+        mv.visitInsn(IREM);
+        mv.visitJumpInsn(IFNE, notCoarserLine);
+        mv.visitInsn(ICONST_1);
+        mv.visitJumpInsn(GOTO, coarserLineDone);
+        mv.visitLabel(notCoarserLine);
+        mv.visitInsn(ICONST_0);
+        mv.visitLabel(coarserLineDone);
+        storeNew("coarserLine", boolean.class);
+
+        // xStep = coarserLine ? coarserStep : pixelStep
+        final Label normalStep = new Label();
+        final Label stepDone = new Label();
+        load("coarserLine");
+        mv.visitJumpInsn(IFEQ, normalStep);
+        load("coarserStep");
+        mv.visitJumpInsn(GOTO, stepDone);
+        mv.visitLabel(normalStep);
+        load("pixelStep");
+        mv.visitLabel(stepDone);
+        storeNew("xStep", int.class);
+
+        // lineStartX = (coarserLine && firstX % coarserStep == 0) ? firstX + pixelStep : firstX
+        final Label normalStart = new Label();
+        final Label startDone = new Label();
+        load("coarserLine");
+        mv.visitJumpInsn(IFEQ, normalStart);
+        load("firstX");
+        load("coarserStep");
+        mv.visitInsn(IREM);
+        mv.visitJumpInsn(IFNE, normalStart);
+        load("firstX");
+        load("pixelStep");
+        mv.visitInsn(IADD);
+        mv.visitJumpInsn(GOTO, startDone);
+        mv.visitLabel(normalStart);
+        load("firstX");
+        mv.visitLabel(startDone);
+        storeNew("lineStartX", int.class);
+
+        load("xStep");
+        load("pixelStride");
+        mv.visitInsn(IMUL);
+        storeNew("pixelIndexStep", int.class);
+        load("xStep");
+        mv.visitInsn(I2F);
+        load("relXStep");
+        mv.visitInsn(FMUL);
+        storeNew("relXPixelStep", float.class);
+
+        // pixelIndex = dataOffset + y * rowStride + lineStartX * pixelStride
+        load("dataOffset");
+        load("y");
+        load("rowStride");
+        mv.visitInsn(IMUL);
+        mv.visitInsn(IADD);
+        load("lineStartX");
+        load("pixelStride");
+        mv.visitInsn(IMUL);
+        mv.visitInsn(IADD);
+        store(PIXEL_INDEX);
+
+        generateStatements(BEFORE_LINE);
+
+        // Loop along line
+        generateRelativeCoordinate("width", "lineStartX");
+        store(RELATIVE_X);
+        pushScope();
+        load("lineStartX");
+        storeNew("x", int.class);
+        final Label pixelLoop = new Label();
+        final Label pixelsDone = new Label();
+        mv.visitLabel(pixelLoop);
+        generateLoopCondition("x", "endX", pixelsDone);
+        pushScope();
+
+        load("x");
+        mv.visitInsn(I2F);
+        store(X_NAME);
+
+        // Read the picture channels, and start the used temporary channels at zero
+        for (String channel : builder.getPictureChannels()) {
+            load(PIXEL_DATA);
+            load(PIXEL_INDEX);
+            load(CHANNEL_OFFSET_PREFIX + channel);
+            mv.visitInsn(IADD);
+            mv.visitInsn(FALOAD);
+            storeNew(CHANNEL_PREFIX + channel, float.class);
+        }
+        for (String channel : builder.getUsedTemporaryChannels()) {
+            mv.visitInsn(FCONST_0);
+            storeNew(CHANNEL_PREFIX + channel, float.class);
+        }
+
+        generateStatements(BEFORE_PIXEL);
+        generateStatements(AT_PIXEL);
+
+        // Write the picture channels back
+        for (String channel : builder.getPictureChannels()) {
+            load(PIXEL_DATA);
+            load(PIXEL_INDEX);
+            load(CHANNEL_OFFSET_PREFIX + channel);
+            mv.visitInsn(IADD);
+            load(CHANNEL_PREFIX + channel);
+            mv.visitInsn(FASTORE);
+        }
+
+        generateStatements(AFTER_PIXEL);
+
+        // Move to next pixel
+        load(PIXEL_INDEX);
+        load("pixelIndexStep");
+        mv.visitInsn(IADD);
+        store(PIXEL_INDEX);
+        load(RELATIVE_X);
+        load("relXPixelStep");
+        mv.visitInsn(FADD);
+        store(RELATIVE_X);
+
+        popScope();
+        load("x");
+        load("xStep");
+        mv.visitInsn(IADD);
+        store("x");
+        mv.visitJumpInsn(GOTO, pixelLoop);
+        mv.visitLabel(pixelsDone);
+        popScope();
+
+        generateStatements(AFTER_LINE);
+
+        // Report progress
+        mv.visitIincInsn(parser.getLocal("completedScanLines").slot, 1);
+
+        // if (endX > lineStartX) completedPixels += (endX - lineStartX + xStep - 1) / xStep
+        final Label noPixelsOnLine = new Label();
+        load("endX");
+        load("lineStartX");
+        mv.visitJumpInsn(IF_ICMPLE, noPixelsOnLine);
+        load("completedPixels");
+        load("endX");
+        load("lineStartX");
+        mv.visitInsn(ISUB);
+        load("xStep");
+        mv.visitInsn(IADD);
+        mv.visitInsn(ICONST_1);
+        mv.visitInsn(ISUB);
+        load("xStep");
+        mv.visitInsn(IDIV);
+        mv.visitInsn(IADD);
+        store("completedPixels");
+        mv.visitLabel(noPixelsOnLine);
+
+        // if ((completedScanLines >= progressReportInterval || y + pixelStep >= endY) && listener != null)
+        final Label report = new Label();
+        final Label reportDone = new Label();
+        load("completedScanLines");
+        load("progressReportInterval");
+        mv.visitJumpInsn(IF_ICMPGE, report);
+        load("y");
+        load("pixelStep");
+        mv.visitInsn(IADD);
+        load("endY");
+        mv.visitJumpInsn(IF_ICMPLT, reportDone);
+        mv.visitLabel(report);
+        load("listener");
+        mv.visitJumpInsn(IFNULL, reportDone);
+        load("listener");
+        load("calculatorIndex");
+        load("completedPixels");
+        mv.visitMethodInsn(INVOKEINTERFACE, LISTENER, "onCalculationProgress", "(II)V");
+        mv.visitInsn(ICONST_0);
+        store("completedScanLines");
+        mv.visitInsn(ICONST_0);
+        store("completedPixels");
+        mv.visitLabel(reportDone);
+
+        popScope();
+        load("y");
+        load("pixelStep");
+        mv.visitInsn(IADD);
+        store("y");
+        mv.visitJumpInsn(GOTO, lineLoop);
+        mv.visitLabel(linesDone);
+        popScope();
+
+        generateStatements(AFTER_LOOP);
+
+        mv.visitInsn(RETURN);
+        endMethod();
+    }
+
+    /**
+     * Pushes ((value + pixelStep - 1) / pixelStep) * pixelStep.
+     */
+    private void generateRoundUpToStep(String value) {
+        load(value);
+        load("pixelStep");
+        mv.visitInsn(IADD);
+        mv.visitInsn(ICONST_1);
+        mv.visitInsn(ISUB);
+        load("pixelStep");
+        mv.visitInsn(IDIV);
+        load("pixelStep");
+        mv.visitInsn(IMUL);
+    }
+
+    /**
+     * Pushes (size == 1) ? 0.5f : (float) coordinate / (size - 1),
+     * or (size == 1) ? 0 : 1f / (size - 1) if the coordinate is null.
+     */
+    private void generateRelativeCoordinate(String size, String coordinate) {
+        final Label multiplePixels = new Label();
+        final Label done = new Label();
+        load(size);
+        mv.visitInsn(ICONST_1);
+        mv.visitJumpInsn(IF_ICMPNE, multiplePixels);
+        if (coordinate == null) mv.visitInsn(FCONST_0);
+        else mv.visitLdcInsn(0.5f);
+        mv.visitJumpInsn(GOTO, done);
+        mv.visitLabel(multiplePixels);
+        if (coordinate == null) {
+            mv.visitInsn(FCONST_1);
+        }
+        else {
+            load(coordinate);
+            mv.visitInsn(I2F);
+        }
+        load(size);
+        mv.visitInsn(ICONST_1);
+        mv.visitInsn(ISUB);
+        mv.visitInsn(I2F);
+        mv.visitInsn(FDIV);
+        mv.visitLabel(done);
+    }
+
+    /**
+     * Jumps to the end label unless (counter < end) && running.
+     */
+    private void generateLoopCondition(String counter, String end, Label endLabel) {
+        load(counter);
+        load(end);
+        mv.visitJumpInsn(IF_ICMPGE, endLabel);
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitFieldInsn(GETFIELD, classInternalName, RUNNING, "Z");
+        mv.visitJumpInsn(IFEQ, endLabel);
+    }
+
+    private void generateStatements(SourceLocation location) throws UnsupportedCodeException {
+        for (SourceStatement statement : builder.getStatements(location)) {
+            if (statement.getExpression() == null) {
+                throw new UnsupportedCodeException("Unstructured statement '" + statement.getCode() + "'");
+            }
+
+            if (statement.getDeclaredVariable() != null) {
+                final Class<?> type = ExpressionParser.getPrimitiveType(builder.getLocalVariableType(statement.getDeclaredVariable()));
+                if (type == null) throw new UnsupportedCodeException("Unsupported variable type in '" + statement.getCode() + "'");
+
+                parser.parseValue(statement.getExpression(), type).generate(mv);
+                storeNew(statement.getDeclaredVariable(), type);
+            }
+            else {
+                final LocalVariable target = parser.getLocal(statement.getAssignedVariable());
+                if (target == null) throw new UnsupportedCodeException("Unknown local variable in '" + statement.getCode() + "'");
+
+                parser.parseValue(statement.getExpression(), target.type).generate(mv);
+                target.generateStore(mv);
+            }
+        }
+    }
+
+    private void endMethod() {
+        // The sizes are computed by the class writer
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        mv = null;
+    }
+
+    private void pushInt(int value) {
+        ExpressionParser.generateIntConstant(mv, value);
+    }
+
+    // Local variables
+
+    private void pushScope() {
+        parser.pushScope();
+    }
+
+    private void popScope() {
+        parser.popScope();
+    }
+
+    private void declareLocal(String name, Class<?> type) throws UnsupportedCodeException {
+        parser.declareLocal(name, type);
+    }
+
+    private void storeNew(String name, Class<?> type) throws UnsupportedCodeException {
+        parser.declareLocal(name, type).generateStore(mv);
+    }
+
+    private void load(String name) {
+        parser.getLocal(name).generate(mv);
+    }
+
+    private void store(String name) {
+        parser.getLocal(name).generateStore(mv);
+    }
+}
@@ -0,0 +1,28 @@
+package org.rasterfun.core.compiler;
+
+/**
+ * The ways a RendererBuilder can turn the collected code into a Renderer class.
+ * Both produce renderers that behave the same.
+ */
+public enum CompilerBackend {
+
+    /**
+     * Generates java source for the renderer and compiles it with Janino.
+     * Supports any code added to the builder.
+     */
+    JANINO,
+
+    /**
+     * Generates the bytecode of the renderer directly with ASM, without parsing and compiling any source,
+     * which is faster when renderers are recompiled often, e.g. while editing.
+     * Only supports statements that declare or assign primitive variables using arithmetic expressions and calls
+     * to static methods, as the effects generate.  The bytecode is generated from the statements collected by the
+     * builder, by parsing the expression of each statement.
+     *
+     * These renderers are compiled with Janino instead, see RendererBuilder.getCompilerBackendFallbackReason:
+     * renderers with fields or methods added to the builder, with other statements or expressions,
+     * with imports of unknown classes, with row kernels enabled, and with a pixel calculation large enough
+     * to be split into several methods.
+     */
+    BYTECODE
+}
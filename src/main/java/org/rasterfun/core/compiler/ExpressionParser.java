@@ -0,0 +1,950 @@
+package org.rasterfun.core.compiler;
+
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.*;
+
+/**
+ * Parses the expressions of the statements collected by a RendererBuilder into a tree of typed expressions,
+ * that can either generate bytecode calculating their value, or calculate it directly.
+ * Keeps track of the local variables declared so far, in nested scopes like java blocks.
+ *
+ * Supported expressions contain literals, local variables, parameters, arithmetic operators, primitive casts,
+ * and static methods and fields of imported classes, all with primitive types.
+ * Anything else causes an UnsupportedCodeException.
+ */
+final class ExpressionParser implements Opcodes {
+
+    private static final Map<String, Class<?>> PRIMITIVE_TYPES = new HashMap<String, Class<?>>();
+    static {
+        for (Class<?> type : new Class<?>[]{boolean.class, byte.class, short.class, char.class,
+                                            int.class, long.class, float.class, double.class}) {
+            PRIMITIVE_TYPES.put(type.getName(), type);
+        }
+    }
+
+    private final Set<Class<?>> importedClasses;
+    private final Map<String, Expression> parameters;
+
+    // Local variables, and the names declared in each enclosing block
+    private final Map<String, LocalVariable> locals = new HashMap<String, LocalVariable>();
+    private final List<List<String>> scopes = new ArrayList<List<String>>();
+    private int nextLocalSlot;
+
+    // Tokens of the expression being parsed
+    private List<String> tokens;
+    private int position;
+
+    /**
+     * @param importedClasses classes that can be referred to with their simple names.
+     * @param parameters expressions for the parameter fields of the renderer, by identifier.
+     * @param firstLocalSlot slot of the first declared local variable.
+     */
+    ExpressionParser(Set<Class<?>> importedClasses, Map<String, Expression> parameters, int firstLocalSlot) {
+        this.importedClasses = importedClasses;
+        this.parameters = parameters;
+        this.nextLocalSlot = firstLocalSlot;
+        pushScope();
+    }
+
+    /**
+     * @return the primitive type with the specified name, or null if it is not a primitive type.
+     */
+    static Class<?> getPrimitiveType(String typeName) {
+        return PRIMITIVE_TYPES.get(typeName);
+    }
+
+    // Local variables
+
+    void pushScope() {
+        scopes.add(new ArrayList<String>());
+    }
+
+    void popScope() {
+        // Slots are not reused, so that a slot always holds values of the same type
+        for (String name : scopes.remove(scopes.size() - 1)) {
+            locals.remove(name);
+        }
+    }
+
+    LocalVariable declareLocal(String name, Class<?> type) throws UnsupportedCodeException {
+        if (locals.containsKey(name)) throw new UnsupportedCodeException("The variable " + name + " is declared twice");
+
+        final LocalVariable local = new LocalVariable(nextLocalSlot, type);
+        nextLocalSlot += Type.getType(type).getSize();
+        locals.put(name, local);
+        scopes.get(scopes.size() - 1).add(name);
+        return local;
+    }
+
+    /**
+     * @return the local variable with the name in the current scope, or null if there is none.
+     */
+    LocalVariable getLocal(String name) {
+        return locals.get(name);
+    }
+
+    /**
+     * @return the number of local variable slots used so far.
+     */
+    int getLocalSlotCount() {
+        return nextLocalSlot;
+    }
+
+    // Parsing
+
+    /**
+     * Parses an expression with the precedence rules of java.
+     */
+    Expression parse(String expression) throws UnsupportedCodeException {
+        tokens = tokenize(expression);
+        position = 0;
+        final Expression result = parseAdditive();
+        if (position < tokens.size()) throw new UnsupportedCodeException("Unexpected '" + tokens.get(position) + "' in '" + expression + "'");
+        return result;
+    }
+
+    /**
+     * Parses an expression for the value of a variable of the specified type.
+     *
+     * @return the expression, converted to the type.
+     */
+    Expression parseValue(String expression, Class<?> type) throws UnsupportedCodeException {
+        final Expression value = parse(expression);
+        if (!isWidening(value.type, type)) {
+            throw new UnsupportedCodeException("Can not assign a " + value.type + " to a " + type + " in '" + expression + "'");
+        }
+        return convert(value, type);
+    }
+
+    private Expression parseAdditive() throws UnsupportedCodeException {
+        Expression result = parseMultiplicative();
+        while ("+".equals(peek()) || "-".equals(peek())) {
+            final String operator = next();
+            result = createBinaryOperation(operator.charAt(0), result, parseMultiplicative());
+        }
+        return result;
+    }
+
+    private Expression parseMultiplicative() throws UnsupportedCodeException {
+        Expression result = parseUnary();
+        while ("*".equals(peek()) || "/".equals(peek()) || "%".equals(peek())) {
+            final String operator = next();
+            result = createBinaryOperation(operator.charAt(0), result, parseUnary());
+        }
+        return result;
+    }
+
+    private Expression parseUnary() throws UnsupportedCodeException {
+        if ("-".equals(peek())) {
+            next();
+            final Expression operand = parseUnary();
+            checkNumeric(operand);
+            return new Negation(convert(operand, promote(operand.type)));
+        }
+        else if ("+".equals(peek())) {
+            next();
+            final Expression operand = parseUnary();
+            checkNumeric(operand);
+            return convert(operand, promote(operand.type));
+        }
+        else if ("(".equals(peek()) &&
+                 position + 2 < tokens.size() &&
+                 PRIMITIVE_TYPES.containsKey(tokens.get(position + 1)) &&
+                 ")".equals(tokens.get(position + 2))) {
+            // Primitive cast
+            next();
+            final Class<?> type = PRIMITIVE_TYPES.get(next());
+            next();
+            final Expression operand = parseUnary();
+            if (type == boolean.class || operand.type == boolean.class) {
+                if (operand.type != type) throw new UnsupportedCodeException("Can not cast a " + operand.type + " to a " + type);
+                return operand;
+            }
+            checkNumeric(operand);
+            return convert(operand, type);
+        }
+        else {
+            return parsePrimary();
+        }
+    }
+
+    private Expression parsePrimary() throws UnsupportedCodeException {
+        final String token = next();
+        final char first = token.charAt(0);
+        if ("(".equals(token)) {
+            final Expression result = parseAdditive();
+            expect(")");
+            return result;
+        }
+        else if (Character.isDigit(first) || first == '.') {
+            return parseNumber(token);
+        }
+        else if ("true".equals(token) || "false".equals(token)) {
+            return new Literal(Boolean.valueOf(token), boolean.class);
+        }
+        else if (Character.isJavaIdentifierStart(first)) {
+            // Qualified name, possibly called as a method
+            final List<String> names = new ArrayList<String>();
+            names.add(token);
+            while (".".equals(peek())) {
+                next();
+                final String name = next();
+                if (!Character.isJavaIdentifierStart(name.charAt(0))) throw new UnsupportedCodeException("Unexpected '" + name + "'");
+                names.add(name);
+            }
+
+            if ("(".equals(peek())) {
+                next();
+                final List<Expression> arguments = new ArrayList<Expression>();
+                if (!")".equals(peek())) {
+                    arguments.add(parseAdditive());
+                    while (",".equals(peek())) {
+                        next();
+                        arguments.add(parseAdditive());
+                    }
+                }
+                expect(")");
+                return createStaticCall(names, arguments);
+            }
+            else if (names.size() == 1) {
+                return createVariable(token);
+            }
+            else {
+                return createStaticField(names);
+            }
+        }
+        else {
+            throw new UnsupportedCodeException("Unexpected '" + token + "'");
+        }
+    }
+
+    private String peek() {
+        return position < tokens.size() ? tokens.get(position) : null;
+    }
+
+    private String next() throws UnsupportedCodeException {
+        if (position >= tokens.size()) throw new UnsupportedCodeException("Unexpected end of expression");
+        return tokens.get(position++);
+    }
+
+    private void expect(String token) throws UnsupportedCodeException {
+        final String actual = next();
+        if (!token.equals(actual)) throw new UnsupportedCodeException("Expected '" + token + "' but got '" + actual + "'");
+    }
+
+    /**
+     * @return the identifiers, numbers and operators in the expression.
+     */
+    private static List<String> tokenize(String expression) throws UnsupportedCodeException {
+        final List<String> tokens = new ArrayList<String>();
+        final int length = expression.length();
+        int i = 0;
+        while (i < length) {
+            final char c = expression.charAt(i);
+            final int start = i;
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+            else if (Character.isJavaIdentifierStart(c)) {
+                while (i < length && Character.isJavaIdentifierPart(expression.charAt(i))) i++;
+            }
+            else if (Character.isDigit(c) || c == '.' && i + 1 < length && Character.isDigit(expression.charAt(i + 1))) {
+                // Number, including any fraction, exponent, and suffix
+                while (i < length) {
+                    final char n = expression.charAt(i);
+                    final char previous = i > start ? expression.charAt(i - 1) : ' ';
+                    final boolean exponentSign = (n == '+' || n == '-') && (previous == 'e' || previous == 'E');
+                    if (!Character.isLetterOrDigit(n) && n != '.' && !exponentSign) break;
+                    i++;
+                }
+            }
+            else if ("+-*/%(),.".indexOf(c) >= 0) {
+                i++;
+            }
+            else {
+                throw new UnsupportedCodeException("Unsupported character '" + c + "' in '" + expression + "'");
+            }
+            tokens.add(expression.substring(start, i));
+        }
+        return tokens;
+    }
+
+    private static Expression parseNumber(String token) throws UnsupportedCodeException {
+        final char suffix = Character.toLowerCase(token.charAt(token.length() - 1));
+        final String digits = Character.isLetter(suffix) ? token.substring(0, token.length() - 1) : token;
+        final boolean decimal = digits.indexOf('.') >= 0 || digits.indexOf('e') >= 0 || digits.indexOf('E') >= 0;
+        final boolean octal = digits.length() > 1 && digits.charAt(0) == '0' && !decimal;
+        for (int i = 0; i < digits.length(); i++) {
+            final char c = Character.toLowerCase(digits.charAt(i));
+            if (!Character.isDigit(c) && c != '.' && c != 'e' && c != '+' && c != '-') {
+                throw new UnsupportedCodeException("Unsupported number " + token);
+            }
+        }
+
+        try {
+            if (suffix == 'f') return new Literal(Float.parseFloat(digits), float.class);
+            else if (suffix == 'd' || decimal && !Character.isLetter(suffix)) return new Literal(Double.parseDouble(digits), double.class);
+            else if (octal || decimal) throw new UnsupportedCodeException("Unsupported number " + token);
+            else if (suffix == 'l') return new Literal(Long.parseLong(digits), long.class);
+            else if (!Character.isLetter(suffix)) return new Literal(Integer.parseInt(digits), int.class);
+            else throw new UnsupportedCodeException("Unsupported number " + token);
+        } catch (NumberFormatException e) {
+            throw new UnsupportedCodeException("Unsupported number " + token);
+        }
+    }
+
+    private Expression createVariable(String name) throws UnsupportedCodeException {
+        final LocalVariable local = locals.get(name);
+        if (local != null) return local;
+
+        final Expression parameter = parameters.get(name);
+        if (parameter != null) return parameter;
+
+        throw new UnsupportedCodeException("Unknown variable " + name);
+    }
+
+    private Expression createStaticField(List<String> names) throws UnsupportedCodeException {
+        final Class<?> owner = resolveClass(names.subList(0, names.size() - 1));
+        final String fieldName = names.get(names.size() - 1);
+        try {
+            final Field field = owner.getField(fieldName);
+            if (!Modifier.isStatic(field.getModifiers()) || !isNumericOrBoolean(field.getType())) {
+                throw new UnsupportedCodeException("Unsupported field " + fieldName + " in " + owner);
+            }
+            return new StaticField(owner, field);
+        } catch (NoSuchFieldException e) {
+            throw new UnsupportedCodeException("Unknown field " + fieldName + " in " + owner);
+        }
+    }
+
+    private Expression createStaticCall(List<String> names, List<Expression> arguments) throws UnsupportedCodeException {
+        if (names.size() < 2) throw new UnsupportedCodeException("Calls to methods of the renderer are not supported");
+
+        final Class<?> owner = resolveClass(names.subList(0, names.size() - 1));
+        final String methodName = names.get(names.size() - 1);
+        if (owner.isInterface()) throw new UnsupportedCodeException("Static methods of interfaces are not supported");
+
+        // Find the applicable methods that do not need boxing
+        final List<Method> candidates = new ArrayList<Method>();
+        for (Method method : owner.getMethods()) {
+            if (method.getName().equals(methodName) &&
+                Modifier.isStatic(method.getModifiers()) &&
+                isNumericOrBoolean(method.getReturnType()) &&
+                isApplicable(method.getParameterTypes(), arguments)) {
+                candidates.add(method);
+            }
+        }
+
+        // Select the most specific one
+        for (Method candidate : candidates) {
+            boolean mostSpecific = true;
+            for (Method other : candidates) {
+                if (!isMoreSpecific(candidate.getParameterTypes(), other.getParameterTypes())) mostSpecific = false;
+            }
+            if (mostSpecific) {
+                final Class<?>[] parameterTypes = candidate.getParameterTypes();
+                final Expression[] convertedArguments = new Expression[parameterTypes.length];
+                for (int i = 0; i < parameterTypes.length; i++) {
+                    convertedArguments[i] = convert(arguments.get(i), parameterTypes[i]);
+                }
+                return new StaticCall(owner, candidate, convertedArguments);
+            }
+        }
+
+        throw new UnsupportedCodeException("No unique static method " + methodName + " in " + owner + " for the arguments");
+    }
+
+    private static boolean isApplicable(Class<?>[] parameterTypes, List<Expression> arguments) {
+        if (parameterTypes.length != arguments.size()) return false;
+        for (int i = 0; i < parameterTypes.length; i++) {
+            if (!isWidening(arguments.get(i).type, parameterTypes[i])) return false;
+        }
+        return true;
+    }
+
+    private static boolean isMoreSpecific(Class<?>[] parameterTypes, Class<?>[] otherParameterTypes) {
+        for (int i = 0; i < parameterTypes.length; i++) {
+            if (!isWidening(parameterTypes[i], otherParameterTypes[i])) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the class with the qualified name, or the imported or java.lang class with the simple name.
+     */
+    private Class<?> resolveClass(List<String> names) throws UnsupportedCodeException {
+        if (locals.containsKey(names.get(0)) || parameters.containsKey(names.get(0))) {
+            throw new UnsupportedCodeException("Members of variables are not supported");
+        }
+
+        Class<?> result = null;
+        if (names.size() == 1) {
+            for (Class<?> importedClass : importedClasses) {
+                if (importedClass.getName().equals(importedClass.getPackage() == null ?
+                                                   names.get(0) :
+                                                   importedClass.getPackage().getName() + "." + names.get(0))) {
+                    result = importedClass;
+                }
+            }
+            if (result == null) result = findClass("java.lang." + names.get(0));
+        }
+        else {
+            final StringBuilder name = new StringBuilder();
+            for (String part : names) {
+                if (name.length() > 0) name.append('.');
+                name.append(part);
+            }
+            result = findClass(name.toString());
+        }
+
+        if (result == null || !isAccessible(result)) throw new UnsupportedCodeException("Unknown class " + names);
+        return result;
+    }
+
+    private static Class<?> findClass(String name) {
+        try {
+            return Class.forName(name, false, RendererClassCache.class.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if generated code in another package can refer to the type.
+     */
+    static boolean isAccessible(Class<?> type) {
+        while (type.isArray()) type = type.getComponentType();
+        return type.isPrimitive() || Modifier.isPublic(type.getModifiers()) && type.getEnclosingClass() == null;
+    }
+
+    private static Expression createBinaryOperation(char operator, Expression left, Expression right) throws UnsupportedCodeException {
+        checkNumeric(left);
+        checkNumeric(right);
+
+        // Binary numeric promotion
+        final Class<?> type;
+        if (left.type == double.class || right.type == double.class) type = double.class;
+        else if (left.type == float.class || right.type == float.class) type = float.class;
+        else if (left.type == long.class || right.type == long.class) type = long.class;
+        else type = int.class;
+
+        return new BinaryOperation(operator, convert(left, type), convert(right, type));
+    }
+
+    private static void checkNumeric(Expression expression) throws UnsupportedCodeException {
+        if (!isNumeric(expression.type)) throw new UnsupportedCodeException("Expected a number, but got a " + expression.type);
+    }
+
+    private static boolean isNumeric(Class<?> type) {
+        return type.isPrimitive() && type != boolean.class && type != void.class;
+    }
+
+    private static boolean isNumericOrBoolean(Class<?> type) {
+        return isNumeric(type) || type == boolean.class;
+    }
+
+    /**
+     * @return the type after unary numeric promotion.
+     */
+    private static Class<?> promote(Class<?> type) {
+        return type == byte.class || type == short.class || type == char.class ? int.class : type;
+    }
+
+    /**
+     * @return true if the from type is the same as the to type, or can be converted to it with a widening primitive conversion.
+     */
+    static boolean isWidening(Class<?> from, Class<?> to) {
+        if (from == to) return isNumericOrBoolean(from);
+        if (!isNumeric(from) || !isNumeric(to) || to == char.class) return false;
+        return getWideningRank(from) < getWideningRank(to);
+    }
+
+    private static int getWideningRank(Class<?> type) {
+        if (type == byte.class) return 0;
+        else if (type == short.class || type == char.class) return 1;
+        else if (type == int.class) return 2;
+        else if (type == long.class) return 3;
+        else if (type == float.class) return 4;
+        else return 5;
+    }
+
+    /**
+     * @return the expression converted to the specified numeric type, or the expression itself if it already has the type.
+     */
+    private static Expression convert(Expression expression, Class<?> type) {
+        if (expression.type == type) return expression;
+        else return new Conversion(expression, type);
+    }
+
+    static void generateIntConstant(MethodVisitor mv, int value) {
+        if (value >= -1 && value <= 5) mv.visitInsn(ICONST_0 + value);
+        else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) mv.visitIntInsn(BIPUSH, value);
+        else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) mv.visitIntInsn(SIPUSH, value);
+        else mv.visitLdcInsn(value);
+    }
+
+
+    /**
+     * Values of the local variables while an expression tree is evaluated, by slot.
+     * Boolean, byte, short, char and int values are all stored as ints.
+     */
+    static final class Frame {
+        final int[] ints;
+        final long[] longs;
+        final float[] floats;
+        final double[] doubles;
+
+        Frame(int slotCount) {
+            ints = new int[slotCount];
+            longs = new long[slotCount];
+            floats = new float[slotCount];
+            doubles = new double[slotCount];
+        }
+
+        /**
+         * Stores a boxed value in the slot of the variable.
+         */
+        void store(LocalVariable variable, Object value) {
+            final Class<?> type = variable.type;
+            if (type == long.class) longs[variable.slot] = (Long) value;
+            else if (type == float.class) floats[variable.slot] = (Float) value;
+            else if (type == double.class) doubles[variable.slot] = (Double) value;
+            else if (type == boolean.class) ints[variable.slot] = (Boolean) value ? 1 : 0;
+            else if (type == char.class) ints[variable.slot] = (Character) value;
+            else ints[variable.slot] = ((Number) value).intValue();
+        }
+    }
+
+    /**
+     * A parsed expression, that can generate code leaving its value on the stack, or calculate its value.
+     * Only the evaluate method for the type of the expression is used, ints are used for all types
+     * smaller than long, including booleans.
+     */
+    abstract static class Expression {
+        final Class<?> type;
+
+        protected Expression(Class<?> type) {
+            this.type = type;
+        }
+
+        abstract void generate(MethodVisitor mv);
+
+        int evaluateInt(Frame frame) {
+            throw new IllegalStateException("Not an int expression");
+        }
+
+        long evaluateLong(Frame frame) {
+            throw new IllegalStateException("Not a long expression");
+        }
+
+        float evaluateFloat(Frame frame) {
+            throw new IllegalStateException("Not a float expression");
+        }
+
+        double evaluateDouble(Frame frame) {
+            throw new IllegalStateException("Not a double expression");
+        }
+
+        /**
+         * @return the value of the expression, boxed.
+         */
+        final Object evaluateBoxed(Frame frame) {
+            if (type == long.class) return evaluateLong(frame);
+            else if (type == float.class) return evaluateFloat(frame);
+            else if (type == double.class) return evaluateDouble(frame);
+            else if (type == boolean.class) return evaluateInt(frame) != 0;
+            else if (type == byte.class) return (byte) evaluateInt(frame);
+            else if (type == short.class) return (short) evaluateInt(frame);
+            else if (type == char.class) return (char) evaluateInt(frame);
+            else return evaluateInt(frame);
+        }
+    }
+
+    /**
+     * Base class for expressions that calculate a boxed value, which is unboxed to the type of the expression.
+     */
+    private abstract static class BoxedValueExpression extends Expression {
+        protected BoxedValueExpression(Class<?> type) {
+            super(type);
+        }
+
+        abstract Object getValue(Frame frame);
+
+        @Override
+        int evaluateInt(Frame frame) {
+            final Object value = getValue(frame);
+            if (value instanceof Boolean) return (Boolean) value ? 1 : 0;
+            else if (value instanceof Character) return (Character) value;
+            else return ((Number) value).intValue();
+        }
+
+        @Override
+        long evaluateLong(Frame frame) {
+            return (Long) getValue(frame);
+        }
+
+        @Override
+        float evaluateFloat(Frame frame) {
+            return (Float) getValue(frame);
+        }
+
+        @Override
+        double evaluateDouble(Frame frame) {
+            return (Double) getValue(frame);
+        }
+    }
+
+    static final class Literal extends BoxedValueExpression {
+        private final Object value;
+        private final int intValue;
+
+        Literal(Object value, Class<?> type) {
+            super(type);
+            this.value = value;
+            this.intValue = type == boolean.class ? ((Boolean) value ? 1 : 0) : type == int.class ? (Integer) value : 0;
+        }
+
+        @Override
+        Object getValue(Frame frame) {
+            return value;
+        }
+
+        @Override
+        int evaluateInt(Frame frame) {
+            return intValue;
+        }
+
+        @Override
+        void generate(MethodVisitor mv) {
+            if (type == boolean.class || type == int.class) generateIntConstant(mv, intValue);
+            else mv.visitLdcInsn(value);
+        }
+    }
+
+    static final class LocalVariable extends Expression {
+        final int slot;
+
+        LocalVariable(int slot, Class<?> type) {
+            super(type);
+            this.slot = slot;
+        }
+
+        @Override
+        void generate(MethodVisitor mv) {
+            mv.visitVarInsn(Type.getType(type).getOpcode(ILOAD), slot);
+        }
+
+        /**
+         * Generates code that stores the value on the stack in the variable.
+         */
+        void generateStore(MethodVisitor mv) {
+            mv.visitVarInsn(Type.getType(type).getOpcode(ISTORE), slot);
+        }
+
+        @Override
+        int evaluateInt(Frame frame) {
+            return frame.ints[slot];
+        }
+
+        @Override
+        long evaluateLong(Frame frame) {
+            return frame.longs[slot];
+        }
+
+        @Override
+        float evaluateFloat(Frame frame) {
+            return frame.floats[slot];
+        }
+
+        @Override
+        double evaluateDouble(Frame frame) {
+            return frame.doubles[slot];
+        }
+    }
+
+    static final class ParameterField extends Expression {
+        private final String owner;
+        private final String name;
+
+        ParameterField(String owner, String name, Class<?> type) {
+            super(type);
+            this.owner = owner;
+            this.name = name;
+        }
+
+        @Override
+        void generate(MethodVisitor mv) {
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitFieldInsn(GETFIELD, owner, name, Type.getDescriptor(type));
+        }
+    }
+
+    private static final class StaticField extends BoxedValueExpression {
+        private final Class<?> owner;
+        private final Field field;
+
+        private StaticField(Class<?> owner, Field field) {
+            super(field.getType());
+            this.owner = owner;
+            this.field = field;
+        }
+
+        @Override
+        void generate(MethodVisitor mv) {
+            mv.visitFieldInsn(GETSTATIC, Type.getInternalName(owner), field.getName(), Type.getDescriptor(type));
+        }
+
+        @Override
+        Object getValue(Frame frame) {
+            try {
+                return field.get(null);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Could not read " + field + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private static final class Negation extends Expression {
+        private final Expression operand;
+
+        private Negation(Expression operand) {
+            super(operand.type);
+            this.operand = operand;
+        }
+
+        @Override
+        void generate(MethodVisitor mv) {
+            operand.generate(mv);
+            mv.visitInsn(Type.getType(type).getOpcode(INEG));
+        }
+
+        @Override
+        int evaluateInt(Frame frame) {
+            return -operand.evaluateInt(frame);
+        }
+
+        @Override
+        long evaluateLong(Frame frame) {
+            return -operand.evaluateLong(frame);
+        }
+
+        @Override
+        float evaluateFloat(Frame frame) {
+            return -operand.evaluateFloat(frame);
+        }
+
+        @Override
+        double evaluateDouble(Frame frame) {
+            return -operand.evaluateDouble(frame);
+        }
+    }
+
+    private static final class Conversion extends Expression {
+        private final Expression operand;
+
+        private Conversion(Expression operand, Class<?> type) {
+            super(type);
+            this.operand = operand;
+        }
+
+        @Override
+        void generate(MethodVisitor mv) {
+            operand.generate(mv);
+
+            final Class<?> from = promote(operand.type);
+            if (type == long.class) {
+                if (from == int.class) mv.visitInsn(I2L);
+                else if (from == float.class) mv.visitInsn(F2L);
+                else if (from == double.class) mv.visitInsn(D2L);
+            }
+            else if (type == float.class) {
+                if (from == int.class) mv.visitInsn(I2F);
+                else if (from == long.class) mv.visitInsn(L2F);
+                else if (from == double.class) mv.visitInsn(D2F);
+            }
+            else if (type == double.class) {
+                if (from == int.class) mv.visitInsn(I2D);
+                else if (from == long.class) mv.visitInsn(L2D);
+                else if (from == float.class) mv.visitInsn(F2D);
+            }
+            else {
+                // Integer types smaller than long are converted to int first
+                if (from == long.class) mv.visitInsn(L2I);
+                else if (from == float.class) mv.visitInsn(F2I);
+                else if (from == double.class) mv.visitInsn(D2I);
+
+                if (type == byte.class) mv.visitInsn(I2B);
+                else if (type == short.class) mv.visitInsn(I2S);
+                else if (type == char.class) mv.visitInsn(I2C);
+            }
+        }
+
+        @Override
+        int evaluateInt(Frame frame) {
+            final int value;
+            final Class<?> from = promote(operand.type);
+            if (from == long.class) value = (int) operand.evaluateLong(frame);
+            else if (from == float.class) value = (int) operand.evaluateFloat(frame);
+            else if (from == double.class) value = (int) operand.evaluateDouble(frame);
+            else value = operand.evaluateInt(frame);
+
+            if (type == byte.class) return (byte) value;
+            else if (type == short.class) return (short) value;
+            else if (type == char.class) return (char) value;
+            else return value;
+        }
+
+        @Override
+        long evaluateLong(Frame frame) {
+            final Class<?> from = promote(operand.type);
+            if (from == float.class) return (long) operand.evaluateFloat(frame);
+            else if (from == double.class) return (long) operand.evaluateDouble(frame);
+            else return operand.evaluateInt(frame);
+        }
+
+        @Override
+        float evaluateFloat(Frame frame) {
+            final Class<?> from = promote(operand.type);
+            if (from == long.class) return (float) operand.evaluateLong(frame);
+            else if (from == double.class) return (float) operand.evaluateDouble(frame);
+            else return (float) operand.evaluateInt(frame);
+        }
+
+        @Override
+        double evaluateDouble(Frame frame) {
+            final Class<?> from = promote(operand.type);
+            if (from == long.class) return (double) operand.evaluateLong(frame);
+            else if (from == float.class) return (double) operand.evaluateFloat(frame);
+            else return (double) operand.evaluateInt(frame);
+        }
+    }
+
+    private static final class BinaryOperation extends Expression {
+        private final char operator;
+        private final Expression left;
+        private final Expression right;
+
+        private BinaryOperation(char operator, Expression left, Expression right) {
+            super(left.type);
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        void generate(MethodVisitor mv) {
+            left.generate(mv);
+            right.generate(mv);
+
+            final int opcode;
+            switch (operator) {
+                case '+': opcode = IADD; break;
+                case '-': opcode = ISUB; break;
+                case '*': opcode = IMUL; break;
+                case '/': opcode = IDIV; break;
+                default:  opcode = IREM; break;
+            }
+            mv.visitInsn(Type.getType(type).getOpcode(opcode));
+        }
+
+        @Override
+        int evaluateInt(Frame frame) {
+            final int a = left.evaluateInt(frame);
+            final int b = right.evaluateInt(frame);
+            switch (operator) {
+                case '+': return a + b;
+                case '-': return a - b;
+                case '*': return a * b;
+                case '/': return a / b;
+                default:  return a % b;
+            }
+        }
+
+        @Override
+        long evaluateLong(Frame frame) {
+            final long a = left.evaluateLong(frame);
+            final long b = right.evaluateLong(frame);
+            switch (operator) {
+                case '+': return a + b;
+                case '-': return a - b;
+                case '*': return a * b;
+                case '/': return a / b;
+                default:  return a % b;
+            }
+        }
+
+        @Override
+        float evaluateFloat(Frame frame) {
+            final float a = left.evaluateFloat(frame);
+            final float b = right.evaluateFloat(frame);
+            switch (operator) {
+                case '+': return a + b;
+                case '-': return a - b;
+                case '*': return a * b;
+                case '/': return a / b;
+                default:  return a % b;
+            }
+        }
+
+        @Override
+        double evaluateDouble(Frame frame) {
+            final double a = left.evaluateDouble(frame);
+            final double b = right.evaluateDouble(frame);
+            switch (operator) {
+                case '+': return a + b;
+                case '-': return a - b;
+                case '*': return a * b;
+                case '/': return a / b;
+                default:  return a % b;
+            }
+        }
+    }
+
+    private static final class StaticCall extends BoxedValueExpression {
+        private final Class<?> owner;
+        private final Method method;
+        private final Expression[] arguments;
+
+        private StaticCall(Class<?> owner, Method method, Expression[] arguments) {
+            super(method.getReturnType());
+            this.owner = owner;
+            this.method = method;
+            this.arguments = arguments;
+        }
+
+        @Override
+        void generate(MethodVisitor mv) {
+            for (Expression argument : arguments) {
+                argument.generate(mv);
+            }
+            mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(owner), method.getName(), Type.getMethodDescriptor(method));
+        }
+
+        @Override
+        Object getValue(Frame frame) {
+            final Object[] argumentValues = new Object[arguments.length];
+            for (int i = 0; i < arguments.length; i++) {
+                argumentValues[i] = arguments[i].evaluateBoxed(frame);
+            }
+
+            try {
+                return method.invoke(null, argumentValues);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Could not call " + method + ": " + e.getMessage(), e);
+            } catch (InvocationTargetException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                else if (cause instanceof Error) throw (Error) cause;
+                else throw new IllegalStateException("Problem when calling " + method + ": " + cause, cause);
+            }
+        }
+    }
+}
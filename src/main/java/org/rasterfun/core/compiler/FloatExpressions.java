@@ -0,0 +1,86 @@
+package org.rasterfun.core.compiler;
+
+import org.rasterfun.utils.ClassUtils;
+import org.rasterfun.utils.ParameterChecker;
+import org.rasterfun.utils.StringUtils;
+
+/**
+ * Builds the source of float arithmetic expressions for generated code, folding constant operands.
+ * Operations where both operands are float literals are calculated right away, and multiplications with one
+ * and additions of zero are left out, so that effects with default settings do not cost anything for each pixel.
+ */
+public final class FloatExpressions {
+
+    private FloatExpressions() {
+    }
+
+    /**
+     * @return an expression for a + b.
+     */
+    public static String add(String a, String b) {
+        ParameterChecker.checkNotNull(a, "a");
+        ParameterChecker.checkNotNull(b, "b");
+
+        final Float valueA = getLiteralValue(a);
+        final Float valueB = getLiteralValue(b);
+        if (valueA != null && valueB != null) return literalOr(valueA + valueB, a + " + " + b);
+        else if (valueA != null && valueA == 0f) return b;
+        else if (valueB != null && valueB == 0f) return a;
+        // Float addition is not associative, so keep the evaluation order of a right side sum
+        else return a + " + " + asTerm(b);
+    }
+
+    /**
+     * @return an expression for a * b.
+     */
+    public static String multiply(String a, String b) {
+        ParameterChecker.checkNotNull(a, "a");
+        ParameterChecker.checkNotNull(b, "b");
+
+        final Float valueA = getLiteralValue(a);
+        final Float valueB = getLiteralValue(b);
+        if (valueA != null && valueB != null) return literalOr(valueA * valueB, a + " * " + b);
+        else if (valueA != null && valueA == 1f) return b;
+        else if (valueB != null && valueB == 1f) return a;
+        else return asFactor(a) + " * " + asTerm(b);
+    }
+
+    /**
+     * @return the value of the expression if it is a float literal, otherwise null.
+     */
+    public static Float getLiteralValue(String expression) {
+        return (Float) ClassUtils.parseConstantString(expression, Float.class);
+    }
+
+    private static String literalOr(float value, String unfoldedExpression) {
+        // NaN and infinite results have no literal, leave them to be calculated by the generated code
+        if (Float.isNaN(value) || Float.isInfinite(value)) return unfoldedExpression;
+        else return ClassUtils.wrappedPrimitiveTypeAsConstantString(value);
+    }
+
+    /**
+     * @return the expression in parentheses, unless it is a literal or an identifier.
+     */
+    private static String asTerm(String expression) {
+        if (getLiteralValue(expression) != null || StringUtils.isIdentifier(expression)) return expression;
+        else return "(" + expression + ")";
+    }
+
+    /**
+     * @return the expression in parentheses, unless it can be the left side of a multiplication as is.
+     */
+    private static String asFactor(String expression) {
+        if (isProduct(expression)) return expression;
+        else return asTerm(expression);
+    }
+
+    /**
+     * @return true if the expression only contains literals and identifiers multiplied together.
+     */
+    private static boolean isProduct(String expression) {
+        for (String factor : expression.split(" \\* ")) {
+            if (getLiteralValue(factor) == null && !StringUtils.isIdentifier(factor)) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,455 @@
+package org.rasterfun.core.compiler;
+
+import org.rasterfun.core.ParameterizedRenderer;
+import org.rasterfun.core.listeners.CalculationListener;
+
+import java.util.*;
+
+import static org.rasterfun.core.compiler.ExpressionParser.*;
+import static org.rasterfun.core.compiler.RendererBuilder.*;
+import static org.rasterfun.core.compiler.SourceLocation.*;
+
+/**
+ * Renderer that calculates the pixels by interpreting the statements collected by a RendererBuilder, instead of
+ * compiling them.  It is a lot slower than a compiled renderer, but can start rendering right away, while the
+ * compiled renderer is still being compiled.  Calculates the same values as the compiled renderer.
+ *
+ * Supports the same statements as the BytecodeRendererGenerator, and in addition only allows statements to assign
+ * channels and variables declared by statements.  Anything else causes an UnsupportedCodeException.
+ */
+final class InterpretedRenderer implements ParameterizedRenderer {
+
+    private static final Map<Class<?>, Class<?>> UNWRAPPED_TYPES = new HashMap<Class<?>, Class<?>>();
+    static {
+        UNWRAPPED_TYPES.put(Boolean.class, boolean.class);
+        UNWRAPPED_TYPES.put(Byte.class, byte.class);
+        UNWRAPPED_TYPES.put(Short.class, short.class);
+        UNWRAPPED_TYPES.put(Character.class, char.class);
+        UNWRAPPED_TYPES.put(Integer.class, int.class);
+        UNWRAPPED_TYPES.put(Long.class, long.class);
+        UNWRAPPED_TYPES.put(Float.class, float.class);
+        UNWRAPPED_TYPES.put(Double.class, double.class);
+    }
+
+    private final boolean planar;
+    private final int pixelStride;
+    private final int channelCount;
+    private final List<ObjectParameter> objectParameters;
+    private final LocalVariable[] parameterVariables;
+    private final Map<SourceLocation, Assignment[]> statements = new EnumMap<SourceLocation, Assignment[]>(SourceLocation.class);
+    private final int slotCount;
+
+    private volatile boolean running = true;
+    private volatile Object[] parameters;
+
+    private final ExpressionParser parser;
+    private final Set<String> assignableVariables = new HashSet<String>();
+
+    // Slots of the variables visible to the statements
+    private final int widthSlot, heightSlot, dataOffsetSlot, rowStrideSlot, channelStrideSlot;
+    private final int startXSlot, startYSlot, endXSlot, endYSlot, pixelStepSlot, skipCoarserPixelsSlot, calculatorIndexSlot;
+    private final int widthFSlot, heightFSlot, yFSlot, xFSlot, pixelStrideSlot;
+    private final int[] channelOffsetSlots;
+    private final int progressReportIntervalSlot, completedScanLinesSlot, completedPixelsSlot;
+    private final int coarserStepSlot, firstXSlot, firstYSlot, relXStepSlot, relXSlot, relYSlot, pixelIndexSlot;
+    private final int ySlot, coarserLineSlot, xStepSlot, lineStartXSlot, pixelIndexStepSlot, relXPixelStepSlot;
+    private final int xSlot;
+    private final int[] channelSlots;
+    private final int[] temporaryChannelSlots;
+
+    /**
+     * @throws UnsupportedCodeException if the builder contains code that can not be interpreted.
+     */
+    InterpretedRenderer(RendererBuilder builder) throws UnsupportedCodeException {
+        if (!builder.getStatements(FIELDS).isEmpty() || !builder.getStatements(METHODS).isEmpty()) {
+            throw new UnsupportedCodeException("Fields and methods can not be interpreted");
+        }
+        for (SourceStatement statement : builder.getStatements(IMPORTS)) {
+            if (!isKnownImport(builder, statement.getCode())) throw new UnsupportedCodeException("Unknown import " + statement.getCode());
+        }
+
+        planar = builder.isPlanar();
+        pixelStride = builder.getPixelStride();
+        channelCount = builder.getPictureChannelCount();
+
+        // The parameters are stored in the first slots
+        objectParameters = builder.getObjectParameters();
+        parameterVariables = new LocalVariable[objectParameters.size()];
+        final Map<String, Expression> parameterExpressions = new HashMap<String, Expression>();
+        for (int i = 0; i < parameterVariables.length; i++) {
+            final ObjectParameter parameter = objectParameters.get(i);
+            final Class<?> type = UNWRAPPED_TYPES.get(parameter.getType());
+            if (type != null) {
+                parameterVariables[i] = new LocalVariable(i, type);
+                parameterExpressions.put(parameter.getIdentifier(), parameterVariables[i]);
+            }
+        }
+        parser = new ExpressionParser(builder.getImportedClasses(), parameterExpressions, parameterVariables.length);
+
+        // Declare the variables in the same order and scopes as the generated source
+        widthSlot = declare("width", int.class);
+        heightSlot = declare("height", int.class);
+        declare("channelNames", String[].class);
+        declare(PIXEL_DATA, float[].class);
+        dataOffsetSlot = declare("dataOffset", int.class);
+        rowStrideSlot = declare("rowStride", int.class);
+        channelStrideSlot = declare("channelStride", int.class);
+        startXSlot = declare("startX", int.class);
+        startYSlot = declare("startY", int.class);
+        endXSlot = declare("endX", int.class);
+        endYSlot = declare("endY", int.class);
+        pixelStepSlot = declare("pixelStep", int.class);
+        skipCoarserPixelsSlot = declare("skipCoarserPixels", boolean.class);
+        declare("listener", CalculationListener.class);
+        calculatorIndexSlot = declare("calculatorIndex", int.class);
+
+        widthFSlot = declare(W_NAME, float.class);
+        heightFSlot = declare(H_NAME, float.class);
+        yFSlot = declare(Y_NAME, float.class);
+        xFSlot = declare(X_NAME, float.class);
+        pixelStrideSlot = declare("pixelStride", int.class);
+        final List<String> pictureChannels = builder.getPictureChannels();
+        channelOffsetSlots = new int[pictureChannels.size()];
+        for (int i = 0; i < channelOffsetSlots.length; i++) {
+            channelOffsetSlots[i] = declare(CHANNEL_OFFSET_PREFIX + pictureChannels.get(i), int.class);
+        }
+
+        parseStatements(builder, BEFORE_LOOP);
+
+        progressReportIntervalSlot = declare("progressReportInterval", int.class);
+        completedScanLinesSlot = declare("completedScanLines", int.class);
+        completedPixelsSlot = declare("completedPixels", int.class);
+        coarserStepSlot = declare("coarserStep", int.class);
+        firstXSlot = declare("firstX", int.class);
+        firstYSlot = declare("firstY", int.class);
+        relXStepSlot = declare("relXStep", float.class);
+        relXSlot = declare(RELATIVE_X, float.class);
+        relYSlot = declare(RELATIVE_Y, float.class);
+        pixelIndexSlot = declare(PIXEL_INDEX, int.class);
+
+        // Line loop
+        parser.pushScope();
+        ySlot = declare("y", int.class);
+        parser.pushScope();
+        coarserLineSlot = declare("coarserLine", boolean.class);
+        xStepSlot = declare("xStep", int.class);
+        lineStartXSlot = declare("lineStartX", int.class);
+        pixelIndexStepSlot = declare("pixelIndexStep", int.class);
+        relXPixelStepSlot = declare("relXPixelStep", float.class);
+
+        parseStatements(builder, BEFORE_LINE);
+
+        // Pixel loop
+        parser.pushScope();
+        xSlot = declare("x", int.class);
+        parser.pushScope();
+        channelSlots = new int[pictureChannels.size()];
+        for (int i = 0; i < channelSlots.length; i++) {
+            channelSlots[i] = declareChannel(pictureChannels.get(i));
+        }
+        final List<String> temporaryChannels = builder.getUsedTemporaryChannels();
+        temporaryChannelSlots = new int[temporaryChannels.size()];
+        for (int i = 0; i < temporaryChannelSlots.length; i++) {
+            temporaryChannelSlots[i] = declareChannel(temporaryChannels.get(i));
+        }
+
+        parseStatements(builder, BEFORE_PIXEL);
+        parseStatements(builder, AT_PIXEL);
+        parseStatements(builder, AFTER_PIXEL);
+        parser.popScope();
+        parser.popScope();
+
+        parseStatements(builder, AFTER_LINE);
+        parser.popScope();
+        parser.popScope();
+
+        parseStatements(builder, AFTER_LOOP);
+
+        slotCount = parser.getLocalSlotCount();
+
+        setParameters(builder.getParameterValues());
+    }
+
+    private static boolean isKnownImport(RendererBuilder builder, String importLine) {
+        for (Class<?> importedClass : builder.getImportedClasses()) {
+            if (importLine.equals("import " + importedClass.getName())) return true;
+        }
+        return false;
+    }
+
+    private int declare(String name, Class<?> type) throws UnsupportedCodeException {
+        return parser.declareLocal(name, type).slot;
+    }
+
+    private int declareChannel(String channel) throws UnsupportedCodeException {
+        assignableVariables.add(CHANNEL_PREFIX + channel);
+        return declare(CHANNEL_PREFIX + channel, float.class);
+    }
+
+    private void parseStatements(RendererBuilder builder, SourceLocation location) throws UnsupportedCodeException {
+        final List<Assignment> assignments = new ArrayList<Assignment>();
+        for (SourceStatement statement : builder.getStatements(location)) {
+            if (statement.getExpression() == null) {
+                throw new UnsupportedCodeException("Unstructured statement '" + statement.getCode() + "'");
+            }
+
+            final LocalVariable target;
+            final Expression value;
+            if (statement.getDeclaredVariable() != null) {
+                final Class<?> type = getPrimitiveType(builder.getLocalVariableType(statement.getDeclaredVariable()));
+                if (type == null) throw new UnsupportedCodeException("Unsupported variable type in '" + statement.getCode() + "'");
+
+                value = parser.parseValue(statement.getExpression(), type);
+                target = parser.declareLocal(statement.getDeclaredVariable(), type);
+                assignableVariables.add(statement.getDeclaredVariable());
+            }
+            else {
+                target = parser.getLocal(statement.getAssignedVariable());
+                if (target == null || !assignableVariables.contains(statement.getAssignedVariable())) {
+                    throw new UnsupportedCodeException("Can not interpret the assignment '" + statement.getCode() + "'");
+                }
+
+                value = parser.parseValue(statement.getExpression(), target.type);
+            }
+            assignments.add(new Assignment(target, value));
+        }
+        statements.put(location, assignments.toArray(new Assignment[assignments.size()]));
+    }
+
+    @Override
+    public void setParameters(Object[] parameters) {
+        // Check the types the same way the compiled renderer does
+        for (ObjectParameter parameter : objectParameters) {
+            final Object value = parameter.getType().cast(parameters[parameter.getIndex()]);
+            if (value == null && UNWRAPPED_TYPES.containsKey(parameter.getType())) {
+                throw new NullPointerException("The parameter " + parameter.getIdentifier() + " can not be null");
+            }
+        }
+        this.parameters = parameters.clone();
+        running = true;
+    }
+
+    @Override
+    public boolean isPlanar() {
+        return planar;
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+    }
+
+    @Override
+    public void calculatePixels(int width,
+                                int height,
+                                String[] channelNames,
+                                float[] pixelData,
+                                int startX,
+                                int startY,
+                                int endX,
+                                int endY,
+                                CalculationListener listener,
+                                int calculatorIndex) {
+        calculatePixels(width, height, channelNames, pixelData, startX, startY, endX, endY, 1, false, listener, calculatorIndex);
+    }
+
+    @Override
+    public void calculatePixels(int width,
+                                int height,
+                                String[] channelNames,
+                                float[] pixelData,
+                                int startX,
+                                int startY,
+                                int endX,
+                                int endY,
+                                int pixelStep,
+                                boolean skipCoarserPixels,
+                                CalculationListener listener,
+                                int calculatorIndex) {
+        calculatePixels(width, height, channelNames, pixelData,
+                        0, width * pixelStride, planar ? width * height : 1,
+                        startX, startY, endX, endY, pixelStep, skipCoarserPixels, listener, calculatorIndex);
+    }
+
+    /**
+     * Calculates the pixels with the same loop as the compiled renderer, storing the values of the variables visible to
+     * the statements in a frame whenever they change.
+     */
+    @Override
+    public void calculatePixels(int width,
+                                int height,
+                                String[] channelNames,
+                                float[] pixelData,
+                                int dataOffset,
+                                int rowStride,
+                                int channelStride,
+                                int startX,
+                                int startY,
+                                int endX,
+                                int endY,
+                                int pixelStep,
+                                boolean skipCoarserPixels,
+                                CalculationListener listener,
+                                int calculatorIndex) {
+
+        // Check that the passed in picture has the correct number of channels
+        if (channelNames.length != channelCount)
+            throw new IllegalArgumentException("The channel count should be correct, expected " + channelCount +
+                                               ", but got " + channelNames.length + ".");
+
+        // Each calculation uses its own frame, so that several threads can use the renderer at the same time
+        final Frame frame = new Frame(slotCount);
+        final int[] ints = frame.ints;
+        final float[] floats = frame.floats;
+        final Object[] parameterValues = parameters;
+        for (int i = 0; i < parameterVariables.length; i++) {
+            if (parameterVariables[i] != null) frame.store(parameterVariables[i], parameterValues[objectParameters.get(i).getIndex()]);
+        }
+
+        ints[widthSlot] = width;
+        ints[heightSlot] = height;
+        ints[dataOffsetSlot] = dataOffset;
+        ints[rowStrideSlot] = rowStride;
+        ints[channelStrideSlot] = channelStride;
+        ints[startXSlot] = startX;
+        ints[startYSlot] = startY;
+        ints[endXSlot] = endX;
+        ints[endYSlot] = endY;
+        ints[pixelStepSlot] = pixelStep;
+        ints[skipCoarserPixelsSlot] = skipCoarserPixels ? 1 : 0;
+        ints[calculatorIndexSlot] = calculatorIndex;
+
+        // Setup variables visible to generators
+        floats[widthFSlot] = (float) width;
+        floats[heightFSlot] = (float) height;
+        floats[yFSlot] = 0f;
+        floats[xFSlot] = 0f;
+        ints[pixelStrideSlot] = pixelStride;
+        final int[] channelOffsets = new int[channelOffsetSlots.length];
+        for (int i = 0; i < channelOffsets.length; i++) {
+            channelOffsets[i] = planar ? i * channelStride : i;
+            ints[channelOffsetSlots[i]] = channelOffsets[i];
+        }
+
+        execute(BEFORE_LOOP, frame);
+
+        // Set up progress reporting
+        final int progressReportInterval = (endY - startY) / (pixelStep * PROGRESS_REPORT_STEPS);
+        int completedScanLines = 0;
+        int completedPixels = 0;
+
+        final int coarserStep = pixelStep * 2;
+        final int firstX = ((startX + pixelStep - 1) / pixelStep) * pixelStep;
+        final int firstY = ((startY + pixelStep - 1) / pixelStep) * pixelStep;
+        final float relXStep = (width == 1) ? 0 : 1f / (width - 1);
+        ints[progressReportIntervalSlot] = progressReportInterval;
+        ints[coarserStepSlot] = coarserStep;
+        ints[firstXSlot] = firstX;
+        ints[firstYSlot] = firstY;
+        floats[relXStepSlot] = relXStep;
+
+        // Loop the lines
+        final Assignment[] beforeLine = statements.get(BEFORE_LINE);
+        final Assignment[] beforePixel = statements.get(BEFORE_PIXEL);
+        final Assignment[] atPixel = statements.get(AT_PIXEL);
+        final Assignment[] afterPixel = statements.get(AFTER_PIXEL);
+        final Assignment[] afterLine = statements.get(AFTER_LINE);
+        for (int y = firstY; (y < endY) && running; y += pixelStep) {
+            final boolean coarserLine = skipCoarserPixels && y % coarserStep == 0;
+            final int xStep = coarserLine ? coarserStep : pixelStep;
+            final int lineStartX = (coarserLine && firstX % coarserStep == 0) ? firstX + pixelStep : firstX;
+            final int pixelIndexStep = xStep * pixelStride;
+            final float relXPixelStep = xStep * relXStep;
+            int pixelIndex = dataOffset + y * rowStride + lineStartX * pixelStride;
+            ints[completedScanLinesSlot] = completedScanLines;
+            ints[completedPixelsSlot] = completedPixels;
+            ints[ySlot] = y;
+            floats[yFSlot] = y;
+            floats[relYSlot] = (height == 1) ? 0.5f : (float) y / (height - 1);
+            ints[coarserLineSlot] = coarserLine ? 1 : 0;
+            ints[xStepSlot] = xStep;
+            ints[lineStartXSlot] = lineStartX;
+            ints[pixelIndexStepSlot] = pixelIndexStep;
+            floats[relXPixelStepSlot] = relXPixelStep;
+            ints[pixelIndexSlot] = pixelIndex;
+
+            execute(beforeLine, frame);
+
+            // Loop along line
+            float relX = (width == 1) ? 0.5f : (float) lineStartX / (width - 1);
+            for (int x = lineStartX; (x < endX) && running; x += xStep) {
+                ints[xSlot] = x;
+                floats[xFSlot] = x;
+                floats[relXSlot] = relX;
+                ints[pixelIndexSlot] = pixelIndex;
+
+                for (int i = 0; i < channelSlots.length; i++) {
+                    floats[channelSlots[i]] = pixelData[pixelIndex + channelOffsets[i]];
+                }
+                for (int temporaryChannelSlot : temporaryChannelSlots) {
+                    floats[temporaryChannelSlot] = 0f;
+                }
+
+                execute(beforePixel, frame);
+                execute(atPixel, frame);
+
+                for (int i = 0; i < channelSlots.length; i++) {
+                    pixelData[pixelIndex + channelOffsets[i]] = floats[channelSlots[i]];
+                }
+
+                execute(afterPixel, frame);
+
+                // Move to next pixel
+                pixelIndex += pixelIndexStep;
+                relX += relXPixelStep;
+            }
+            floats[relXSlot] = relX;
+            ints[pixelIndexSlot] = pixelIndex;
+
+            execute(afterLine, frame);
+
+            // Report progress
+            completedScanLines++;
+            if (endX > lineStartX) completedPixels += (endX - lineStartX + xStep - 1) / xStep;
+            if ((completedScanLines >= progressReportInterval || y + pixelStep >= endY) && listener != null) {
+                listener.onCalculationProgress(calculatorIndex, completedPixels);
+                completedScanLines = 0;
+                completedPixels = 0;
+            }
+        }
+
+        execute(AFTER_LOOP, frame);
+    }
+
+    private void execute(SourceLocation location, Frame frame) {
+        execute(statements.get(location), frame);
+    }
+
+    private static void execute(Assignment[] assignments, Frame frame) {
+        for (Assignment assignment : assignments) {
+            assignment.execute(frame);
+        }
+    }
+
+    /**
+     * Stores the value of an expression in a local variable.
+     */
+    private static final class Assignment {
+        private final int slot;
+        private final Class<?> type;
+        private final Expression value;
+
+        private Assignment(LocalVariable target, Expression value) {
+            this.slot = target.slot;
+            this.type = target.type;
+            this.value = value;
+        }
+
+        void execute(Frame frame) {
+            if (type == float.class) frame.floats[slot] = value.evaluateFloat(frame);
+            else if (type == double.class) frame.doubles[slot] = value.evaluateDouble(frame);
+            else if (type == long.class) frame.longs[slot] = value.evaluateLong(frame);
+            else frame.ints[slot] = value.evaluateInt(frame);
+        }
+    }
+}
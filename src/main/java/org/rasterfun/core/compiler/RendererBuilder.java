@@ -1,17 +1,19 @@
 package org.rasterfun.core.compiler;
 
 import org.codehaus.commons.compiler.CompileException;
-import org.codehaus.janino.SimpleCompiler;
+import org.codehaus.janino.JaninoRuntimeException;
+import org.rasterfun.core.ParameterizedRenderer;
 import org.rasterfun.core.Renderer;
 import org.rasterfun.core.listeners.CalculationListener;
+import org.rasterfun.utils.ClassFileUtils;
 import org.rasterfun.utils.ClassUtils;
 import org.rasterfun.utils.ParameterChecker;
 import org.rasterfun.utils.StringUtils;
 
 import java.io.IOException;
-import java.io.StringReader;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 import static org.rasterfun.core.compiler.SourceLocation.*;
 
@@ -29,6 +31,7 @@ public class RendererBuilder {
     public static final String CHANNEL_PREFIX = "channel_";
     public static final String PARAMETER_PREFIX = "parameter_";
     public static final String PIXEL_INDEX = "pixelIndex";
+    public static final String CHANNEL_OFFSET_PREFIX = "channelOffset_";
     public static final String X_NAME = "xF";
     public static final String Y_NAME = "yF";
     public static final String W_NAME = "widthF";
@@ -38,6 +41,28 @@ public class RendererBuilder {
     public static final String GENERATOR_SEED = "generatorSeed";
     public static final String PICTURE_SEED = "pictureSeed";
 
+    /**
+     * Methods with more bytecode than this are not JIT compiled by HotSpot by default.
+     */
+    public static final int HUGE_METHOD_LIMIT = 8000;
+
+    /**
+     * Maximum bytecode size of a method in a class file.
+     */
+    public static final int MAX_METHOD_SIZE = 65535;
+
+    private static final String CALCULATE_PIXELS = "calculatePixels";
+    private static final String PIXEL_PART_PREFIX = "calculatePixelPart";
+    private static final String PIXEL_PART_RESULTS = "pixelPartResults";
+    private static final int TARGET_PIXEL_PART_SIZE = 3000;
+    private static final int MAX_PIXEL_PART_PARAMETERS = 200;
+    private static final int CALCULATE_PIXELS_BASE_SIZE = 600;
+    private static final int CHANNEL_ACCESS_SIZE = 20;
+    private static final String ROW_PREFIX = "row_";
+    private static final String ROW_INDEX = "rowIndex";
+    private static final String ROW_LENGTH = "rowLength";
+    private static final String ROW_PIXEL_INDEX = "rowPixelIndex";
+
     private static final int DEFAULT_SIZE = 128;
     private static final String DEFAULT_NAME = "Picture";
 
@@ -51,7 +76,7 @@ public class RendererBuilder {
     private final int count;
     private final float relativeIndex;
 
-    private final SimpleCompiler janinoCompiler = new SimpleCompiler();
+    private RendererClassCache classCache = RendererClassCache.getSharedCache();
 
     private final Map<SourceLocation, StringBuilder> inputSources = new HashMap<SourceLocation, StringBuilder>();
 
@@ -61,6 +86,33 @@ public class RendererBuilder {
 
     private final Set<Class<?>> alreadyImported = new HashSet<Class<?>>();
 
+    // The outermost location at which each variable has its final value for the current pixel, by code identifier.
+    private final Map<String, SourceLocation> variableLocations = new HashMap<String, SourceLocation>();
+
+    // The statements added at each location, along with what they declare or assign.
+    private final Map<SourceLocation, List<SourceStatement>> statements = new HashMap<SourceLocation, List<SourceStatement>>();
+
+    // The statements in the pixel calculation, used when splitting it into several methods.
+    private final List<SourceStatement> pixelStatements = new ArrayList<SourceStatement>();
+
+    // Types of the local variables that are visible to the pixel calculation, by code identifier.
+    private final Map<String, String> localVariableTypes = new HashMap<String, String>();
+
+    // Variables that can change value during the calculation of a pixel
+    private final Set<String> mutableVariables = new HashSet<String>();
+
+    // Final local variables by their type and initialization expression, for sharing calculations of the same value
+    private final Map<String, List<String>> variablesByExpression = new HashMap<String, List<String>>();
+
+    private CompilerBackend compilerBackend = CompilerBackend.JANINO;
+    private CompilerBackend usedCompilerBackend = null;
+    private String compilerBackendFallbackReason = null;
+    private boolean splitLargeMethods = true;
+    private boolean rowKernels = false;
+    private boolean constantsAsParameters = false;
+    private boolean planar = false;
+    private Map<String, Integer> methodSizes = null;
+
 
     public RendererBuilder(String name, int width, int height, Collection<String> pictureChannels, Collection<String> temporaryChannels, int currentIndex, int totalCount) {
         this.name = name;
@@ -88,31 +140,46 @@ public class RendererBuilder {
         // Initialize input sources
         for (SourceLocation location : values()) {
             inputSources.put(location, new StringBuilder());
+            statements.put(location, location == AT_PIXEL ? pixelStatements : new ArrayList<SourceStatement>());
         }
 
         // Add default imports
         addImport(Renderer.class);
+        addImport(ParameterizedRenderer.class);
         addImport(CalculationListener.class);
 
-        // Add code to get the channel values
-        channelIndex = 0;
-        for (String channel : this.pictureChannels) {
-            final String expression = PIXEL_DATA+"[" + PIXEL_INDEX + " + " + channelIndex + "]";
-            addVariable(BEFORE_PIXEL, CHANNEL_PREFIX + channel, expression, Float.class, false);
-            channelIndex++;
+        // Record where the builtin variables change
+        variableLocations.put(W_NAME, BEFORE_LOOP);
+        variableLocations.put(H_NAME, BEFORE_LOOP);
+        variableLocations.put(Y_NAME, BEFORE_LINE);
+        variableLocations.put(RELATIVE_Y, BEFORE_LINE);
+        variableLocations.put(X_NAME, AT_PIXEL);
+        variableLocations.put(RELATIVE_X, AT_PIXEL);
+
+        // Record the types of the builtin local variables
+        for (String intVariable : new String[]{"width", "height", "startX", "startY", "endX", "endY", "calculatorIndex",
+                                               "progressReportInterval", "completedScanLines", "completedPixels", PIXEL_INDEX,
+                                               "x", "y", "pixelStep", "coarserStep", "firstX", "firstY", "xStep",
+                                               "lineStartX", "pixelIndexStep", "dataOffset", "rowStride",
+                                               "channelStride", "pixelStride"}) {
+            localVariableTypes.put(intVariable, "int");
         }
-
-        // Add code to initialize the temporary channels
-        for (String channel : this.temporaryChannels) {
-            addVariable(BEFORE_PIXEL, CHANNEL_PREFIX + channel, "0f", Float.class, false);
+        for (String floatVariable : new String[]{W_NAME, H_NAME, X_NAME, Y_NAME, RELATIVE_X, RELATIVE_Y,
+                                                 "relXStep", "relXPixelStep"}) {
+            localVariableTypes.put(floatVariable, "float");
         }
-
-        // Add code to write the updated channel values
-        channelIndex = 0;
-        for (String channel : this.pictureChannels) {
-            addSourceLine(AFTER_PIXEL,
-                          PIXEL_DATA + "[" + PIXEL_INDEX + " + " + channelIndex + "] = " + CHANNEL_PREFIX + channel);
-            channelIndex++;
+        localVariableTypes.put("skipCoarserPixels", "boolean");
+        localVariableTypes.put("coarserLine", "boolean");
+        localVariableTypes.put("channelNames", "String[]");
+        localVariableTypes.put(PIXEL_DATA, "float[]");
+        localVariableTypes.put("listener", "CalculationListener");
+
+        // The channel variables are declared when the source is generated.  The picture channels are read from the
+        // picture data before each pixel and written back after it, the temporary channels start at zero.
+        for (String channel : allChannels) {
+            variableLocations.put(CHANNEL_PREFIX + channel, BEFORE_PIXEL);
+            localVariableTypes.put(CHANNEL_PREFIX + channel, "float");
+            mutableVariables.add(CHANNEL_PREFIX + channel);
         }
     }
 
@@ -152,7 +219,17 @@ public class RendererBuilder {
         ParameterChecker.checkNotNull(location, "location");
         ParameterChecker.checkNotNull(line, "line");
 
+        appendSourceLine(location, line, null, null, null);
+    }
+
+    /**
+     * Adds the line to the source at the location, and keeps track of what it declares or assigns.
+     * Lines that neither declare or assign a variable could contain any code, so the pixel calculation is not split
+     * into several methods if there are any, and the renderer is not generated directly as bytecode.
+     */
+    private void appendSourceLine(SourceLocation location, String line, String declaredVariable, String assignedVariable, String expression) {
         inputSources.get(location).append(location.getIndent()).append(line).append(";\n");
+        statements.get(location).add(new SourceStatement(line, declaredVariable, assignedVariable, expression));
     }
 
     /**
@@ -188,13 +265,31 @@ public class RendererBuilder {
             typeCode = variableType.getName();
         }
 
-        addSourceLine(location,
-                      (location == FIELDS ? "private " : "") +
-                      (isFinal ? "final " : "") +
-                      typeCode + " " +
-                      variableName + " = " +
-                      initializationExpression
-                     );
+        variableLocations.put(variableName, location);
+        if (location != FIELDS) localVariableTypes.put(variableName, typeCode);
+        if (!isFinal) mutableVariables.add(variableName);
+
+        // Remember the expression, so that later variables with the same value can use this one instead
+        if (isFinal && isSharedLocation(location)) {
+            final String key = typeCode + " " + initializationExpression;
+            List<String> variables = variablesByExpression.get(key);
+            if (variables == null) {
+                variables = new ArrayList<String>(2);
+                variablesByExpression.put(key, variables);
+            }
+            variables.add(variableName);
+        }
+
+        appendSourceLine(location,
+                         (location == FIELDS ? "private " : "") +
+                         (isFinal ? "final " : "") +
+                         typeCode + " " +
+                         variableName + " = " +
+                         initializationExpression,
+                         variableName,
+                         null,
+                         initializationExpression
+                        );
     }
 
     /**
@@ -205,7 +300,101 @@ public class RendererBuilder {
         ParameterChecker.checkNotNull(expression, "variableType");
         ParameterChecker.checkContained(channel, allChannels, "allChannels");
 
-        addSourceLine(AT_PIXEL, CHANNEL_PREFIX + channel + " = " + expression);
+        mutableVariables.add(CHANNEL_PREFIX + channel);
+        appendSourceLine(AT_PIXEL, CHANNEL_PREFIX + channel + " = " + expression, null, CHANNEL_PREFIX + channel, expression);
+    }
+
+    /**
+     * Adds a final variable with the value of the expression at the specified location, unless the value is already
+     * available there.  Effects can use this for the parts of their calculations, so that calculations
+     * that several effects do with the same inputs, e.g. the same noise function, are only done once.
+     * Expressions that use shared variables of other expressions in turn form a graph of shared calculations.
+     *
+     * @return the identifier of the added variable, or an expression that has the same value, see findVariableWithValue.
+     */
+    public String addSharedVariable(SourceLocation location, String variableName, String expression, Class<?> variableType) {
+        final String existing = findVariableWithValue(location, expression, variableType);
+        if (existing != null) return existing;
+
+        addVariable(location, variableName, expression, variableType, true);
+        return variableName;
+    }
+
+    /**
+     * Finds a way to get the value of an expression at a location without calculating it again.
+     * The expression is assumed to have no side effects.
+     *
+     * @return the expression itself if it is a literal or a local variable of the specified type that does not change
+     *         during the calculation of a pixel, a literal with the value of the expression if it only calculates
+     *         with literals, e.g. the output of an effect whose inputs are all folded to literals,
+     *         the identifier of an earlier final variable of the type that was initialized with the same expression at the
+     *         same or an outer location, or null if the value is not available without calculating the expression.
+     */
+    public String findVariableWithValue(SourceLocation location, String expression, Class<?> variableType) {
+        ParameterChecker.checkNotNull(location, "location");
+        ParameterChecker.checkNotNull(expression, "expression");
+        ParameterChecker.checkNotNull(variableType, "variableType");
+
+        final String typeCode = ClassUtils.getPrimitiveTypeNameOrNull(variableType);
+        if (typeCode == null) return null;
+
+        // Expressions of literals have the same value everywhere, so calculate them right away
+        final Set<String> identifiers = findIdentifiers(expression);
+        if (identifiers.isEmpty()) {
+            final String foldedExpression = foldConstantExpression(expression, typeCode);
+            if (foldedExpression != null) return foldedExpression;
+        }
+
+        // The value of expressions that use variables that change during a pixel depends on where they are calculated
+        if (!isSharedLocation(location)) return null;
+        for (String identifier : identifiers) {
+            if (mutableVariables.contains(identifier) || identifier.startsWith(CHANNEL_PREFIX)) return null;
+        }
+
+        // Literals and local variables can be used directly
+        if (ClassUtils.parseConstantString(expression, variableType) != null) return expression;
+        if (StringUtils.isIdentifier(expression) && typeCode.equals(localVariableTypes.get(expression))) return expression;
+
+        final List<String> variables = variablesByExpression.get(typeCode + " " + expression);
+        if (variables != null) {
+            for (String variable : variables) {
+                // Variables in outer loops, or earlier in the same loop, are visible at the location
+                if (variableLocations.get(variable).ordinal() <= location.ordinal()) return variable;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return a literal with the value of an expression of literals, arithmetic operators and primitive casts,
+     *         converted to the primitive type with the specified name, or null if the expression can not be calculated
+     *         here, or if the value has no literal, e.g. NaN.
+     */
+    private static String foldConstantExpression(String expression, String typeCode) {
+        final Class<?> type = ExpressionParser.getPrimitiveType(typeCode);
+        if (type == null) return null;
+
+        try {
+            final ExpressionParser parser = new ExpressionParser(Collections.<Class<?>>emptySet(),
+                                                                 Collections.<String, ExpressionParser.Expression>emptyMap(),
+                                                                 0);
+            final Object value = parser.parseValue(expression, type).evaluateBoxed(new ExpressionParser.Frame(0));
+            final String literal = ClassUtils.wrappedPrimitiveTypeAsConstantString(value);
+            return ClassUtils.parseConstantString(literal, value.getClass()) != null ? literal : null;
+        } catch (UnsupportedCodeException e) {
+            return null;
+        } catch (ArithmeticException e) {
+            // E.g. an integer division by zero, leave it to the generated code to fail the same way as before
+            return null;
+        }
+    }
+
+    /**
+     * @return true if variables at the location are visible in all later code at any shared location, that is the
+     *         locations before the pixel calculation that are nested in each other.
+     */
+    private static boolean isSharedLocation(SourceLocation location) {
+        return location == BEFORE_LOOP || location == BEFORE_LINE || location == BEFORE_PIXEL || location == AT_PIXEL;
     }
 
     /**
@@ -218,10 +407,19 @@ public class RendererBuilder {
         ParameterChecker.checkNotNull(expression, "expression");
         if (!location.isValidAssignmentLocation()) throw new IllegalArgumentException("Variables can not be assigned in the location " + location);
 
-        addSourceLine(location,
-                      VAR_PREFIX + variableName + " = " +
-                      expression
-                     );
+        mutableVariables.add(VAR_PREFIX + variableName);
+
+        // The variable now changes at least as often as the location it is assigned in
+        variableLocations.put(VAR_PREFIX + variableName,
+                              SourceLocation.innermost(getVariableLocation(VAR_PREFIX + variableName), location));
+
+        appendSourceLine(location,
+                         VAR_PREFIX + variableName + " = " +
+                         expression,
+                         null,
+                         VAR_PREFIX + variableName,
+                         expression
+                        );
     }
 
     /**
@@ -244,9 +442,28 @@ public class RendererBuilder {
                 namePart,
                 'Q'));
         objectParameters.add(new ObjectParameter(parameterValue, identifier, index, parameterType));
+        variableLocations.put(identifier, BEFORE_LOOP);
         return identifier;
     }
 
+    /**
+     * @return the outermost location where the variable with the specified code identifier has its final value
+     *         for a pixel, e.g. BEFORE_LOOP for parameters, BEFORE_LINE for the y coordinate, and AT_PIXEL for
+     *         the x coordinate and channels.  Expressions that only use variables available at an outer location
+     *         can be calculated there instead of for each pixel.
+     *         Unknown identifiers are assumed to change for each pixel.
+     */
+    public SourceLocation getVariableLocation(String codeIdentifier) {
+        final SourceLocation location = variableLocations.get(codeIdentifier);
+        if (location == null) return AT_PIXEL;
+
+        switch (location.getLoopDepth()) {
+            case 0:  return BEFORE_LOOP;
+            case 1:  return BEFORE_LINE;
+            default: return AT_PIXEL;
+        }
+    }
+
     public String getVariableName(String baseName) {
         ParameterChecker.checkIsIdentifier(baseName, "baseName");
         return VAR_PREFIX + baseName;
@@ -267,109 +484,72 @@ public class RendererBuilder {
      * @return compiles the source provided and generates a picture calculator, or throws an error if it could not be done.
      */
     public Renderer compilePixelCalculator() throws CompilationException {
+        return compilePixelCalculator(null);
+    }
+
+    /**
+     * Compiles the source provided and generates a picture calculator, or throws an error if it could not be done.
+     *
+     * @param rendererToReuse a renderer from an earlier compilation, or null.  If it is a ParameterizedRenderer,
+     *                        and it was compiled from the same source, its parameters are updated in place and it is
+     *                        returned instead of creating a new renderer.
+     *                        It must not be calculating when this is called, as its parameters are replaced without
+     *                        synchronization.  Stop its calculation, and wait for the calculation to complete first.
+     */
+    public Renderer compilePixelCalculator(Renderer rendererToReuse) throws CompilationException {
 
         final String className = "GeneratedPixelCalculator";
         final String packageName = "org.rasterfun.generated";
         String fullCalculatorName = packageName +"."+ className;
 
-        source = "\n// Generated Pixel Calculator source: \n" +
-                 "package " + packageName + ";\n" +
-                 sourcesFor(IMPORTS) +
-                 "public final class "+className+" implements Renderer {\n" +
-                 "  private boolean running = true;\n" +
-                 "  \n" +
-                 generateParameterDeclarations() +
-                 "  \n" +
-                 sourcesFor(FIELDS) +
-                 "  \n" +
-                 "  // Initialize with input parameters\n"+
-                 "  public "+className+"(Object[] parameters) {\n" +
-                 generateParameterAssignments() +
-                 "  }\n" +
-                 "  \n" +
-                 "  public final void stop() {\n" +
-                 "    running = false;\n" +
-                 "  }\n" +
-                 "  \n" +
-                 "  public final void calculatePixels(final int width,\n" +
-                 "                                    final int height,\n" +
-                 "                                    final String[] channelNames,\n" +
-                 "                                    final float[] pixelData,\n" +
-                 "                                    final int startX,\n" +
-                 "                                    final int startY,\n" +
-                 "                                    final int endX,\n" +
-                 "                                    final int endY,\n" +
-                 "                                    final CalculationListener listener,\n" +
-                 "                                    final int calculatorIndex) {\n" +
-                 "    \n"+
-                 "    // Check that the passed in picture has the correct number of channels\n"+
-                 "    if (channelNames.length != "+ getPictureChannelCount()+") \n" +
-                 "      throw new IllegalArgumentException(\"The channel count should be correct, expected "+
-                 getPictureChannelCount()+", but got \"+channelNames.length+\".\");\n"+
-                 "    \n" +
-                 "    // Setup variables visible to generators \n" +
-                 "    final float widthF  = (float)width;\n" +
-                 "    final float heightF = (float)height;\n" +
-                 "    float yF = 0f;\n" +
-                 "    float xF = 0f;\n" +
-                 "    \n" +
-                 sourcesFor(BEFORE_LOOP) +
-                 "    // Set up progress reporting\n"+
-                 "    final int progressReportInterval = (endY - startY) / "+PROGRESS_REPORT_STEPS+";\n" +
-                 "    int completedScanLines = 0;\n" +
-                 "    \n"+
-                 "    // Loop the lines\n" +
-                 "    final float relXStep = (width == 1) ? 0 : 1f / (width - 1);\n"+
-                 "    final float relYStep = (height == 1) ? 0 : 1f / (height - 1);\n"+
-                 "    float relX;\n"+
-                 "    float relY = (height == 1) ? 0.5f : (float)startY / (height - 1);\n"+
-                 "    int pixelIndex = (startY * width + startX) * "+ getPictureChannelCount()+";\n" +
-                 "    for (int y = startY; (y < endY) && running; y++) {\n" +
-//                             "       try {Thread.sleep(1);} catch (Exception e) {}\n" +
-                 "      yF = y;\n" +
-                 sourcesFor(BEFORE_LINE) +
-                 "      // Loop along line\n"+
-                 "      relX = (width == 1) ? 0.5f : (float)startX / (width - 1);\n"+
-                 "      for (int x = startX; (x < endX) && running; x++) {\n" +
-                 "        xF = x;\n" +
-                 "\n" +
-                 sourcesFor(BEFORE_PIXEL) +
-                 sourcesFor(AT_PIXEL) +
-                 sourcesFor(AFTER_PIXEL) +
-                 "        // Move to next pixel\n"+
-                 "        "+PIXEL_INDEX+" += "+ getPictureChannelCount()+";\n" +
-                 "        relX += relXStep;\n" +
-                 "      }\n" +
-                 sourcesFor(AFTER_LINE) +
-                 "      // Move to next line\n"+
-                 "      relY += relYStep;\n" +
-                 "\n" +
-                 "      // Report progress\n" +
-                 "      completedScanLines++;\n" +
-                 "      if ((completedScanLines >= progressReportInterval || y == endY - 1) && listener != null) {\n" +
-                 "        listener.onCalculationProgress(calculatorIndex, width * completedScanLines);\n" +
-                 "        completedScanLines = 0;\n" +
-                 "      }\n" +
-                 "    }\n"+
-                 sourcesFor(AFTER_LOOP) +
-                 "  }\n" +
-                 sourcesFor(METHODS) +
-                 "}\n\n";
+        removeUnreadSourceStatements();
+        source = generateSource(packageName, className, null);
+        methodSizes = null;
+        usedCompilerBackend = null;
+        compilerBackendFallbackReason = null;
 
         // TODO: DEBUG, remove
         System.out.println("source = " + source);
 
         try {
-            // Compile
-            janinoCompiler.cook(new StringReader(source));
+            // Compile, or reuse an earlier compiled class with the same source
+            final boolean canSplit = splitLargeMethods && canSplitPixelCalculation();
+            int estimatedSize = estimateCalculatePixelsSize();
+            RendererClassCache.CompiledClass compiledClass = null;
+            if (compilerBackend == CompilerBackend.BYTECODE) {
+                // Row kernels and split pixel calculations are only generated as source
+                if (rowKernels) {
+                    compilerBackendFallbackReason = "Row kernels are only generated as source";
+                }
+                else if (canSplit && estimatedSize > HUGE_METHOD_LIMIT) {
+                    compilerBackendFallbackReason = "The pixel calculation is too large, and is split into several methods in source";
+                }
+                else {
+                    final BytecodeGenerator bytecodeGenerator = new BytecodeGenerator(fullCalculatorName, canSplit);
+                    compiledClass = generateBytecode(bytecodeGenerator);
+                    if (compiledClass == null) {
+                        // The generator is not called if another thread generated the same class meanwhile
+                        final String reason = bytecodeGenerator.getUnsupportedReason();
+                        compilerBackendFallbackReason = reason != null ? reason : "The code is not supported by the bytecode generator";
+                    }
+
+                    // If the generated pixel calculation was too large, the source compilation can split it right away
+                    estimatedSize = Math.max(estimatedSize, bytecodeGenerator.getCalculatePixelsSize());
+                }
+            }
+            usedCompilerBackend = compiledClass != null ? CompilerBackend.BYTECODE : CompilerBackend.JANINO;
+            if (compiledClass == null) compiledClass = compileSource(packageName, className, fullCalculatorName, canSplit, estimatedSize);
 
-            // Get compiled class
-            Class calculatorClass = janinoCompiler.getClassLoader().loadClass(fullCalculatorName);
+            methodSizes = compiledClass.getMethodCodeSizes();
+            final Class<?> calculatorClass = compiledClass.getCompiledClass();
 
             // Pass in any non-literal parameters that could not be compiled into the code
-            final Object[] parameters = new Object[objectParameters.size()];
-            for (int i = 0; i < objectParameters.size(); i++) {
-                parameters[i] = objectParameters.get(i).getObject();
+            final Object[] parameters = getParameterValues();
+
+            // Update the earlier renderer if it has the same code and its parameters can be replaced
+            if (rendererToReuse instanceof ParameterizedRenderer && rendererToReuse.getClass() == calculatorClass) {
+                ((ParameterizedRenderer) rendererToReuse).setParameters(parameters);
+                return rendererToReuse;
             }
 
             // Create a new instance of it by calling the constructor
@@ -377,7 +557,7 @@ public class RendererBuilder {
             // parameters directly, it gets expanded into the varargs, instead of being the value of a single parameter.
             // See e.g. http://www.coderanch.com/t/328722/java/java/Passing-array-vararg-method-Reflection
             final Object[] constructorParams = {parameters};
-            final Renderer renderer = (Renderer) calculatorClass.getConstructor(Object[].class).newInstance(
+            final Renderer renderer = calculatorClass.asSubclass(Renderer.class).getConstructor(Object[].class).newInstance(
                     constructorParams);
 
             return renderer;
@@ -389,6 +569,13 @@ public class RendererBuilder {
                                            "The compile error is: \n" + e.getMessage() + "\n\n" +
                                            "And the complete source of the renderer is:\n\n" + source
             );
+        } catch (JaninoRuntimeException e) {
+            throw new CompilationException(e, name, source,
+                                           "Could not compile the renderer because it is too large",
+                                           "The generated renderer exceeds the limits of the java class file format.\n" +
+                                           "The problem is: \n" + e.getMessage() + "\n\n" +
+                                           "Try using fewer or simpler effects."
+            );
         } catch (ClassNotFoundException e) {
             throw new CompilationException(e, name, source,
                                            "Could not compile the renderer because a requested class was not found",
@@ -431,90 +618,1158 @@ public class RendererBuilder {
 
     }
 
-    private String generateParameterDeclarations() {
-        StringBuilder s = new StringBuilder();
-        s.append("  // Parameter field declarations\n");
-        for (ObjectParameter objectParameter : objectParameters) {
-            s.append(objectParameter.generateFieldDeclaration());
-        }
-        s.append("\n");
-        return s.toString();
-    }
-
-    private String generateParameterAssignments() {
-        StringBuilder s = new StringBuilder();
-        for (ObjectParameter objectParameter : objectParameters) {
-            s.append(objectParameter.generateInitialization());
-        }
-        return s.toString();
-    }
-
     /**
-     * @return the generated source, or null if it has not yet been generated.
+     * Creates a renderer that interprets the collected code instead of compiling it.  It calculates the same pixel
+     * values as the compiled renderer, only slower, so it can be used to start rendering while the compiled renderer
+     * is being compiled.
+     *
+     * @return the interpreting renderer, or null if the collected code is not supported by the interpreter.
      */
-    public String getSource() {
-        return source;
+    public Renderer createInterpretedRenderer() {
+        removeUnreadSourceStatements();
+        try {
+            return new InterpretedRenderer(this);
+        } catch (UnsupportedCodeException e) {
+            return null;
+        }
     }
 
     /**
-     * @return the name for this generated picture.
+     * Compiles the generated source with Janino, splitting the pixel calculation into several methods if needed.
+     *
+     * @param canSplit true if the pixel calculation should be split into several methods when it is too large.
+     * @param estimatedSize estimated code size of the calculatePixels method.
      */
-    public String getName() {
-        return name;
-    }
+    private RendererClassCache.CompiledClass compileSource(String packageName,
+                                                           String className,
+                                                           String fullCalculatorName,
+                                                           boolean canSplit,
+                                                           int estimatedSize)
+            throws CompileException, IOException, ClassNotFoundException {
+        // Split the pixel calculation right away if it is estimated to be too large to be JIT compiled,
+        // so that the large method is never compiled
+        if (canSplit && estimatedSize > HUGE_METHOD_LIMIT) {
+            final PixelCalculationSplit split = splitPixelCalculation(getPixelPartCount(estimatedSize));
+            if (split != null) {
+                source = generateSource(packageName, className, split);
+                return compile(source, fullCalculatorName);
+            }
+        }
 
-    /**
-     * @return default width of the generated picture.
-     *         The final width is determined by the data array size passed to the Renderer
-     *         (this allows us to generate smaller preview pictures easily).
-     */
-    public int getWidth() {
-        return width;
-    }
+        RendererClassCache.CompiledClass compiledClass;
+        try {
+            compiledClass = compile(source, fullCalculatorName);
+        } catch (JaninoRuntimeException e) {
+            // Thrown when a method grows past the maximum method size, try splitting the pixel calculation below
+            if (!canSplit) throw e;
+            compiledClass = null;
+        }
 
-    /**
-     * @return default height of the generated picture.
-     *         The final height is determined by the data array size passed to the Renderer
-     *         (this allows us to generate smaller preview pictures easily).
-     */
-    public int getHeight() {
-        return height;
+        // Split the pixel calculation into several methods if the estimate was too low, and the calculatePixels method
+        // was too large to be JIT compiled, or too large to compile at all.
+        final Integer calculatePixelsSize = compiledClass == null ? null : compiledClass.getMethodCodeSizes().get(CALCULATE_PIXELS);
+        if (canSplit &&
+            estimatedSize <= HUGE_METHOD_LIMIT &&
+            (calculatePixelsSize == null || calculatePixelsSize > HUGE_METHOD_LIMIT)) {
+
+            final int size = calculatePixelsSize != null ? calculatePixelsSize : Math.max(estimatedSize, MAX_METHOD_SIZE);
+            final PixelCalculationSplit split = splitPixelCalculation(getPixelPartCount(size));
+            if (split != null) {
+                // Do not keep the unsplit class around, it is not used
+                if (compiledClass != null && classCache != null) classCache.remove(source, fullCalculatorName);
+
+                source = generateSource(packageName, className, split);
+                compiledClass = compile(source, fullCalculatorName);
+            }
+        }
+
+        if (compiledClass == null) {
+            throw new JaninoRuntimeException("The pixel calculation of " + name + " is too large to compile, " +
+                                             "and could not be split into several methods");
+        }
+        return compiledClass;
     }
 
-    /**
-     * @return number of channels in the generated picture.
-     */
-    public int getPictureChannelCount() {
-        return pictureChannels.size();
+    private RendererClassCache.CompiledClass compile(String source, String fullCalculatorName)
+            throws CompileException, IOException, ClassNotFoundException {
+        if (classCache != null) return classCache.compile(source, fullCalculatorName);
+        else return RendererClassCache.compileClass(source, fullCalculatorName);
     }
 
     /**
-     * @return names of the channels in the generated picture.
+     * Generates the renderer class directly as bytecode, unless the class cache already has it.
+     * The class is cached by the generated source and the compiler backend, separately from the class compiled from the source.
+     *
+     * @return the generated class, or null if the code is not supported by the bytecode generator, or if the pixel
+     *         calculation should be split into several methods, which only the source compilation does.
      */
-    public List<String> getPictureChannels() {
-        return Collections.unmodifiableList(pictureChannels);
-    }
-
-
-    private String sourcesFor(final SourceLocation location) {
-        return "\n" +
-               location.getIndent() + "// " + location.toString() + "\n" +
-               inputSources.get(location).toString() +
-               "\n";
-    }
-
-    /*
-    public boolean hasChannel(String channel) {
-        if (channel == null) return false;
-        for (String s : getPictureChannels()) {
-            if (channel.equals(s)) return true;
+    private RendererClassCache.CompiledClass generateBytecode(BytecodeGenerator bytecodeGenerator)
+            throws CompileException, IOException, ClassNotFoundException {
+        final String fullCalculatorName = bytecodeGenerator.getFullCalculatorName();
+        if (classCache != null) {
+            return classCache.compile(source, fullCalculatorName, CompilerBackend.BYTECODE.name(), bytecodeGenerator);
+        }
+        else {
+            final Map<String, byte[]> bytecode = bytecodeGenerator.call();
+            if (bytecode == null) return null;
+            else return new RendererClassCache.CompiledClass(RendererClassCache.loadClass(bytecode, fullCalculatorName), bytecode);
         }
-        return false;
     }
-    */
 
+    private String generateSource(final String packageName, final String className, final PixelCalculationSplit split) {
+        final RowKernelSource rowKernelSource = rowKernels && split == null ? generateRowKernels() : null;
+        return "\n// Generated Pixel Calculator source: \n" +
+                 "package " + packageName + ";\n" +
+                 sourcesFor(IMPORTS) +
+                 "public final class "+className+" implements " + (constantsAsParameters ? "ParameterizedRenderer" : "Renderer") + " {\n" +
+                 "  private boolean running = true;\n" +
+                 "  \n" +
+                 generateParameterDeclarations() +
+                 "  \n" +
+                 sourcesFor(FIELDS) +
+                 "  \n" +
+                 "  // Initialize with input parameters\n"+
+                 "  public "+className+"(Object[] parameters) {\n" +
+                 (constantsAsParameters ? "    setParameters(parameters);\n" : generateParameterAssignments()) +
+                 "  }\n" +
+                 "  \n" +
+                 (constantsAsParameters ?
+                 "  public final void setParameters(Object[] parameters) {\n" +
+                 generateParameterAssignments() +
+                 "    running = true;\n" +
+                 "  }\n" +
+                 "  \n" : "") +
+                 "  public final boolean isPlanar() {\n" +
+                 "    return " + planar + ";\n" +
+                 "  }\n" +
+                 "  \n" +
+                 "  public final void stop() {\n" +
+                 "    running = false;\n" +
+                 "  }\n" +
+                 "  \n" +
+                 "  public final void calculatePixels(final int width,\n" +
+                 "                                    final int height,\n" +
+                 "                                    final String[] channelNames,\n" +
+                 "                                    final float[] pixelData,\n" +
+                 "                                    final int startX,\n" +
+                 "                                    final int startY,\n" +
+                 "                                    final int endX,\n" +
+                 "                                    final int endY,\n" +
+                 "                                    final CalculationListener listener,\n" +
+                 "                                    final int calculatorIndex) {\n" +
+                 "    calculatePixels(width, height, channelNames, pixelData, startX, startY, endX, endY, 1, false, listener, calculatorIndex);\n" +
+                 "  }\n" +
+                 "  \n" +
+                 "  public final void calculatePixels(final int width,\n" +
+                 "                                    final int height,\n" +
+                 "                                    final String[] channelNames,\n" +
+                 "                                    final float[] pixelData,\n" +
+                 "                                    final int startX,\n" +
+                 "                                    final int startY,\n" +
+                 "                                    final int endX,\n" +
+                 "                                    final int endY,\n" +
+                 "                                    final int pixelStep,\n" +
+                 "                                    final boolean skipCoarserPixels,\n" +
+                 "                                    final CalculationListener listener,\n" +
+                 "                                    final int calculatorIndex) {\n" +
+                 "    calculatePixels(width, height, channelNames, pixelData, \n" +
+                 "                    0, width * " + getPixelStride() + ", " + (planar ? "width * height" : "1") + ", \n" +
+                 "                    startX, startY, endX, endY, pixelStep, skipCoarserPixels, listener, calculatorIndex);\n" +
+                 "  }\n" +
+                 "  \n" +
+                 "  public final void calculatePixels(final int width,\n" +
+                 "                                    final int height,\n" +
+                 "                                    final String[] channelNames,\n" +
+                 "                                    final float[] pixelData,\n" +
+                 "                                    final int dataOffset,\n" +
+                 "                                    final int rowStride,\n" +
+                 "                                    final int channelStride,\n" +
+                 "                                    final int startX,\n" +
+                 "                                    final int startY,\n" +
+                 "                                    final int endX,\n" +
+                 "                                    final int endY,\n" +
+                 "                                    final int pixelStep,\n" +
+                 "                                    final boolean skipCoarserPixels,\n" +
+                 "                                    final CalculationListener listener,\n" +
+                 "                                    final int calculatorIndex) {\n" +
+                 "    \n"+
+                 "    // Check that the passed in picture has the correct number of channels\n"+
+                 "    if (channelNames.length != "+ getPictureChannelCount()+") \n" +
+                 "      throw new IllegalArgumentException(\"The channel count should be correct, expected "+
+                 getPictureChannelCount()+", but got \"+channelNames.length+\".\");\n"+
+                 "    \n" +
+                 "    // Setup variables visible to generators \n" +
+                 "    final float widthF  = (float)width;\n" +
+                 "    final float heightF = (float)height;\n" +
+                 "    float yF = 0f;\n" +
+                 "    float xF = 0f;\n" +
+                 "    \n" +
+                 generateChannelLayout() +
+                 "    \n" +
+                 sourcesFor(BEFORE_LOOP) +
+                 (split == null ? "" : split.getDeclarationSource()) +
+                 (rowKernelSource == null ? "" : rowKernelSource.getDeclarationSource()) +
+                 "    // Set up progress reporting\n"+
+                 "    final int progressReportInterval = (endY - startY) / (pixelStep * "+PROGRESS_REPORT_STEPS+");\n" +
+                 "    int completedScanLines = 0;\n" +
+                 "    int completedPixels = 0;\n" +
+                 "    \n"+
+                 "    // Only calculate pixels at multiples of the pixel step, and if requested, skip the pixels that are\n" +
+                 "    // at multiples of the double pixel step, as they were calculated by an earlier, coarser pass.\n" +
+                 "    final int coarserStep = pixelStep * 2;\n" +
+                 "    final int firstX = ((startX + pixelStep - 1) / pixelStep) * pixelStep;\n" +
+                 "    final int firstY = ((startY + pixelStep - 1) / pixelStep) * pixelStep;\n" +
+                 "    \n"+
+                 "    // Loop the lines\n" +
+                 "    final float relXStep = (width == 1) ? 0 : 1f / (width - 1);\n"+
+                 "    float relX;\n"+
+                 "    float relY;\n"+
+                 "    int pixelIndex;\n" +
+                 "    for (int y = firstY; (y < endY) && running; y += pixelStep) {\n" +
+//                             "       try {Thread.sleep(1);} catch (Exception e) {}\n" +
+                 "      yF = y;\n" +
+                 "      relY = (height == 1) ? 0.5f : (float)y / (height - 1);\n" +
+                 "      final boolean coarserLine = skipCoarserPixels && y % coarserStep == 0;\n" +
+                 "      final int xStep = coarserLine ? coarserStep : pixelStep;\n" +
+                 "      final int lineStartX = (coarserLine && firstX % coarserStep == 0) ? firstX + pixelStep : firstX;\n" +
+                 "      final int pixelIndexStep = xStep * pixelStride;\n" +
+                 "      final float relXPixelStep = xStep * relXStep;\n" +
+                 "      pixelIndex = dataOffset + y * rowStride + lineStartX * pixelStride;\n" +
+                 sourcesFor(BEFORE_LINE) +
+                 (rowKernelSource != null ? rowKernelSource.getLineSource() :
+                 "      // Loop along line\n"+
+                 "      relX = (width == 1) ? 0.5f : (float)lineStartX / (width - 1);\n"+
+                 "      for (int x = lineStartX; (x < endX) && running; x += xStep) {\n" +
+                 "        xF = x;\n" +
+                 "\n" +
+                 generatePictureChannelReads() +
+                 generateTemporaryChannelDeclarations() +
+                 sourcesFor(BEFORE_PIXEL) +
+                 (split == null ? sourcesFor(AT_PIXEL) : split.getCallSource()) +
+                 generatePictureChannelWrites() +
+                 sourcesFor(AFTER_PIXEL) +
+                 "        // Move to next pixel\n"+
+                 "        "+PIXEL_INDEX+" += pixelIndexStep;\n" +
+                 "        relX += relXPixelStep;\n" +
+                 "      }\n") +
+                 sourcesFor(AFTER_LINE) +
+                 "\n" +
+                 "      // Report progress\n" +
+                 "      completedScanLines++;\n" +
+                 "      if (endX > lineStartX) completedPixels += (endX - lineStartX + xStep - 1) / xStep;\n" +
+                 "      if ((completedScanLines >= progressReportInterval || y + pixelStep >= endY) && listener != null) {\n" +
+                 "        listener.onCalculationProgress(calculatorIndex, completedPixels);\n" +
+                 "        completedScanLines = 0;\n" +
+                 "        completedPixels = 0;\n" +
+                 "      }\n" +
+                 "    }\n"+
+                 sourcesFor(AFTER_LOOP) +
+                 "  }\n" +
+                 (split == null ? "" : split.getMethodSource()) +
+                 sourcesFor(METHODS) +
+                 "}\n\n";
+
+    }
+
+    private String generateChannelLayout() {
+        StringBuilder s = new StringBuilder();
+        if (planar) s.append("    // Planar picture, each channel is stored in its own plane\n");
+        else s.append("    // Interleaved picture, the channels of a pixel are stored next to each other\n");
+        s.append("    final int pixelStride = ").append(getPixelStride()).append(";\n");
+
+        int channelIndex = 0;
+        for (String channel : pictureChannels) {
+            s.append("    final int ").append(CHANNEL_OFFSET_PREFIX).append(channel).append(" = ");
+            if (planar) s.append(channelIndex).append(" * channelStride;\n");
+            else s.append(channelIndex).append(";\n");
+            channelIndex++;
+        }
+        return s.toString();
+    }
+
+    /**
+     * @return declarations of the picture channel variables, initialized from the picture data.
+     */
+    private String generatePictureChannelReads() {
+        StringBuilder s = new StringBuilder();
+        for (String channel : pictureChannels) {
+            s.append(BEFORE_PIXEL.getIndent()).append("float ").append(CHANNEL_PREFIX).append(channel).append(" = ")
+             .append(PIXEL_DATA).append("[").append(PIXEL_INDEX).append(" + ").append(CHANNEL_OFFSET_PREFIX).append(channel).append("];\n");
+        }
+        return s.toString();
+    }
+
+    /**
+     * @return code that writes the picture channel variables back to the picture data.
+     */
+    private String generatePictureChannelWrites() {
+        StringBuilder s = new StringBuilder();
+        for (String channel : pictureChannels) {
+            s.append(AFTER_PIXEL.getIndent()).append(PIXEL_DATA).append("[").append(PIXEL_INDEX).append(" + ")
+             .append(CHANNEL_OFFSET_PREFIX).append(channel).append("] = ").append(CHANNEL_PREFIX).append(channel).append(";\n");
+        }
+        return s.toString();
+    }
+
+    /**
+     * @return declarations that initialize the temporary channels to zero for each pixel,
+     *         for the temporary channels that are used anywhere in the pixel calculation.
+     */
+    private String generateTemporaryChannelDeclarations() {
+        StringBuilder s = new StringBuilder();
+        for (String channel : getUsedTemporaryChannels()) {
+            s.append(BEFORE_PIXEL.getIndent()).append("float ").append(CHANNEL_PREFIX).append(channel).append(" = 0f;\n");
+        }
+        return s.toString();
+    }
+
+    /**
+     * @return the temporary channels that are used anywhere in the pixel calculation.
+     */
+    List<String> getUsedTemporaryChannels() {
+        final Set<String> usedIdentifiers = new HashSet<String>();
+        for (SourceStatement statement : pixelStatements) {
+            usedIdentifiers.addAll(statement.getIdentifiers());
+        }
+        usedIdentifiers.addAll(findIdentifiers(inputSources.get(BEFORE_PIXEL).toString()));
+        usedIdentifiers.addAll(findIdentifiers(inputSources.get(AFTER_PIXEL).toString()));
+
+        final List<String> usedChannels = new ArrayList<String>();
+        for (String channel : temporaryChannels) {
+            if (usedIdentifiers.contains(CHANNEL_PREFIX + channel)) usedChannels.add(channel);
+        }
+        return usedChannels;
+    }
+
+    /**
+     * Removes the statements in the pixel calculation that declare or assign a variable that is not read afterwards,
+     * e.g. outputs of effects that nothing uses, and assignments to temporary channels that nothing reads.
+     * Only variables that are declared anew for each pixel are removed, as the values of other variables
+     * could be read by the calculation of the next pixel.  The expressions of the statements are assumed to have
+     * no side effects.  Nothing is removed if the pixel calculation contains other statements than declarations
+     * and assignments.
+     */
+    private void removeUnreadSourceStatements() {
+        for (SourceStatement statement : pixelStatements) {
+            if (!statement.isStructured()) return;
+        }
+
+        // Variables read after the pixel calculation
+        final Set<String> readVariables = new HashSet<String>();
+        for (String channel : pictureChannels) {
+            readVariables.add(CHANNEL_PREFIX + channel);
+        }
+        for (SourceLocation location : new SourceLocation[]{AFTER_PIXEL, AFTER_LINE, AFTER_LOOP}) {
+            readVariables.addAll(findIdentifiers(inputSources.get(location).toString()));
+        }
+
+        // Walk backwards, keeping the statements whose variable is read by a later statement that is kept
+        final List<SourceStatement> keptStatements = new ArrayList<SourceStatement>();
+        for (int i = pixelStatements.size() - 1; i >= 0; i--) {
+            final SourceStatement statement = pixelStatements.get(i);
+            final String variable = statement.getDeclaredVariable() != null ?
+                                    statement.getDeclaredVariable() :
+                                    statement.getAssignedVariable();
+            final boolean perPixelVariable = statement.getDeclaredVariable() != null ||
+                                             variable.startsWith(CHANNEL_PREFIX) && allChannels.contains(variable.substring(CHANNEL_PREFIX.length()));
+            if (!perPixelVariable || readVariables.contains(variable)) {
+                readVariables.addAll(statement.getIdentifiers());
+                keptStatements.add(statement);
+            }
+        }
+        if (keptStatements.size() == pixelStatements.size()) return;
+
+        // Update the statements and the pixel calculation source
+        Collections.reverse(keptStatements);
+        pixelStatements.clear();
+        pixelStatements.addAll(keptStatements);
+        final StringBuilder pixelSource = new StringBuilder();
+        for (SourceStatement statement : pixelStatements) {
+            pixelSource.append(AT_PIXEL.getIndent()).append(statement.getCode()).append(";\n");
+        }
+        inputSources.put(AT_PIXEL, pixelSource);
+    }
+
+    int getPixelStride() {
+        return planar ? 1 : getPictureChannelCount();
+    }
+
+    /**
+     * @return the statements added to the location, in order.
+     */
+    List<SourceStatement> getStatements(SourceLocation location) {
+        return Collections.unmodifiableList(statements.get(location));
+    }
+
+    List<ObjectParameter> getObjectParameters() {
+        return Collections.unmodifiableList(objectParameters);
+    }
+
+    Set<Class<?>> getImportedClasses() {
+        return Collections.unmodifiableSet(alreadyImported);
+    }
+
+    /**
+     * @return the type of the local variable with the code identifier, as written in the source, or null if unknown.
+     */
+    String getLocalVariableType(String codeIdentifier) {
+        return localVariableTypes.get(codeIdentifier);
+    }
+
+    private String generateParameterDeclarations() {
+        StringBuilder s = new StringBuilder();
+        s.append("  // Parameter field declarations\n");
+        for (ObjectParameter objectParameter : objectParameters) {
+            s.append(objectParameter.generateFieldDeclaration(!constantsAsParameters));
+        }
+        s.append("\n");
+        return s.toString();
+    }
+
+    private String generateParameterAssignments() {
+        StringBuilder s = new StringBuilder();
+        for (ObjectParameter objectParameter : objectParameters) {
+            s.append(objectParameter.generateInitialization());
+        }
+        return s.toString();
+    }
+
+    /**
+     * @return true if all statements in the pixel calculation are known variable declarations or assignments.
+     */
+    private boolean canSplitPixelCalculation() {
+        if (pixelStatements.size() < 2) return false;
+
+        for (SourceStatement statement : pixelStatements) {
+            if (!statement.isStructured()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return an estimate of the bytecode size of the unsplit calculatePixels method, on the high side.
+     */
+    private int estimateCalculatePixelsSize() {
+        // Assume about one byte of bytecode per character of source, which is on the high side for typical expressions
+        int estimatedSize = CALCULATE_PIXELS_BASE_SIZE + CHANNEL_ACCESS_SIZE * allChannels.size();
+        for (SourceLocation location : new SourceLocation[]{BEFORE_LOOP, BEFORE_LINE, BEFORE_PIXEL, AFTER_PIXEL, AFTER_LINE, AFTER_LOOP}) {
+            estimatedSize += inputSources.get(location).length();
+        }
+        for (SourceStatement statement : pixelStatements) {
+            estimatedSize += statement.getCode().length();
+        }
+        return estimatedSize;
+    }
+
+    /**
+     * @param calculatePixelsSize bytecode size, or estimated bytecode size, of the unsplit calculatePixels method.
+     * @return number of methods to split the pixel calculation into.
+     */
+    private int getPixelPartCount(int calculatePixelsSize) {
+        final int partCount = (calculatePixelsSize + TARGET_PIXEL_PART_SIZE - 1) / TARGET_PIXEL_PART_SIZE;
+        return Math.max(2, Math.min(partCount, pixelStatements.size()));
+    }
+
+    /**
+     * Splits the pixel calculation statements into separate methods of about equal source size.
+     * The local variables a part uses are passed in as parameters, and the variables it assigns, as well as the
+     * variables it declares that are used later, are passed back through an array allocated once per calculation.
+     *
+     * @return the split pixel calculation, or null if it could not be split.
+     */
+    private PixelCalculationSplit splitPixelCalculation(int partCount) {
+        // Find the last statement using each variable, variables used after the pixel calculation count as used at the end
+        final Map<String, Integer> lastUses = new HashMap<String, Integer>();
+        for (int i = 0; i < pixelStatements.size(); i++) {
+            for (String identifier : pixelStatements.get(i).getIdentifiers()) {
+                lastUses.put(identifier, i);
+            }
+        }
+        for (SourceLocation location : new SourceLocation[]{AFTER_PIXEL, AFTER_LINE, AFTER_LOOP}) {
+            for (String identifier : findIdentifiers(inputSources.get(location).toString())) {
+                lastUses.put(identifier, pixelStatements.size());
+            }
+        }
+        for (String channel : pictureChannels) {
+            lastUses.put(CHANNEL_PREFIX + channel, pixelStatements.size());
+        }
+
+        int totalLength = 0;
+        for (SourceStatement statement : pixelStatements) {
+            totalLength += statement.getCode().length();
+        }
+        final int targetPartLength = totalLength / partCount + 1;
+
+        final StringBuilder callSource = new StringBuilder();
+        final StringBuilder methodSource = new StringBuilder();
+        final String indent = AT_PIXEL.getIndent();
+        int maxResultCount = 0;
+        int partIndex = 0;
+        int statementIndex = 0;
+        while (statementIndex < pixelStatements.size()) {
+            // Collect the statements of the part
+            final int firstStatement = statementIndex;
+            int partLength = 0;
+            while (statementIndex < pixelStatements.size() && (partLength < targetPartLength || statementIndex == firstStatement)) {
+                partLength += pixelStatements.get(statementIndex++).getCode().length();
+            }
+            final int lastStatement = statementIndex - 1;
+
+            // Determine the variables passed in and out of the part
+            final Set<String> declared = new LinkedHashSet<String>();
+            final Set<String> inputs = new LinkedHashSet<String>();
+            final Set<String> outputs = new LinkedHashSet<String>();
+            for (int i = firstStatement; i <= lastStatement; i++) {
+                final SourceStatement statement = pixelStatements.get(i);
+                for (String identifier : statement.getIdentifiers()) {
+                    if (!declared.contains(identifier) &&
+                        !identifier.equals(statement.getDeclaredVariable()) &&
+                        localVariableTypes.containsKey(identifier)) {
+                        inputs.add(identifier);
+                    }
+                }
+
+                if (statement.getDeclaredVariable() != null) declared.add(statement.getDeclaredVariable());
+                if (statement.getAssignedVariable() != null && !declared.contains(statement.getAssignedVariable())) {
+                    outputs.add(statement.getAssignedVariable());
+                }
+            }
+            for (String declaredVariable : declared) {
+                final Integer lastUse = lastUses.get(declaredVariable);
+                if (lastUse != null && lastUse > lastStatement) outputs.add(declaredVariable);
+            }
+
+            // Results are passed back in a float array, and the number of method parameters is limited
+            for (String output : outputs) {
+                if (!"float".equals(localVariableTypes.get(output))) return null;
+            }
+            if (inputs.size() > MAX_PIXEL_PART_PARAMETERS) return null;
+            maxResultCount = Math.max(maxResultCount, outputs.size());
+
+            // Generate the part method
+            final String methodName = PIXEL_PART_PREFIX + partIndex++;
+            methodSource.append("  private void ").append(methodName).append("(final float[] ").append(PIXEL_PART_RESULTS);
+            for (String input : inputs) {
+                methodSource.append(", ").append(localVariableTypes.get(input)).append(" ").append(input);
+            }
+            methodSource.append(") {\n");
+            for (int i = firstStatement; i <= lastStatement; i++) {
+                methodSource.append("    ").append(pixelStatements.get(i).getCode()).append(";\n");
+            }
+            int resultIndex = 0;
+            for (String output : outputs) {
+                methodSource.append("    ").append(PIXEL_PART_RESULTS).append("[").append(resultIndex++).append("] = ").append(output).append(";\n");
+            }
+            methodSource.append("  }\n\n");
+
+            // Generate the call and the updates of the local variables from the results
+            callSource.append(indent).append(methodName).append("(").append(PIXEL_PART_RESULTS);
+            for (String input : inputs) {
+                callSource.append(", ").append(input);
+            }
+            callSource.append(");\n");
+            resultIndex = 0;
+            for (String output : outputs) {
+                callSource.append(indent);
+                if (declared.contains(output)) callSource.append("float ");
+                callSource.append(output).append(" = ").append(PIXEL_PART_RESULTS).append("[").append(resultIndex++).append("];\n");
+            }
+        }
+
+        final String declarationSource = "    final float[] " + PIXEL_PART_RESULTS + " = new float[" + Math.max(1, maxResultCount) + "];\n";
+
+        return new PixelCalculationSplit(declarationSource,
+                                         "\n" + indent + "// " + AT_PIXEL + ", split into " + partIndex + " methods\n" + callSource + "\n",
+                                         methodSource.toString());
+    }
+
+    /**
+     * Generates the pixel calculation as row kernels, where each statement is calculated for all the pixels of a line
+     * in its own loop over arrays with the per pixel values, before the next statement.  Such simple loops are
+     * vectorized by the JIT compiler when the statement only does arithmetic, and calls are still calculated
+     * for one pixel at a time.
+     *
+     * @return the source for the row kernels, or null if the pixel calculation can not be calculated a row at a time,
+     *         e.g. because it contains other statements than declarations and assignments of per pixel variables,
+     *         or uses the pixel index or the x coordinate of the pixel as an integer.
+     */
+    private RowKernelSource generateRowKernels() {
+        if (pixelStatements.isEmpty() ||
+            !statements.get(BEFORE_PIXEL).isEmpty() || inputSources.get(BEFORE_PIXEL).length() > 0 ||
+            !statements.get(AFTER_PIXEL).isEmpty() || inputSources.get(AFTER_PIXEL).length() > 0) {
+            return null;
+        }
+
+        // The code after the pixel calculation should not depend on the state left by the last pixel
+        for (SourceLocation location : new SourceLocation[]{AFTER_LINE, AFTER_LOOP}) {
+            final Set<String> identifiers = findIdentifiers(inputSources.get(location).toString());
+            if (identifiers.contains(X_NAME) || identifiers.contains(RELATIVE_X) || identifiers.contains(PIXEL_INDEX)) return null;
+        }
+
+        // Arrays with the values of the per pixel variables along the row
+        final Map<String, String> rowVariables = new HashMap<String, String>();
+        final Map<String, String> rowVariableTypes = new LinkedHashMap<String, String>();
+        final Set<String> readChannels = new LinkedHashSet<String>();
+        final Set<String> writtenChannels = new LinkedHashSet<String>();
+        for (String channel : getUsedTemporaryChannels()) {
+            rowVariableTypes.put(CHANNEL_PREFIX + channel, "float");
+        }
+        for (String channel : allChannels) {
+            rowVariables.put(CHANNEL_PREFIX + channel, ROW_PREFIX + CHANNEL_PREFIX + channel + "[" + ROW_INDEX + "]");
+        }
+        rowVariables.put(X_NAME, ROW_PREFIX + X_NAME + "[" + ROW_INDEX + "]");
+        rowVariables.put(RELATIVE_X, ROW_PREFIX + RELATIVE_X + "[" + ROW_INDEX + "]");
+
+        final String indent = AT_PIXEL.getIndent();
+        final StringBuilder kernelSource = new StringBuilder();
+        for (SourceStatement statement : pixelStatements) {
+            if (!statement.isStructured()) return null;
+
+            final Set<String> identifiers = findIdentifiers(statement.getExpression());
+            for (String identifier : identifiers) {
+                if (identifier.equals("x") || identifier.equals(PIXEL_INDEX) || identifier.startsWith(ROW_PREFIX) ||
+                    identifier.equals(ROW_INDEX) || identifier.equals(ROW_LENGTH) || identifier.equals(ROW_PIXEL_INDEX)) {
+                    return null;
+                }
+                if (identifier.startsWith(CHANNEL_PREFIX) && pictureChannels.contains(identifier.substring(CHANNEL_PREFIX.length()))) {
+                    readChannels.add(identifier);
+                }
+            }
+            if (identifiers.contains(X_NAME)) rowVariableTypes.put(X_NAME, "float");
+            if (identifiers.contains(RELATIVE_X)) rowVariableTypes.put(RELATIVE_X, "float");
+
+            // Only per pixel variables can be calculated a row at a time
+            final String variable;
+            if (statement.getDeclaredVariable() != null) {
+                variable = statement.getDeclaredVariable();
+                final String type = localVariableTypes.get(variable);
+                if (type == null || type.contains("<")) return null;
+                rowVariableTypes.put(variable, type);
+                rowVariables.put(variable, ROW_PREFIX + variable + "[" + ROW_INDEX + "]");
+            }
+            else {
+                variable = statement.getAssignedVariable();
+                if (!variable.startsWith(CHANNEL_PREFIX) || !allChannels.contains(variable.substring(CHANNEL_PREFIX.length()))) return null;
+                rowVariableTypes.put(variable, "float");
+                if (pictureChannels.contains(variable.substring(CHANNEL_PREFIX.length()))) writtenChannels.add(variable);
+            }
+
+            kernelSource.append("      for (int ").append(ROW_INDEX).append(" = 0; ").append(ROW_INDEX).append(" < ").append(ROW_LENGTH).append("; ").append(ROW_INDEX).append("++) {\n");
+            kernelSource.append(indent).append(rowVariables.get(variable)).append(" = ").append(replaceIdentifiers(statement.getExpression(), rowVariables)).append(";\n");
+            kernelSource.append("      }\n");
+        }
+        for (String channel : readChannels) {
+            rowVariableTypes.put(channel, "float");
+        }
+
+        // Allocate the arrays once for the whole calculation, a row has at most one pixel for each x
+        final StringBuilder declarationSource = new StringBuilder();
+        declarationSource.append("    // Per pixel values along the row, for the row kernels\n");
+        for (Map.Entry<String, String> entry : rowVariableTypes.entrySet()) {
+            declarationSource.append("    final ").append(entry.getValue()).append("[] ").append(ROW_PREFIX).append(entry.getKey())
+                             .append(" = new ").append(entry.getValue()).append("[Math.max(0, endX - startX)];\n");
+        }
+        declarationSource.append("\n");
+
+        // Set up the per pixel coordinates and channels of the row
+        final StringBuilder lineSource = new StringBuilder();
+        lineSource.append("      // Calculate the pixels of the line with row kernels, one statement at a time\n");
+        lineSource.append("      final int ").append(ROW_LENGTH).append(" = (endX > lineStartX && running) ? (endX - lineStartX + xStep - 1) / xStep : 0;\n");
+        lineSource.append("      relX = (width == 1) ? 0.5f : (float)lineStartX / (width - 1);\n");
+        lineSource.append("      for (int ").append(ROW_INDEX).append(" = 0, ").append(ROW_PIXEL_INDEX).append(" = ").append(PIXEL_INDEX).append("; ").append(ROW_INDEX).append(" < ").append(ROW_LENGTH).append("; ")
+                  .append(ROW_INDEX).append("++, ").append(ROW_PIXEL_INDEX).append(" += pixelIndexStep) {\n");
+        if (rowVariableTypes.containsKey(X_NAME)) {
+            lineSource.append(indent).append(ROW_PREFIX).append(X_NAME).append("[").append(ROW_INDEX).append("] = lineStartX + ").append(ROW_INDEX).append(" * xStep;\n");
+        }
+        if (rowVariableTypes.containsKey(RELATIVE_X)) {
+            lineSource.append(indent).append(ROW_PREFIX).append(RELATIVE_X).append("[").append(ROW_INDEX).append("] = relX;\n");
+            lineSource.append(indent).append("relX += relXPixelStep;\n");
+        }
+        for (String channel : readChannels) {
+            lineSource.append(indent).append(ROW_PREFIX).append(channel).append("[").append(ROW_INDEX).append("] = ")
+                      .append(PIXEL_DATA).append("[").append(ROW_PIXEL_INDEX).append(" + ").append(CHANNEL_OFFSET_PREFIX).append(channel.substring(CHANNEL_PREFIX.length())).append("];\n");
+        }
+        for (String channel : getUsedTemporaryChannels()) {
+            lineSource.append(indent).append(ROW_PREFIX).append(CHANNEL_PREFIX).append(channel).append("[").append(ROW_INDEX).append("] = 0f;\n");
+        }
+        lineSource.append("      }\n");
+
+        lineSource.append("\n      // ").append(AT_PIXEL).append(", as row kernels\n").append(kernelSource).append("\n");
+
+        // Write back the changed picture channels
+        lineSource.append("      for (int ").append(ROW_INDEX).append(" = 0, ").append(ROW_PIXEL_INDEX).append(" = ").append(PIXEL_INDEX).append("; ").append(ROW_INDEX).append(" < ").append(ROW_LENGTH).append("; ")
+                  .append(ROW_INDEX).append("++, ").append(ROW_PIXEL_INDEX).append(" += pixelIndexStep) {\n");
+        for (String channel : writtenChannels) {
+            lineSource.append(indent).append(PIXEL_DATA).append("[").append(ROW_PIXEL_INDEX).append(" + ").append(CHANNEL_OFFSET_PREFIX).append(channel.substring(CHANNEL_PREFIX.length())).append("] = ")
+                      .append(ROW_PREFIX).append(channel).append("[").append(ROW_INDEX).append("];\n");
+        }
+        lineSource.append("      }\n");
+
+        return new RowKernelSource(declarationSource.toString(), lineSource.toString());
+    }
+
+    /**
+     * @return the code with the identifiers that have replacements replaced, skipping member names after a dot, literals, and comments.
+     */
+    private static String replaceIdentifiers(String code, Map<String, String> replacements) {
+        final StringBuilder result = new StringBuilder();
+        final int length = code.length();
+        int i = 0;
+        while (i < length) {
+            final char c = code.charAt(i);
+            final int start = i;
+            if (Character.isJavaIdentifierStart(c)) {
+                while (i < length && Character.isJavaIdentifierPart(code.charAt(i))) i++;
+
+                // Skip member names
+                int previous = start - 1;
+                while (previous >= 0 && Character.isWhitespace(code.charAt(previous))) previous--;
+                final String replacement = previous < 0 || code.charAt(previous) != '.' ? replacements.get(code.substring(start, i)) : null;
+                result.append(replacement != null ? replacement : code.substring(start, i));
+                continue;
+            }
+            else if (Character.isDigit(c)) {
+                while (i < length && (Character.isJavaIdentifierPart(code.charAt(i)) || code.charAt(i) == '.')) i++;
+            }
+            else if (c == '"' || c == '\'') {
+                i++;
+                while (i < length && code.charAt(i) != c) {
+                    if (code.charAt(i) == '\\') i++;
+                    i++;
+                }
+                i = Math.min(length, i + 1);
+            }
+            else if (c == '/' && i + 1 < length && code.charAt(i + 1) == '/') {
+                while (i < length && code.charAt(i) != '\n') i++;
+            }
+            else if (c == '/' && i + 1 < length && code.charAt(i + 1) == '*') {
+                final int end = code.indexOf("*/", i + 2);
+                i = end < 0 ? length : end + 2;
+            }
+            else {
+                i++;
+            }
+            result.append(code, start, i);
+        }
+        return result.toString();
+    }
+
+    /**
+     * @return the java identifiers in the code, skipping member names after a dot, literals, and comments.
+     */
+    private static Set<String> findIdentifiers(String code) {
+        final Set<String> identifiers = new LinkedHashSet<String>();
+        final int length = code.length();
+        int i = 0;
+        while (i < length) {
+            final char c = code.charAt(i);
+            if (Character.isJavaIdentifierStart(c)) {
+                final int start = i;
+                while (i < length && Character.isJavaIdentifierPart(code.charAt(i))) i++;
+
+                // Skip member names
+                int previous = start - 1;
+                while (previous >= 0 && Character.isWhitespace(code.charAt(previous))) previous--;
+                if (previous < 0 || code.charAt(previous) != '.') identifiers.add(code.substring(start, i));
+            }
+            else if (Character.isDigit(c)) {
+                // Skip number literals, including any suffixes, exponents and hex digits
+                while (i < length && (Character.isJavaIdentifierPart(code.charAt(i)) || code.charAt(i) == '.')) i++;
+            }
+            else if (c == '"' || c == '\'') {
+                // Skip string and character literals
+                i++;
+                while (i < length && code.charAt(i) != c) {
+                    if (code.charAt(i) == '\\') i++;
+                    i++;
+                }
+                i++;
+            }
+            else if (c == '/' && i + 1 < length && code.charAt(i + 1) == '/') {
+                // Skip line comments
+                while (i < length && code.charAt(i) != '\n') i++;
+            }
+            else if (c == '/' && i + 1 < length && code.charAt(i + 1) == '*') {
+                // Skip block comments
+                final int end = code.indexOf("*/", i + 2);
+                i = end < 0 ? length : end + 2;
+            }
+            else {
+                i++;
+            }
+        }
+        return identifiers;
+    }
+
+    /**
+     * @return the bytecode sizes of the methods in the last compiled renderer, by method name,
+     *         or null if no renderer has been compiled yet.
+     *         Methods larger than HUGE_METHOD_LIMIT are not JIT compiled, and run a lot slower.
+     */
+    public Map<String, Integer> getMethodSizes() {
+        return methodSizes == null ? null : Collections.unmodifiableMap(methodSizes);
+    }
+
+    /**
+     * @return the values of the parameters added with addParameter, in the order they were added.
+     *         Passed to the renderer when it is created or updated.
+     */
+    public Object[] getParameterValues() {
+        final Object[] parameters = new Object[objectParameters.size()];
+        for (int i = 0; i < objectParameters.size(); i++) {
+            parameters[i] = objectParameters.get(i).getObject();
+        }
+        return parameters;
+    }
+
+    /**
+     * @return true if constant input values should be passed in as parameters instead of being compiled into the code.
+     */
+    public boolean isConstantsAsParameters() {
+        return constantsAsParameters;
+    }
+
+    /**
+     * @param constantsAsParameters if true, constant input values are passed in as parameters with addParameter instead
+     *                              of being compiled into the code.  Then renderers with different constant values
+     *                              have the same source, so changing a constant does not need a recompile,
+     *                              and the renderers implement ParameterizedRenderer, so that an existing renderer can be
+     *                              updated with the new values.
+     *                              Otherwise the parameter fields of the renderer are final, and can not be updated.
+     *                              The generated code can be a bit slower, as the constants are not inlined.
+     *                              Defaults to false.
+     */
+    public void setConstantsAsParameters(boolean constantsAsParameters) {
+        this.constantsAsParameters = constantsAsParameters;
+    }
+
+    /**
+     * @return true if the generated code renders pictures with a planar layout, see PlanarPicture.
+     */
+    public boolean isPlanar() {
+        return planar;
+    }
+
+    /**
+     * @param planar if true, the generated code renders pictures where each channel is stored in its own plane,
+     *               see PlanarPicture.  Otherwise it renders pictures with the channels of each pixel stored
+     *               next to each other, see PictureImpl.
+     *               Consumers that only read some of the channels can then read them linearly.
+     *               Defaults to false.
+     */
+    public void setPlanar(boolean planar) {
+        this.planar = planar;
+    }
+
+    /**
+     * @return the way the renderer class is generated.
+     */
+    public CompilerBackend getCompilerBackend() {
+        return compilerBackend;
+    }
+
+    /**
+     * @param compilerBackend the way to generate the renderer class, see CompilerBackend.  Defaults to JANINO.
+     */
+    public void setCompilerBackend(CompilerBackend compilerBackend) {
+        ParameterChecker.checkNotNull(compilerBackend, "compilerBackend");
+        this.compilerBackend = compilerBackend;
+    }
+
+    /**
+     * @return the backend that generated the last compiled renderer class, or null if no renderer has been compiled yet.
+     *         JANINO if the bytecode backend was requested but did not support the code, see getCompilerBackendFallbackReason.
+     */
+    public CompilerBackend getUsedCompilerBackend() {
+        return usedCompilerBackend;
+    }
+
+    /**
+     * @return the reason the last renderer was compiled with JANINO although the BYTECODE backend was requested,
+     *         e.g. an unsupported statement, or null if the requested backend was used.
+     */
+    public String getCompilerBackendFallbackReason() {
+        return compilerBackendFallbackReason;
+    }
+
+    /**
+     * @return true if the pixel calculation is generated as row kernels when possible.
+     */
+    public boolean isRowKernels() {
+        return rowKernels;
+    }
+
+    /**
+     * Sets whether the pixel calculation is generated as row kernels, calculating each statement for a whole line
+     * of pixels before the next statement, instead of calculating one pixel at a time.  The result is simple scalar
+     * loops over arrays, which the JIT compiler can auto-vectorize for statements that only do arithmetic.
+     * Whether it does depends on the JVM and the processor, so measure before relying on a speedup.
+     * The calculated pixels are the same.
+     *
+     * Row kernels are only used when the pixel calculation consists of declarations and assignments of per pixel
+     * variables, and it does not need to be split into several methods.  Otherwise a pixel is calculated at a time.
+     * They are generated as source, so the BYTECODE compiler backend is not used when this is enabled.
+     * The rendering can only be stopped between lines when row kernels are used.
+     */
+    public void setRowKernels(boolean rowKernels) {
+        this.rowKernels = rowKernels;
+    }
+
+    /**
+     * @return true if the pixel calculation is split into several methods when the calculatePixels method
+     *         would otherwise be too large to be JIT compiled.
+     */
+    public boolean isSplitLargeMethods() {
+        return splitLargeMethods;
+    }
+
+    /**
+     * @param splitLargeMethods true to split the pixel calculation into several methods when the calculatePixels
+     *                          method would otherwise be too large to be JIT compiled.  Defaults to true.
+     */
+    public void setSplitLargeMethods(boolean splitLargeMethods) {
+        this.splitLargeMethods = splitLargeMethods;
+    }
+
+    /**
+     * @return the cache used to look up already compiled renderer classes with the same source,
+     *         or null if the renderer is always compiled.
+     */
+    public RendererClassCache getClassCache() {
+        return classCache;
+    }
+
+    /**
+     * @param classCache the cache to look up already compiled renderer classes with the same source from,
+     *                   or null to always compile the renderer.  Defaults to the shared cache.
+     */
+    public void setClassCache(RendererClassCache classCache) {
+        this.classCache = classCache;
+    }
+
+    /**
+     * @return the generated source, or null if it has not yet been generated.
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * @return the name for this generated picture.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return default width of the generated picture.
+     *         The final width is determined by the data array size passed to the Renderer
+     *         (this allows us to generate smaller preview pictures easily).
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return default height of the generated picture.
+     *         The final height is determined by the data array size passed to the Renderer
+     *         (this allows us to generate smaller preview pictures easily).
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return number of channels in the generated picture.
+     */
+    public int getPictureChannelCount() {
+        return pictureChannels.size();
+    }
+
+    /**
+     * @return names of the channels in the generated picture.
+     */
+    public List<String> getPictureChannels() {
+        return Collections.unmodifiableList(pictureChannels);
+    }
+
+
+    private String sourcesFor(final SourceLocation location) {
+        return "\n" +
+               location.getIndent() + "// " + location.toString() + "\n" +
+               inputSources.get(location).toString() +
+               "\n";
+    }
+
+    /*
+    public boolean hasChannel(String channel) {
+        if (channel == null) return false;
+        for (String s : getPictureChannels()) {
+            if (channel.equals(s)) return true;
+        }
+        return false;
+    }
+    */
+
+
+    /**
+     * A statement in the generated code, along with the variable it declares or assigns and the expression
+     * of the new value, if known.
+     */
+    static final class SourceStatement {
+        private final String code;
+        private final String declaredVariable;
+        private final String assignedVariable;
+        private final String expression;
+        private Set<String> identifiers = null;
+
+        private SourceStatement(String code, String declaredVariable, String assignedVariable, String expression) {
+            this.code = code;
+            this.declaredVariable = declaredVariable;
+            this.assignedVariable = assignedVariable;
+            this.expression = expression;
+        }
+
+        public String getCode() {
+            return code;
+        }
+
+        public String getDeclaredVariable() {
+            return declaredVariable;
+        }
+
+        public String getAssignedVariable() {
+            return assignedVariable;
+        }
+
+        /**
+         * @return the expression for the value of the declared or assigned variable, or null if this is not a
+         *         structured statement.
+         */
+        public String getExpression() {
+            return expression;
+        }
+
+        public boolean isStructured() {
+            return declaredVariable != null || assignedVariable != null;
+        }
+
+        public Set<String> getIdentifiers() {
+            if (identifiers == null) identifiers = findIdentifiers(code);
+            return identifiers;
+        }
+    }
+
+    /**
+     * Generates the renderer class directly as bytecode with a BytecodeRendererGenerator, when the class cache asks for it.
+     */
+    private final class BytecodeGenerator implements Callable<Map<String, byte[]>> {
+        private final String fullCalculatorName;
+        private final boolean canSplit;
+        private volatile int calculatePixelsSize = 0;
+        private volatile String unsupportedReason = null;
+
+        /**
+         * @param canSplit if true, no bytecode is returned for pixel calculations that are too large to be JIT compiled,
+         *                 so that the source compilation can split them into several methods.
+         */
+        private BytecodeGenerator(String fullCalculatorName, boolean canSplit) {
+            this.fullCalculatorName = fullCalculatorName;
+            this.canSplit = canSplit;
+        }
+
+        public String getFullCalculatorName() {
+            return fullCalculatorName;
+        }
+
+        /**
+         * @return code size of the generated calculatePixels method, or 0 if no class was generated by this generator.
+         */
+        public int getCalculatePixelsSize() {
+            return calculatePixelsSize;
+        }
+
+        /**
+         * @return why no bytecode was returned by this generator, or null if it returned bytecode or was not called.
+         */
+        public String getUnsupportedReason() {
+            return unsupportedReason;
+        }
+
+        /**
+         * @return the bytecode of the renderer class by its name, or null if it is not supported by the bytecode generator,
+         *         or should be split into several methods.
+         */
+        @Override
+        public Map<String, byte[]> call() {
+            final byte[] classData;
+            try {
+                classData = new BytecodeRendererGenerator(RendererBuilder.this).generate(fullCalculatorName);
+            } catch (UnsupportedCodeException e) {
+                unsupportedReason = e.getMessage();
+                return null;
+            }
+
+            final Integer size = ClassFileUtils.getMethodCodeSizes(classData).get(CALCULATE_PIXELS);
+            calculatePixelsSize = size != null ? size : MAX_METHOD_SIZE;
+            if (canSplit && calculatePixelsSize > HUGE_METHOD_LIMIT) {
+                unsupportedReason = "The generated pixel calculation is too large, and is split into several methods in source";
+                return null;
+            }
+
+            return Collections.singletonMap(fullCalculatorName, classData);
+        }
+    }
+
+    /**
+     * Source for a pixel calculation that is calculated a row at a time.
+     */
+    private static final class RowKernelSource {
+        private final String declarationSource;
+        private final String lineSource;
+
+        private RowKernelSource(String declarationSource, String lineSource) {
+            this.declarationSource = declarationSource;
+            this.lineSource = lineSource;
+        }
+
+        public String getDeclarationSource() {
+            return declarationSource;
+        }
+
+        public String getLineSource() {
+            return lineSource;
+        }
+    }
+
+    /**
+     * Source for a pixel calculation that has been split into several methods.
+     */
+    private static final class PixelCalculationSplit {
+        private final String declarationSource;
+        private final String callSource;
+        private final String methodSource;
+
+        private PixelCalculationSplit(String declarationSource, String callSource, String methodSource) {
+            this.declarationSource = declarationSource;
+            this.callSource = callSource;
+            this.methodSource = methodSource;
+        }
+
+        public String getDeclarationSource() {
+            return declarationSource;
+        }
+
+        public String getCallSource() {
+            return callSource;
+        }
+
+        public String getMethodSource() {
+            return methodSource;
+        }
+    }
 
-    private static class ObjectParameter {
+    static final class ObjectParameter {
         private final Object object;
         private final String identifier;
         private final int index;
@@ -543,11 +1798,14 @@ public class RendererBuilder {
             return type;
         }
 
-        public String generateFieldDeclaration() {
+        /**
+         * @param isFinal true if the field is only assigned in the constructor.
+         */
+        public String generateFieldDeclaration(boolean isFinal) {
             String typeName = ClassUtils.getPrimitiveTypeNameOrNull(type);
             if (typeName == null) typeName = ClassUtils.getTypeDeclaration(type);
 
-            return "  private final " + typeName + " " + identifier + ";\n";
+            return "  private " + (isFinal ? "final " : "") + typeName + " " + identifier + ";\n";
         }
 
         public String generateInitialization() {
@@ -0,0 +1,483 @@
+package org.rasterfun.core.compiler;
+
+import org.codehaus.commons.compiler.CompileException;
+import org.codehaus.janino.*;
+import org.codehaus.janino.util.ClassFile;
+import org.rasterfun.utils.ClassFileUtils;
+import org.rasterfun.utils.ParameterChecker;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Caches compiled renderer classes by a hash of their normalized source,
+ * so that renderers with identical source are only compiled once, and new instances of them
+ * can be created with different parameters.
+ *
+ * Optionally also stores the compiled bytecode in a cache directory, keyed by the source hash and library version,
+ * so that later runs of the program can load the renderers without compiling them.
+ *
+ * Provides a shared, process wide instance for convenience.
+ */
+public class RendererClassCache {
+
+    public static final int DEFAULT_MAX_SIZE = 256;
+    public static final String CACHE_FILE_EXTENSION = ".renderer";
+
+    private static final int CACHE_FILE_MAGIC = 0x52464243; // "RFBC"
+    private static final String UNKNOWN_VERSION = "unknown";
+
+    private static final RendererClassCache sharedInstance = new RendererClassCache(DEFAULT_MAX_SIZE);
+
+    private final int maxSize;
+    private volatile File cacheDirectory = null;
+
+    // Access ordered, so that the least recently used classes are dropped first when the cache is full.
+    private final LinkedHashMap<String, FutureTask<CompiledClass>> compiledClasses;
+
+    /**
+     * @return a common cache for compiled renderer classes.
+     */
+    public static RendererClassCache getSharedCache() {
+        return sharedInstance;
+    }
+
+    /**
+     * @param maxSize maximum number of compiled classes to keep in the cache.
+     *                The least recently used classes are discarded when it is exceeded.
+     */
+    public RendererClassCache(final int maxSize) {
+        ParameterChecker.checkPositiveNonZeroInteger(maxSize, "maxSize");
+
+        this.maxSize = maxSize;
+        compiledClasses = new LinkedHashMap<String, FutureTask<CompiledClass>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, FutureTask<CompiledClass>> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the compiled class for the specified source, compiling it if it was not already in the cache.
+     * If several threads request the same source at the same time, it is only compiled once,
+     * and the other threads wait for the compilation to complete.  Fork join workers wait as managed blockers,
+     * so that their pool can start spare workers meanwhile, instead of running with fewer workers.
+     *
+     * @param source java source for a compilation unit.
+     * @param fullClassName the fully qualified name of the class to return from the compiled source.
+     * @return the compiled class.
+     */
+    public Class<?> getCompiledClass(final String source, final String fullClassName)
+            throws CompileException, IOException, ClassNotFoundException {
+        return compile(source, fullClassName).getCompiledClass();
+    }
+
+    /**
+     * Same as getCompiledClass, but also provides access to the bytecode of the compiled class.
+     */
+    public CompiledClass compile(final String source, final String fullClassName)
+            throws CompileException, IOException, ClassNotFoundException {
+        return compile(source, fullClassName, null, null);
+    }
+
+    /**
+     * Same as compile, but if the source is not in the cache, the class is loaded from bytecode generated by the
+     * specified generator instead of compiling the source.  The generator is only called if the class is not cached.
+     * Classes from different generators are cached separately from each other and from the compiled classes.
+     *
+     * @param generatorName name of the way the bytecode is generated, e.g. the compiler backend.  Null to compile the source.
+     * @param bytecodeGenerator generates the bytecode for the source by other means, e.g. directly with ASM,
+     *                          by the fully qualified names of the classes.  Null to compile the source.
+     *                          It may return null if it can not generate a usable class, in which case nothing is cached.
+     * @return the class, or null if the bytecode generator returned null.
+     */
+    public CompiledClass compile(final String source,
+                                 final String fullClassName,
+                                 final String generatorName,
+                                 final Callable<Map<String, byte[]>> bytecodeGenerator)
+            throws CompileException, IOException, ClassNotFoundException {
+        ParameterChecker.checkNotNull(source, "source");
+        ParameterChecker.checkNonEmptyString(fullClassName, "fullClassName");
+        if (bytecodeGenerator != null) ParameterChecker.checkNonEmptyString(generatorName, "generatorName");
+
+        final String key = getKey(source, fullClassName, bytecodeGenerator != null ? generatorName : null);
+
+        // Get an existing compilation, or register a new one if there is none
+        FutureTask<CompiledClass> compilation;
+        boolean compileHere = false;
+        synchronized (compiledClasses) {
+            compilation = compiledClasses.get(key);
+            if (compilation == null) {
+                compilation = new FutureTask<CompiledClass>(new Callable<CompiledClass>() {
+                    @Override
+                    public CompiledClass call() throws Exception {
+                        return loadOrCompileClass(key, source, fullClassName, bytecodeGenerator);
+                    }
+                });
+                compiledClasses.put(key, compilation);
+                compileHere = true;
+            }
+        }
+
+        // Compile in this thread if we were the first to ask for the source
+        if (compileHere) compilation.run();
+
+        try {
+            // Let a fork join pool compensate for its worker waiting for a compilation in another thread
+            if (!compilation.isDone() && ForkJoinTask.inForkJoinPool()) {
+                ForkJoinPool.managedBlock(new CompilationBlocker(compilation));
+            }
+
+            final CompiledClass compiledClass = compilation.get();
+            if (compiledClass == null) {
+                // The generator could not generate the class, let it try again next time
+                synchronized (compiledClasses) {
+                    if (compiledClasses.get(key) == compilation) compiledClasses.remove(key);
+                }
+            }
+            return compiledClass;
+        } catch (ExecutionException e) {
+            // Do not keep failed compilations around
+            synchronized (compiledClasses) {
+                if (compiledClasses.get(key) == compilation) compiledClasses.remove(key);
+            }
+
+            final Throwable cause = e.getCause();
+            if (cause instanceof CompileException) throw (CompileException) cause;
+            else if (cause instanceof IOException) throw (IOException) cause;
+            else if (cause instanceof ClassNotFoundException) throw (ClassNotFoundException) cause;
+            else if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            else if (cause instanceof Error) throw (Error) cause;
+            else throw new IllegalStateException("Unexpected problem when compiling " + fullClassName + ": " + cause, cause);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException("Interrupted while waiting for " + fullClassName + " to compile", e);
+        }
+    }
+
+    /**
+     * Compiles the specified source without caching it.
+     *
+     * @return the class with the specified name from the compiled source.
+     */
+    public static CompiledClass compileClass(String source, String fullClassName)
+            throws CompileException, IOException, ClassNotFoundException {
+        final Map<String, byte[]> bytecode = compileToBytecode(source);
+        return new CompiledClass(loadClass(bytecode, fullClassName), bytecode);
+    }
+
+    /**
+     * Compiles the specified source to bytecode.
+     *
+     * @return map from the fully qualified names of the compiled classes to their bytecode.
+     */
+    public static Map<String, byte[]> compileToBytecode(String source) throws CompileException, IOException {
+        final Java.CompilationUnit compilationUnit = new Parser(new Scanner(null, new StringReader(source))).parseCompilationUnit();
+        final IClassLoader iClassLoader = new ClassLoaderIClassLoader(RendererClassCache.class.getClassLoader());
+        final ClassFile[] classFiles = new UnitCompiler(compilationUnit, iClassLoader).compileUnit(true, true, false);
+
+        final Map<String, byte[]> bytecode = new HashMap<String, byte[]>();
+        for (ClassFile classFile : classFiles) {
+            bytecode.put(classFile.getThisClassName(), classFile.toByteArray());
+        }
+        return bytecode;
+    }
+
+    /**
+     * Loads the class with the specified name from the bytecode, using a new class loader dedicated to that bytecode.
+     */
+    public static Class<?> loadClass(Map<String, byte[]> bytecode, String fullClassName) throws ClassNotFoundException {
+        // The class loader gets its own copy of the bytecode, as it may discard entries once they are loaded
+        final ClassLoader classLoader = new ByteArrayClassLoader(new HashMap<String, byte[]>(bytecode),
+                                                                 RendererClassCache.class.getClassLoader());
+        return classLoader.loadClass(fullClassName);
+    }
+
+    /**
+     * @return the directory where compiled bytecode is stored between program runs, or null if not used.
+     */
+    public File getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    /**
+     * @param cacheDirectory directory to store compiled bytecode in, so that it can be loaded instead of compiled
+     *                       on later program runs.  Created if it does not exist.  Null to only cache in memory.
+     */
+    public void setCacheDirectory(File cacheDirectory) {
+        if (cacheDirectory != null && !cacheDirectory.isDirectory() && !cacheDirectory.mkdirs()) {
+            throw new IllegalArgumentException("Could not create the renderer cache directory '" + cacheDirectory + "'");
+        }
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    /**
+     * @return the version of the library, used to invalidate the bytecode cached on disk when the library is updated.
+     */
+    public static String getLibraryVersion() {
+        final Package rendererPackage = RendererClassCache.class.getPackage();
+        final String version = rendererPackage == null ? null : rendererPackage.getImplementationVersion();
+        return version == null ? UNKNOWN_VERSION : version;
+    }
+
+    private CompiledClass loadOrCompileClass(String key, String source, String fullClassName, Callable<Map<String, byte[]>> bytecodeGenerator)
+            throws Exception {
+        final File directory = cacheDirectory;
+        if (directory == null) {
+            if (bytecodeGenerator != null) return loadGeneratedClass(bytecodeGenerator.call(), fullClassName);
+            else return compileClass(source, fullClassName);
+        }
+
+        final File cacheFile = getCacheFile(directory, key);
+
+        // Use the bytecode from an earlier run if there is any
+        final Map<String, byte[]> cachedBytecode = readBytecode(cacheFile);
+        if (cachedBytecode != null && cachedBytecode.containsKey(fullClassName)) {
+            try {
+                return new CompiledClass(loadClass(cachedBytecode, fullClassName), cachedBytecode);
+            } catch (LinkageError e) {
+                // Broken or incompatible file, fall through and recompile
+            }
+        }
+
+        // Compile and store the bytecode for later runs
+        final Map<String, byte[]> bytecode = bytecodeGenerator != null ? bytecodeGenerator.call() : compileToBytecode(source);
+        if (bytecode == null) return null;
+        writeBytecode(cacheFile, bytecode);
+        return new CompiledClass(loadClass(bytecode, fullClassName), bytecode);
+    }
+
+    private static CompiledClass loadGeneratedClass(Map<String, byte[]> bytecode, String fullClassName) throws ClassNotFoundException {
+        if (bytecode == null) return null;
+        else return new CompiledClass(loadClass(bytecode, fullClassName), bytecode);
+    }
+
+    private static String getKey(String source, String fullClassName, String generatorName) {
+        // Compiled classes keep the key they had before there were generators, so that their cache files stay valid
+        final String generatorPrefix = generatorName == null ? "" : generatorName + "\n";
+        return hashSource(generatorPrefix + fullClassName + "\n" + normalizeSource(source));
+    }
+
+    private static File getCacheFile(File directory, String key) {
+        return new File(directory, hashSource(getLibraryVersion() + "\n" + key) + CACHE_FILE_EXTENSION);
+    }
+
+    /**
+     * @return the bytecode stored in the file, or null if the file did not exist or could not be read.
+     */
+    private static Map<String, byte[]> readBytecode(File cacheFile) {
+        if (!cacheFile.isFile()) return null;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+            if (in.readInt() != CACHE_FILE_MAGIC) return null;
+
+            final Map<String, byte[]> bytecode = new HashMap<String, byte[]>();
+            final int classCount = in.readInt();
+            for (int i = 0; i < classCount; i++) {
+                final String className = in.readUTF();
+                final byte[] classData = new byte[in.readInt()];
+                in.readFully(classData);
+                bytecode.put(className, classData);
+            }
+            return bytecode;
+        } catch (IOException e) {
+            // Treat unreadable or truncated files as missing
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Writes the bytecode to a temporary file first and then renames it, so that concurrently running programs
+     * never see partially written files.  Failures are ignored, as the cache is just an optimization.
+     */
+    private static void writeBytecode(File cacheFile, Map<String, byte[]> bytecode) {
+        DataOutputStream out = null;
+        File tempFile = null;
+        try {
+            tempFile = File.createTempFile("renderer", ".tmp", cacheFile.getParentFile());
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(CACHE_FILE_MAGIC);
+            out.writeInt(bytecode.size());
+            for (Map.Entry<String, byte[]> entry : bytecode.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().length);
+                out.write(entry.getValue());
+            }
+            out.close();
+            out = null;
+
+            if (!tempFile.renameTo(cacheFile)) {
+                // Some platforms do not allow renaming over an existing file
+                cacheFile.delete();
+                tempFile.renameTo(cacheFile);
+            }
+        } catch (IOException e) {
+            // Ignore, we just recompile the next time
+        } finally {
+            closeQuietly(out);
+            if (tempFile != null && tempFile.exists()) tempFile.delete();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    /**
+     * @return number of compiled (or currently compiling) classes in the cache.
+     */
+    public int size() {
+        synchronized (compiledClasses) {
+            return compiledClasses.size();
+        }
+    }
+
+    /**
+     * @return maximum number of classes kept in the cache.
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Removes the class compiled from the specified source from the cache, and its bytecode from the cache directory,
+     * e.g. when it was only compiled to find out that it should be generated differently.
+     */
+    public void remove(String source, String fullClassName) {
+        ParameterChecker.checkNotNull(source, "source");
+        ParameterChecker.checkNonEmptyString(fullClassName, "fullClassName");
+
+        final String key = getKey(source, fullClassName, null);
+        synchronized (compiledClasses) {
+            compiledClasses.remove(key);
+        }
+
+        final File directory = cacheDirectory;
+        if (directory != null) getCacheFile(directory, key).delete();
+    }
+
+    /**
+     * Removes all classes from the cache.
+     */
+    public void clear() {
+        synchronized (compiledClasses) {
+            compiledClasses.clear();
+        }
+    }
+
+    /**
+     * @return the source with leading and trailing whitespace removed from each line, and empty lines removed,
+     *         so that differences in indentation do not cause recompilation.
+     */
+    protected static String normalizeSource(String source) {
+        final StringBuilder normalized = new StringBuilder(source.length());
+        for (String line : source.split("\n")) {
+            final String trimmedLine = line.trim();
+            if (trimmedLine.length() > 0) {
+                normalized.append(trimmedLine).append('\n');
+            }
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * @return a hex encoded SHA-1 hash of the specified text.
+     */
+    protected static String hashSource(String text) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(text.getBytes("UTF-8"));
+            final StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+                hex.append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not supported by the platform: " + e.getMessage(), e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 not supported by the platform: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Waits for a compilation done by another thread.
+     */
+    private static final class CompilationBlocker implements ForkJoinPool.ManagedBlocker {
+        private final FutureTask<CompiledClass> compilation;
+
+        private CompilationBlocker(FutureTask<CompiledClass> compilation) {
+            this.compilation = compilation;
+        }
+
+        @Override
+        public boolean block() throws InterruptedException {
+            try {
+                compilation.get();
+            } catch (ExecutionException e) {
+                // Reported by the caller, which gets the result after this
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            return compilation.isDone();
+        }
+    }
+
+    /**
+     * A compiled class along with the bytecode it was loaded from.
+     */
+    public static final class CompiledClass {
+        private final Class<?> compiledClass;
+        private final Map<String, byte[]> bytecode;
+
+        public CompiledClass(Class<?> compiledClass, Map<String, byte[]> bytecode) {
+            ParameterChecker.checkNotNull(compiledClass, "compiledClass");
+            ParameterChecker.checkNotNull(bytecode, "bytecode");
+
+            this.compiledClass = compiledClass;
+            this.bytecode = Collections.unmodifiableMap(new HashMap<String, byte[]>(bytecode));
+        }
+
+        public Class<?> getCompiledClass() {
+            return compiledClass;
+        }
+
+        /**
+         * @return map from the fully qualified names of the classes in the compilation unit to their bytecode.
+         */
+        public Map<String, byte[]> getBytecode() {
+            return bytecode;
+        }
+
+        /**
+         * @return the bytecode sizes of the methods of the compiled class, by method name.
+         */
+        public Map<String, Integer> getMethodCodeSizes() {
+            final byte[] classData = bytecode.get(compiledClass.getName());
+            if (classData == null) return Collections.emptyMap();
+            else return ClassFileUtils.getMethodCodeSizes(classData);
+        }
+    }
+}
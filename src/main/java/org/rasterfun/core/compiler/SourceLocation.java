@@ -6,25 +6,27 @@ package org.rasterfun.core.compiler;
  */
 public enum SourceLocation {
 
-    IMPORTS(0, false, false),
-    FIELDS(1, true, false),
-    METHODS(1, false, false),
-    BEFORE_LOOP(2, true, true),
-    BEFORE_LINE(3, true, true),
-    BEFORE_PIXEL(4, true, true),
-    AT_PIXEL(4, true, true),
-    AFTER_PIXEL(4, true, true),
-    AFTER_LINE(3, true, true),
-    AFTER_LOOP(2, true, true)
+    IMPORTS(0, false, false, 0),
+    FIELDS(1, true, false, 0),
+    METHODS(1, false, false, 0),
+    BEFORE_LOOP(2, true, true, 0),
+    BEFORE_LINE(3, true, true, 1),
+    BEFORE_PIXEL(4, true, true, 2),
+    AT_PIXEL(4, true, true, 2),
+    AFTER_PIXEL(4, true, true, 2),
+    AFTER_LINE(3, true, true, 1),
+    AFTER_LOOP(2, true, true, 0)
     ;
 
     private String indent = "";
     private final boolean validVariableLocation;
     private final boolean validAssignmentLocation;
+    private final int loopDepth;
 
-    private SourceLocation(int indentSize, boolean validVariableLocation, boolean validAssignmentLocation) {
+    private SourceLocation(int indentSize, boolean validVariableLocation, boolean validAssignmentLocation, int loopDepth) {
         this.validVariableLocation = validVariableLocation;
         this.validAssignmentLocation = validAssignmentLocation;
+        this.loopDepth = loopDepth;
 
         for (int i = 0; i < indentSize; i++) {
             indent += "  ";
@@ -42,4 +44,19 @@ public enum SourceLocation {
     public boolean isValidAssignmentLocation() {
         return validAssignmentLocation;
     }
+
+    /**
+     * @return how deep inside the pixel loops code at this location is run,
+     *         0 = once per calculation, 1 = once per line, 2 = once per pixel.
+     */
+    public int getLoopDepth() {
+        return loopDepth;
+    }
+
+    /**
+     * @return the location of a and b that is evaluated most often (the one nested deepest inside the pixel loops).
+     */
+    public static SourceLocation innermost(SourceLocation a, SourceLocation b) {
+        return b.loopDepth > a.loopDepth ? b : a;
+    }
 }
@@ -0,0 +1,13 @@
+package org.rasterfun.core.compiler;
+
+/**
+ * Thrown when the code collected by a RendererBuilder can not be handled without compiling it from source,
+ * e.g. by the bytecode generator or the interpreter.
+ */
+final class UnsupportedCodeException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    UnsupportedCodeException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,25 @@
+package org.rasterfun.core.listeners;
+
+import org.rasterfun.picture.Picture;
+
+/**
+ * A listener that is notified when an area of a picture has been completely calculated, e.g. a render tile.
+ * PictureCalculationsListeners that also implement this interface get the notifications as well,
+ * e.g. ones extending PictureCalculationsListenerAdapter.
+ * The listener should be added before the calculation is started to get the notifications.
+ */
+public interface PictureAreaListener {
+
+    /**
+     * Called when an area of a picture has been completely calculated.
+     * Can be used to only update the changed parts of a shown picture.
+     * Called from the calculation threads, possibly for several areas of the same picture at the same time.
+     * @param calculationIndex id for the calculation run that is reporting,
+     *                         useful to tell apart several calculations started after each other.
+     * @param startX left edge of the area, inclusive.
+     * @param startY top edge of the area, inclusive.
+     * @param endX right edge of the area, exclusive.
+     * @param endY bottom edge of the area, exclusive.
+     */
+    void onPictureAreaReady(int calculationIndex, int pictureIndex, Picture picture, int startX, int startY, int endX, int endY);
+}
@@ -6,8 +6,9 @@ import java.util.List;
 
 /**
  * Adapter for PictureCalculationsListener, override the methods that you are interested in.
+ * Also receives the optional progressive rendering and completed area notifications.
  */
-public abstract class PictureCalculationsListenerAdapter implements PictureCalculationsListener {
+public abstract class PictureCalculationsListenerAdapter implements PictureCalculationsListener, PictureRefinementListener, PictureAreaListener {
 
     @Override
     public void onProgress(int calculationIndex, float progress) {
@@ -17,6 +18,14 @@ public abstract class PictureCalculationsListenerAdapter implements PictureCalcu
     public void onPreviewReady(int calculationIndex, int pictureIndex, Picture preview) {
     }
 
+    @Override
+    public void onPictureRefined(int calculationIndex, int pictureIndex, Picture picture, int pixelStep) {
+    }
+
+    @Override
+    public void onPictureAreaReady(int calculationIndex, int pictureIndex, Picture picture, int startX, int startY, int endX, int endY) {
+    }
+
     @Override
     public void onPictureReady(int calculationIndex, int pictureIndex, Picture picture) {
     }
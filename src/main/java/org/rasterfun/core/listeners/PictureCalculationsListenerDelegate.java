@@ -7,8 +7,9 @@ import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Delegate that forwards incoming events to listeners.
+ * Optional events are only forwarded to the listeners that implement the corresponding listener interface.
  */
-public class PictureCalculationsListenerDelegate implements PictureCalculationsListener {
+public class PictureCalculationsListenerDelegate implements PictureCalculationsListener, PictureRefinementListener, PictureAreaListener {
 
     // Usually we have only a few listeners, so a CopyOnWriteArrayList is an easy way to make adding and removing listeners thread safe without much memory or performance overhead.
     private final CopyOnWriteArrayList<PictureCalculationsListener> listeners = new CopyOnWriteArrayList<PictureCalculationsListener>();
@@ -23,6 +24,20 @@ public class PictureCalculationsListenerDelegate implements PictureCalculationsL
             listener.onPreviewReady(calculationIndex, pictureIndex, preview);
         }
     }
+    public void onPictureRefined(int calculationIndex, int pictureIndex, Picture picture, int pixelStep) {
+        for (PictureCalculationsListener listener : listeners) {
+            if (listener instanceof PictureRefinementListener) {
+                ((PictureRefinementListener) listener).onPictureRefined(calculationIndex, pictureIndex, picture, pixelStep);
+            }
+        }
+    }
+    public void onPictureAreaReady(int calculationIndex, int pictureIndex, Picture picture, int startX, int startY, int endX, int endY) {
+        for (PictureCalculationsListener listener : listeners) {
+            if (listener instanceof PictureAreaListener) {
+                ((PictureAreaListener) listener).onPictureAreaReady(calculationIndex, pictureIndex, picture, startX, startY, endX, endY);
+            }
+        }
+    }
     public void onPictureReady(int calculationIndex, int pictureIndex, Picture picture) {
         for (PictureCalculationsListener listener : listeners) {
             listener.onPictureReady(calculationIndex, pictureIndex, picture);
@@ -46,4 +61,14 @@ public class PictureCalculationsListenerDelegate implements PictureCalculationsL
     public void removeListener(PictureCalculationsListener listener) {
         listeners.remove(listener);
     }
+
+    /**
+     * @return true if any of the listeners implements PictureAreaListener.
+     */
+    public boolean hasAreaListeners() {
+        for (PictureCalculationsListener listener : listeners) {
+            if (listener instanceof PictureAreaListener) return true;
+        }
+        return false;
+    }
 }
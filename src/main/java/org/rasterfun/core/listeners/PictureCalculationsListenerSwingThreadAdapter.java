@@ -7,8 +7,9 @@ import java.util.List;
 
 /**
  * Delegates events it gets to the specified listener, in the Swing thread.
+ * Optional events are only delegated if the listener implements the corresponding listener interface.
  */
-public class PictureCalculationsListenerSwingThreadAdapter implements PictureCalculationsListener {
+public class PictureCalculationsListenerSwingThreadAdapter implements PictureCalculationsListener, PictureRefinementListener, PictureAreaListener {
     private final PictureCalculationsListener delegate;
 
     public PictureCalculationsListenerSwingThreadAdapter(PictureCalculationsListener delegate) {
@@ -35,6 +36,30 @@ public class PictureCalculationsListenerSwingThreadAdapter implements PictureCal
         });
     }
 
+    @Override
+    public void onPictureRefined(final int calculationIndex, final int pictureIndex, final Picture picture, final int pixelStep) {
+        if (!(delegate instanceof PictureRefinementListener)) return;
+
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                ((PictureRefinementListener) delegate).onPictureRefined(calculationIndex, pictureIndex, picture, pixelStep);
+            }
+        });
+    }
+
+    @Override
+    public void onPictureAreaReady(final int calculationIndex, final int pictureIndex, final Picture picture,
+                                   final int startX, final int startY, final int endX, final int endY) {
+        if (!(delegate instanceof PictureAreaListener)) return;
+
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                ((PictureAreaListener) delegate).onPictureAreaReady(calculationIndex, pictureIndex, picture, startX, startY, endX, endY);
+            }
+        });
+    }
 
     @Override
     public void onPictureReady(final int calculationIndex, final int pictureIndex, final Picture picture) {
@@ -0,0 +1,21 @@
+package org.rasterfun.core.listeners;
+
+import org.rasterfun.picture.Picture;
+
+/**
+ * A listener that is notified when progressive rendering is used, and a coarser version of a picture is ready.
+ * PictureCalculationsListeners that also implement this interface get the notifications as well,
+ * e.g. ones extending PictureCalculationsListenerAdapter.
+ */
+public interface PictureRefinementListener {
+
+    /**
+     * Called when a coarser version of a picture is ready.
+     * The picture has been calculated for every pixelStep:th pixel along x and y, and the other pixels
+     * contain copies of the calculated pixels.  Later refinements and the final picture use the same picture instance.
+     * @param calculationIndex id for the calculation run that is reporting,
+     *                         useful to tell apart several calculations started after each other.
+     * @param pixelStep distance between calculated pixels, e.g. 8, 4, or 2.
+     */
+    void onPictureRefined(int calculationIndex, int pictureIndex, Picture picture, int pixelStep);
+}
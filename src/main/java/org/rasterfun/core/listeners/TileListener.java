@@ -0,0 +1,16 @@
+package org.rasterfun.core.listeners;
+
+import org.rasterfun.picture.Picture;
+
+/**
+ * A listener that is notified when a render tile of a picture has been completely calculated.
+ * Called from the rendering threads, possibly for several tiles at the same time.
+ */
+public interface TileListener {
+
+    /**
+     * Indicates that all pixels in the specified area of the picture have been calculated.
+     * The areas of the tiles of a picture do not overlap.
+     */
+    void onTileReady(Picture picture, int startX, int startY, int endX, int endY);
+}
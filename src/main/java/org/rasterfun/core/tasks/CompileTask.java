@@ -1,34 +1,140 @@
 package org.rasterfun.core.tasks;
 
 import org.rasterfun.core.Renderer;
+import org.rasterfun.core.TieredRenderer;
 import org.rasterfun.core.compiler.CompilationException;
 import org.rasterfun.core.compiler.RendererBuilder;
 import org.rasterfun.core.listeners.CalculationListener;
 import org.rasterfun.utils.ParameterChecker;
 
+import org.rasterfun.picture.Picture;
+
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Task that compiles a pixel calculator from a picture generator.
+ * When done, it passes the compiled renderer to the render tasks that depend on it, and starts them,
+ * so that no worker thread is blocked waiting for the compilation.
  */
 public class CompileTask implements Callable<Renderer> {
 
     private final int calculationIndex;
     private final RendererBuilder builder;
     private final CalculationListener listener;
+    private final Executor executor;
+    private final Renderer rendererToReuse;
+    private volatile Renderer renderer = null;
+    private boolean interpretWhileCompiling = false;
+    private volatile boolean stopped = false;
+    private boolean renderTasksStarted = false;
+
+    private final List<RenderTask> renderTasks = new ArrayList<RenderTask>();
+    private final List<FutureTask<Picture>> renderFutures = new ArrayList<FutureTask<Picture>>();
 
     public CompileTask(int calculationIndex, RendererBuilder builder, CalculationListener listener) {
+        this(calculationIndex, builder, listener, null, null);
+    }
+
+    public CompileTask(int calculationIndex, RendererBuilder builder, CalculationListener listener, Executor executor) {
+        this(calculationIndex, builder, listener, executor, null);
+    }
+
+    /**
+     * @param executor executor to start the dependent render tasks with when the renderer has been compiled.
+     *                 If null, there can be no dependent render tasks.
+     * @param rendererToReuse renderer from an earlier calculation that is updated with new parameters and used,
+     *                        if it was compiled from the same source with constants as parameters.
+     *                        It must not be calculating anymore.  Null to always create a new renderer.
+     */
+    public CompileTask(int calculationIndex, RendererBuilder builder, CalculationListener listener, Executor executor, Renderer rendererToReuse) {
         ParameterChecker.checkNotNull(builder, "builder");
 
         this.calculationIndex = calculationIndex;
         this.builder = builder;
         this.listener = listener;
+        this.executor = executor;
+        this.rendererToReuse = rendererToReuse;
+    }
+
+    /**
+     * Adds a task that will be started with the compiled renderer after the compilation is done.
+     * Should be called before this task is started.
+     *
+     * @return a future for the result of the render task.
+     */
+    public Future<Picture> addRenderTask(RenderTask renderTask) {
+        ParameterChecker.checkNotNull(renderTask, "renderTask");
+        if (executor == null) throw new IllegalStateException("No executor specified for starting render tasks");
+
+        final FutureTask<Picture> renderFuture = new FutureTask<Picture>(renderTask);
+        renderTasks.add(renderTask);
+        renderFutures.add(renderFuture);
+        return renderFuture;
+    }
+
+    /**
+     * @return true if the render tasks are started right away with an interpreting renderer, which is replaced
+     *         with the compiled renderer once it is compiled.
+     */
+    public boolean isInterpretWhileCompiling() {
+        return interpretWhileCompiling;
+    }
+
+    /**
+     * Sets whether the render tasks are started right away with an interpreting renderer, which is replaced with
+     * the compiled renderer once it is compiled, so that the first tiles do not have to wait for the compilation.
+     * The interpreter is only used if it supports the code of the builder.  Should be called before this task is started.
+     */
+    public void setInterpretWhileCompiling(boolean interpretWhileCompiling) {
+        this.interpretWhileCompiling = interpretWhileCompiling;
+    }
+
+    /**
+     * Stops this task.  Render tasks that have not been started yet are cancelled, and will not be started
+     * when the compilation completes, so there is no need to wait for a stopped compilation.
+     * Render tasks that were already started are not stopped by this, stop them separately.
+     */
+    public void stop() {
+        synchronized (renderTasks) {
+            stopped = true;
+            if (!renderTasksStarted) {
+                for (FutureTask<Picture> renderFuture : renderFutures) {
+                    renderFuture.cancel(false);
+                }
+            }
+        }
     }
 
     @Override
     public Renderer call() throws Exception {
+        // No need to compile if nothing is going to use the renderer anymore
+        if (stopped) return null;
+
+        // Start rendering with the interpreter while compiling, if requested and possible
+        TieredRenderer tieredRenderer = null;
+        if (interpretWhileCompiling && !renderTasks.isEmpty()) {
+            final Renderer interpretedRenderer = builder.createInterpretedRenderer();
+            if (interpretedRenderer != null) {
+                tieredRenderer = new TieredRenderer(interpretedRenderer);
+                startRenderTasks(tieredRenderer);
+            }
+        }
+
+        Renderer renderer = null;
         try {
-            return builder.compilePixelCalculator();
+            renderer = builder.compilePixelCalculator(rendererToReuse);
+            this.renderer = renderer;
+
+            // The tiles started after this are rendered with the compiled renderer
+            if (tieredRenderer != null) tieredRenderer.promote(renderer);
+
+            return renderer;
         } catch (CompilationException e) {
             if (listener != null) {
                 listener.onError(calculationIndex, e.getMessage(), e.getLongExplanation(), e);
@@ -41,7 +147,38 @@ public class CompileTask implements Callable<Renderer> {
                                  "used to draw the picture.  The full exception is: \n" + e, e);
             }
             e.printStackTrace();
+        } finally {
+            // If the compilation failed, the render tasks started with the interpreter complete with it
+            if (tieredRenderer == null) startRenderTasks(renderer);
         }
         return null;
     }
+
+    /**
+     * @return the compiled renderer, or null if the compilation has not completed or failed.
+     */
+    public Renderer getRenderer() {
+        return renderer;
+    }
+
+    private void startRenderTasks(Renderer renderer) {
+        // If stopped, the render tasks have been cancelled already
+        synchronized (renderTasks) {
+            if (stopped) return;
+            renderTasksStarted = true;
+        }
+
+        for (int i = 0; i < renderTasks.size(); i++) {
+            // Render tasks without a renderer just complete without rendering anything
+            renderTasks.get(i).setRenderer(renderer);
+
+            final FutureTask<Picture> renderFuture = renderFutures.get(i);
+            try {
+                executor.execute(renderFuture);
+            } catch (RejectedExecutionException e) {
+                // The executor has been shut down, do not leave anyone waiting for the render task
+                renderFuture.cancel(false);
+            }
+        }
+    }
 }
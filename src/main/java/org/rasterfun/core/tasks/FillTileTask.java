@@ -0,0 +1,148 @@
+package org.rasterfun.core.tasks;
+
+import org.rasterfun.picture.Picture;
+import org.rasterfun.utils.ParameterChecker;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fills in the pixels between the pixels calculated with some pixel step in a rectangular area of a picture,
+ * by copying each calculated pixel to the uncalculated pixels to the right and below it.
+ * The area is split recursively in half along the longer side until the tiles are small enough,
+ * and the halves are forked, so that idle threads in the fork join pool can fill them in parallel.
+ *
+ * The calculated pixels are the ones at multiples of the pixel step along x and y.
+ * Pixels whose calculated pixel is above the first calculated row are left as they are.
+ */
+final class FillTileTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    // Scratch arrays for the rows that are copied, reused by each thread.
+    private static final ThreadLocal<float[]> rowBuffers = new ThreadLocal<float[]>();
+
+    private final Picture picture;
+    private final int startX;
+    private final int startY;
+    private final int endX;
+    private final int endY;
+    private final int firstCalculatedY;
+    private final int pixelStep;
+    private final int maxTilePixels;
+
+    /**
+     * @param firstCalculatedY rows above this have not been calculated, e.g. because they belong to another slice.
+     * @param pixelStep distance between the calculated pixels.
+     * @param maxTilePixels areas with more pixels than this are split in two.
+     */
+    FillTileTask(Picture picture,
+                 int startX,
+                 int startY,
+                 int endX,
+                 int endY,
+                 int firstCalculatedY,
+                 int pixelStep,
+                 int maxTilePixels) {
+        ParameterChecker.checkNotNull(picture, "picture");
+        ParameterChecker.checkPositiveNonZeroInteger(pixelStep, "pixelStep");
+        ParameterChecker.checkPositiveNonZeroInteger(maxTilePixels, "maxTilePixels");
+
+        this.picture = picture;
+        this.startX = startX;
+        this.startY = startY;
+        this.endX = endX;
+        this.endY = endY;
+        this.firstCalculatedY = firstCalculatedY;
+        this.pixelStep = pixelStep;
+        this.maxTilePixels = maxTilePixels;
+    }
+
+    @Override
+    protected void compute() {
+        if (isSmallEnough()) {
+            fillArea();
+        }
+        else {
+            invokeAll(createFirstHalf(), createSecondHalf());
+        }
+    }
+
+    /**
+     * Fills the area tile by tile in the calling thread, without forking any tasks.
+     * For use outside of fork join pools.
+     */
+    public void computeInCurrentThread() {
+        if (isSmallEnough()) {
+            fillArea();
+        }
+        else {
+            createFirstHalf().computeInCurrentThread();
+            createSecondHalf().computeInCurrentThread();
+        }
+    }
+
+    private boolean isSmallEnough() {
+        return (endX - startX) * (endY - startY) <= maxTilePixels;
+    }
+
+    private FillTileTask createFirstHalf() {
+        if (isSplitVertically()) return createTile(startX, startY, getSplitPosition(startX, endX), endY);
+        else return createTile(startX, startY, endX, getSplitPosition(startY, endY));
+    }
+
+    private FillTileTask createSecondHalf() {
+        if (isSplitVertically()) return createTile(getSplitPosition(startX, endX), startY, endX, endY);
+        else return createTile(startX, getSplitPosition(startY, endY), endX, endY);
+    }
+
+    private int getSplitPosition(int start, int end) {
+        // Split at a multiple of the pixel step, so that the calculated pixels of a tile are usually inside it
+        final int middle = start + (end - start) / 2;
+        final int aligned = middle - middle % pixelStep;
+        if (aligned > start && aligned < end) return aligned;
+        else return middle;
+    }
+
+    private boolean isSplitVertically() {
+        return endX - startX >= endY - startY;
+    }
+
+    private void fillArea() {
+        final int tileWidth = endX - startX;
+        if (tileWidth <= 0 || endY <= startY) return;
+
+        // The calculated pixels for the leftmost pixels may be to the left of the tile
+        final int sourceStartX = startX - startX % pixelStep;
+        final int sourceWidth = endX - sourceStartX;
+        final int channelCount = picture.getChannelCount();
+
+        // Get a large enough scratch array, with the source row followed by the target row
+        final int targetRowOffset = sourceWidth * channelCount;
+        final int rowValues = targetRowOffset + tileWidth * channelCount;
+        float[] rows = rowBuffers.get();
+        if (rows == null || rows.length < rowValues) {
+            rows = new float[rowValues];
+            rowBuffers.set(rows);
+        }
+
+        for (int y = startY; y < endY; y++) {
+            final int sourceY = y - y % pixelStep;
+            if (sourceY < firstCalculatedY) continue; // The calculated pixels for this line are outside our slice
+
+            // Work a row at a time, so that pictures that are not stored in an array are handled too
+            picture.getPixels(sourceStartX, sourceY, sourceWidth, 1, rows, 0, channelCount, sourceWidth * channelCount, 1);
+            for (int x = startX; x < endX; x++) {
+                final int sourceIndex = (x - x % pixelStep - sourceStartX) * channelCount;
+                final int targetIndex = targetRowOffset + (x - startX) * channelCount;
+                for (int c = 0; c < channelCount; c++) {
+                    rows[targetIndex + c] = rows[sourceIndex + c];
+                }
+            }
+            picture.setPixels(startX, y, tileWidth, 1, rows, targetRowOffset, channelCount, tileWidth * channelCount, 1);
+        }
+    }
+
+    private FillTileTask createTile(int tileStartX, int tileStartY, int tileEndX, int tileEndY) {
+        return new FillTileTask(picture, tileStartX, tileStartY, tileEndX, tileEndY, firstCalculatedY, pixelStep, maxTilePixels);
+    }
+}
@@ -2,29 +2,43 @@ package org.rasterfun.core.tasks;
 
 import org.rasterfun.core.Renderer;
 import org.rasterfun.core.listeners.CalculationListener;
+import org.rasterfun.core.listeners.PictureRefinementListener;
+import org.rasterfun.core.listeners.TileListener;
 import org.rasterfun.picture.Picture;
 import org.rasterfun.utils.ParameterChecker;
 
 import java.util.List;
 import java.util.concurrent.Callable;
-import java.util.concurrent.Future;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * Task that renders a Picture using a Renderer.
+ * The renderer is provided by the CompileTask that the render task depends on, which starts the render task
+ * once the renderer is compiled, so the render task never has to wait for it.
+ *
+ * The area to render is split into tiles, which are rendered in parallel when run in a fork join pool,
+ * and one after the other otherwise.
  */
 public class RenderTask implements Callable<Picture> {
 
+    /**
+     * Width and height of the largest square tiles that the rendered area is split into.
+     */
+    public static final int DEFAULT_TILE_SIZE = 64;
+
     private final int calculationIndex;
     private final int pictureIndex;
     private final boolean isPreview;
     private final int startY;
     private final int endY;
     private final Picture picture;
-    private final Future<Renderer> pixelCalculatorFuture;
+    private final int initialPixelStep;
     private final CalculationListener listener;
+    private final TileListener tileListener;
+    private final PictureRefinementListener refinementListener;
 
-    private Renderer renderer = null;
-    private boolean stopped = false;
+    private volatile Renderer renderer = null;
+    private volatile boolean stopped = false;
 
     public RenderTask(int calculationIndex,
                       int pictureIndex,
@@ -32,12 +46,63 @@ public class RenderTask implements Callable<Picture> {
                       int startY,
                       int endY,
                       Picture picture,
-                      Future<Renderer> pixelCalculatorFuture,
                       CalculationListener listener) {
+        this(calculationIndex, pictureIndex, preview, startY, endY, picture, 1, listener);
+    }
+
+    /**
+     * @param initialPixelStep if larger than one, the picture is rendered progressively, first calculating
+     *                         every initialPixelStep:th pixel, then halving the step until all pixels are calculated.
+     *                         Should be a power of two.
+     */
+    public RenderTask(int calculationIndex,
+                      int pictureIndex,
+                      boolean preview,
+                      int startY,
+                      int endY,
+                      Picture picture,
+                      int initialPixelStep,
+                      CalculationListener listener) {
+        this(calculationIndex, pictureIndex, preview, startY, endY, picture, initialPixelStep, listener, null);
+    }
+
+    /**
+     * @param initialPixelStep if larger than one, the picture is rendered progressively, see above.
+     * @param tileListener notified as each render tile of the slice is completely calculated, may be null.
+     */
+    public RenderTask(int calculationIndex,
+                      int pictureIndex,
+                      boolean preview,
+                      int startY,
+                      int endY,
+                      Picture picture,
+                      int initialPixelStep,
+                      CalculationListener listener,
+                      TileListener tileListener) {
+        this(calculationIndex, pictureIndex, preview, startY, endY, picture, initialPixelStep, listener, tileListener, null);
+    }
+
+    /**
+     * @param initialPixelStep if larger than one, the picture is rendered progressively, see above.
+     * @param tileListener notified as each render tile of the slice is completely calculated, may be null.
+     * @param refinementListener notified with the slice picture after each progressive pass except the last,
+     *                           when the slice has been filled in with copies of the calculated pixels.  May be null.
+     */
+    public RenderTask(int calculationIndex,
+                      int pictureIndex,
+                      boolean preview,
+                      int startY,
+                      int endY,
+                      Picture picture,
+                      int initialPixelStep,
+                      CalculationListener listener,
+                      TileListener tileListener,
+                      PictureRefinementListener refinementListener) {
         ParameterChecker.checkNotNull(picture, "picture");
-        ParameterChecker.checkNotNull(pixelCalculatorFuture, "pixelCalculatorFuture");
         ParameterChecker.checkPositiveNonZeroInteger(picture.getWidth(), "picture.getWidth()");
         ParameterChecker.checkPositiveNonZeroInteger(picture.getHeight(), "picture.getHeight()");
+        ParameterChecker.checkPositiveNonZeroInteger(initialPixelStep, "initialPixelStep");
+        if (Integer.bitCount(initialPixelStep) != 1) throw new IllegalArgumentException("The initialPixelStep should be a power of two, but was " + initialPixelStep);
 
         this.calculationIndex = calculationIndex;
         this.pictureIndex = pictureIndex;
@@ -45,32 +110,32 @@ public class RenderTask implements Callable<Picture> {
         this.startY = startY;
         this.endY = endY;
         this.picture = picture;
-        this.pixelCalculatorFuture = pixelCalculatorFuture;
+        this.initialPixelStep = initialPixelStep;
         this.listener = listener;
+        this.tileListener = tileListener;
+        this.refinementListener = refinementListener;
     }
 
     @Override
     public Picture call() throws Exception {
         try {
-            // Wait for pixel renderer compilation task to complete
-            renderer = pixelCalculatorFuture.get();
-
-            // If we weren't stopped, proceed to rendering phase
+            // If we weren't stopped, and the renderer compiled, proceed to rendering phase
+            final Renderer renderer = this.renderer;
             if (!stopped && renderer != null) {
 
-                // Render the part of the picture we have been assigned
+                // Render the part of the picture we have been assigned, from coarse to fine if rendering progressively
                 final List<String> channelNamesList = picture.getChannelNames();
                 final String[] channelNamesArray = channelNamesList.toArray(new String[channelNamesList.size()]);
-                renderer.calculatePixels(picture.getWidth(),
-                                         picture.getHeight(),
-                                         channelNamesArray,
-                                         picture.getData(),
-                                         0,
-                                         startY,
-                                         picture.getWidth(),
-                                         endY,
-                                         isPreview ? null : listener,
-                                         calculationIndex);
+                for (int pixelStep = initialPixelStep; pixelStep >= 1 && !stopped; pixelStep /= 2) {
+                    render(renderer, channelNamesArray, pixelStep, pixelStep != initialPixelStep);
+
+                    if (pixelStep > 1 && !stopped) {
+                        fillBetweenCalculatedPixels(pixelStep);
+                        if (refinementListener != null) {
+                            refinementListener.onPictureRefined(calculationIndex, pictureIndex, picture, pixelStep);
+                        }
+                    }
+                }
 
                 // Notify listener
                 listener.onPictureSliceReady(calculationIndex, pictureIndex, picture, isPreview);
@@ -91,11 +156,67 @@ public class RenderTask implements Callable<Picture> {
         }
     }
 
+    private void render(Renderer renderer, String[] channelNames, int pixelStep, boolean skipCoarserPixels) {
+        final RenderTileTask area = new RenderTileTask(renderer,
+                                                       picture,
+                                                       channelNames,
+                                                       0,
+                                                       startY,
+                                                       picture.getWidth(),
+                                                       endY,
+                                                       pixelStep,
+                                                       skipCoarserPixels,
+                                                       DEFAULT_TILE_SIZE * DEFAULT_TILE_SIZE,
+                                                       isPreview ? null : listener,
+                                                       calculationIndex,
+                                                       tileListener);
+        if (ForkJoinTask.inForkJoinPool()) {
+            // Split into tiles that other threads in the pool can steal
+            area.invoke();
+        }
+        else {
+            area.computeInCurrentThread();
+        }
+    }
+
+    /**
+     * Copies each pixel calculated with the specified pixel step to the uncalculated pixels to the right and below it,
+     * so that the picture can be shown before it is completely calculated.
+     * The copies are overwritten by the later passes.
+     */
+    private void fillBetweenCalculatedPixels(int pixelStep) {
+        final FillTileTask area = new FillTileTask(picture,
+                                                   0,
+                                                   startY,
+                                                   picture.getWidth(),
+                                                   endY,
+                                                   startY,
+                                                   pixelStep,
+                                                   DEFAULT_TILE_SIZE * DEFAULT_TILE_SIZE);
+        if (ForkJoinTask.inForkJoinPool()) {
+            // Split into tiles that other threads in the pool can steal
+            area.invoke();
+        }
+        else {
+            area.computeInCurrentThread();
+        }
+    }
+
+    /**
+     * Sets the renderer to render with, called before the task is started.
+     * @param renderer the compiled renderer, or null if it could not be compiled, in which case nothing is rendered.
+     */
+    public void setRenderer(Renderer renderer) {
+        this.renderer = renderer;
+        if (stopped && renderer != null) renderer.stop();
+    }
+
     /**
      * Stops the calculation of the picture.
      */
     public void stop() {
         stopped = true;
+        final Renderer renderer = this.renderer;
         if (renderer != null) renderer.stop();
     }
 
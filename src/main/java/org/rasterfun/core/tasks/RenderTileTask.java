@@ -0,0 +1,318 @@
+package org.rasterfun.core.tasks;
+
+import org.rasterfun.core.Renderer;
+import org.rasterfun.core.listeners.CalculationListener;
+import org.rasterfun.core.listeners.TileListener;
+import org.rasterfun.picture.ArrayPicture;
+import org.rasterfun.picture.Picture;
+import org.rasterfun.utils.ParameterChecker;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Renders a rectangular area of a picture, by splitting it recursively in half along the longer side
+ * until the tiles are small enough, and rendering each tile separately.
+ * The halves are forked, so that idle threads in the fork join pool can steal them,
+ * which keeps all threads busy to the end even if some parts of the picture are slower to calculate than others.
+ * Areas are split at multiples of SPLIT_ALIGNMENT where possible, so that the tiles line up with power of two grids,
+ * e.g. for calculating mip levels as tiles complete.
+ *
+ * ArrayPictures with the layout that the renderer expects, such as views of a part of
+ * a larger picture, are rendered directly into the array.  Other pictures are rendered one tile at a time
+ * into a scratch array, which is then copied to the picture.
+ */
+public final class RenderTileTask extends RecursiveAction {
+
+    /**
+     * Areas are split at multiples of this, as long as both halves get some pixels.
+     */
+    public static final int SPLIT_ALIGNMENT = 64;
+
+    private static final long serialVersionUID = 1L;
+
+    // Scratch arrays for rendering tiles of pictures that are not stored in java arrays, reused by each thread.
+    private static final ThreadLocal<float[]> tileBuffers = new ThreadLocal<float[]>();
+
+    private final Renderer renderer;
+    private final Picture picture;
+    private final int width;
+    private final int height;
+    private final String[] channelNames;
+    private final float[] pixelData;
+    private final int dataOffset;
+    private final int rowStride;
+    private final int channelStride;
+    private final int startX;
+    private final int startY;
+    private final int endX;
+    private final int endY;
+    private final int pixelStep;
+    private final boolean skipCoarserPixels;
+    private final int maxTilePixels;
+    private final CalculationListener listener;
+    private final int calculationIndex;
+    private final TileListener tileListener;
+
+    /**
+     * @param maxTilePixels areas with more pixels than this are split in two.
+     */
+    public RenderTileTask(Renderer renderer,
+                          int width,
+                          int height,
+                          String[] channelNames,
+                          float[] pixelData,
+                          int startX,
+                          int startY,
+                          int endX,
+                          int endY,
+                          int maxTilePixels,
+                          CalculationListener listener,
+                          int calculationIndex) {
+        this(renderer, width, height, channelNames, pixelData, startX, startY, endX, endY, 1, false,
+             maxTilePixels, listener, calculationIndex);
+    }
+
+    /**
+     * @param pixelStep only render pixels at multiples of this step, see Renderer.calculatePixels.
+     * @param skipCoarserPixels skip pixels already rendered with twice the pixel step, see Renderer.calculatePixels.
+     * @param maxTilePixels areas with more pixels to calculate than this are split in two.
+     */
+    public RenderTileTask(Renderer renderer,
+                          int width,
+                          int height,
+                          String[] channelNames,
+                          float[] pixelData,
+                          int startX,
+                          int startY,
+                          int endX,
+                          int endY,
+                          int pixelStep,
+                          boolean skipCoarserPixels,
+                          int maxTilePixels,
+                          CalculationListener listener,
+                          int calculationIndex) {
+        this(renderer, null, width, height, channelNames, pixelData,
+             0, width * (renderer.isPlanar() ? 1 : channelNames.length), renderer.isPlanar() ? width * height : 1,
+             startX, startY, endX, endY, pixelStep, skipCoarserPixels, maxTilePixels, listener, calculationIndex, null);
+        ParameterChecker.checkNotNull(pixelData, "pixelData");
+    }
+
+    /**
+     * Renders an area of a picture, which may or may not be stored in a java array.
+     *
+     * @param pixelStep only render pixels at multiples of this step, see Renderer.calculatePixels.
+     * @param skipCoarserPixels skip pixels already rendered with twice the pixel step, see Renderer.calculatePixels.
+     * @param maxTilePixels areas with more pixels to calculate than this are split in two.
+     * @param tileListener notified when each tile is completely calculated, that is after it is rendered with a pixel step of one.
+     *                     May be null.
+     */
+    public RenderTileTask(Renderer renderer,
+                          Picture picture,
+                          String[] channelNames,
+                          int startX,
+                          int startY,
+                          int endX,
+                          int endY,
+                          int pixelStep,
+                          boolean skipCoarserPixels,
+                          int maxTilePixels,
+                          CalculationListener listener,
+                          int calculationIndex,
+                          TileListener tileListener) {
+        this(renderer, picture, picture.getWidth(), picture.getHeight(), channelNames,
+             canRenderDirectly(picture, renderer.isPlanar()) ? ((ArrayPicture) picture).getData() : null,
+             getDataOffset(picture), getRowStride(picture), getChannelStride(picture),
+             startX, startY, endX, endY, pixelStep, skipCoarserPixels, maxTilePixels, listener, calculationIndex, tileListener);
+    }
+
+    private RenderTileTask(Renderer renderer,
+                           Picture picture,
+                           int width,
+                           int height,
+                           String[] channelNames,
+                           float[] pixelData,
+                           int dataOffset,
+                           int rowStride,
+                           int channelStride,
+                           int startX,
+                           int startY,
+                           int endX,
+                           int endY,
+                           int pixelStep,
+                           boolean skipCoarserPixels,
+                           int maxTilePixels,
+                           CalculationListener listener,
+                           int calculationIndex,
+                           TileListener tileListener) {
+        ParameterChecker.checkNotNull(renderer, "renderer");
+        ParameterChecker.checkPositiveNonZeroInteger(pixelStep, "pixelStep");
+        ParameterChecker.checkNotNull(channelNames, "channelNames");
+        ParameterChecker.checkPositiveNonZeroInteger(maxTilePixels, "maxTilePixels");
+
+        this.renderer = renderer;
+        this.picture = picture;
+        this.width = width;
+        this.height = height;
+        this.channelNames = channelNames;
+        this.pixelData = pixelData;
+        this.dataOffset = dataOffset;
+        this.rowStride = rowStride;
+        this.channelStride = channelStride;
+        this.startX = startX;
+        this.startY = startY;
+        this.endX = endX;
+        this.endY = endY;
+        this.pixelStep = pixelStep;
+        this.skipCoarserPixels = skipCoarserPixels;
+        this.maxTilePixels = maxTilePixels;
+        this.listener = listener;
+        this.calculationIndex = calculationIndex;
+        this.tileListener = tileListener;
+    }
+
+    /**
+     * @return true if the picture is stored in a java array with the layout that a renderer with the specified
+     *         planar setting expects, so that it can be rendered directly into the array.
+     *         The rows of the picture may be further apart than its width, e.g. for a view of a larger picture.
+     */
+    public static boolean canRenderDirectly(Picture picture, boolean planar) {
+        if (!(picture instanceof ArrayPicture)) return false;
+
+        final ArrayPicture arrayPicture = (ArrayPicture) picture;
+        final int channelCount = arrayPicture.getChannelCount();
+        final int channelStride = getChannelStride(arrayPicture);
+        if (arrayPicture.getPixelStride() != (planar ? 1 : channelCount)) return false;
+        if (planar ? channelCount > 1 && channelStride == 0 : channelStride != 1) return false;
+        for (int i = 0; i < channelCount; i++) {
+            if (arrayPicture.getChannelOffset(i) != arrayPicture.getChannelOffset(0) + i * channelStride) return false;
+        }
+        return true;
+    }
+
+    private static int getDataOffset(Picture picture) {
+        if (!(picture instanceof ArrayPicture)) return 0;
+        else return ((ArrayPicture) picture).getChannelOffset(0);
+    }
+
+    private static int getRowStride(Picture picture) {
+        if (!(picture instanceof ArrayPicture)) return 0;
+        else return ((ArrayPicture) picture).getRowStride();
+    }
+
+    private static int getChannelStride(Picture picture) {
+        if (!(picture instanceof ArrayPicture) || picture.getChannelCount() < 2) return 1;
+        else return ((ArrayPicture) picture).getChannelOffset(1) - ((ArrayPicture) picture).getChannelOffset(0);
+    }
+
+    @Override
+    protected void compute() {
+        if (isSmallEnough()) {
+            renderArea();
+        }
+        else {
+            invokeAll(createFirstHalf(), createSecondHalf());
+        }
+    }
+
+    /**
+     * Renders the area tile by tile in the calling thread, without forking any tasks.
+     * For use outside of fork join pools.
+     */
+    public void computeInCurrentThread() {
+        if (isSmallEnough()) {
+            renderArea();
+        }
+        else {
+            createFirstHalf().computeInCurrentThread();
+            createSecondHalf().computeInCurrentThread();
+        }
+    }
+
+    private boolean isSmallEnough() {
+        final int tileWidth = endX - startX;
+        final int tileHeight = endY - startY;
+
+        // Only every pixelStep:th pixel along each axis is calculated,
+        // but the scratch array for pictures without array data holds the whole tile.
+        if (pixelData != null) return (tileWidth / pixelStep) * (tileHeight / pixelStep) <= maxTilePixels;
+        else return tileWidth * tileHeight <= maxTilePixels;
+    }
+
+    private RenderTileTask createFirstHalf() {
+        if (isSplitVertically()) return createTile(startX, startY, getSplitPosition(startX, endX), endY);
+        else return createTile(startX, startY, endX, getSplitPosition(startY, endY));
+    }
+
+    private RenderTileTask createSecondHalf() {
+        if (isSplitVertically()) return createTile(getSplitPosition(startX, endX), startY, endX, endY);
+        else return createTile(startX, getSplitPosition(startY, endY), endX, endY);
+    }
+
+    private static int getSplitPosition(int start, int end) {
+        final int middle = start + (end - start) / 2;
+
+        // Round to the closest multiple of the alignment, unless that would leave one half empty
+        final int aligned = ((middle + SPLIT_ALIGNMENT / 2) / SPLIT_ALIGNMENT) * SPLIT_ALIGNMENT;
+        if (aligned > start && aligned < end) return aligned;
+        else return middle;
+    }
+
+    private boolean isSplitVertically() {
+        return endX - startX >= endY - startY;
+    }
+
+    private void renderArea() {
+        if (pixelData != null) {
+            renderer.calculatePixels(width, height, channelNames, pixelData,
+                                     dataOffset, rowStride, channelStride,
+                                     startX, startY, endX, endY,
+                                     pixelStep, skipCoarserPixels,
+                                     listener, calculationIndex);
+        }
+        else {
+            renderThroughTileBuffer();
+        }
+
+        if (tileListener != null && pixelStep == 1) tileListener.onTileReady(picture, startX, startY, endX, endY);
+    }
+
+    private void renderThroughTileBuffer() {
+        final int tileWidth = endX - startX;
+        final int tileHeight = endY - startY;
+        if (tileWidth <= 0 || tileHeight <= 0) return;
+
+        // Get a large enough scratch array
+        final int tileValues = tileWidth * tileHeight * channelNames.length;
+        float[] tile = tileBuffers.get();
+        if (tile == null || tile.length < tileValues) {
+            tile = new float[tileValues];
+            tileBuffers.set(tile);
+        }
+
+        // Layout of the tile in the scratch array, using the layout that the renderer expects
+        final boolean planar = renderer.isPlanar();
+        final int tilePixelStride = planar ? 1 : channelNames.length;
+        final int tileRowStride = tileWidth * tilePixelStride;
+        final int tileChannelStride = planar ? tileWidth * tileHeight : 1;
+
+        // Read the current values, as the renderer may keep existing channel values and already calculated pixels
+        picture.getPixels(startX, startY, tileWidth, tileHeight, tile, 0, tilePixelStride, tileRowStride, tileChannelStride);
+
+        // Render the tile, offsetting the data so that the pixel at startX, startY is at the start of the array
+        final int tileDataOffset = -(startY * tileRowStride + startX * tilePixelStride);
+        renderer.calculatePixels(width, height, channelNames, tile,
+                                 tileDataOffset, tileRowStride, tileChannelStride,
+                                 startX, startY, endX, endY,
+                                 pixelStep, skipCoarserPixels,
+                                 listener, calculationIndex);
+
+        picture.setPixels(startX, startY, tileWidth, tileHeight, tile, 0, tilePixelStride, tileRowStride, tileChannelStride);
+    }
+
+    private RenderTileTask createTile(int tileStartX, int tileStartY, int tileEndX, int tileEndY) {
+        return new RenderTileTask(renderer, picture, width, height, channelNames, pixelData,
+                                  dataOffset, rowStride, channelStride,
+                                  tileStartX, tileStartY, tileEndX, tileEndY,
+                                  pixelStep, skipCoarserPixels, maxTilePixels, listener, calculationIndex, tileListener);
+    }
+}
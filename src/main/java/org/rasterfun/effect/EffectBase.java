@@ -1,6 +1,7 @@
 package org.rasterfun.effect;
 
 import org.rasterfun.core.compiler.RendererBuilder;
+import org.rasterfun.core.compiler.SourceLocation;
 import org.rasterfun.effect.container.EffectContainer;
 import org.rasterfun.effect.variable.*;
 import org.rasterfun.utils.ParameterChecker;
@@ -133,6 +134,16 @@ public abstract class EffectBase extends AbstractEffect {
 
         beforeBuildSource(builder, effectNamespace + "before", container);
 
+        // Pass in any constants that are not compiled into the code
+        for (InputVariable inputVariable : inputVariables) {
+            inputVariable.buildSource(builder);
+        }
+
+        // Calculate the outputs as far outside the pixel loop as the inputs allow
+        final SourceLocation outputLocation = getOutputLocation(builder);
+
+        buildInternalVariables(builder, effectNamespace + "internal_", outputLocation);
+
         // Generate code for output variables
         int varId = 0;
         for (OutputVariable variable : outputVariables) {
@@ -141,9 +152,9 @@ public abstract class EffectBase extends AbstractEffect {
             variable.setCodeIdentifier(effectNamespace + "var" + varId + "_" + StringUtils.identifierFromName(variable.getName(),
                                                                                                               'Q'));
 
-            // Build variable source
+            // Build variable source, if anything uses it
             String localNamespace = effectNamespace + varId + "_internal_";
-            variable.buildSource(builder, container, this, localNamespace);
+            if (container.isOutputUsed(variable)) variable.buildSource(builder, container, this, localNamespace, outputLocation);
 
             varId++;
         }
@@ -152,6 +163,28 @@ public abstract class EffectBase extends AbstractEffect {
 
     }
 
+    /**
+     * @return the location in the generated code to calculate the output variables at.
+     *         By default the outermost location where all input variables are available, so that e.g. outputs that
+     *         only depend on constants and seeds are calculated once, and outputs that depend on the y coordinate
+     *         once per line.  Effects whose output expressions use anything else than their input variables
+     *         should override this.
+     */
+    protected SourceLocation getOutputLocation(RendererBuilder builder) {
+        SourceLocation location = SourceLocation.BEFORE_LOOP;
+        for (InputVariable inputVariable : inputVariables) {
+            location = SourceLocation.innermost(location, inputVariable.getLocation(builder));
+        }
+        return location;
+    }
+
+    /**
+     * Can be used to add variables for parts of the calculation of the outputs, after the inputs have been built.
+     * Variables added with RendererBuilder.addSharedVariable are shared with other effects that calculate the same thing.
+     * @param location the location that the outputs are calculated at.
+     */
+    protected void buildInternalVariables(RendererBuilder builder, String namespace, SourceLocation location) {}
+
     protected void beforeBuildSource(RendererBuilder builder, String namespace, EffectContainer container) {}
     protected void afterBuildSource(RendererBuilder builder, String namespace, EffectContainer container) {}
 
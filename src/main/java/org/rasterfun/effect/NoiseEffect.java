@@ -1,6 +1,7 @@
 package org.rasterfun.effect;
 
 import org.rasterfun.core.compiler.RendererBuilder;
+import org.rasterfun.core.compiler.SourceLocation;
 import org.rasterfun.effect.container.EffectContainer;
 import org.rasterfun.effect.variable.InputVariable;
 import org.rasterfun.effect.variable.OutputVariable;
@@ -8,6 +9,9 @@ import org.rasterfun.effect.variable.VariableExpression;
 import org.rasterfun.utils.PerlinNoise;
 
 import static org.rasterfun.core.compiler.CommonVariables.*;
+import static org.rasterfun.core.compiler.FloatExpressions.add;
+import static org.rasterfun.core.compiler.FloatExpressions.multiply;
+import static org.rasterfun.core.compiler.SourceLocation.innermost;
 
 /**
  *
@@ -27,6 +31,7 @@ public class NoiseEffect extends EffectBase {
     private InputVariable offsetVar;
     private InputVariable xVar;
     private InputVariable yVar;
+    private String noiseExpr;
 
     public NoiseEffect() {
         this(1);
@@ -80,6 +85,29 @@ public class NoiseEffect extends EffectBase {
         builder.addImport(PerlinNoise.class);
     }
 
+    @Override
+    protected void buildInternalVariables(RendererBuilder builder, String namespace, SourceLocation location) {
+        // Noise effects with the same coordinates, scale and seeds share the noise calculation,
+        // e.g. layers of the same noise with different amplitudes.
+        final String scaledX = builder.addSharedVariable(innermost(scaleVar.getLocation(builder), xVar.getLocation(builder)),
+                                                         namespace + "x",
+                                                         multiply(scaleVar.getExpr(), xVar.getExpr()),
+                                                         Float.class);
+        final String scaledY = builder.addSharedVariable(innermost(scaleVar.getLocation(builder), yVar.getLocation(builder)),
+                                                         namespace + "y",
+                                                         multiply(scaleVar.getExpr(), yVar.getExpr()),
+                                                         Float.class);
+        noiseExpr = builder.addSharedVariable(location,
+                                              namespace + "noise",
+                                              "(float)PerlinNoise.tilingNoise(" +
+                                              scaledX + ", " +
+                                              scaledY + ", " +
+                                              "0, 0, 1, 1, " +
+                                              fillSeedVar.getExpr() + ", " +
+                                              edgeSeedVar.getExpr() + ")",
+                                              Float.class);
+    }
+
     private void initVariables() {
 
         xVar         = addInput("x",         0.5f,      Float.class,   RELATIVE_X, "X coordinate to get the noise at.  Ranges from 0 to 1 normally.");
@@ -96,14 +124,7 @@ public class NoiseEffect extends EffectBase {
                     public String getExpressionString(EffectContainer container,
                                                       NoiseEffect effect,
                                                       String internalVarPrefix) {
-                        return offsetVar.getExpr() + " + " +
-                               amplitudeVar.getExpr() + " * " +
-                               "(float)PerlinNoise.tilingNoise(" +
-                               scaleVar.getExpr() + " * " + xVar.getExpr() + ", " +
-                               scaleVar.getExpr() + " * " + yVar.getExpr() + ", " +
-                               "0, 0, 1, 1, " +
-                               fillSeedVar.getExpr() + ", " +
-                               edgeSeedVar.getExpr() + ")";
+                        return add(offsetVar.getExpr(), multiply(amplitudeVar.getExpr(), noiseExpr));
                     }
                 });
 
@@ -113,6 +134,6 @@ public class NoiseEffect extends EffectBase {
 
     @Override
     protected void afterBuildSource(RendererBuilder builder, String namespace, EffectContainer container) {
-        builder.addChannelAssignment(VALUE, output.getCodeIdentifier());
+        builder.addChannelAssignment(VALUE, output.getExpr());
     }
 }
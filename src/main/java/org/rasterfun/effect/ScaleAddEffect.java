@@ -5,8 +5,12 @@ import org.rasterfun.effect.variable.InputVariable;
 import org.rasterfun.effect.variable.OutputVariable;
 import org.rasterfun.effect.variable.VariableExpression;
 
+import static org.rasterfun.core.compiler.FloatExpressions.add;
+import static org.rasterfun.core.compiler.FloatExpressions.multiply;
+
 /**
  * A simple effect that just scales the input and adds an offset.
+ * Constant inputs are folded, so e.g. a scale of one and an offset of zero do not generate any calculations.
  */
 public class ScaleAddEffect extends EffectBase {
 
@@ -16,7 +20,7 @@ public class ScaleAddEffect extends EffectBase {
     public final OutputVariable out   = addOutput("out", "The result of in * scale + offset.", Float.class, new VariableExpression() {
         @Override
         public String getExpressionString(EffectContainer container, Effect effect, String internalVarPrefix) {
-            return in.getExpr() + " * " + scale.getExpr() + " + " + offset.getExpr();
+            return add(multiply(in.getExpr(), scale.getExpr()), offset.getExpr());
         }
     });
 
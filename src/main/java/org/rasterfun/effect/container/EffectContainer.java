@@ -33,6 +33,12 @@ public interface EffectContainer {
      */
     void buildSource(RendererBuilder builder, String prefix, EffectContainer container);
 
+    /**
+     * @return true if the output variable, of an effect or an input in this container, is read by something that
+     *         affects the generated picture.  Effects and inputs do not need to generate code for unused outputs.
+     */
+    boolean isOutputUsed(OutputVariable outputVariable);
+
     /**
      * @return the output variables that can be assigned to an input variable of the specified effect,
      * contained in this container.
@@ -24,6 +24,9 @@ public class EffectContainerImpl implements EffectContainer {
     private final List<InputOutputVariable> outputs = new ArrayList<InputOutputVariable>();
     private final Set<EffectContainerListener> listeners = new HashSet<EffectContainerListener>();
 
+    // Outputs used by the code generated by the ongoing buildSource, or null if not building.
+    private Set<OutputVariable> usedOutputs = null;
+
     private final EffectListener effectListener = new EffectListener() {
         @Override
         public void onEffectChanged(Effect effect) {
@@ -53,6 +56,15 @@ public class EffectContainerImpl implements EffectContainer {
 
     @Override
     public void buildSource(RendererBuilder builder, String namespace, EffectContainer container) {
+        usedOutputs = findUsedOutputs();
+        try {
+            buildUsedSource(builder, namespace);
+        } finally {
+            usedOutputs = null;
+        }
+    }
+
+    private void buildUsedSource(RendererBuilder builder, String namespace) {
 
         // Build inputs
         int inputNum = 1;
@@ -60,14 +72,14 @@ public class EffectContainerImpl implements EffectContainer {
             final OutputVariable target = input.getOutputVariable();
             target.setCodeIdentifier(namespace + "in" + (inputNum++) + "_" + StringUtils.identifierFromName(input.getName(),
                                                                                                             'Q'));
-            input.generateCode(builder);
+            if (usedOutputs.contains(target)) input.generateCode(builder);
         }
 
-        // Build effects
+        // Build effects, skipping effects that do not write channels and whose outputs nothing uses
         int effectNum = 1;
         for (Effect effect : effects) {
             String effectNamespace = namespace + "effect" + (effectNum++) + "_";
-            effect.generateCode(builder, effectNamespace, this);
+            if (isEffectUsed(effect, usedOutputs)) effect.generateCode(builder, effectNamespace, this);
         }
 
         // Write to channels
@@ -75,7 +87,7 @@ public class EffectContainerImpl implements EffectContainer {
             final String channel = entry.getKey();
             final OutputVariable source = entry.getValue();
 
-            if (source != null) builder.addChannelAssignment(channel, source.getCodeIdentifier());
+            if (source != null) builder.addChannelAssignment(channel, source.getExpr());
         }
 
         // Write to outputs
@@ -88,6 +100,57 @@ public class EffectContainerImpl implements EffectContainer {
         }
     }
 
+    @Override
+    public boolean isOutputUsed(OutputVariable outputVariable) {
+        final Set<OutputVariable> used = usedOutputs != null ? usedOutputs : findUsedOutputs();
+        return used.contains(outputVariable);
+    }
+
+    /**
+     * @return the outputs of the inputs and effects in this container that are read by something that affects the picture.
+     *         Found by walking the effects backwards from the channel assignments, the container outputs,
+     *         and the effects that write to channels themselves.
+     */
+    private Set<OutputVariable> findUsedOutputs() {
+        final Set<OutputVariable> used = new HashSet<OutputVariable>();
+        for (OutputVariable channelSource : channels.values()) {
+            if (channelSource != null) used.add(channelSource);
+        }
+        for (InputOutputVariable output : outputs) {
+            addSourceVariable(output.getInputVariable(), used);
+        }
+
+        for (int i = effects.size() - 1; i >= 0; i--) {
+            final Effect effect = effects.get(i);
+            if (isEffectUsed(effect, used)) {
+                // Effects that write to channels may use all their outputs to do so
+                if (writesChannels(effect)) used.addAll(effect.getOutputVariables());
+
+                for (InputVariable inputVariable : effect.getInputVariables()) {
+                    addSourceVariable(inputVariable, used);
+                }
+            }
+        }
+
+        return used;
+    }
+
+    private void addSourceVariable(InputVariable inputVariable, Set<OutputVariable> used) {
+        if (inputVariable.getSourceVariable() != null) used.add(inputVariable.getSourceVariable());
+    }
+
+    private boolean isEffectUsed(Effect effect, Set<OutputVariable> used) {
+        if (writesChannels(effect)) return true;
+        for (OutputVariable outputVariable : effect.getOutputVariables()) {
+            if (used.contains(outputVariable)) return true;
+        }
+        return false;
+    }
+
+    private boolean writesChannels(Effect effect) {
+        return !effect.getRequiredChannels(null).isEmpty();
+    }
+
     @Override
     public List<OutputVariable> getAvailableOutputsFor(Effect effect) {
         ParameterChecker.checkNotNull(effect, "effect");
@@ -1,7 +1,6 @@
 package org.rasterfun.effect.variable;
 
 import org.rasterfun.core.compiler.RendererBuilder;
-import org.rasterfun.core.compiler.SourceLocation;
 import org.rasterfun.effect.Effect;
 import org.rasterfun.effect.container.EffectContainer;
 
@@ -48,7 +47,10 @@ public class InputOutputVariable<T> {
     }
 
     public void generateCode(RendererBuilder builder) {
-        builder.addVariable(SourceLocation.AT_PIXEL,
+        inputVariable.buildSource(builder);
+
+        // Calculate the value outside the pixel loop if the input does not change for each pixel
+        builder.addVariable(inputVariable.getLocation(builder),
                             outputVariable.getCodeIdentifier(),
                             inputVariable.getExpr(),
                             outputVariable.getType(),
@@ -1,6 +1,7 @@
 package org.rasterfun.effect.variable;
 
 import org.rasterfun.core.compiler.RendererBuilder;
+import org.rasterfun.core.compiler.SourceLocation;
 import org.rasterfun.effect.variable.value.Value;
 import org.rasterfun.effect.variable.value.ValueListener;
 import org.rasterfun.utils.ClassUtils;
@@ -87,19 +88,42 @@ public class InputVariable extends VariableBase {
     }
 
     public void buildSource(RendererBuilder builder) {
-        // Pass in the constant value as a parameter to the builder, if we use the constant value ant it is not a primitive type.
-        if (sourceVariable == null && !ClassUtils.isWrappedPrimitiveType(constantValue.getClass())) {
+        // Pass in the constant value as a parameter to the builder, if we use the constant value and it is not a
+        // primitive type, or if the builder wants constants as parameters so that they can be changed without recompiling.
+        constantFieldName = null;
+        if (sourceVariable == null &&
+            (builder.isConstantsAsParameters() || !ClassUtils.isWrappedPrimitiveType(constantValue.getClass()))) {
             constantFieldName = builder.addParameter(getName(), constantValue, constantValue.getClass());
         }
     }
 
+    /**
+     * @return the outermost location in the generated code where the value of this input is known,
+     *         BEFORE_LOOP for constants, otherwise the location of the bound source variable.
+     */
+    public SourceLocation getLocation(RendererBuilder builder) {
+        if (sourceVariable == null || sourceVariable.getLiteralValue() != null) return SourceLocation.BEFORE_LOOP;
+        else return builder.getVariableLocation(sourceVariable.getExpr());
+    }
+
+    /**
+     * @return the value of this input if it is compiled into the generated code as a literal, otherwise null.
+     *         That is the case for primitive constants that are not passed in as parameters,
+     *         and for source variables that were folded to a constant.  Valid after buildSource has been called.
+     */
+    public Object getLiteralValue() {
+        if (sourceVariable != null) return sourceVariable.getLiteralValue();
+        else if (constantFieldName == null && ClassUtils.isWrappedPrimitiveType(constantValue.getClass())) return constantValue;
+        else return null;
+    }
+
     public String getExpr() {
         if (sourceVariable != null) {
             // If we have a source value specified, get the value of that
-            return sourceVariable.getCodeIdentifier();
+            return sourceVariable.getExpr();
         }
         else {
-            if (ClassUtils.isWrappedPrimitiveType(constantValue.getClass())) {
+            if (constantFieldName == null && ClassUtils.isWrappedPrimitiveType(constantValue.getClass())) {
                 // If the constant is a primitive insert it directly in the source.
                 return ClassUtils.wrappedPrimitiveTypeAsConstantString(constantValue);
             }
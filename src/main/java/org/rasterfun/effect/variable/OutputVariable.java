@@ -1,8 +1,10 @@
 package org.rasterfun.effect.variable;
 
 import org.rasterfun.core.compiler.RendererBuilder;
+import org.rasterfun.core.compiler.SourceLocation;
 import org.rasterfun.effect.Effect;
 import org.rasterfun.effect.container.EffectContainer;
+import org.rasterfun.utils.ClassUtils;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -19,6 +21,8 @@ public class OutputVariable extends VariableBase {
     private List<InputVariable> users = new ArrayList<InputVariable>();
 
     private String codeIdentifier;
+    private String inlinedExpr;
+    private Object literalValue;
 
     private VariableExpression expression;
     private final boolean trackUsers;
@@ -59,6 +63,8 @@ public class OutputVariable extends VariableBase {
      */
     public void setCodeIdentifier(String codeId) {
         codeIdentifier = codeId;
+        inlinedExpr = null;
+        literalValue = null;
     }
 
     /**
@@ -69,6 +75,24 @@ public class OutputVariable extends VariableBase {
         else return codeIdentifier;
     }
 
+    /**
+     * @return the code to use for reading this variable in generated code.  Usually the code identifier,
+     *         but if the value of the variable was already available when the source was built, e.g. as a literal
+     *         or an earlier variable with the same value, that is used directly instead.
+     */
+    public String getExpr() {
+        if (inlinedExpr != null) return inlinedExpr;
+        else return getCodeIdentifier();
+    }
+
+    /**
+     * @return the value of this variable if its expression was folded to a literal when the source was built,
+     *         otherwise null.
+     */
+    public Object getLiteralValue() {
+        return literalValue;
+    }
+
     public final VariableExpression getExpression() {
         return expression;
     }
@@ -86,7 +110,27 @@ public class OutputVariable extends VariableBase {
     */
 
     public void buildSource(RendererBuilder builder, EffectContainer container, Effect effect, String namespace) {
-        builder.addVariable(AT_PIXEL, getCodeIdentifier(), expression.getExpressionString(container, effect, namespace), getType(), true);
+        buildSource(builder, container, effect, namespace, AT_PIXEL);
+    }
+
+    /**
+     * Adds the variable to the generated code at the specified location.
+     * The location must not be outside the locations of any variables the expression uses.
+     * If the value of the expression is already available, e.g. if it is a literal, or an earlier variable
+     * was initialized with the same expression, no variable is added, and users of this variable
+     * read the available value directly instead, see getExpr.
+     */
+    public void buildSource(RendererBuilder builder, EffectContainer container, Effect effect, String namespace, SourceLocation location) {
+        final String expressionString = expression.getExpressionString(container, effect, namespace);
+
+        inlinedExpr = builder.findVariableWithValue(location, expressionString, getType());
+        if (inlinedExpr != null) {
+            literalValue = ClassUtils.parseConstantString(inlinedExpr, getType());
+        }
+        else {
+            literalValue = null;
+            builder.addVariable(location, getCodeIdentifier(), expressionString, getType(), true);
+        }
     }
 
     public void removeAllUsers() {
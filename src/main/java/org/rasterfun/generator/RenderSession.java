@@ -0,0 +1,303 @@
+package org.rasterfun.generator;
+
+import org.rasterfun.core.PictureCalculations;
+import org.rasterfun.core.listeners.PictureAreaListener;
+import org.rasterfun.core.listeners.PictureCalculationsListener;
+import org.rasterfun.core.listeners.PictureCalculationsListenerDelegate;
+import org.rasterfun.core.listeners.PictureRefinementListener;
+import org.rasterfun.picture.Picture;
+import org.rasterfun.utils.ParameterChecker;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the pictures of a generator up to date while the generator is being edited.
+ *
+ * Listens to changes in the generator, and renders it again when it changes.  Bursts of changes, e.g. while a slider
+ * is dragged, are coalesced into one render, which starts when there has been no change for the coalesce delay.
+ * A new render stops the previous one if it is still running, waits for its render tasks to stop, and reuses its pictures
+ * and renderers.  A compilation that is still running is not waited for, its renderer is just not reused.
+ * Pictures that can not be reused, e.g. after a size change, are released to the factories that created them.
+ * Listeners only get notified about the latest render, events from stopped renders are dropped.
+ *
+ * To skip recompiling when only constant values change, enable constants as parameters in the generator,
+ * e.g. SimpleGenerator.setConstantsAsParameters.
+ */
+public class RenderSession {
+
+    public static final long DEFAULT_COALESCE_DELAY_MILLIS = 30;
+
+    // Only used for the short restart tasks, the rendering itself happens in the executor given to the session.
+    private static final ScheduledExecutorService defaultScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "RenderSession scheduler");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Generator generator;
+    private final ExecutorService executorService;
+    private final long coalesceDelayMillis;
+    private final ScheduledExecutorService scheduler;
+
+    private final PictureCalculationsListenerDelegate listeners = new PictureCalculationsListenerDelegate();
+
+    private boolean progressive = false;
+    private boolean interpretWhileCompiling = false;
+    private boolean disposed = false;
+    private int renderIndex = 0;
+    private PictureCalculations currentCalculation = null;
+    private ScheduledFuture<?> pendingRender = null;
+
+    private final GeneratorListener generatorListener = new GeneratorListener() {
+        @Override
+        public void onGeneratorChanged(Generator generator) {
+            render();
+        }
+    };
+
+    private final Runnable restartTask = new Runnable() {
+        @Override
+        public void run() {
+            restart();
+        }
+    };
+
+    /**
+     * Creates a new session and starts rendering the generator.
+     *
+     * @param generator the generator to render.
+     * @param executorService service for running the calculation threads.
+     */
+    public RenderSession(Generator generator, ExecutorService executorService) {
+        this(generator, executorService, DEFAULT_COALESCE_DELAY_MILLIS);
+    }
+
+    /**
+     * Creates a new session and starts rendering the generator.
+     *
+     * @param generator the generator to render.
+     * @param executorService service for running the calculation threads.
+     * @param coalesceDelayMillis time to wait for more changes after a change, before starting to render.
+     */
+    public RenderSession(Generator generator, ExecutorService executorService, long coalesceDelayMillis) {
+        this(generator, executorService, coalesceDelayMillis, defaultScheduler);
+    }
+
+    /**
+     * Creates a new session and starts rendering the generator.
+     *
+     * @param generator the generator to render.
+     * @param executorService service for running the calculation threads.
+     * @param coalesceDelayMillis time to wait for more changes after a change, before starting to render.
+     * @param scheduler service for running the delayed restarts of the rendering.  A restart waits for the previous
+     *                  calculation to stop, so it should not run in the executorService.
+     */
+    public RenderSession(Generator generator, ExecutorService executorService, long coalesceDelayMillis, ScheduledExecutorService scheduler) {
+        ParameterChecker.checkNotNull(generator, "generator");
+        ParameterChecker.checkNotNull(executorService, "executorService");
+        ParameterChecker.checkNotNull(scheduler, "scheduler");
+        if (coalesceDelayMillis < 0) throw new IllegalArgumentException("The coalesceDelayMillis should not be negative, but was " + coalesceDelayMillis);
+
+        this.generator = generator;
+        this.executorService = executorService;
+        this.coalesceDelayMillis = coalesceDelayMillis;
+        this.scheduler = scheduler;
+
+        generator.addListener(generatorListener);
+        render();
+    }
+
+    /**
+     * Requests a new render of the generator.  Called automatically when the generator changes.
+     * The render is started after the coalesce delay, each request postpones a pending render by the delay.
+     */
+    public synchronized void render() {
+        if (disposed) return;
+
+        if (pendingRender != null) pendingRender.cancel(false);
+        pendingRender = scheduler.schedule(restartTask, coalesceDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops any current calculation, and stops listening to the generator.
+     */
+    public synchronized void dispose() {
+        if (disposed) return;
+        disposed = true;
+
+        generator.removeListener(generatorListener);
+
+        if (pendingRender != null) {
+            pendingRender.cancel(false);
+            pendingRender = null;
+        }
+
+        if (currentCalculation != null) currentCalculation.stop();
+    }
+
+    /**
+     * @param progressive if true, pictures are rendered progressively, see PictureCalculations.setProgressive.
+     *                    Applies from the next render.
+     */
+    public synchronized void setProgressive(boolean progressive) {
+        this.progressive = progressive;
+    }
+
+    /**
+     * @return true if pictures are rendered progressively.
+     */
+    public synchronized boolean isProgressive() {
+        return progressive;
+    }
+
+    /**
+     * @param interpretWhileCompiling if true, rendering starts before the renderers are compiled,
+     *                                see PictureCalculations.setInterpretWhileCompiling.  Applies from the next render.
+     */
+    public synchronized void setInterpretWhileCompiling(boolean interpretWhileCompiling) {
+        this.interpretWhileCompiling = interpretWhileCompiling;
+    }
+
+    /**
+     * @return true if rendering starts before the renderers are compiled.
+     */
+    public synchronized boolean isInterpretWhileCompiling() {
+        return interpretWhileCompiling;
+    }
+
+    /**
+     * @return the latest calculation, or null if none has been started yet.
+     */
+    public synchronized PictureCalculations getCurrentCalculation() {
+        return currentCalculation;
+    }
+
+    /**
+     * @return the generator that this session renders.
+     */
+    public Generator getGenerator() {
+        return generator;
+    }
+
+    /**
+     * Adds a listener that is notified about the progress of the latest render.
+     * The calculation index reported to the listener increases for each render.
+     *
+     * Note the listener is called from the calculation threads, see PictureCalculations.addListener.
+     */
+    public void addListener(PictureCalculationsListener listener) {
+        ParameterChecker.checkNotNull(listener, "listener");
+        listeners.addListener(listener);
+    }
+
+    /**
+     * @param listener listener to remove.
+     */
+    public void removeListener(PictureCalculationsListener listener) {
+        listeners.removeListener(listener);
+    }
+
+    private void restart() {
+        // Stop the previous calculation, and wait for its render tasks outside the lock, so that changes can be requested meanwhile.
+        // Render tasks still waiting for a compilation are cancelled by the stop, so a slow compile is not waited for.
+        final PictureCalculations previousCalculation;
+        synchronized (this) {
+            pendingRender = null;
+            if (disposed) return;
+            previousCalculation = currentCalculation;
+        }
+        if (previousCalculation != null) {
+            previousCalculation.stop();
+            try {
+                previousCalculation.waitUntilDone();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        synchronized (this) {
+            // Let a render requested while waiting start the next calculation instead
+            if (disposed || pendingRender != null) return;
+
+            // Start the new calculation
+            renderIndex++;
+            final PictureCalculations calculation = generator.generatePicturesWithoutStarting(executorService, null, null);
+            calculation.setProgressive(progressive);
+            calculation.setInterpretWhileCompiling(interpretWhileCompiling);
+
+            // Reuse the pictures and renderers of the previous calculation, nothing is using them anymore.
+            // The new calculation releases the pictures that do not fit it anymore.
+            if (previousCalculation != null) {
+                calculation.reusePicturesOf(previousCalculation);
+                calculation.setRenderersToReuse(previousCalculation.getRenderers());
+            }
+            calculation.addListener(new LatestRenderListener(renderIndex));
+            currentCalculation = calculation;
+            calculation.start(renderIndex);
+        }
+    }
+
+    private synchronized boolean isLatestRender(int calculationIndex) {
+        return calculationIndex == renderIndex && !disposed;
+    }
+
+    /**
+     * Forwards events to the session listeners if they are from the latest render.
+     */
+    private final class LatestRenderListener implements PictureCalculationsListener, PictureRefinementListener, PictureAreaListener {
+        private final int calculationIndex;
+
+        private LatestRenderListener(int calculationIndex) {
+            this.calculationIndex = calculationIndex;
+        }
+
+        @Override
+        public void onProgress(int calculationIndex, float progress) {
+            if (isLatest()) listeners.onProgress(calculationIndex, progress);
+        }
+
+        @Override
+        public void onPreviewReady(int calculationIndex, int pictureIndex, Picture preview) {
+            if (isLatest()) listeners.onPreviewReady(calculationIndex, pictureIndex, preview);
+        }
+
+        @Override
+        public void onPictureRefined(int calculationIndex, int pictureIndex, Picture picture, int pixelStep) {
+            if (isLatest()) listeners.onPictureRefined(calculationIndex, pictureIndex, picture, pixelStep);
+        }
+
+        @Override
+        public void onPictureAreaReady(int calculationIndex, int pictureIndex, Picture picture, int startX, int startY, int endX, int endY) {
+            if (isLatest()) listeners.onPictureAreaReady(calculationIndex, pictureIndex, picture, startX, startY, endX, endY);
+        }
+
+        @Override
+        public void onPictureReady(int calculationIndex, int pictureIndex, Picture picture) {
+            if (isLatest()) listeners.onPictureReady(calculationIndex, pictureIndex, picture);
+        }
+
+        @Override
+        public void onError(int calculationIndex, String shortDescription, String longDescription, Throwable cause) {
+            if (isLatest()) listeners.onError(calculationIndex, shortDescription, longDescription, cause);
+        }
+
+        @Override
+        public void onReady(int calculationIndex, List<Picture> pictures) {
+            if (isLatest()) listeners.onReady(calculationIndex, pictures);
+        }
+
+        private boolean isLatest() {
+            return isLatestRender(calculationIndex);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package org.rasterfun.generator;
 
+import org.rasterfun.core.compiler.CompilerBackend;
 import org.rasterfun.core.compiler.RendererBuilder;
 import org.rasterfun.effect.Effect;
 import org.rasterfun.effect.container.EffectContainer;
@@ -20,6 +21,10 @@ public final class SimpleGenerator extends GeneratorBase {
     private int height = 128;
     private int count = 1;
     private int generatorSeed = 42;
+    private boolean constantsAsParameters = false;
+    private boolean planar = false;
+    private CompilerBackend compilerBackend = CompilerBackend.JANINO;
+    private boolean rowKernels = false;
 
     private final EffectContainer effectContainer;
 
@@ -44,6 +49,10 @@ public final class SimpleGenerator extends GeneratorBase {
              source.count,
              new ArrayList<String>(source.getChannels()),
              source.effectContainer.copy());
+        setConstantsAsParameters(source.constantsAsParameters);
+        setPlanar(source.planar);
+        setCompilerBackend(source.compilerBackend);
+        setRowKernels(source.rowKernels);
     }
 
     public SimpleGenerator() {
@@ -156,6 +165,75 @@ public final class SimpleGenerator extends GeneratorBase {
         }
     }
 
+    /**
+     * @return true if constant effect inputs are passed to the renderers as parameters instead of compiled into them.
+     */
+    public boolean isConstantsAsParameters() {
+        return constantsAsParameters;
+    }
+
+    /**
+     * @param constantsAsParameters if true, constant effect inputs are passed to the renderers as parameters, so that
+     *                              changing them only needs a re-render, not a recompile.  Useful when editing.
+     *                              See RendererBuilder.setConstantsAsParameters.
+     */
+    public void setConstantsAsParameters(boolean constantsAsParameters) {
+        if (this.constantsAsParameters != constantsAsParameters) {
+            this.constantsAsParameters = constantsAsParameters;
+            notifyGeneratorChanged();
+        }
+    }
+
+    /**
+     * @return true if the pictures are generated with a planar layout, with each channel in its own plane.
+     */
+    public boolean isPlanar() {
+        return planar;
+    }
+
+    /**
+     * @param planar if true, the pictures are generated with each channel in its own plane, see PlanarPicture.
+     *               Faster for consumers that only read some of the channels, e.g. a height channel.
+     *               See RendererBuilder.setPlanar.
+     */
+    public void setPlanar(boolean planar) {
+        if (this.planar != planar) {
+            this.planar = planar;
+            notifyGeneratorChanged();
+        }
+    }
+
+    /**
+     * @return the way the renderers of the generator are compiled.
+     */
+    public CompilerBackend getCompilerBackend() {
+        return compilerBackend;
+    }
+
+    /**
+     * @param compilerBackend the way the renderers of the generator are compiled.  The generated pictures do not change,
+     *                        BYTECODE just compiles faster, which helps when editing.  See RendererBuilder.setCompilerBackend.
+     */
+    public void setCompilerBackend(CompilerBackend compilerBackend) {
+        ParameterChecker.checkNotNull(compilerBackend, "compilerBackend");
+        this.compilerBackend = compilerBackend;
+    }
+
+    /**
+     * @return true if the pixel calculations are generated as row kernels when possible.
+     */
+    public boolean isRowKernels() {
+        return rowKernels;
+    }
+
+    /**
+     * @param rowKernels if true, the pixel calculations are generated as row kernels when possible, which the JIT
+     *                   compiler can vectorize.  The generated pictures do not change.  See RendererBuilder.setRowKernels.
+     */
+    public void setRowKernels(boolean rowKernels) {
+        this.rowKernels = rowKernels;
+    }
+
     public Collection<String> getChannels() {
         return effectContainer.getChannels();
     }
@@ -202,6 +280,10 @@ public final class SimpleGenerator extends GeneratorBase {
                                                             temporaryChannels,
                                                             pictureIndex,
                                                             totalCount);
+        builder.setConstantsAsParameters(constantsAsParameters);
+        builder.setPlanar(planar);
+        builder.setCompilerBackend(compilerBackend);
+        builder.setRowKernels(rowKernels);
         builder.addParameter(RendererBuilder.GENERATOR_SEED, generatorSeed, Integer.class);
         builder.addParameter(RendererBuilder.PICTURE_SEED, pictureSeed, Integer.class);
 
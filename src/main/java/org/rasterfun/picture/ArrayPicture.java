@@ -0,0 +1,36 @@
+package org.rasterfun.picture;
+
+/**
+ * A picture that is stored in a java array, so that its data can be accessed directly,
+ * e.g. for rendering into it or drawing it without copying.
+ * The value of a channel at a coordinate is stored at getChannelOffset(channelIndex) + y * getRowStride() + x * getPixelStride().
+ */
+public interface ArrayPicture extends Picture {
+
+    /**
+     * @return the underlying data for the picture.
+     *         The array may be longer than needed, if it was taken from a PicturePool.
+     *         Unlike the deprecated getData of Picture, this is never null.
+     */
+    @Override
+    @SuppressWarnings("deprecation")
+    float[] getData();
+
+    /**
+     * @return the distance in the data between the values of a channel for two horizontally adjacent pixels.
+     *         The channel count for interleaved pictures, and 1 for planar pictures.
+     */
+    int getPixelStride();
+
+    /**
+     * @return the distance in the data between the values of a channel for two vertically adjacent pixels.
+     *         Normally the width times the pixel stride, but larger for views of a part of a larger picture.
+     */
+    int getRowStride();
+
+    /**
+     * @return the position in the data of the value of the specified channel for the first pixel.
+     */
+    int getChannelOffset(int channelIndex);
+
+}
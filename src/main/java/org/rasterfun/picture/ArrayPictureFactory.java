@@ -0,0 +1,21 @@
+package org.rasterfun.picture;
+
+import java.util.List;
+
+/**
+ * Creates pictures stored in java arrays, PlanarPictures for planar renderers and PictureImpls otherwise.
+ */
+public final class ArrayPictureFactory implements PictureFactory {
+
+    @Override
+    public Picture createPicture(String name, int width, int height, List<String> channelNames, boolean planar) {
+        if (planar) return new PlanarPicture(name, width, height, channelNames);
+        else return new PictureImpl(name, width, height, channelNames);
+    }
+
+    @Override
+    public void releasePicture(Picture picture) {
+        // Nothing to reuse
+    }
+
+}
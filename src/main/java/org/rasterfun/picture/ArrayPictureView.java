@@ -0,0 +1,63 @@
+package org.rasterfun.picture;
+
+import java.util.List;
+
+/**
+ * View of a rectangular area and some or all of the channels of a picture stored in a java array.
+ * The view shares the array, with an offset and a row stride that skip the pixels outside the area,
+ * so it can be rendered to directly and drawn efficiently.
+ * E.g. the cells of a texture atlas can be rendered straight into one large atlas picture.
+ */
+public final class ArrayPictureView extends PictureView implements ArrayPicture {
+
+    private final ArrayPicture arraySource;
+
+    /**
+     * Creates a view of an area of the source picture with all its channels.
+     *
+     * @param x left edge of the area in the source picture.
+     * @param y top edge of the area in the source picture.
+     */
+    public ArrayPictureView(String name, ArrayPicture source, int x, int y, int width, int height) {
+        this(name, source, x, y, width, height, source.getChannelNames());
+    }
+
+    /**
+     * Creates a view of an area of the source picture with the specified channels.
+     *
+     * @param x left edge of the area in the source picture.
+     * @param y top edge of the area in the source picture.
+     * @param sourceChannelNames names of the channels of the source picture to include, in the order they should have in the view.
+     */
+    public ArrayPictureView(String name, ArrayPicture source, int x, int y, int width, int height, List<String> sourceChannelNames) {
+        super(name, source, x, y, width, height, sourceChannelNames);
+        arraySource = source;
+    }
+
+    /**
+     * @return the data of the source picture.
+     */
+    @Override
+    @SuppressWarnings("deprecation")
+    public float[] getData() {
+        return arraySource.getData();
+    }
+
+    @Override
+    public int getPixelStride() {
+        return arraySource.getPixelStride();
+    }
+
+    @Override
+    public int getRowStride() {
+        return arraySource.getRowStride();
+    }
+
+    @Override
+    public int getChannelOffset(int channelIndex) {
+        return arraySource.getChannelOffset(getSourceChannelIndex(channelIndex)) +
+               getOffsetY() * arraySource.getRowStride() +
+               getOffsetX() * arraySource.getPixelStride();
+    }
+
+}
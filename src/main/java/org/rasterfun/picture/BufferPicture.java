@@ -0,0 +1,145 @@
+package org.rasterfun.picture;
+
+import org.rasterfun.utils.ParameterChecker;
+
+import java.nio.FloatBuffer;
+import java.util.List;
+
+/**
+ * Picture that stores its data in float buffers instead of a java array, so that it can be larger than
+ * what fits in an array.
+ *
+ * Each channel is stored in its own plane, and each plane is split into bands of rows that are stored in
+ * separate buffers, as a single buffer can not be larger than 2 GB.  Pixels are indexed with longs.
+ *
+ * Renderers write to the picture one tile at a time with setPixels, see RenderTileTask.
+ */
+public abstract class BufferPicture extends PictureBase {
+
+    /**
+     * Largest number of float values stored in one buffer, 1 GB.
+     */
+    public static final int DEFAULT_MAX_BUFFER_VALUES = 1 << 28;
+
+    private final int rowsPerBand;
+    private final int bandCount;
+    private final FloatBuffer[][] bands;
+
+    /**
+     * @param rowsPerBand number of rows in each band, see getRowsPerBand.
+     * @param bands the buffers for each band of each channel, indexed by channel and then band.
+     */
+    protected BufferPicture(String name, int width, int height, List<String> channelNames, int rowsPerBand, FloatBuffer[][] bands) {
+        super(name, width, height, channelNames);
+        if (bands.length != getChannelCount()) throw new IllegalArgumentException("There should be bands for each channel");
+
+        this.rowsPerBand = rowsPerBand;
+        this.bandCount = getBandCount(height, rowsPerBand);
+        this.bands = bands;
+    }
+
+    @Override
+    public final float getPixel(int channelIndex, int x, int y) {
+        return bands[channelIndex][y / rowsPerBand].get((y % rowsPerBand) * getWidth() + x);
+    }
+
+    @Override
+    public final void setPixel(int channelIndex, int x, int y, float value) {
+        bands[channelIndex][y / rowsPerBand].put((y % rowsPerBand) * getWidth() + x, value);
+    }
+
+    /**
+     * @return the value at the specified channel index and pixel index, where the pixel index is y * width + x.
+     *         Does not perform any range checking.
+     */
+    public final float getPixel(int channelIndex, long pixelIndex) {
+        final long rowValues = (long) rowsPerBand * getWidth();
+        return bands[channelIndex][(int) (pixelIndex / rowValues)].get((int) (pixelIndex % rowValues));
+    }
+
+    @Override
+    public final void getPixels(int x, int y, int areaWidth, int areaHeight,
+                                float[] target, int targetOffset, int pixelStride, int rowStride, int channelStride) {
+        final int width = getWidth();
+        for (int j = 0; j < areaHeight; j++) {
+            final int row = y + j;
+            final int rowStart = (row % rowsPerBand) * width + x;
+            for (int c = 0; c < getChannelCount(); c++) {
+                final FloatBuffer band = bands[c][row / rowsPerBand];
+                int index = targetOffset + j * rowStride + c * channelStride;
+                for (int i = 0; i < areaWidth; i++) {
+                    target[index] = band.get(rowStart + i);
+                    index += pixelStride;
+                }
+            }
+        }
+    }
+
+    @Override
+    public final void setPixels(int x, int y, int areaWidth, int areaHeight,
+                                float[] source, int sourceOffset, int pixelStride, int rowStride, int channelStride) {
+        final int width = getWidth();
+        for (int j = 0; j < areaHeight; j++) {
+            final int row = y + j;
+            final int rowStart = (row % rowsPerBand) * width + x;
+            for (int c = 0; c < getChannelCount(); c++) {
+                final FloatBuffer band = bands[c][row / rowsPerBand];
+                int index = sourceOffset + j * rowStride + c * channelStride;
+                for (int i = 0; i < areaWidth; i++) {
+                    band.put(rowStart + i, source[index]);
+                    index += pixelStride;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of rows stored in each band buffer.  The last band may have fewer rows.
+     */
+    public final int getRowsPerBand() {
+        return rowsPerBand;
+    }
+
+    /**
+     * @return number of band buffers that each channel is split into.
+     */
+    public final int getBandCount() {
+        return bandCount;
+    }
+
+    /**
+     * @return the buffer holding the values of the specified channel for the rows
+     *         bandIndex * getRowsPerBand() up to the next band, in y major order.
+     *         Can be used to read the picture linearly, e.g. when exporting a channel.
+     */
+    public final FloatBuffer getBand(int channelIndex, int bandIndex) {
+        return bands[channelIndex][bandIndex].duplicate();
+    }
+
+    /**
+     * @return number of rows to store in each buffer, so that no buffer has more than maxBufferValues values
+     *         or more than 2 GB, while each buffer holds at least one row.
+     */
+    protected static int calculateRowsPerBand(int width, int height, int maxBufferValues) {
+        ParameterChecker.checkPositiveNonZeroInteger(width, "width");
+        ParameterChecker.checkPositiveNonZeroInteger(height, "height");
+        ParameterChecker.checkPositiveNonZeroInteger(maxBufferValues, "maxBufferValues");
+        if (width > Integer.MAX_VALUE / 4) throw new IllegalArgumentException("The width " + width + " is too large for one row to fit in a buffer.");
+
+        return Math.max(1, Math.min(height, Math.min(maxBufferValues, Integer.MAX_VALUE / 4) / width));
+    }
+
+    /**
+     * @return number of bands needed for the specified number of rows.
+     */
+    protected static int getBandCount(int height, int rowsPerBand) {
+        return (height + rowsPerBand - 1) / rowsPerBand;
+    }
+
+    /**
+     * @return number of rows in the specified band, the last band may have fewer rows than the others.
+     */
+    protected static int getBandRows(int height, int rowsPerBand, int bandIndex) {
+        return Math.min(rowsPerBand, height - bandIndex * rowsPerBand);
+    }
+}
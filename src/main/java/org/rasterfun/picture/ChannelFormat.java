@@ -0,0 +1,146 @@
+package org.rasterfun.picture;
+
+/**
+ * The way the values of a channel are stored in a CompactPicture.
+ */
+public enum ChannelFormat {
+
+    /**
+     * 32 bit floating point value, stores values exactly.
+     */
+    FLOAT(4),
+
+    /**
+     * 16 bit half precision floating point value, with about three significant decimal digits,
+     * and a largest value of 65504.
+     */
+    HALF(2),
+
+    /**
+     * 16 bit unsigned integer, for values in the range 0..1.  Values outside the range are clamped.
+     */
+    UNORM16(2),
+
+    /**
+     * 8 bit unsigned integer, for values in the range 0..1, e.g. colors that are shown or saved with 8 bits per channel.
+     * Values outside the range are clamped.
+     */
+    UNORM8(1);
+
+    private static final float[] HALF_TO_FLOAT = new float[1 << 16];
+    static {
+        for (int i = 0; i < HALF_TO_FLOAT.length; i++) {
+            HALF_TO_FLOAT[i] = calculateHalfToFloat((short) i);
+        }
+    }
+
+    private final int bytesPerValue;
+
+    private ChannelFormat(int bytesPerValue) {
+        this.bytesPerValue = bytesPerValue;
+    }
+
+    /**
+     * @return number of bytes used to store each value.
+     */
+    public int getBytesPerValue() {
+        return bytesPerValue;
+    }
+
+    /**
+     * @return the half precision float closest to the value, rounding ties to even.
+     */
+    public static short floatToHalf(float value) {
+        final int bits = Float.floatToRawIntBits(value);
+        final int sign = (bits >>> 16) & 0x8000;
+        final int floatExponent = (bits >>> 23) & 0xff;
+        int mantissa = bits & 0x7fffff;
+
+        // Infinity and NaN
+        if (floatExponent == 0xff) return (short) (sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0));
+
+        final int exponent = floatExponent - 127 + 15;
+
+        // Too large, becomes infinity
+        if (exponent >= 31) return (short) (sign | 0x7c00);
+
+        if (exponent <= 0) {
+            // Too small, becomes zero
+            if (exponent < -10) return (short) sign;
+
+            // Subnormal half, shift in the implicit leading one of the float mantissa
+            mantissa |= 0x800000;
+            final int shift = 14 - exponent;
+            int half = mantissa >>> shift;
+            final int remainder = mantissa & ((1 << shift) - 1);
+            final int halfway = 1 << (shift - 1);
+            if (remainder > halfway || (remainder == halfway && (half & 1) != 0)) half++;
+            return (short) (sign | half);
+        }
+
+        // Normal half.  Rounding may carry into the exponent, which correctly rounds the largest values to infinity.
+        int half = (exponent << 10) | (mantissa >>> 13);
+        final int remainder = mantissa & 0x1fff;
+        if (remainder > 0x1000 || (remainder == 0x1000 && (half & 1) != 0)) half++;
+        return (short) (sign | half);
+    }
+
+    /**
+     * @return the float value of a half precision float.
+     */
+    public static float halfToFloat(short half) {
+        return HALF_TO_FLOAT[half & 0xffff];
+    }
+
+    /**
+     * @return the value clamped to 0..1 and scaled to a 16 bit unsigned integer, stored in a short.
+     */
+    public static short floatToUnorm16(float value) {
+        if (value <= 0f) return 0;       // Also catches NaN
+        else if (value >= 1f) return (short) 0xffff;
+        else return (short) (value * 0xffff + 0.5f);
+    }
+
+    /**
+     * @return the value of a 16 bit unsigned integer stored in a short, scaled to 0..1.
+     */
+    public static float unorm16ToFloat(short value) {
+        return (value & 0xffff) * (1f / 0xffff);
+    }
+
+    /**
+     * @return the value clamped to 0..1 and scaled to an 8 bit unsigned integer, stored in a byte.
+     */
+    public static byte floatToUnorm8(float value) {
+        if (value <= 0f) return 0;       // Also catches NaN
+        else if (value >= 1f) return (byte) 0xff;
+        else return (byte) (value * 0xff + 0.5f);
+    }
+
+    /**
+     * @return the value of an 8 bit unsigned integer stored in a byte, scaled to 0..1.
+     */
+    public static float unorm8ToFloat(byte value) {
+        return (value & 0xff) * (1f / 0xff);
+    }
+
+    private static float calculateHalfToFloat(short half) {
+        final int bits = half & 0xffff;
+        final int sign = (bits & 0x8000) << 16;
+        final int exponent = (bits >>> 10) & 0x1f;
+        final int mantissa = bits & 0x3ff;
+
+        if (exponent == 0) {
+            // Zero or subnormal
+            final float value = mantissa / (float) (1 << 24);
+            return sign != 0 ? -value : value;
+        }
+        else if (exponent == 31) {
+            // Infinity or NaN
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+        }
+        else {
+            return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package org.rasterfun.picture;
+
+import org.rasterfun.utils.ParameterChecker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Picture that stores each channel with reduced precision, as half floats or normalized 16 or 8 bit integers,
+ * chosen per channel.  Uses a half or a quarter of the memory of a float picture, e.g. for color channels that
+ * are saved with 8 bits per channel anyway.
+ *
+ * Each channel is stored in its own plane.  Renderers write to the picture one tile at a time with setPixels,
+ * which converts the values to the channel formats, see RenderTileTask.
+ */
+public final class CompactPicture extends PictureBase {
+
+    private final List<ChannelFormat> channelFormats;
+    private final ChannelData[] channels;
+
+    /**
+     * Creates a picture that stores all channels in the same format.
+     */
+    public CompactPicture(String name, int width, int height, List<String> channelNames, ChannelFormat format) {
+        this(name, width, height, channelNames, Collections.nCopies(channelNames.size(), format));
+    }
+
+    /**
+     * @param channelFormats the format to store each channel in, in the same order as the channel names.
+     */
+    public CompactPicture(String name, int width, int height, List<String> channelNames, List<ChannelFormat> channelFormats) {
+        super(name, width, height, channelNames);
+        ParameterChecker.checkNotNull(channelFormats, "channelFormats");
+        if (channelFormats.size() != getChannelCount()) throw new IllegalArgumentException("There should be a format for each channel, " +
+                                                                                           "expected " + getChannelCount() + " but got " + channelFormats.size());
+        checkFitsInArray(width, height, 1);
+
+        this.channelFormats = new ArrayList<ChannelFormat>(channelFormats);
+        channels = new ChannelData[getChannelCount()];
+        for (int i = 0; i < channels.length; i++) {
+            channels[i] = createChannelData(channelFormats.get(i), width * height);
+        }
+    }
+
+    /**
+     * @return the format that the specified channel is stored in.
+     */
+    public ChannelFormat getChannelFormat(int channelIndex) {
+        return channelFormats.get(channelIndex);
+    }
+
+    /**
+     * @return memory used by the pixel data, in bytes.
+     */
+    public long getDataBytes() {
+        long bytes = 0;
+        for (ChannelFormat format : channelFormats) {
+            bytes += (long) format.getBytesPerValue() * getWidth() * getHeight();
+        }
+        return bytes;
+    }
+
+    @Override
+    public float getPixel(int channelIndex, int x, int y) {
+        return channels[channelIndex].get(y * getWidth() + x);
+    }
+
+    @Override
+    public void setPixel(int channelIndex, int x, int y, float value) {
+        channels[channelIndex].set(y * getWidth() + x, value);
+    }
+
+    @Override
+    public void getPixels(int x, int y, int areaWidth, int areaHeight,
+                          float[] target, int targetOffset, int pixelStride, int rowStride, int channelStride) {
+        for (int j = 0; j < areaHeight; j++) {
+            final int rowStart = (y + j) * getWidth() + x;
+            for (int c = 0; c < channels.length; c++) {
+                channels[c].getRow(rowStart, areaWidth, target, targetOffset + j * rowStride + c * channelStride, pixelStride);
+            }
+        }
+    }
+
+    @Override
+    public void setPixels(int x, int y, int areaWidth, int areaHeight,
+                          float[] source, int sourceOffset, int pixelStride, int rowStride, int channelStride) {
+        for (int j = 0; j < areaHeight; j++) {
+            final int rowStart = (y + j) * getWidth() + x;
+            for (int c = 0; c < channels.length; c++) {
+                channels[c].setRow(rowStart, areaWidth, source, sourceOffset + j * rowStride + c * channelStride, pixelStride);
+            }
+        }
+    }
+
+    private static ChannelData createChannelData(ChannelFormat format, int size) {
+        ParameterChecker.checkNotNull(format, "format");
+        switch (format) {
+            case FLOAT:   return new FloatChannelData(size);
+            case HALF:    return new HalfChannelData(size);
+            case UNORM16: return new Unorm16ChannelData(size);
+            case UNORM8:  return new Unorm8ChannelData(size);
+            default: throw new IllegalArgumentException("Unsupported channel format " + format);
+        }
+    }
+
+    /**
+     * Stores the values of one channel.  Rows are converted in one call, so that the format specific code
+     * is only looked up once per row.
+     */
+    private static abstract class ChannelData {
+        abstract float get(int index);
+        abstract void set(int index, float value);
+        abstract void getRow(int index, int count, float[] target, int targetIndex, int targetStride);
+        abstract void setRow(int index, int count, float[] source, int sourceIndex, int sourceStride);
+    }
+
+    private static final class FloatChannelData extends ChannelData {
+        private final float[] data;
+
+        FloatChannelData(int size) {
+            data = new float[size];
+        }
+
+        @Override float get(int index) {
+            return data[index];
+        }
+
+        @Override void set(int index, float value) {
+            data[index] = value;
+        }
+
+        @Override void getRow(int index, int count, float[] target, int targetIndex, int targetStride) {
+            for (int i = 0; i < count; i++) {
+                target[targetIndex] = data[index + i];
+                targetIndex += targetStride;
+            }
+        }
+
+        @Override void setRow(int index, int count, float[] source, int sourceIndex, int sourceStride) {
+            for (int i = 0; i < count; i++) {
+                data[index + i] = source[sourceIndex];
+                sourceIndex += sourceStride;
+            }
+        }
+    }
+
+    private static final class HalfChannelData extends ChannelData {
+        private final short[] data;
+
+        HalfChannelData(int size) {
+            data = new short[size];
+        }
+
+        @Override float get(int index) {
+            return ChannelFormat.halfToFloat(data[index]);
+        }
+
+        @Override void set(int index, float value) {
+            data[index] = ChannelFormat.floatToHalf(value);
+        }
+
+        @Override void getRow(int index, int count, float[] target, int targetIndex, int targetStride) {
+            for (int i = 0; i < count; i++) {
+                target[targetIndex] = ChannelFormat.halfToFloat(data[index + i]);
+                targetIndex += targetStride;
+            }
+        }
+
+        @Override void setRow(int index, int count, float[] source, int sourceIndex, int sourceStride) {
+            for (int i = 0; i < count; i++) {
+                data[index + i] = ChannelFormat.floatToHalf(source[sourceIndex]);
+                sourceIndex += sourceStride;
+            }
+        }
+    }
+
+    private static final class Unorm16ChannelData extends ChannelData {
+        private final short[] data;
+
+        Unorm16ChannelData(int size) {
+            data = new short[size];
+        }
+
+        @Override float get(int index) {
+            return ChannelFormat.unorm16ToFloat(data[index]);
+        }
+
+        @Override void set(int index, float value) {
+            data[index] = ChannelFormat.floatToUnorm16(value);
+        }
+
+        @Override void getRow(int index, int count, float[] target, int targetIndex, int targetStride) {
+            for (int i = 0; i < count; i++) {
+                target[targetIndex] = ChannelFormat.unorm16ToFloat(data[index + i]);
+                targetIndex += targetStride;
+            }
+        }
+
+        @Override void setRow(int index, int count, float[] source, int sourceIndex, int sourceStride) {
+            for (int i = 0; i < count; i++) {
+                data[index + i] = ChannelFormat.floatToUnorm16(source[sourceIndex]);
+                sourceIndex += sourceStride;
+            }
+        }
+    }
+
+    private static final class Unorm8ChannelData extends ChannelData {
+        private final byte[] data;
+
+        Unorm8ChannelData(int size) {
+            data = new byte[size];
+        }
+
+        @Override float get(int index) {
+            return ChannelFormat.unorm8ToFloat(data[index]);
+        }
+
+        @Override void set(int index, float value) {
+            data[index] = ChannelFormat.floatToUnorm8(value);
+        }
+
+        @Override void getRow(int index, int count, float[] target, int targetIndex, int targetStride) {
+            for (int i = 0; i < count; i++) {
+                target[targetIndex] = ChannelFormat.unorm8ToFloat(data[index + i]);
+                targetIndex += targetStride;
+            }
+        }
+
+        @Override void setRow(int index, int count, float[] source, int sourceIndex, int sourceStride) {
+            for (int i = 0; i < count; i++) {
+                data[index + i] = ChannelFormat.floatToUnorm8(source[sourceIndex]);
+                sourceIndex += sourceStride;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,61 @@
+package org.rasterfun.picture;
+
+import org.rasterfun.utils.ParameterChecker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Creates pictures that store their channels with reduced precision, see CompactPicture.
+ * The format of each channel is looked up by channel name, with a default format for the other channels.
+ */
+public final class CompactPictureFactory implements PictureFactory {
+
+    private final ChannelFormat defaultFormat;
+    private final Map<String, ChannelFormat> channelFormats = new HashMap<String, ChannelFormat>();
+
+    /**
+     * @param defaultFormat format for channels that have no format set with setChannelFormat.
+     */
+    public CompactPictureFactory(ChannelFormat defaultFormat) {
+        ParameterChecker.checkNotNull(defaultFormat, "defaultFormat");
+        this.defaultFormat = defaultFormat;
+    }
+
+    /**
+     * @param channelName name of a channel.
+     * @param format format to store the channel in.
+     */
+    public synchronized void setChannelFormat(String channelName, ChannelFormat format) {
+        ParameterChecker.checkNotNull(channelName, "channelName");
+        ParameterChecker.checkNotNull(format, "format");
+        channelFormats.put(channelName, format);
+    }
+
+    /**
+     * @return the format used for the specified channel.
+     */
+    public synchronized ChannelFormat getChannelFormat(String channelName) {
+        final ChannelFormat format = channelFormats.get(channelName);
+        return format != null ? format : defaultFormat;
+    }
+
+    @Override
+    public Picture createPicture(String name, int width, int height, List<String> channelNames, boolean planar) {
+        ParameterChecker.checkNotNull(channelNames, "channelNames");
+
+        final List<ChannelFormat> formats = new ArrayList<ChannelFormat>();
+        for (String channelName : channelNames) {
+            formats.add(getChannelFormat(channelName));
+        }
+        return new CompactPicture(name, width, height, channelNames, formats);
+    }
+
+    @Override
+    public void releasePicture(Picture picture) {
+        // Nothing to reuse
+    }
+
+}
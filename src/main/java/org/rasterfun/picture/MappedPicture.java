@@ -0,0 +1,270 @@
+package org.rasterfun.picture;
+
+import org.rasterfun.utils.ParameterChecker;
+
+import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Picture whose data is stored in a memory mapped file, so that pictures larger than the available memory can be
+ * rendered, with the operating system paging the rendered parts out to the file.
+ *
+ * The file starts with a header with the size, name and channel names of the picture, followed by the planes of
+ * the channels, each stored row by row as floats.  An existing picture file can be opened with open,
+ * which maps it without reading the data.
+ */
+public final class MappedPicture extends BufferPicture {
+
+    /**
+     * File extension used for picture files.
+     */
+    public static final String FILE_EXTENSION = ".rfpic";
+
+    private static final int FILE_MAGIC = 0x52465043; // "RFPC"
+    private static final int FILE_FORMAT_VERSION = 1;
+
+    // The data starts at a multiple of this, which also leaves room to update the names in the header
+    private static final int HEADER_ALIGNMENT = 4096;
+
+    private final File file;
+    private final long dataStart;
+    private final ByteOrder byteOrder;
+    private final MappedByteBuffer[][] mappings;
+
+    /**
+     * Creates a new picture file, replacing any existing file.
+     *
+     * @param file the file to store the picture in.
+     */
+    public MappedPicture(File file, String name, int width, int height, List<String> channelNames) throws IOException {
+        this(file, name, width, height, channelNames, DEFAULT_MAX_BUFFER_VALUES);
+    }
+
+    /**
+     * Creates a new picture file, replacing any existing file.
+     *
+     * @param file the file to store the picture in.
+     * @param maxBufferValues largest number of float values to map in each buffer.  Each buffer holds at least one row.
+     */
+    public MappedPicture(File file, String name, int width, int height, List<String> channelNames, int maxBufferValues) throws IOException {
+        this(file, name, width, height, channelNames,
+             calculateRowsPerBand(width, height, maxBufferValues),
+             createHeader(name, width, height, channelNames, ByteOrder.nativeOrder()),
+             ByteOrder.nativeOrder());
+    }
+
+    private MappedPicture(File file,
+                          String name,
+                          int width,
+                          int height,
+                          List<String> channelNames,
+                          int rowsPerBand,
+                          byte[] header,
+                          ByteOrder byteOrder) throws IOException {
+        this(file, name, width, height, channelNames, rowsPerBand, getDataStart(header), byteOrder,
+             mapFile(file, header, getDataStart(header), width, height, channelNames.size(), rowsPerBand, false));
+    }
+
+    private MappedPicture(File file,
+                          String name,
+                          int width,
+                          int height,
+                          List<String> channelNames,
+                          int rowsPerBand,
+                          long dataStart,
+                          ByteOrder byteOrder,
+                          MappedByteBuffer[][] mappings) {
+        super(name, width, height, channelNames, rowsPerBand, asFloatBuffers(mappings, byteOrder));
+        this.file = file;
+        this.dataStart = dataStart;
+        this.byteOrder = byteOrder;
+        this.mappings = mappings;
+    }
+
+    /**
+     * Opens an existing picture file.  The data is mapped, not read, so opening is fast even for large pictures.
+     *
+     * @param file the picture file to open.
+     * @param readOnly if true, the picture can only be read.
+     */
+    public static MappedPicture open(File file, boolean readOnly) throws IOException {
+        ParameterChecker.checkNotNull(file, "file");
+
+        // Read the header
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        final String name;
+        final int width;
+        final int height;
+        final List<String> channelNames = new ArrayList<String>();
+        final ByteOrder byteOrder;
+        final long dataStart;
+        try {
+            if (in.readInt() != FILE_MAGIC) throw new IOException("The file " + file + " is not a picture file");
+            final int version = in.readInt();
+            if (version != FILE_FORMAT_VERSION) throw new IOException("Unsupported picture file version " + version + " in " + file);
+            dataStart = in.readLong();
+            byteOrder = in.readBoolean() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+            width = in.readInt();
+            height = in.readInt();
+            final int channelCount = in.readInt();
+            for (int i = 0; i < channelCount; i++) {
+                channelNames.add(in.readUTF());
+            }
+            name = in.readUTF();
+        } finally {
+            in.close();
+        }
+
+        final int rowsPerBand = calculateRowsPerBand(width, height, DEFAULT_MAX_BUFFER_VALUES);
+        return new MappedPicture(file, name, width, height, channelNames, rowsPerBand, dataStart, byteOrder,
+                                 mapFile(file, null, dataStart, width, height, channelNames.size(), rowsPerBand, readOnly));
+    }
+
+    /**
+     * @return the file that the picture is stored in.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Writes any changed data to the file.  The operating system also writes changes out on its own.
+     */
+    public void flush() {
+        for (MappedByteBuffer[] channelMappings : mappings) {
+            for (MappedByteBuffer mapping : channelMappings) {
+                if (!mapping.isReadOnly()) mapping.force();
+            }
+        }
+    }
+
+    @Override
+    public void setName(String name) {
+        super.setName(name);
+        updateHeader();
+    }
+
+    @Override
+    public void setChannelNames(List<String> channelNames) {
+        super.setChannelNames(channelNames);
+        updateHeader();
+    }
+
+    private void updateHeader() {
+        final byte[] header = createHeader(getName(), getWidth(), getHeight(), getChannelNames(), byteOrder);
+        setDataStart(header, dataStart);
+        if (header.length > dataStart) throw new IllegalArgumentException("The names are too long to fit in the header of the picture file " + file);
+
+        try {
+            final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                randomAccessFile.write(header);
+            } finally {
+                randomAccessFile.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not update the header of the picture file " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static byte[] createHeader(String name, int width, int height, List<String> channelNames, ByteOrder byteOrder) {
+        ParameterChecker.checkNonEmptyString(name, "name");
+        ParameterChecker.checkNotNull(channelNames, "channelNames");
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_FORMAT_VERSION);
+            out.writeLong(0); // Data start, filled in below
+            out.writeBoolean(byteOrder == ByteOrder.BIG_ENDIAN);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(channelNames.size());
+            for (String channelName : channelNames) {
+                out.writeUTF(channelName);
+            }
+            out.writeUTF(name);
+            out.close();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write to a byte array", e);
+        }
+
+        final byte[] header = bytes.toByteArray();
+        setDataStart(header, getDataStart(header));
+        return header;
+    }
+
+    private static void setDataStart(byte[] header, long dataStart) {
+        for (int i = 0; i < 8; i++) {
+            header[8 + i] = (byte) (dataStart >>> (56 - 8 * i));
+        }
+    }
+
+    private static long getDataStart(byte[] header) {
+        return ((header.length + HEADER_ALIGNMENT - 1) / HEADER_ALIGNMENT) * HEADER_ALIGNMENT;
+    }
+
+    /**
+     * @param header header to write to a new file, or null to map an existing file.
+     */
+    private static MappedByteBuffer[][] mapFile(File file,
+                                               byte[] header,
+                                               long dataStart,
+                                               int width,
+                                               int height,
+                                               int channelCount,
+                                               int rowsPerBand,
+                                               boolean readOnly) throws IOException {
+        ParameterChecker.checkNotNull(file, "file");
+
+        final long fileLength = dataStart + 4L * width * height * channelCount;
+
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, readOnly ? "r" : "rw");
+        try {
+            if (header != null) {
+                // Creates a sparse file on most file systems, so the unrendered parts do not take up space
+                randomAccessFile.setLength(0);
+                randomAccessFile.setLength(fileLength);
+                randomAccessFile.write(header);
+            }
+            else if (randomAccessFile.length() < fileLength) {
+                throw new IOException("The picture file " + file + " is truncated, it should be " + fileLength + " bytes long");
+            }
+
+            // Map each band, the mappings remain valid after the file is closed
+            final FileChannel channel = randomAccessFile.getChannel();
+            final int bandCount = getBandCount(height, rowsPerBand);
+            final MappedByteBuffer[][] mappings = new MappedByteBuffer[channelCount][bandCount];
+            for (int c = 0; c < channelCount; c++) {
+                for (int band = 0; band < bandCount; band++) {
+                    final long position = dataStart + 4L * width * ((long) c * height + (long) band * rowsPerBand);
+                    final long size = 4L * width * getBandRows(height, rowsPerBand, band);
+                    mappings[c][band] = channel.map(readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE,
+                                                    position,
+                                                    size);
+                }
+            }
+            return mappings;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static FloatBuffer[][] asFloatBuffers(MappedByteBuffer[][] mappings, ByteOrder byteOrder) {
+        final FloatBuffer[][] bands = new FloatBuffer[mappings.length][];
+        for (int c = 0; c < mappings.length; c++) {
+            bands[c] = new FloatBuffer[mappings[c].length];
+            for (int band = 0; band < mappings[c].length; band++) {
+                bands[c][band] = mappings[c][band].duplicate().order(byteOrder).asFloatBuffer();
+            }
+        }
+        return bands;
+    }
+
+}
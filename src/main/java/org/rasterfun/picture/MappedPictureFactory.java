@@ -0,0 +1,81 @@
+package org.rasterfun.picture;
+
+import org.rasterfun.utils.ParameterChecker;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Creates pictures stored in memory mapped files in a directory, see MappedPicture.
+ * The files are named after the pictures, with a number added if this factory has already created a file
+ * with the same name that has not been released.  Existing files from earlier runs are replaced.
+ * Released pictures have their files deleted, so keep pictures whose files should remain.
+ */
+public final class MappedPictureFactory implements PictureFactory {
+
+    private final File directory;
+    private final Set<String> usedFileNames = new HashSet<String>();
+
+    /**
+     * @param directory directory to create the picture files in.  Created if it does not exist.
+     */
+    public MappedPictureFactory(File directory) {
+        ParameterChecker.checkNotNull(directory, "directory");
+        this.directory = directory;
+    }
+
+    /**
+     * @return the directory that the picture files are created in.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public Picture createPicture(String name, int width, int height, List<String> channelNames, boolean planar) {
+        final File file = new File(directory, createFileName(name));
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Could not create the directory");
+            return new MappedPicture(file, name, width, height, channelNames);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not create the picture file " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    private synchronized String createFileName(String pictureName) {
+        // Only use characters that are safe on all file systems
+        final String baseName = pictureName.replaceAll("[^A-Za-z0-9_\\-]", "_");
+
+        String fileName = baseName + MappedPicture.FILE_EXTENSION;
+        int number = 2;
+        while (usedFileNames.contains(fileName)) {
+            fileName = baseName + "_" + (number++) + MappedPicture.FILE_EXTENSION;
+        }
+        usedFileNames.add(fileName);
+        return fileName;
+    }
+
+    /**
+     * Deletes the file of a picture created by this factory, so that files do not pile up in the directory,
+     * and lets later pictures use its file name.
+     */
+    @Override
+    public void releasePicture(Picture picture) {
+        if (!(picture instanceof MappedPicture)) return;
+
+        final File file = ((MappedPicture) picture).getFile();
+        if (!directory.equals(file.getParentFile())) return;
+
+        synchronized (this) {
+            // Ignore pictures created elsewhere, and pictures that are released twice
+            if (!usedFileNames.contains(file.getName())) return;
+
+            // Some platforms do not allow deleting a file while it is mapped, then its name is not reused
+            if (file.delete() || !file.exists()) usedFileNames.remove(file.getName());
+        }
+    }
+
+}
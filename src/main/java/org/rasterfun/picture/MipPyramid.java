@@ -0,0 +1,240 @@
+package org.rasterfun.picture;
+
+import org.rasterfun.utils.ParameterChecker;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * The mip levels of a picture, each level half the width and height of the previous one, down to one pixel.
+ * Level 0 is the picture itself, each pixel of a later level is the average of a two by two box of pixels
+ * in the previous level.  Levels with odd sizes drop their last column or row.
+ *
+ * All levels after level 0 are stored in one float array, one level after the other,
+ * with the channels of each pixel next to each other.
+ *
+ * The levels can be calculated one area at a time with downsampleArea as areas of the picture are completed,
+ * e.g. from different threads as render tiles finish.  The values that depend on more than one area are then
+ * calculated by complete once the whole picture is done.
+ */
+public final class MipPyramid {
+
+    // Scratch arrays for reading areas of the picture, reused by each thread.
+    private static final ThreadLocal<float[]> areaBuffers = new ThreadLocal<float[]>();
+
+    private final Picture picture;
+    private final int channelCount;
+    private final int levelCount;
+    private final int[] levelWidths;
+    private final int[] levelHeights;
+    private final int[] levelOffsets;
+    private final float[] data;
+
+    // Number of pixels calculated for each level by downsampleArea, used to tell which levels are complete.
+    private final AtomicIntegerArray calculatedPixels;
+
+    /**
+     * Creates the levels for the picture, without calculating them.
+     * Use downsampleArea and complete, or calculate, to calculate them.
+     */
+    public MipPyramid(Picture picture) {
+        ParameterChecker.checkNotNull(picture, "picture");
+        this.picture = picture;
+        channelCount = picture.getChannelCount();
+
+        int width = picture.getWidth();
+        int height = picture.getHeight();
+        levelCount = 1 + 31 - Integer.numberOfLeadingZeros(Math.max(width, height));
+        levelWidths = new int[levelCount];
+        levelHeights = new int[levelCount];
+        levelOffsets = new int[levelCount];
+
+        long size = 0;
+        for (int level = 0; level < levelCount; level++) {
+            levelWidths[level] = width;
+            levelHeights[level] = height;
+            if (level > 0) {
+                levelOffsets[level] = (int) size;
+                size += (long) width * height * channelCount;
+                if (size > Integer.MAX_VALUE) throw new IllegalArgumentException("The picture is too large to create mip levels for");
+            }
+            width = Math.max(1, width / 2);
+            height = Math.max(1, height / 2);
+        }
+
+        data = new float[(int) size];
+        calculatedPixels = new AtomicIntegerArray(levelCount);
+    }
+
+    /**
+     * Creates and calculates the levels for a completely calculated picture.
+     */
+    public static MipPyramid calculate(Picture picture) {
+        final MipPyramid pyramid = new MipPyramid(picture);
+        pyramid.complete();
+        return pyramid;
+    }
+
+    /**
+     * @return the picture at level 0.
+     */
+    public Picture getPicture() {
+        return picture;
+    }
+
+    /**
+     * @return number of levels, including level 0.
+     */
+    public int getLevelCount() {
+        return levelCount;
+    }
+
+    public int getLevelWidth(int level) {
+        checkLevel(level);
+        return levelWidths[level];
+    }
+
+    public int getLevelHeight(int level) {
+        checkLevel(level);
+        return levelHeights[level];
+    }
+
+    /**
+     * @return the array holding all levels after level 0.
+     */
+    public float[] getData() {
+        return data;
+    }
+
+    /**
+     * @return index of the first value of the specified level in the data array, for levels after level 0.
+     */
+    public int getLevelOffset(int level) {
+        ParameterChecker.checkIntegerInRange(level, "level", 1, levelCount);
+        return levelOffsets[level];
+    }
+
+    /**
+     * @return the value of the specified channel at the specified pixel of the specified level.
+     */
+    public float getPixel(int level, int channelIndex, int x, int y) {
+        checkLevel(level);
+        if (level == 0) return picture.getPixel(channelIndex, x, y);
+        else return data[levelOffsets[level] + (y * levelWidths[level] + x) * channelCount + channelIndex];
+    }
+
+    /**
+     * Calculates the pixels of the later levels that only depend on the specified, completely calculated area
+     * of the picture.  Areas that start at multiples of large powers of two contribute to more levels.
+     * Can be called from several threads at the same time for areas that do not overlap.
+     */
+    public void downsampleArea(int startX, int startY, int endX, int endY) {
+        final int areaWidth = endX - startX;
+        final int areaHeight = endY - startY;
+        if (areaWidth <= 0 || areaHeight <= 0 || levelCount <= 1) return;
+
+        // Read the area of the picture
+        final float[] area = getAreaBuffer(areaWidth * areaHeight * channelCount);
+        final int areaRowStride = areaWidth * channelCount;
+        picture.getPixels(startX, startY, areaWidth, areaHeight, area, 0, channelCount, areaRowStride, 1);
+
+        for (int level = 1; level < levelCount; level++) {
+            // The area must start at a pixel border of the level
+            final int levelScale = 1 << level;
+            if (startX % levelScale != 0 || startY % levelScale != 0) return;
+
+            // Pixels of the level whose box is inside the area, the last pixels of the level extend to the picture edges
+            final int levelStartX = startX >> level;
+            final int levelStartY = startY >> level;
+            final int levelEndX = endX == picture.getWidth() ? levelWidths[level] : endX >> level;
+            final int levelEndY = endY == picture.getHeight() ? levelHeights[level] : endY >> level;
+            if (levelStartX >= levelEndX || levelStartY >= levelEndY) return;
+
+            if (level == 1) {
+                downsample(area, -((startY * areaWidth + startX) * channelCount), areaWidth, levelWidths[0], levelHeights[0],
+                           level, levelStartX, levelStartY, levelEndX, levelEndY);
+            }
+            else {
+                downsampleLevel(level, levelStartX, levelStartY, levelEndX, levelEndY);
+            }
+            calculatedPixels.addAndGet(level, (levelEndX - levelStartX) * (levelEndY - levelStartY));
+        }
+    }
+
+    /**
+     * Calculates the pixels that have not been calculated by downsampleArea, once the whole picture is calculated.
+     * Levels that were only partly calculated are calculated again in full, this is only the case for
+     * small levels if the picture was downsampled in large enough areas.
+     */
+    public void complete() {
+        for (int level = 1; level < levelCount; level++) {
+            if (calculatedPixels.get(level) == levelWidths[level] * levelHeights[level]) continue;
+
+            if (level == 1) {
+                // Read two rows of the picture at a time
+                final int width = levelWidths[0];
+                final int rowStride = width * channelCount;
+                final float[] rows = getAreaBuffer(2 * rowStride);
+                for (int y = 0; y < levelHeights[1]; y++) {
+                    final int rowCount = Math.min(2, levelHeights[0] - 2 * y);
+                    picture.getPixels(0, 2 * y, width, rowCount, rows, 0, channelCount, rowStride, 1);
+                    downsample(rows, -(2 * y * rowStride), width, width, levelHeights[0], 1, 0, y, levelWidths[1], y + 1);
+                }
+            }
+            else {
+                downsampleLevel(level, 0, 0, levelWidths[level], levelHeights[level]);
+            }
+            calculatedPixels.set(level, levelWidths[level] * levelHeights[level]);
+        }
+    }
+
+    private void downsampleLevel(int level, int levelStartX, int levelStartY, int levelEndX, int levelEndY) {
+        final int sourceLevel = level - 1;
+        downsample(data, levelOffsets[sourceLevel], levelWidths[sourceLevel], levelWidths[sourceLevel], levelHeights[sourceLevel],
+                   level, levelStartX, levelStartY, levelEndX, levelEndY);
+    }
+
+    /**
+     * Calculates an area of a level from the level before it.
+     *
+     * @param source array with the previous level.
+     * @param sourceOffset index of the pixel at 0, 0 of the previous level in the source array, may be negative
+     *                     if the array only holds a part of the level.
+     * @param sourceRowWidth number of pixels per row in the source array.
+     * @param sourceWidth width of the previous level.
+     * @param sourceHeight height of the previous level.
+     */
+    private void downsample(float[] source, int sourceOffset, int sourceRowWidth, int sourceWidth, int sourceHeight,
+                            int level, int levelStartX, int levelStartY, int levelEndX, int levelEndY) {
+        final int sourceRowStride = sourceRowWidth * channelCount;
+        final int levelWidth = levelWidths[level];
+        for (int y = levelStartY; y < levelEndY; y++) {
+            // A level with a size of one along an axis may come from a level with a size of one
+            final int sourceY0 = 2 * y;
+            final int sourceY1 = Math.min(sourceY0 + 1, sourceHeight - 1);
+            final int row0 = sourceOffset + sourceY0 * sourceRowStride;
+            final int row1 = sourceOffset + sourceY1 * sourceRowStride;
+            int targetIndex = levelOffsets[level] + (y * levelWidth + levelStartX) * channelCount;
+            for (int x = levelStartX; x < levelEndX; x++) {
+                final int column0 = 2 * x * channelCount;
+                final int column1 = Math.min(2 * x + 1, sourceWidth - 1) * channelCount;
+                for (int c = 0; c < channelCount; c++) {
+                    data[targetIndex++] = 0.25f * (source[row0 + column0 + c] + source[row0 + column1 + c] +
+                                                   source[row1 + column0 + c] + source[row1 + column1 + c]);
+                }
+            }
+        }
+    }
+
+    private float[] getAreaBuffer(int size) {
+        float[] buffer = areaBuffers.get();
+        if (buffer == null || buffer.length < size) {
+            buffer = new float[size];
+            areaBuffers.set(buffer);
+        }
+        return buffer;
+    }
+
+    private void checkLevel(int level) {
+        ParameterChecker.checkIntegerInRange(level, "level", 0, levelCount);
+    }
+}
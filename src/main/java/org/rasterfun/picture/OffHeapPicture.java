@@ -0,0 +1,41 @@
+package org.rasterfun.picture;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.List;
+
+/**
+ * Picture that stores its data in direct buffers outside the java heap, so that it can be larger than
+ * what fits in a java array, and does not need to be scanned by the garbage collector.
+ */
+public final class OffHeapPicture extends BufferPicture {
+
+    public OffHeapPicture(String name, int width, int height, List<String> channelNames) {
+        this(name, width, height, channelNames, DEFAULT_MAX_BUFFER_VALUES);
+    }
+
+    /**
+     * @param maxBufferValues largest number of float values to store in each direct buffer.
+     *                        Each buffer holds at least one row.
+     */
+    public OffHeapPicture(String name, int width, int height, List<String> channelNames, int maxBufferValues) {
+        super(name, width, height, channelNames,
+              calculateRowsPerBand(width, height, maxBufferValues),
+              allocateBands(width, height, channelNames.size(), calculateRowsPerBand(width, height, maxBufferValues)));
+    }
+
+    private static FloatBuffer[][] allocateBands(int width, int height, int channelCount, int rowsPerBand) {
+        final int bandCount = getBandCount(height, rowsPerBand);
+        final FloatBuffer[][] bands = new FloatBuffer[channelCount][bandCount];
+        for (int channel = 0; channel < channelCount; channel++) {
+            for (int band = 0; band < bandCount; band++) {
+                bands[channel][band] = ByteBuffer.allocateDirect(getBandRows(height, rowsPerBand, band) * width * 4)
+                                                 .order(ByteOrder.nativeOrder())
+                                                 .asFloatBuffer();
+            }
+        }
+        return bands;
+    }
+
+}
@@ -0,0 +1,20 @@
+package org.rasterfun.picture;
+
+import java.util.List;
+
+/**
+ * Creates pictures stored outside the java heap, see OffHeapPicture.
+ */
+public final class OffHeapPictureFactory implements PictureFactory {
+
+    @Override
+    public Picture createPicture(String name, int width, int height, List<String> channelNames, boolean planar) {
+        return new OffHeapPicture(name, width, height, channelNames);
+    }
+
+    @Override
+    public void releasePicture(Picture picture) {
+        // Nothing to reuse
+    }
+
+}
@@ -49,6 +49,27 @@ public interface Picture {
      */
     float getPixel(int channelIndex, int x, int y);
 
+    /**
+     * Sets the value at the specified channel index and coordinate.
+     * Does not perform any range checking.
+     */
+    void setPixel(int channelIndex, int x, int y, float value);
+
+    /**
+     * Copies the values of all channels in an area of the picture to an array.
+     * The value of channel c for the pixel at x + i, y + j is stored in
+     * target[targetOffset + j * rowStride + i * pixelStride + c * channelStride].
+     */
+    void getPixels(int x, int y, int areaWidth, int areaHeight,
+                   float[] target, int targetOffset, int pixelStride, int rowStride, int channelStride);
+
+    /**
+     * Copies the values of all channels in an area of the picture from an array.
+     * The array layout is the same as for getPixels.
+     */
+    void setPixels(int x, int y, int areaWidth, int areaHeight,
+                   float[] source, int sourceOffset, int pixelStride, int rowStride, int channelStride);
+
     /**
      * @return number of channels in the picture.
      */
@@ -66,8 +87,14 @@ public interface Picture {
     void setChannelNames(List<String> channelNames);
 
     /**
-     * @return the underlying data for the picture.
+     * @return the underlying data for the picture, or null if it is not stored in a java array.
+     * @deprecated not all pictures are stored in a java array.  Use ArrayPicture.getData for pictures that are,
+     *             together with the layout accessors of ArrayPicture, or getPixels and setPixels for any picture.
      */
-    float[] getData();
+    @Deprecated
+    default float[] getData() {
+        // ArrayPictures implement their own getData
+        return null;
+    }
 
 }
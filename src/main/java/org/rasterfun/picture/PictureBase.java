@@ -0,0 +1,147 @@
+package org.rasterfun.picture;
+
+import org.rasterfun.utils.ParameterChecker;
+
+import java.util.*;
+
+/**
+ * Common functionality for pictures, keeps track of the size, name, and channel names.
+ * Subclasses decide how the pixel data is laid out.
+ */
+public abstract class PictureBase implements Picture {
+
+    private final int width;
+    private final int height;
+    private final int channelCount;
+    private final List<String> channelNames;
+    private String name;
+
+    private final HashMap<String, Integer> channelNameToIndex = new HashMap<String, Integer>();
+
+    protected PictureBase(String name, int width, int height, List<String> channelNames) {
+        ParameterChecker.checkNonEmptyString(name, "name");
+        ParameterChecker.checkNotNull(channelNames, "channelNames");
+        ParameterChecker.checkPositiveNonZeroInteger(width, "width");
+        ParameterChecker.checkPositiveNonZeroInteger(height, "height");
+        ParameterChecker.checkPositiveNonZeroInteger(channelNames.size(), "channelNames.size");
+
+        this.name = name;
+        this.width = width;
+        this.height = height;
+        this.channelNames = new ArrayList<String>(channelNames);
+        this.channelCount = this.channelNames.size();
+
+        createChannelNamesLookup();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public final int getWidth() {
+        return width;
+    }
+
+    @Override
+    public final int getHeight() {
+        return height;
+    }
+
+    @Override
+    public List<String> getChannelNames() {
+        return Collections.unmodifiableList(channelNames);
+    }
+
+    @Override
+    public int getChannelIndex(String channelName) {
+        final Integer channelIndex = channelNameToIndex.get(channelName);
+        if (channelIndex != null) return channelIndex;
+        else throw new IllegalArgumentException("There is no channel with the name '"+channelName+"', " +
+                                                "the available channels are: " + Arrays.toString(channelNames.toArray()));
+    }
+
+    @Override
+    public int getChannelIndex(String channelName, int defaultValue) {
+        final Integer channelIndex = channelNameToIndex.get(channelName);
+        if (channelIndex != null) return channelIndex;
+        else return defaultValue;
+    }
+
+    public void setName(String name) {
+        ParameterChecker.checkNonEmptyString(name, "name");
+        this.name = name;
+    }
+
+    @Override
+    public void setChannelNames(List<String> channelNames) {
+        ParameterChecker.checkNotNull(channelNames, "channelNames");
+        if (channelNames.size() != this.channelNames.size()) throw new IllegalArgumentException("New channel names must have same size as the existing ones.");
+
+        this.channelNames.clear();
+        this.channelNames.addAll(channelNames);
+        createChannelNamesLookup();
+    }
+
+    @Override
+    public float getPixel(String channel, int x, int y) {
+        return getPixel(getChannelIndex(channel), x, y);
+    }
+
+    @Override
+    public void getPixels(int x, int y, int areaWidth, int areaHeight,
+                          float[] target, int targetOffset, int pixelStride, int rowStride, int channelStride) {
+        for (int j = 0; j < areaHeight; j++) {
+            for (int i = 0; i < areaWidth; i++) {
+                final int pixelIndex = targetOffset + j * rowStride + i * pixelStride;
+                for (int c = 0; c < channelCount; c++) {
+                    target[pixelIndex + c * channelStride] = getPixel(c, x + i, y + j);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void setPixels(int x, int y, int areaWidth, int areaHeight,
+                          float[] source, int sourceOffset, int pixelStride, int rowStride, int channelStride) {
+        for (int j = 0; j < areaHeight; j++) {
+            for (int i = 0; i < areaWidth; i++) {
+                final int pixelIndex = sourceOffset + j * rowStride + i * pixelStride;
+                for (int c = 0; c < channelCount; c++) {
+                    setPixel(c, x + i, y + j, source[pixelIndex + c * channelStride]);
+                }
+            }
+        }
+    }
+
+    @Override
+    public final int getChannelCount() {
+        return channelCount;
+    }
+
+    /**
+     * Throws an exception if the values of a picture of the specified size can not be stored in a java array.
+     */
+    protected static void checkFitsInArray(int width, int height, int channelCount) {
+        final long valueCount = (long) width * height * channelCount;
+        if (valueCount > Integer.MAX_VALUE) throw new IllegalArgumentException(
+                "A picture of size " + width + " x " + height + " with " + channelCount + " channels has " +
+                valueCount + " values, which is too many to store in an array, use an OffHeapPicture instead.");
+    }
+
+    /**
+     * Throws an exception if the array is missing or shorter than the specified length.
+     */
+    protected static void checkArrayLength(float[] data, int requiredLength) {
+        ParameterChecker.checkNotNull(data, "data");
+        if (data.length < requiredLength) throw new IllegalArgumentException("The data array should have at least " + requiredLength + " values, but it had " + data.length);
+    }
+
+    private void createChannelNamesLookup() {
+        channelNameToIndex.clear();
+        for (int i = 0; i < channelNames.size(); i++) {
+            channelNameToIndex.put(channelNames.get(i), i);
+        }
+    }
+
+}
@@ -25,4 +25,36 @@ public interface PictureDrawer {
               int sourceX1, int sourceY1, int sourceX2, int sourceY2,
               final boolean drawAlphaGrid);
 
+    /**
+     * Draws only the part of the destination area that is inside the clip area.
+     * The pixels drawn are the same as the pixels in the clip area when drawing the whole destination area.
+     *
+     * @param clipX1 left edge of the clip area in the target, inclusive.
+     * @param clipY1 top edge of the clip area in the target, inclusive.
+     * @param clipX2 right edge of the clip area in the target, exclusive.
+     * @param clipY2 bottom edge of the clip area in the target, exclusive.
+     */
+    void draw(int[] targetData, int targetW, int targetH,
+              int destX1, int destY1, int destX2, int destY2,
+              Picture source,
+              int sourceX1, int sourceY1, int sourceX2, int sourceY2,
+              boolean drawAlphaGrid,
+              int clipX1, int clipY1, int clipX2, int clipY2);
+
+    /**
+     * Draws only the part of the destination area that shows the specified area of the source picture,
+     * e.g. an area reported by PictureAreaListener.onPictureAreaReady, instead of redrawing everything.
+     *
+     * @param changedX1 left edge of the changed area in the source picture, inclusive.
+     * @param changedY1 top edge of the changed area in the source picture, inclusive.
+     * @param changedX2 right edge of the changed area in the source picture, exclusive.
+     * @param changedY2 bottom edge of the changed area in the source picture, exclusive.
+     */
+    void drawChangedArea(int[] targetData, int targetW, int targetH,
+                         int destX1, int destY1, int destX2, int destY2,
+                         Picture source,
+                         int sourceX1, int sourceY1, int sourceX2, int sourceY2,
+                         boolean drawAlphaGrid,
+                         int changedX1, int changedY1, int changedX2, int changedY2);
+
 }
@@ -1,11 +1,32 @@
 package org.rasterfun.picture;
 
 import org.rasterfun.utils.FastImage;
+import org.rasterfun.utils.ParameterChecker;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static org.rasterfun.utils.MathTools.map;
 
 /**
+ * Common functionality for picture drawers.
+ * If a fork join pool is set, large areas are split into bands of rows that are drawn in parallel in the pool.
  *
+ * Subclasses override drawArea, or the draw method with the drawAlphaGrid parameter if they can only draw the whole area.
  */
 public abstract class PictureDrawerBase implements PictureDrawer {
+
+    /**
+     * Areas are not split into bands with fewer rows than this.
+     */
+    public static final int DEFAULT_MIN_BAND_ROWS = 16;
+
+    // Number of bands to aim for per thread, so that threads that finish early can steal remaining bands.
+    private static final int BANDS_PER_THREAD = 4;
+
+    private ForkJoinPool pool = null;
+    private int minBandRows = DEFAULT_MIN_BAND_ROWS;
+
     @Override
     public final void draw(FastImage fastImage, int destX1, int destY1, int destX2, int destY2, Picture source, int sourceX1, int sourceY1, int sourceX2, int sourceY2) {
         draw(fastImage.getBuffer(), fastImage.getWidth(), fastImage.getHeight(),
@@ -27,4 +48,205 @@ public abstract class PictureDrawerBase implements PictureDrawer {
              true);
     }
 
+    @Override
+    public void draw(int[] targetData, int targetW, int targetH,
+                     int destX1, int destY1, int destX2, int destY2,
+                     Picture source,
+                     int sourceX1, int sourceY1, int sourceX2, int sourceY2,
+                     boolean drawAlphaGrid) {
+        draw(targetData, targetW, targetH,
+             destX1, destY1, destX2, destY2,
+             source,
+             sourceX1, sourceY1, sourceX2, sourceY2,
+             drawAlphaGrid,
+             destX1, destY1, destX2, destY2);
+    }
+
+    @Override
+    public void draw(int[] targetData, int targetW, int targetH,
+                     int destX1, int destY1, int destX2, int destY2,
+                     Picture source,
+                     int sourceX1, int sourceY1, int sourceX2, int sourceY2,
+                     boolean drawAlphaGrid,
+                     int clipX1, int clipY1, int clipX2, int clipY2) {
+        // Rows to draw
+        final int startY = Math.max(Math.max(clipY1, destY1), 0);
+        final int endY = Math.min(Math.min(clipY2, destY2), targetH);
+        final int rowCount = endY - startY;
+        if (rowCount <= 0) return;
+
+        final ForkJoinPool pool = this.pool;
+        if (pool == null || rowCount < 2 * minBandRows) {
+            drawArea(targetData, targetW, targetH,
+                     destX1, destY1, destX2, destY2,
+                     source,
+                     sourceX1, sourceY1, sourceX2, sourceY2,
+                     drawAlphaGrid,
+                     clipX1, startY, clipX2, endY);
+        }
+        else {
+            final int bandRows = Math.max(minBandRows, rowCount / (pool.getParallelism() * BANDS_PER_THREAD));
+            pool.invoke(new DrawBandTask(targetData, targetW, targetH,
+                                         destX1, destY1, destX2, destY2,
+                                         source,
+                                         sourceX1, sourceY1, sourceX2, sourceY2,
+                                         drawAlphaGrid,
+                                         clipX1, startY, clipX2, endY,
+                                         bandRows));
+        }
+    }
+
+    @Override
+    public final void drawChangedArea(int[] targetData, int targetW, int targetH,
+                                      int destX1, int destY1, int destX2, int destY2,
+                                      Picture source,
+                                      int sourceX1, int sourceY1, int sourceX2, int sourceY2,
+                                      boolean drawAlphaGrid,
+                                      int changedX1, int changedY1, int changedX2, int changedY2) {
+        // Map the changed area to the destination, with a pixel of margin for rounding, and in case the picture is drawn flipped
+        final double x1 = map(changedX1, sourceX1, sourceX2, destX1, destX2);
+        final double x2 = map(changedX2, sourceX1, sourceX2, destX1, destX2);
+        final double y1 = map(changedY1, sourceY1, sourceY2, destY1, destY2);
+        final double y2 = map(changedY2, sourceY1, sourceY2, destY1, destY2);
+        draw(targetData, targetW, targetH,
+             destX1, destY1, destX2, destY2,
+             source,
+             sourceX1, sourceY1, sourceX2, sourceY2,
+             drawAlphaGrid,
+             (int) Math.floor(Math.min(x1, x2)) - 1,
+             (int) Math.floor(Math.min(y1, y2)) - 1,
+             (int) Math.ceil(Math.max(x1, x2)) + 1,
+             (int) Math.ceil(Math.max(y1, y2)) + 1);
+    }
+
+    /**
+     * @return the pool that areas are drawn in, or null if they are drawn in the calling thread.
+     */
+    public final ForkJoinPool getPool() {
+        return pool;
+    }
+
+    /**
+     * @param pool pool to draw bands of rows in parallel in, or null to draw in the calling thread.
+     */
+    public final void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @return the minimum number of rows in the bands that areas are split into.
+     */
+    public final int getMinBandRows() {
+        return minBandRows;
+    }
+
+    /**
+     * @param minBandRows areas are not split into bands with fewer rows than this.
+     */
+    public final void setMinBandRows(int minBandRows) {
+        ParameterChecker.checkPositiveNonZeroInteger(minBandRows, "minBandRows");
+        this.minBandRows = minBandRows;
+    }
+
+    /**
+     * Draws the part of the destination area that is inside the clip area.
+     * Called from several threads at the same time for different clip areas, when drawing in a pool.
+     * The clip area is already limited to the rows of the destination area and the target.
+     *
+     * The default implementation ignores the clip area and draws the whole destination area with the draw method
+     * that has the drawAlphaGrid parameter, for drawers that override that method instead of this one.
+     * Such drawers should not be given a pool, as each band would draw the whole area.
+     */
+    protected void drawArea(int[] targetData, int targetW, int targetH,
+                            int destX1, int destY1, int destX2, int destY2,
+                            Picture source,
+                            int sourceX1, int sourceY1, int sourceX2, int sourceY2,
+                            boolean drawAlphaGrid,
+                            int clipX1, int clipY1, int clipX2, int clipY2) {
+        draw(targetData, targetW, targetH,
+             destX1, destY1, destX2, destY2,
+             source,
+             sourceX1, sourceY1, sourceX2, sourceY2,
+             drawAlphaGrid);
+    }
+
+    /**
+     * Splits the rows to draw in half until the bands are small enough, and draws them in parallel.
+     */
+    private final class DrawBandTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] targetData;
+        private final int targetW;
+        private final int targetH;
+        private final int destX1;
+        private final int destY1;
+        private final int destX2;
+        private final int destY2;
+        private final Picture source;
+        private final int sourceX1;
+        private final int sourceY1;
+        private final int sourceX2;
+        private final int sourceY2;
+        private final boolean drawAlphaGrid;
+        private final int clipX1;
+        private final int clipY1;
+        private final int clipX2;
+        private final int clipY2;
+        private final int bandRows;
+
+        private DrawBandTask(int[] targetData, int targetW, int targetH,
+                             int destX1, int destY1, int destX2, int destY2,
+                             Picture source,
+                             int sourceX1, int sourceY1, int sourceX2, int sourceY2,
+                             boolean drawAlphaGrid,
+                             int clipX1, int clipY1, int clipX2, int clipY2,
+                             int bandRows) {
+            this.targetData = targetData;
+            this.targetW = targetW;
+            this.targetH = targetH;
+            this.destX1 = destX1;
+            this.destY1 = destY1;
+            this.destX2 = destX2;
+            this.destY2 = destY2;
+            this.source = source;
+            this.sourceX1 = sourceX1;
+            this.sourceY1 = sourceY1;
+            this.sourceX2 = sourceX2;
+            this.sourceY2 = sourceY2;
+            this.drawAlphaGrid = drawAlphaGrid;
+            this.clipX1 = clipX1;
+            this.clipY1 = clipY1;
+            this.clipX2 = clipX2;
+            this.clipY2 = clipY2;
+            this.bandRows = bandRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (clipY2 - clipY1 <= bandRows) {
+                drawArea(targetData, targetW, targetH,
+                         destX1, destY1, destX2, destY2,
+                         source,
+                         sourceX1, sourceY1, sourceX2, sourceY2,
+                         drawAlphaGrid,
+                         clipX1, clipY1, clipX2, clipY2);
+            }
+            else {
+                final int middleY = clipY1 + (clipY2 - clipY1) / 2;
+                invokeAll(createBand(clipY1, middleY), createBand(middleY, clipY2));
+            }
+        }
+
+        private DrawBandTask createBand(int bandY1, int bandY2) {
+            return new DrawBandTask(targetData, targetW, targetH,
+                                    destX1, destY1, destX2, destY2,
+                                    source,
+                                    sourceX1, sourceY1, sourceX2, sourceY2,
+                                    drawAlphaGrid,
+                                    clipX1, bandY1, clipX2, bandY2,
+                                    bandRows);
+        }
+    }
+
 }
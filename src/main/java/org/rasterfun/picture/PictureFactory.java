@@ -0,0 +1,30 @@
+package org.rasterfun.picture;
+
+import java.util.List;
+
+/**
+ * Creates the pictures that calculations render to, decides where the picture data is stored.
+ */
+public interface PictureFactory {
+
+    /**
+     * @param name name of the picture.
+     * @param width width of the picture.
+     * @param height height of the picture.
+     * @param channelNames names of the channels in the picture.
+     * @param planar true if the renderer stores each channel in its own plane, see PlanarPicture.
+     *               Pictures that are not stored in a java array can ignore this.
+     * @return a new picture.
+     */
+    Picture createPicture(String name, int width, int height, List<String> channelNames, boolean planar);
+
+    /**
+     * Called when a picture is no longer used, so that any resources it holds can be reused.
+     * The picture should not be used after it has been released.
+     * Factories that do not reuse anything can ignore this.
+     *
+     * @param picture a picture that is no longer used, possibly created by some other factory.
+     */
+    void releasePicture(Picture picture);
+
+}
@@ -0,0 +1,81 @@
+package org.rasterfun.picture;
+
+import org.rasterfun.utils.ParameterChecker;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+/**
+ * Converts pictures to java images.
+ * The pictures are drawn straight into the int array of the image, without going through any AWT toolkit or Graphics,
+ * so the conversion also works in headless environments, e.g. before saving the image with ImageIO.
+ */
+public final class PictureImages {
+
+    private static final int RED_MASK   = 0x00ff0000;
+    private static final int GREEN_MASK = 0x0000ff00;
+    private static final int BLUE_MASK  = 0x000000ff;
+    private static final int ALPHA_MASK = 0xff000000;
+
+    private PictureImages() {
+    }
+
+    /**
+     * @return a TYPE_INT_ARGB image with the red, green, blue, and alpha channels of the picture,
+     *         drawn with a RgbPictureDrawer, see there for how missing channels are handled.
+     */
+    public static BufferedImage createBufferedImage(Picture picture) {
+        return createBufferedImage(picture, new RgbPictureDrawer());
+    }
+
+    /**
+     * @return a TYPE_INT_ARGB image of the same size as the picture, with the picture drawn on it with the specified drawer.
+     *         The alpha of the picture is kept as is, it is not drawn on top of a grid.
+     */
+    public static BufferedImage createBufferedImage(Picture picture, PictureDrawer drawer) {
+        ParameterChecker.checkNotNull(picture, "picture");
+        ParameterChecker.checkNotNull(drawer, "drawer");
+
+        final int width = picture.getWidth();
+        final int height = picture.getHeight();
+        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        drawer.draw(getData(image), width, height,
+                    0, 0, width, height,
+                    picture,
+                    0, 0, width, height,
+                    false);
+        return image;
+    }
+
+    /**
+     * @return an image that uses the specified array of java ARGB colors as its data, without copying it.
+     *         Changes to the array show up in the image.
+     */
+    public static BufferedImage wrapArgbData(int[] argbData, int width, int height) {
+        ParameterChecker.checkNotNull(argbData, "argbData");
+        ParameterChecker.checkPositiveNonZeroInteger(width, "width");
+        ParameterChecker.checkPositiveNonZeroInteger(height, "height");
+        if (argbData.length < (long) width * height) throw new IllegalArgumentException("The data array should have at least " + width * height +
+                                                                                        " values, but it had " + argbData.length);
+
+        final DirectColorModel colorModel = new DirectColorModel(32, RED_MASK, GREEN_MASK, BLUE_MASK, ALPHA_MASK);
+        final WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(argbData, width * height),
+                                                                width, height, width,
+                                                                new int[]{RED_MASK, GREEN_MASK, BLUE_MASK, ALPHA_MASK},
+                                                                null);
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+
+    /**
+     * @return the array with the colors of a TYPE_INT_ARGB or TYPE_INT_RGB image, one int per pixel, row by row.
+     */
+    public static int[] getData(BufferedImage image) {
+        ParameterChecker.checkNotNull(image, "image");
+        if (!(image.getRaster().getDataBuffer() instanceof DataBufferInt)) throw new IllegalArgumentException("The image should be stored as ints");
+
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+}
@@ -1,113 +1,104 @@
 package org.rasterfun.picture;
 
-import org.rasterfun.utils.ParameterChecker;
-
 import java.util.*;
 
 /**
- *
+ * Picture that stores the channels of each pixel next to each other in one float array.
  */
-public final class PictureImpl implements Picture {
+public final class PictureImpl extends PictureBase implements ArrayPicture {
 
-    private final int width;
-    private final int height;
-    private final int channelCount;
-    private final List<String> channelNames;
     private final float data[];
-    private String name;
-
-    private final HashMap<String, Integer> channelNameToIndex = new HashMap<String, Integer>();
 
     public PictureImpl(String name, int width, int height, List<String> channelNames) {
-        ParameterChecker.checkNonEmptyString(name, "name");
-        ParameterChecker.checkNotNull(channelNames, "channelNames");
-        ParameterChecker.checkPositiveNonZeroInteger(width, "width");
-        ParameterChecker.checkPositiveNonZeroInteger(height, "height");
-        ParameterChecker.checkPositiveNonZeroInteger(channelNames.size(), "channelNames.size");
-
-        this.name = name;
-        this.width = width;
-        this.height = height;
-        this.channelNames = new ArrayList<String>(channelNames);
-        this.channelCount = this.channelNames.size();
-        this.data = new float[width * height * channelCount];
-
-        createChannelNamesLookup();
-    }
+        super(name, width, height, channelNames);
+        checkFitsInArray(width, height, getChannelCount());
 
-    public String getName() {
-        return name;
+        this.data = new float[width * height * getChannelCount()];
     }
 
-    @Override
-    public int getWidth() {
-        return width;
-    }
+    /**
+     * Creates a picture that uses an existing array for its data, e.g. one from a PicturePool.
+     * @param data array to store the data in, may be longer than needed.
+     */
+    public PictureImpl(String name, int width, int height, List<String> channelNames, float[] data) {
+        super(name, width, height, channelNames);
+        checkFitsInArray(width, height, getChannelCount());
+        checkArrayLength(data, width * height * getChannelCount());
 
-    @Override
-    public int getHeight() {
-        return height;
+        this.data = data;
     }
 
     @Override
-    public List<String> getChannelNames() {
-        return Collections.unmodifiableList(channelNames);
+    @SuppressWarnings("deprecation")
+    public float[] getData() {
+        return data;
     }
 
     @Override
-    public int getChannelIndex(String channelName) {
-        final Integer channelIndex = channelNameToIndex.get(channelName);
-        if (channelIndex != null) return channelIndex;
-        else throw new IllegalArgumentException("There is no channel with the name '"+channelName+"', " +
-                                                "the available channels are: " + Arrays.toString(channelNames.toArray()));
+    public float getPixel(int channelIndex, int x, int y) {
+        return data[(y * getWidth() + x) * getChannelCount() + channelIndex];
     }
 
     @Override
-    public int getChannelIndex(String channelName, int defaultValue) {
-        final Integer channelIndex = channelNameToIndex.get(channelName);
-        if (channelIndex != null) return channelIndex;
-        else return defaultValue;
-    }
-
-    public void setName(String name) {
-        ParameterChecker.checkNonEmptyString(name, "name");
-        this.name = name;
+    public void setPixel(int channelIndex, int x, int y, float value) {
+        data[(y * getWidth() + x) * getChannelCount() + channelIndex] = value;
     }
 
     @Override
-    public void setChannelNames(List<String> channelNames) {
-        ParameterChecker.checkNotNull(channelNames, "channelNames");
-        if (channelNames.size() != this.channelNames.size()) throw new IllegalArgumentException("New channel names must have same size as the existing ones.");
-
-        this.channelNames.clear();
-        this.channelNames.addAll(channelNames);
-        createChannelNamesLookup();
-    }
-
-    public float[] getData() {
-        return data;
+    public void getPixels(int x, int y, int areaWidth, int areaHeight,
+                          float[] target, int targetOffset, int pixelStride, int rowStride, int channelStride) {
+        final int channelCount = getChannelCount();
+        for (int j = 0; j < areaHeight; j++) {
+            final int dataIndex = ((y + j) * getWidth() + x) * channelCount;
+            final int targetIndex = targetOffset + j * rowStride;
+            if (pixelStride == channelCount && channelStride == 1) {
+                // Same layout, copy the whole row at once
+                System.arraycopy(data, dataIndex, target, targetIndex, areaWidth * channelCount);
+            }
+            else {
+                for (int i = 0; i < areaWidth; i++) {
+                    for (int c = 0; c < channelCount; c++) {
+                        target[targetIndex + i * pixelStride + c * channelStride] = data[dataIndex + i * channelCount + c];
+                    }
+                }
+            }
+        }
     }
 
     @Override
-    public float getPixel(String channel, int x, int y) {
-        return getPixel(getChannelIndex(channel), x, y);
+    public void setPixels(int x, int y, int areaWidth, int areaHeight,
+                          float[] source, int sourceOffset, int pixelStride, int rowStride, int channelStride) {
+        final int channelCount = getChannelCount();
+        for (int j = 0; j < areaHeight; j++) {
+            final int dataIndex = ((y + j) * getWidth() + x) * channelCount;
+            final int sourceIndex = sourceOffset + j * rowStride;
+            if (pixelStride == channelCount && channelStride == 1) {
+                // Same layout, copy the whole row at once
+                System.arraycopy(source, sourceIndex, data, dataIndex, areaWidth * channelCount);
+            }
+            else {
+                for (int i = 0; i < areaWidth; i++) {
+                    for (int c = 0; c < channelCount; c++) {
+                        data[dataIndex + i * channelCount + c] = source[sourceIndex + i * pixelStride + c * channelStride];
+                    }
+                }
+            }
+        }
     }
 
     @Override
-    public float getPixel(int channelIndex, int x, int y) {
-        return data[(y * width + x) * channelCount + channelIndex];
+    public int getPixelStride() {
+        return getChannelCount();
     }
 
     @Override
-    public int getChannelCount() {
-        return channelCount;
+    public int getRowStride() {
+        return getWidth() * getChannelCount();
     }
 
-    private void createChannelNamesLookup() {
-        channelNameToIndex.clear();
-        for (int i = 0; i < channelNames.size(); i++) {
-            channelNameToIndex.put(channelNames.get(i), i);
-        }
+    @Override
+    public int getChannelOffset(int channelIndex) {
+        return channelIndex;
     }
 
 }
@@ -0,0 +1,209 @@
+package org.rasterfun.picture;
+
+import org.rasterfun.utils.ParameterChecker;
+
+import java.util.*;
+
+/**
+ * Picture factory that reuses the data arrays of released pictures, to avoid allocating and garbage collecting
+ * large arrays when many pictures are rendered one after the other.
+ *
+ * Array lengths are rounded up to size buckets, so that an array can be reused for pictures of slightly different
+ * sizes, e.g. previews with different scales.  Buckets are spaced a quarter of a power of two apart,
+ * so at most a fifth of an array is unused.
+ *
+ * Released arrays are kept until the pooled memory exceeds the memory cap, after which the least recently
+ * released arrays are evicted and left for the garbage collector.
+ *
+ * Pictures are only returned to the pool when they are released, with releasePicture or
+ * PictureCalculations.releasePictures.  A released picture must not be used anymore, as its data
+ * will be overwritten by the next picture that gets the array.
+ * Thread safe.
+ */
+public final class PicturePool implements PictureFactory {
+
+    /**
+     * Default upper limit for the memory used by pooled arrays, 256 MB.
+     */
+    public static final long DEFAULT_MAX_POOLED_BYTES = 256L * 1024 * 1024;
+
+    /**
+     * Arrays smaller than this are rounded up to this length.
+     */
+    public static final int MIN_BUCKET_LENGTH = 1024;
+
+    private final long maxPooledBytes;
+
+    // Released arrays, least recently released first
+    private final LinkedList<float[]> pooledArrays = new LinkedList<float[]>();
+    private long pooledBytes = 0;
+
+    // Arrays that have been handed out and not released yet.  Arrays compare by identity, and are weakly
+    // referenced, so that pictures that are never released do not leak.
+    private final Map<float[], Boolean> usedArrays = new WeakHashMap<float[], Boolean>();
+
+    private int reuseCount = 0;
+    private int allocationCount = 0;
+
+    /**
+     * Creates a new pool with the default memory cap.
+     */
+    public PicturePool() {
+        this(DEFAULT_MAX_POOLED_BYTES);
+    }
+
+    /**
+     * @param maxPooledBytes the maximum memory to keep in released arrays, the least recently released arrays
+     *                       are evicted when it is exceeded.
+     */
+    public PicturePool(long maxPooledBytes) {
+        if (maxPooledBytes < 0) throw new IllegalArgumentException("The maxPooledBytes should not be negative, but was " + maxPooledBytes);
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    @Override
+    public Picture createPicture(String name, int width, int height, List<String> channelNames, boolean planar) {
+        ParameterChecker.checkNotNull(channelNames, "channelNames");
+        ParameterChecker.checkPositiveNonZeroInteger(width, "width");
+        ParameterChecker.checkPositiveNonZeroInteger(height, "height");
+        PictureBase.checkFitsInArray(width, height, channelNames.size());
+
+        final int valueCount = width * height * channelNames.size();
+        final float[] data = acquireArray(valueCount);
+
+        if (planar) return new PlanarPicture(name, width, height, channelNames, data);
+        else return new PictureImpl(name, width, height, channelNames, data);
+    }
+
+    /**
+     * Returns the data of the picture to the pool, if it was created by this pool and has not already been released.
+     * The picture must not be used after it has been released.
+     */
+    @Override
+    public void releasePicture(Picture picture) {
+        // Views share the data of the picture they are a part of
+        if (!(picture instanceof ArrayPicture) || picture instanceof PictureView) return;
+
+        final float[] data = ((ArrayPicture) picture).getData();
+
+        synchronized (this) {
+            // Ignore pictures created elsewhere, and pictures that are released twice
+            if (usedArrays.remove(data) == null) return;
+
+            pooledArrays.addLast(data);
+            pooledBytes += getBytes(data);
+            evictToMemoryCap();
+        }
+    }
+
+    /**
+     * Releases all the pictures in the collection, see releasePicture.  Null entries are ignored.
+     */
+    public void releasePictures(Collection<Picture> pictures) {
+        for (Picture picture : pictures) {
+            releasePicture(picture);
+        }
+    }
+
+    /**
+     * Drops all pooled arrays.
+     */
+    public synchronized void clear() {
+        pooledArrays.clear();
+        pooledBytes = 0;
+    }
+
+    /**
+     * @return memory used by the arrays currently in the pool, in bytes.
+     */
+    public synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    /**
+     * @return number of arrays currently in the pool.
+     */
+    public synchronized int getPooledArrayCount() {
+        return pooledArrays.size();
+    }
+
+    /**
+     * @return number of pictures that were created with a pooled array.
+     */
+    public synchronized int getReuseCount() {
+        return reuseCount;
+    }
+
+    /**
+     * @return number of pictures that were created with a newly allocated array.
+     */
+    public synchronized int getAllocationCount() {
+        return allocationCount;
+    }
+
+    /**
+     * @return the maximum memory to keep in released arrays.
+     */
+    public long getMaxPooledBytes() {
+        return maxPooledBytes;
+    }
+
+    /**
+     * @return the length of the arrays used for the specified number of values.
+     */
+    public static int getBucketLength(int valueCount) {
+        if (valueCount <= MIN_BUCKET_LENGTH) return MIN_BUCKET_LENGTH;
+
+        // Round up to the next quarter of a power of two
+        final int step = Integer.highestOneBit(valueCount - 1) / 4;
+        final long length = ((long) valueCount + step - 1) / step * step;
+        return length > Integer.MAX_VALUE ? valueCount : (int) length;
+    }
+
+    private float[] acquireArray(int valueCount) {
+        final int bucketLength = getBucketLength(valueCount);
+
+        float[] data = null;
+        synchronized (this) {
+            // Take the most recently released array of the right size, it is the most likely to still be in the cache
+            final Iterator<float[]> iterator = pooledArrays.descendingIterator();
+            while (iterator.hasNext()) {
+                final float[] pooledArray = iterator.next();
+                if (pooledArray.length == bucketLength) {
+                    iterator.remove();
+                    pooledBytes -= getBytes(pooledArray);
+                    data = pooledArray;
+                    break;
+                }
+            }
+
+            if (data != null) reuseCount++;
+            else allocationCount++;
+        }
+
+        if (data != null) {
+            // Clear earlier data, new pictures are expected to be empty
+            Arrays.fill(data, 0, valueCount, 0f);
+        }
+        else {
+            data = new float[bucketLength];
+        }
+
+        synchronized (this) {
+            usedArrays.put(data, Boolean.TRUE);
+        }
+
+        return data;
+    }
+
+    private void evictToMemoryCap() {
+        while (pooledBytes > maxPooledBytes && !pooledArrays.isEmpty()) {
+            pooledBytes -= getBytes(pooledArrays.removeFirst());
+        }
+    }
+
+    private static long getBytes(float[] data) {
+        return 4L * data.length;
+    }
+
+}
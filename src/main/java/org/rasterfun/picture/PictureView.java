@@ -0,0 +1,121 @@
+package org.rasterfun.picture;
+
+import org.rasterfun.utils.ParameterChecker;
+
+import java.util.List;
+
+/**
+ * Picture that shows a rectangular area and some or all of the channels of another picture, without copying anything.
+ * Reading and writing the view reads and writes the other picture.
+ *
+ * If the other picture is stored in a java array, use an ArrayPictureView instead, so that the view can be
+ * rendered to directly and drawn efficiently.
+ */
+public class PictureView extends PictureBase {
+
+    private final Picture source;
+    private final int offsetX;
+    private final int offsetY;
+    private final int[] sourceChannels;
+    private final boolean allSourceChannels;
+
+    /**
+     * Creates a view of an area of the source picture with all its channels.
+     *
+     * @param x left edge of the area in the source picture.
+     * @param y top edge of the area in the source picture.
+     */
+    public PictureView(String name, Picture source, int x, int y, int width, int height) {
+        this(name, source, x, y, width, height, source.getChannelNames());
+    }
+
+    /**
+     * Creates a view of an area of the source picture with the specified channels.
+     *
+     * @param x left edge of the area in the source picture.
+     * @param y top edge of the area in the source picture.
+     * @param sourceChannelNames names of the channels of the source picture to include, in the order they should have in the view.
+     */
+    public PictureView(String name, Picture source, int x, int y, int width, int height, List<String> sourceChannelNames) {
+        super(name, width, height, sourceChannelNames);
+        ParameterChecker.checkNotNull(source, "source");
+        ParameterChecker.checkNonNegativeInteger(x, "x");
+        ParameterChecker.checkNonNegativeInteger(y, "y");
+        if (x + width > source.getWidth() || y + height > source.getHeight()) throw new IllegalArgumentException(
+                "The area " + x + ", " + y + " of size " + width + " x " + height + " is outside the source picture " +
+                "of size " + source.getWidth() + " x " + source.getHeight());
+
+        this.source = source;
+        offsetX = x;
+        offsetY = y;
+
+        sourceChannels = new int[getChannelCount()];
+        boolean inSourceOrder = getChannelCount() == source.getChannelCount();
+        for (int i = 0; i < sourceChannels.length; i++) {
+            sourceChannels[i] = source.getChannelIndex(sourceChannelNames.get(i));
+            if (sourceChannels[i] != i) inSourceOrder = false;
+        }
+        allSourceChannels = inSourceOrder;
+    }
+
+    /**
+     * @return the picture that this is a view of.
+     */
+    public Picture getSource() {
+        return source;
+    }
+
+    /**
+     * @return left edge of the view in the source picture.
+     */
+    public int getOffsetX() {
+        return offsetX;
+    }
+
+    /**
+     * @return top edge of the view in the source picture.
+     */
+    public int getOffsetY() {
+        return offsetY;
+    }
+
+    /**
+     * @return index in the source picture of the specified channel of the view.
+     */
+    public int getSourceChannelIndex(int channelIndex) {
+        return sourceChannels[channelIndex];
+    }
+
+    @Override
+    public float getPixel(int channelIndex, int x, int y) {
+        return source.getPixel(sourceChannels[channelIndex], offsetX + x, offsetY + y);
+    }
+
+    @Override
+    public void setPixel(int channelIndex, int x, int y, float value) {
+        source.setPixel(sourceChannels[channelIndex], offsetX + x, offsetY + y, value);
+    }
+
+    @Override
+    public void getPixels(int x, int y, int areaWidth, int areaHeight,
+                          float[] target, int targetOffset, int pixelStride, int rowStride, int channelStride) {
+        if (allSourceChannels) {
+            source.getPixels(offsetX + x, offsetY + y, areaWidth, areaHeight, target, targetOffset, pixelStride, rowStride, channelStride);
+        }
+        else {
+            super.getPixels(x, y, areaWidth, areaHeight, target, targetOffset, pixelStride, rowStride, channelStride);
+        }
+    }
+
+    @Override
+    public void setPixels(int x, int y, int areaWidth, int areaHeight,
+                          float[] source, int sourceOffset, int pixelStride, int rowStride, int channelStride) {
+        if (allSourceChannels) {
+            this.source.setPixels(offsetX + x, offsetY + y, areaWidth, areaHeight, source, sourceOffset, pixelStride, rowStride, channelStride);
+        }
+        else {
+            super.setPixels(x, y, areaWidth, areaHeight, source, sourceOffset, pixelStride, rowStride, channelStride);
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+package org.rasterfun.picture;
+
+import java.util.List;
+
+/**
+ * Picture that stores each channel as a separate contiguous plane, one after the other in the float array.
+ * Code that reads or writes only some of the channels can then walk linearly through the data of those channels.
+ */
+public final class PlanarPicture extends PictureBase implements ArrayPicture {
+
+    private final int planeSize;
+    private final float data[];
+
+    public PlanarPicture(String name, int width, int height, List<String> channelNames) {
+        super(name, width, height, channelNames);
+        checkFitsInArray(width, height, getChannelCount());
+
+        this.planeSize = width * height;
+        this.data = new float[planeSize * getChannelCount()];
+    }
+
+    /**
+     * Creates a picture that uses an existing array for its data, e.g. one from a PicturePool.
+     * @param data array to store the data in, may be longer than needed.
+     */
+    public PlanarPicture(String name, int width, int height, List<String> channelNames, float[] data) {
+        super(name, width, height, channelNames);
+        checkFitsInArray(width, height, getChannelCount());
+        checkArrayLength(data, width * height * getChannelCount());
+
+        this.planeSize = width * height;
+        this.data = data;
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public float[] getData() {
+        return data;
+    }
+
+    @Override
+    public float getPixel(int channelIndex, int x, int y) {
+        return data[channelIndex * planeSize + y * getWidth() + x];
+    }
+
+    @Override
+    public void setPixel(int channelIndex, int x, int y, float value) {
+        data[channelIndex * planeSize + y * getWidth() + x] = value;
+    }
+
+    @Override
+    public void getPixels(int x, int y, int areaWidth, int areaHeight,
+                          float[] target, int targetOffset, int pixelStride, int rowStride, int channelStride) {
+        for (int c = 0; c < getChannelCount(); c++) {
+            for (int j = 0; j < areaHeight; j++) {
+                final int dataIndex = c * planeSize + (y + j) * getWidth() + x;
+                final int targetIndex = targetOffset + j * rowStride + c * channelStride;
+                if (pixelStride == 1) {
+                    // The values of the channel are next to each other in both, copy the row at once
+                    System.arraycopy(data, dataIndex, target, targetIndex, areaWidth);
+                }
+                else {
+                    for (int i = 0; i < areaWidth; i++) {
+                        target[targetIndex + i * pixelStride] = data[dataIndex + i];
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void setPixels(int x, int y, int areaWidth, int areaHeight,
+                          float[] source, int sourceOffset, int pixelStride, int rowStride, int channelStride) {
+        for (int c = 0; c < getChannelCount(); c++) {
+            for (int j = 0; j < areaHeight; j++) {
+                final int dataIndex = c * planeSize + (y + j) * getWidth() + x;
+                final int sourceIndex = sourceOffset + j * rowStride + c * channelStride;
+                if (pixelStride == 1) {
+                    // The values of the channel are next to each other in both, copy the row at once
+                    System.arraycopy(source, sourceIndex, data, dataIndex, areaWidth);
+                }
+                else {
+                    for (int i = 0; i < areaWidth; i++) {
+                        data[dataIndex + i] = source[sourceIndex + i * pixelStride];
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public int getPixelStride() {
+        return 1;
+    }
+
+    @Override
+    public int getRowStride() {
+        return getWidth();
+    }
+
+    @Override
+    public int getChannelOffset(int channelIndex) {
+        return channelIndex * planeSize;
+    }
+
+    /**
+     * @return number of values in the plane of each channel.
+     */
+    public int getPlaneSize() {
+        return planeSize;
+    }
+
+}
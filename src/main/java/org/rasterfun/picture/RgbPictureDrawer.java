@@ -6,6 +6,9 @@ import static org.rasterfun.utils.MathTools.map;
 /**
  * PictureDrawer that renders RGBA channels to a target image, replacing any missing color channel with the value channel,
  * or channel number 0 if no value channel is present.
+ *
+ * The source position of each destination column and row is calculated once per drawn area,
+ * so the loop over the pixels only does integer index arithmetic.
  */
 public class RgbPictureDrawer extends PictureDrawerBase {
 
@@ -14,11 +17,12 @@ public class RgbPictureDrawer extends PictureDrawerBase {
     private final float greyLevel2 = 0.66f;
 
     @Override
-    public void draw(int[] targetData, int targetW, int targetH,
-                     int destX1, int destY1, int destX2, int destY2,
-                     Picture source, 
-                     int sourceX1, int sourceY1, int sourceX2, int sourceY2,
-                     final boolean drawAlphaGrid) {
+    protected void drawArea(int[] targetData, int targetW, int targetH,
+                            int destX1, int destY1, int destX2, int destY2,
+                            Picture source,
+                            int sourceX1, int sourceY1, int sourceX2, int sourceY2,
+                            final boolean drawAlphaGrid,
+                            int clipX1, int clipY1, int clipX2, int clipY2) {
 
         final int greyValue1 = clamp((int) (255 * greyLevel1), 0, 255);
         final int greyValue2 = clamp((int) (255 * greyLevel2), 0, 255);
@@ -30,57 +34,132 @@ public class RgbPictureDrawer extends PictureDrawerBase {
         final int aIndex = source.getChannelIndex(Picture.ALPHA, defaultIndex);
         final int srcW = source.getWidth();
         final int srcH = source.getHeight();
-        final int srcChannelCount = source.getChannelCount();
-        final float[] srcData = source.getData();
+
+        // Destination area inside the target and the clip area
+        final int startX = Math.max(clamp(destX1, 0, targetW), clipX1);
+        final int startY = Math.max(clamp(destY1, 0, targetH), clipY1);
+        final int endX = Math.min(Math.min(destX2, targetW), clipX2);
+        final int endY = Math.min(Math.min(destY2, targetH), clipY2);
+        if (startX >= endX || startY >= endY) return;
+
+        // The source is drawn without scaling, so no coordinate mapping is needed
+        final boolean oneToOneX = destX2 - destX1 == sourceX2 - sourceX1;
+        final boolean oneToOneY = destY2 - destY1 == sourceY2 - sourceY1;
+
+        // Source column for each destination column, -1 for columns outside the source picture
+        final int columnCount = endX - startX;
+        final int[] sourceColumns = new int[columnCount];
+        int minSourceX = Integer.MAX_VALUE;
+        int maxSourceX = -1;
+        for (int i = 0; i < columnCount; i++) {
+            final int dx = startX + i;
+            final int sx = oneToOneX ? sourceX1 + dx - destX1 : (int) map(dx, destX1, destX2, sourceX1, sourceX2);
+            if (sx >= 0 && sx < srcW) {
+                sourceColumns[i] = sx;
+                minSourceX = Math.min(minSourceX, sx);
+                maxSourceX = Math.max(maxSourceX, sx);
+            }
+            else {
+                sourceColumns[i] = -1;
+            }
+        }
+        if (maxSourceX < 0) return;
+
+        // Layout of the source data.  Pictures that are not stored in an array are read a row at a time into a buffer.
+        final float[] srcData = source instanceof ArrayPicture ? ((ArrayPicture) source).getData() : null;
+        final float[] rowBuffer;
+        final int pixelStride;
+        final int rowStride;
+        final int rOffset, gOffset, bOffset, aOffset;
+        if (srcData != null) {
+            final ArrayPicture arraySource = (ArrayPicture) source;
+            rowBuffer = null;
+            pixelStride = arraySource.getPixelStride();
+            rowStride = arraySource.getRowStride();
+            rOffset = arraySource.getChannelOffset(rIndex);
+            gOffset = arraySource.getChannelOffset(gIndex);
+            bOffset = arraySource.getChannelOffset(bIndex);
+            aOffset = arraySource.getChannelOffset(aIndex);
+        }
+        else {
+            pixelStride = source.getChannelCount();
+            rowStride = 0;
+            rowBuffer = new float[(maxSourceX - minSourceX + 1) * pixelStride];
+            rOffset = rIndex - minSourceX * pixelStride;
+            gOffset = gIndex - minSourceX * pixelStride;
+            bOffset = bIndex - minSourceX * pixelStride;
+            aOffset = aIndex - minSourceX * pixelStride;
+        }
+
+        // Offset of each destination column in the source data, and its column in the alpha grid
+        final int[] columnOffsets = new int[columnCount];
+        final int[] gridColumns = new int[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            columnOffsets[i] = sourceColumns[i] < 0 ? -1 : sourceColumns[i] * pixelStride;
+            gridColumns[i] = ((startX + i - destX1) / transparencyGridSize) & 1;
+        }
 
         // Loop over the destination area
-        for (int dy = clamp(destY1, 0, targetH); dy < destY2 && dy < targetH; dy++) {
-            for (int dx = clamp(destX1, 0, targetW); dx < destX2 && dx < targetW; dx++) {
-
-                // Map destination position to source position
-                final int sx = (int) map(dx, destX1, destX2, sourceX1, sourceX2);
-                final int sy = (int) map(dy, destY1, destY2, sourceY1, sourceY2);
-
-                // Check that we are inside the picture
-                if (sx >= 0 && sy >= 0 && sx < srcW && sy < srcH) {
-                    // Get the pixel values at the source
-                    int srcIndex = (sy * srcW + sx) * srcChannelCount;
-                    int r = (int) (srcData[srcIndex + rIndex] * 255 + 0.5f);
-                    int g = (int) (srcData[srcIndex + gIndex] * 255 + 0.5f);
-                    int b = (int) (srcData[srcIndex + bIndex] * 255 + 0.5f);
-                    int a = (int) (srcData[srcIndex + aIndex] * 255 + 0.5f);
-
-                    // Clamp Alpha
-                    if (a < 0) a = 0; else if (a > 255) a = 255;
-
-                    // Calculate alpha grid
-                    if (a < 255 && drawAlphaGrid) {
-                        // Calculate alpha grid value
-                        boolean darkGrid = ((((dx - destX1) / transparencyGridSize) & 1) ^
-                                            (((dy - destY1) / transparencyGridSize) & 1)) != 0;
-                        int gridValue = darkGrid ? greyValue1 : greyValue2;
-
-                        // Overlay colors on alpha grid with linear interpolation
-                        r = (255 * gridValue + a * (r - gridValue)) / 255;
-                        g = (255 * gridValue + a * (g - gridValue)) / 255;
-                        b = (255 * gridValue + a * (b - gridValue)) / 255;
-
-                        // Alpha is now solid
-                        a = 255;
-                    }
-
-                    // Clamp RGB
-                    if (r < 0) r = 0; else if (r > 255) r = 255;
-                    if (g < 0) g = 0; else if (g > 255) g = 255;
-                    if (b < 0) b = 0; else if (b > 255) b = 255;
-
-                    // Compose Java color and write it to target
-                    final int color = ((a & 0xFF) << 24) |
-                                      ((r & 0xFF) << 16) |
-                                      ((g & 0xFF) << 8)  |
-                                       (b & 0xFF);
-                    targetData[dy * targetW + dx] = color;
+        int bufferedRow = -1;
+        for (int dy = startY; dy < endY; dy++) {
+
+            // Map destination row to source row, and check that we are inside the picture
+            final int sy = oneToOneY ? sourceY1 + dy - destY1 : (int) map(dy, destY1, destY2, sourceY1, sourceY2);
+            if (sy < 0 || sy >= srcH) continue;
+
+            final float[] data;
+            final int rowOffset;
+            if (srcData != null) {
+                data = srcData;
+                rowOffset = sy * rowStride;
+            }
+            else {
+                // Scaled up pictures use the same source row for several destination rows
+                if (sy != bufferedRow) {
+                    source.getPixels(minSourceX, sy, maxSourceX - minSourceX + 1, 1, rowBuffer, 0, pixelStride, rowBuffer.length, 1);
+                    bufferedRow = sy;
                 }
+                data = rowBuffer;
+                rowOffset = 0;
+            }
+
+            final int gridRow = ((dy - destY1) / transparencyGridSize) & 1;
+            int targetIndex = dy * targetW + startX;
+            for (int i = 0; i < columnCount; i++, targetIndex++) {
+                final int columnOffset = columnOffsets[i];
+                if (columnOffset < 0) continue;
+
+                // Get the pixel values at the source
+                final int srcIndex = rowOffset + columnOffset;
+                int r = (int) (data[srcIndex + rOffset] * 255 + 0.5f);
+                int g = (int) (data[srcIndex + gOffset] * 255 + 0.5f);
+                int b = (int) (data[srcIndex + bOffset] * 255 + 0.5f);
+                int a = (int) (data[srcIndex + aOffset] * 255 + 0.5f);
+
+                // Clamp Alpha
+                if (a < 0) a = 0; else if (a > 255) a = 255;
+
+                // Calculate alpha grid
+                if (a < 255 && drawAlphaGrid) {
+                    // Calculate alpha grid value
+                    int gridValue = (gridColumns[i] ^ gridRow) != 0 ? greyValue1 : greyValue2;
+
+                    // Overlay colors on alpha grid with linear interpolation
+                    r = (255 * gridValue + a * (r - gridValue)) / 255;
+                    g = (255 * gridValue + a * (g - gridValue)) / 255;
+                    b = (255 * gridValue + a * (b - gridValue)) / 255;
+
+                    // Alpha is now solid
+                    a = 255;
+                }
+
+                // Clamp RGB
+                if (r < 0) r = 0; else if (r > 255) r = 255;
+                if (g < 0) g = 0; else if (g > 255) g = 255;
+                if (b < 0) b = 0; else if (b > 255) b = 255;
+
+                // Compose Java color and write it to target
+                targetData[targetIndex] = (a << 24) | (r << 16) | (g << 8) | b;
             }
         }
 
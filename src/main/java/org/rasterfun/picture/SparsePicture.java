@@ -0,0 +1,219 @@
+package org.rasterfun.picture;
+
+import org.rasterfun.utils.ParameterChecker;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Picture that divides its area into square tiles, and only allocates memory for a tile when a value that differs
+ * from the constant background value of its channel is written to it.  Untouched tiles share one constant tile.
+ * Uses memory in proportion to the covered area, e.g. for sprite atlases or masked generators that leave
+ * most of the picture empty.
+ *
+ * The channels of each pixel are stored next to each other within a tile.
+ * Renderers write to the picture one render tile at a time with setPixels, see RenderTileTask.
+ * Render tiles that only contain background values do not allocate anything.
+ */
+public final class SparsePicture extends PictureBase {
+
+    /**
+     * Default width and height of the tiles, the same as the render tiles.
+     */
+    public static final int DEFAULT_TILE_SIZE = 64;
+
+    private final int tileSize;
+    private final int tilesX;
+    private final int tilesY;
+    private final float[] backgroundValues;
+
+    // Shared by all tiles that have not been written to
+    private final float[] constantTile;
+
+    // Null for tiles that only contain background values
+    private final AtomicReferenceArray<float[]> tiles;
+
+    /**
+     * Creates a sparse picture with the default tile size and zero as the background value for all channels.
+     */
+    public SparsePicture(String name, int width, int height, List<String> channelNames) {
+        this(name, width, height, channelNames, DEFAULT_TILE_SIZE, new float[channelNames.size()]);
+    }
+
+    /**
+     * @param tileSize width and height of the tiles.
+     * @param backgroundValues the value of each channel in areas that have not been written to.
+     */
+    public SparsePicture(String name, int width, int height, List<String> channelNames, int tileSize, float[] backgroundValues) {
+        super(name, width, height, channelNames);
+        ParameterChecker.checkPositiveNonZeroInteger(tileSize, "tileSize");
+        ParameterChecker.checkNotNull(backgroundValues, "backgroundValues");
+        if (backgroundValues.length != getChannelCount()) throw new IllegalArgumentException("There should be a background value for each channel");
+        checkFitsInArray(tileSize, tileSize, getChannelCount());
+
+        this.tileSize = tileSize;
+        this.tilesX = (width + tileSize - 1) / tileSize;
+        this.tilesY = (height + tileSize - 1) / tileSize;
+        this.backgroundValues = backgroundValues.clone();
+        if ((long) tilesX * tilesY > Integer.MAX_VALUE) throw new IllegalArgumentException("Too many tiles, use a larger tile size");
+
+        constantTile = new float[tileSize * tileSize * getChannelCount()];
+        for (int i = 0; i < constantTile.length; i++) {
+            constantTile[i] = this.backgroundValues[i % getChannelCount()];
+        }
+
+        tiles = new AtomicReferenceArray<float[]>(tilesX * tilesY);
+    }
+
+    /**
+     * @return width and height of the tiles.
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * @return number of tiles that have been written to and have memory allocated.
+     */
+    public int getAllocatedTileCount() {
+        int count = 0;
+        for (int i = 0; i < tiles.length(); i++) {
+            if (tiles.get(i) != null) count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return memory used by the allocated tiles, in bytes.
+     */
+    public long getDataBytes() {
+        return 4L * constantTile.length * getAllocatedTileCount();
+    }
+
+    @Override
+    public float getPixel(int channelIndex, int x, int y) {
+        return getTileForReading(x / tileSize, y / tileSize)[getIndexInTile(x % tileSize, y % tileSize) + channelIndex];
+    }
+
+    @Override
+    public void setPixel(int channelIndex, int x, int y, float value) {
+        final int tileX = x / tileSize;
+        final int tileY = y / tileSize;
+        float[] tile = tiles.get(tileY * tilesX + tileX);
+        if (tile == null) {
+            // Setting the background value on a constant tile changes nothing
+            if (value == backgroundValues[channelIndex]) return;
+            tile = allocateTile(tileX, tileY);
+        }
+        tile[getIndexInTile(x % tileSize, y % tileSize) + channelIndex] = value;
+    }
+
+    @Override
+    public void getPixels(int x, int y, int areaWidth, int areaHeight,
+                          float[] target, int targetOffset, int pixelStride, int rowStride, int channelStride) {
+        final int channelCount = getChannelCount();
+        for (int j = 0; j < areaHeight; j++) {
+            final int row = y + j;
+            final int rowInTile = row % tileSize;
+            int i = 0;
+            while (i < areaWidth) {
+                // Copy the part of the row that is inside one tile
+                final int column = x + i;
+                final int tileX = column / tileSize;
+                final int count = Math.min(areaWidth - i, (tileX + 1) * tileSize - column);
+                final float[] tile = getTileForReading(tileX, row / tileSize);
+                int tileIndex = getIndexInTile(column % tileSize, rowInTile);
+                int pixelIndex = targetOffset + j * rowStride + i * pixelStride;
+                for (int n = 0; n < count; n++) {
+                    for (int c = 0; c < channelCount; c++) {
+                        target[pixelIndex + c * channelStride] = tile[tileIndex + c];
+                    }
+                    tileIndex += channelCount;
+                    pixelIndex += pixelStride;
+                }
+                i += count;
+            }
+        }
+    }
+
+    @Override
+    public void setPixels(int x, int y, int areaWidth, int areaHeight,
+                          float[] source, int sourceOffset, int pixelStride, int rowStride, int channelStride) {
+        if (areaWidth <= 0 || areaHeight <= 0) return;
+
+        // Handle the area one tile at a time, so that tiles only containing background values can be skipped
+        final int firstTileX = x / tileSize;
+        final int firstTileY = y / tileSize;
+        final int lastTileX = (x + areaWidth - 1) / tileSize;
+        final int lastTileY = (y + areaHeight - 1) / tileSize;
+        for (int tileY = firstTileY; tileY <= lastTileY; tileY++) {
+            for (int tileX = firstTileX; tileX <= lastTileX; tileX++) {
+                // Intersection of the area and the tile
+                final int startX = Math.max(x, tileX * tileSize);
+                final int startY = Math.max(y, tileY * tileSize);
+                final int endX = Math.min(x + areaWidth, (tileX + 1) * tileSize);
+                final int endY = Math.min(y + areaHeight, (tileY + 1) * tileSize);
+                final int intersectionOffset = sourceOffset + (startY - y) * rowStride + (startX - x) * pixelStride;
+
+                float[] tile = tiles.get(tileY * tilesX + tileX);
+                if (tile == null) {
+                    if (isBackground(source, intersectionOffset, endX - startX, endY - startY, pixelStride, rowStride, channelStride)) continue;
+                    tile = allocateTile(tileX, tileY);
+                }
+
+                copyToTile(tile, startX, startY, endX, endY, source, intersectionOffset, pixelStride, rowStride, channelStride);
+            }
+        }
+    }
+
+    private boolean isBackground(float[] source, int sourceOffset, int areaWidth, int areaHeight,
+                                 int pixelStride, int rowStride, int channelStride) {
+        final int channelCount = getChannelCount();
+        for (int j = 0; j < areaHeight; j++) {
+            int pixelIndex = sourceOffset + j * rowStride;
+            for (int i = 0; i < areaWidth; i++) {
+                for (int c = 0; c < channelCount; c++) {
+                    if (source[pixelIndex + c * channelStride] != backgroundValues[c]) return false;
+                }
+                pixelIndex += pixelStride;
+            }
+        }
+        return true;
+    }
+
+    private void copyToTile(float[] tile, int startX, int startY, int endX, int endY,
+                            float[] source, int sourceOffset, int pixelStride, int rowStride, int channelStride) {
+        final int channelCount = getChannelCount();
+        for (int row = startY; row < endY; row++) {
+            int tileIndex = getIndexInTile(startX % tileSize, row % tileSize);
+            int pixelIndex = sourceOffset + (row - startY) * rowStride;
+            for (int column = startX; column < endX; column++) {
+                for (int c = 0; c < channelCount; c++) {
+                    tile[tileIndex + c] = source[pixelIndex + c * channelStride];
+                }
+                tileIndex += channelCount;
+                pixelIndex += pixelStride;
+            }
+        }
+    }
+
+    private float[] getTileForReading(int tileX, int tileY) {
+        final float[] tile = tiles.get(tileY * tilesX + tileX);
+        return tile != null ? tile : constantTile;
+    }
+
+    /**
+     * Allocates the tile, or returns the tile that another thread allocated at the same time.
+     */
+    private float[] allocateTile(int tileX, int tileY) {
+        final int tileIndex = tileY * tilesX + tileX;
+        final float[] newTile = constantTile.clone();
+        if (tiles.compareAndSet(tileIndex, null, newTile)) return newTile;
+        else return tiles.get(tileIndex);
+    }
+
+    private int getIndexInTile(int xInTile, int yInTile) {
+        return (yInTile * tileSize + xInTile) * getChannelCount();
+    }
+
+}
@@ -0,0 +1,38 @@
+package org.rasterfun.picture;
+
+import org.rasterfun.utils.ParameterChecker;
+
+import java.util.List;
+
+/**
+ * Creates pictures that only allocate memory for the tiles that are written to, see SparsePicture.
+ * The background value of all channels is zero.
+ */
+public final class SparsePictureFactory implements PictureFactory {
+
+    private final int tileSize;
+
+    public SparsePictureFactory() {
+        this(SparsePicture.DEFAULT_TILE_SIZE);
+    }
+
+    /**
+     * @param tileSize width and height of the tiles of the created pictures.
+     */
+    public SparsePictureFactory(int tileSize) {
+        ParameterChecker.checkPositiveNonZeroInteger(tileSize, "tileSize");
+        this.tileSize = tileSize;
+    }
+
+    @Override
+    public Picture createPicture(String name, int width, int height, List<String> channelNames, boolean planar) {
+        ParameterChecker.checkNotNull(channelNames, "channelNames");
+        return new SparsePicture(name, width, height, channelNames, tileSize, new float[channelNames.size()]);
+    }
+
+    @Override
+    public void releasePicture(Picture picture) {
+        // Nothing to reuse
+    }
+
+}
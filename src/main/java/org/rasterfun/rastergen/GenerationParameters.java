@@ -67,6 +67,11 @@ public class GenerationParameters {
                                                   "Any custom parameters to pass to the generator.  E.g. -P SpotSize=4.5 -P EyeColor=#2020D0")
     public Map<String, String> generatorParameters = new HashMap<String, String>();
 
+    @Parameter(names = {"-c", "--cache-dir"}, converter = FileConverter.class,
+               description = "Directory to store compiled generators in.  " +
+                             "Later runs with the same generators load them from there instead of compiling them again.")
+    public File cacheDirectory = null;
+
     @Parameter(required = true, converter = FileConverter.class,
                description = "Raster generator files to render to images.")
     public List<File> rasterGenFiles =  new ArrayList<File>();
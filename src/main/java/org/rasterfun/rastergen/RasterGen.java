@@ -1,6 +1,7 @@
 package org.rasterfun.rastergen;
 
 import com.beust.jcommander.JCommander;
+import org.rasterfun.core.compiler.RendererClassCache;
 
 import java.io.File;
 import java.util.HashMap;
@@ -61,6 +62,11 @@ public class RasterGen {
         else {
             throw new IllegalArgumentException("The specified file format '"+parameters.format+"' is not supported");
         }
+
+        // Reuse renderers compiled by earlier runs, if a cache directory was specified
+        if (parameters.cacheDirectory != null) {
+            RendererClassCache.getSharedCache().setCacheDirectory(parameters.cacheDirectory);
+        }
     }
 
     public void generateFiles() {
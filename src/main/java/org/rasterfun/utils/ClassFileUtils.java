@@ -0,0 +1,124 @@
+package org.rasterfun.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.rasterfun.utils.ParameterChecker.checkNotNull;
+
+/**
+ * Utilities for inspecting compiled java class files.
+ */
+public final class ClassFileUtils {
+
+    private static final int CLASS_FILE_MAGIC = 0xCAFEBABE;
+    private static final String CODE_ATTRIBUTE = "Code";
+
+    /**
+     * @return the bytecode sizes of the methods in the class file, by method name, in the order they are defined.
+     *         Methods without code (abstract or native) are not included.
+     *         If there are several overloaded methods with the same name, the largest size is returned.
+     */
+    public static Map<String, Integer> getMethodCodeSizes(byte[] classData) {
+        checkNotNull(classData, "classData");
+
+        try {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(classData));
+            if (in.readInt() != CLASS_FILE_MAGIC) throw new IllegalArgumentException("Not a java class file");
+            in.readUnsignedShort(); // Minor version
+            in.readUnsignedShort(); // Major version
+
+            final String[] utf8Constants = readConstantPool(in);
+
+            in.readUnsignedShort(); // Access flags
+            in.readUnsignedShort(); // This class
+            in.readUnsignedShort(); // Super class
+            skipFully(in, 2 * in.readUnsignedShort()); // Interfaces
+
+            // Fields
+            final int fieldCount = in.readUnsignedShort();
+            for (int i = 0; i < fieldCount; i++) {
+                skipFully(in, 6); // Access flags, name, descriptor
+                skipAttributes(in);
+            }
+
+            // Methods
+            final Map<String, Integer> codeSizes = new LinkedHashMap<String, Integer>();
+            final int methodCount = in.readUnsignedShort();
+            for (int i = 0; i < methodCount; i++) {
+                in.readUnsignedShort(); // Access flags
+                final String name = utf8Constants[in.readUnsignedShort()];
+                in.readUnsignedShort(); // Descriptor
+
+                final int attributeCount = in.readUnsignedShort();
+                for (int a = 0; a < attributeCount; a++) {
+                    final String attributeName = utf8Constants[in.readUnsignedShort()];
+                    final int attributeLength = in.readInt();
+                    if (CODE_ATTRIBUTE.equals(attributeName)) {
+                        in.readUnsignedShort(); // Max stack
+                        in.readUnsignedShort(); // Max locals
+                        final int codeLength = in.readInt();
+                        skipFully(in, attributeLength - 8);
+
+                        final Integer existingSize = codeSizes.get(name);
+                        if (existingSize == null || existingSize < codeLength) codeSizes.put(name, codeLength);
+                    }
+                    else {
+                        skipFully(in, attributeLength);
+                    }
+                }
+            }
+
+            return codeSizes;
+
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not parse the class file: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the utf8 entries of the constant pool, at their constant pool indexes.  Other entries are null.
+     */
+    private static String[] readConstantPool(DataInputStream in) throws IOException {
+        final int constantPoolCount = in.readUnsignedShort();
+        final String[] utf8Constants = new String[constantPoolCount];
+        for (int i = 1; i < constantPoolCount; i++) {
+            final int tag = in.readUnsignedByte();
+            switch (tag) {
+                case 1:  utf8Constants[i] = in.readUTF(); break; // Utf8
+                case 3:  // Integer
+                case 4:  skipFully(in, 4); break; // Float
+                case 5:  // Long
+                case 6:  skipFully(in, 8); i++; break; // Double, takes two entries
+                case 7:  // Class
+                case 8:  skipFully(in, 2); break; // String
+                case 9:  // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: skipFully(in, 4); break; // NameAndType
+                case 15: skipFully(in, 3); break; // MethodHandle
+                case 16: skipFully(in, 2); break; // MethodType
+                case 17: // Dynamic
+                case 18: skipFully(in, 4); break; // InvokeDynamic
+                case 19: // Module
+                case 20: skipFully(in, 2); break; // Package
+                default: throw new IOException("Unknown constant pool tag " + tag + " at index " + i);
+            }
+        }
+        return utf8Constants;
+    }
+
+    private static void skipAttributes(DataInputStream in) throws IOException {
+        final int attributeCount = in.readUnsignedShort();
+        for (int i = 0; i < attributeCount; i++) {
+            in.readUnsignedShort(); // Name
+            skipFully(in, in.readInt());
+        }
+    }
+
+    private static void skipFully(DataInputStream in, int byteCount) throws IOException {
+        if (in.skipBytes(byteCount) != byteCount) throw new IOException("Unexpected end of class file");
+    }
+}
@@ -33,6 +33,36 @@ public class ClassUtils {
         else throw new IllegalStateException("Unhandled type: " + value.getClass());
     }
 
+    /**
+     * @return the value of a constant string of the specified wrapped primitive type, as created by
+     *         wrappedPrimitiveTypeAsConstantString, or null if the string is not such a constant.
+     *         Only boolean, int, long, float and double constants are recognized.
+     */
+    public static Object parseConstantString(String constant, Class<?> type) {
+        checkNotNull(constant, "constant");
+        checkNotNull(type, "type");
+
+        Object value;
+        try {
+            if (Boolean.class.equals(type)) value = Boolean.valueOf(constant);
+            else if (Integer.class.equals(type)) value = Integer.valueOf(constant);
+            else if (Long.class.equals(type)) value = Long.valueOf(constant);
+            else if (Float.class.equals(type)) value = Float.valueOf(constant);
+            else if (Double.class.equals(type)) value = Double.valueOf(constant);
+            else return null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        // NaN and infinite values do not have a literal representation
+        if (value instanceof Float && (((Float) value).isNaN() || ((Float) value).isInfinite())) return null;
+        if (value instanceof Double && (((Double) value).isNaN() || ((Double) value).isInfinite())) return null;
+
+        // Only accept the exact representation, so that e.g. identifiers are not taken for booleans
+        if (wrappedPrimitiveTypeAsConstantString(value).equals(constant)) return value;
+        else return null;
+    }
+
     public static String getPrimitiveTypeNameOrNull(Class<?> type) {
         checkNotNull(type, "type");
 
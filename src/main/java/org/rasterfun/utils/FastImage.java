@@ -2,6 +2,7 @@ package org.rasterfun.utils;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.awt.image.DirectColorModel;
 import java.awt.image.MemoryImageSource;
 import java.util.Arrays;
@@ -76,12 +77,15 @@ public class FastImage {
         context.drawImage(image, 0, 0, null);
     }
 
+    /**
+     * @return a copy of the image, including the alpha of the colors in the buffer.
+     */
     public BufferedImage createBufferedImage() {
         BufferedImage buf = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
 
-        // TODO: Draw alpha pixels correctly
-
-        buf.getGraphics().drawImage(image, 0, 0, null);
+        // Copy the colors straight into the data of the image, without drawing through the toolkit
+        final int[] bufData = ((DataBufferInt) buf.getRaster().getDataBuffer()).getData();
+        System.arraycopy(imageData, 0, bufData, 0, imageData.length);
 
         return buf;
     }
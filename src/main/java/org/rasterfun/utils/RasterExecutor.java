@@ -1,23 +1,18 @@
 package org.rasterfun.utils;
 
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Executor service optimized for raster generation.
+ * Uses a work stealing fork join pool, so that render tasks can split themselves into tiles
+ * that idle threads pick up.
  * Provides a static instance for convenience.
  */
 public final class RasterExecutor {
 
-    private final int MAXIMUM_THREAD_POOL_SIZE = Runtime.getRuntime().availableProcessors() * 4;
-
-    private final ExecutorService executor = new ThreadPoolExecutor(
-            0, // Initial thread count
-            MAXIMUM_THREAD_POOL_SIZE, // Limit maximum threads, no much point in having much more threads than cores that can calculate them.
-            60L, TimeUnit.SECONDS, // Timeout until idle thread cleared
-            new LinkedBlockingQueue<Runnable>()); // Queue tasks when there are no free threads for them
+    // No much point in having more threads than cores that can calculate them.
+    private final ExecutorService executor = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
 
     private static RasterExecutor sharedInstance = new RasterExecutor();
 
@@ -73,5 +73,16 @@ public final class StringUtils {
         return sum;
     }
 
+    /**
+     * @return true if the string is a single java identifier.
+     */
+    public static boolean isIdentifier(String s) {
+        if (s == null || s.isEmpty() || !Character.isJavaIdentifierStart(s.charAt(0))) return false;
+        for (int i = 1; i < s.length(); i++) {
+            if (!Character.isJavaIdentifierPart(s.charAt(i))) return false;
+        }
+        return true;
+    }
+
 
 }
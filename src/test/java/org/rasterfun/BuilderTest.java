@@ -3,15 +3,53 @@ package org.rasterfun;
 import org.junit.Before;
 import org.junit.Test;
 import org.rasterfun.core.PictureCalculations;
+import org.rasterfun.core.Renderer;
 import org.rasterfun.core.compiler.CompilationException;
+import org.rasterfun.core.compiler.CompilerBackend;
 import org.rasterfun.core.compiler.RendererBuilder;
+import org.rasterfun.core.compiler.RendererClassCache;
+import org.rasterfun.core.compiler.SourceLocation;
+import org.rasterfun.core.listeners.CalculationListener;
 import org.rasterfun.core.listeners.PictureCalculationsListener;
 import org.rasterfun.core.listeners.PictureCalculationsListenerAdapter;
+import org.rasterfun.core.tasks.CompileTask;
+import org.rasterfun.core.tasks.RenderTask;
+import org.rasterfun.core.tasks.RenderTileTask;
+import org.rasterfun.picture.ArrayPicture;
+import org.rasterfun.picture.ArrayPictureView;
+import org.rasterfun.picture.ChannelFormat;
+import org.rasterfun.picture.CompactPicture;
+import org.rasterfun.picture.CompactPictureFactory;
+import org.rasterfun.picture.MappedPicture;
+import org.rasterfun.picture.MappedPictureFactory;
+import org.rasterfun.picture.MipPyramid;
+import org.rasterfun.picture.OffHeapPicture;
 import org.rasterfun.picture.Picture;
+import org.rasterfun.picture.PictureImages;
+import org.rasterfun.picture.PictureFactory;
+import org.rasterfun.picture.PictureImpl;
+import org.rasterfun.picture.PicturePool;
+import org.rasterfun.picture.PictureView;
+import org.rasterfun.picture.RgbPictureDrawer;
+import org.rasterfun.picture.SparsePicture;
+import org.rasterfun.picture.SparsePictureFactory;
+import org.rasterfun.picture.PlanarPicture;
 import org.rasterfun.utils.RasterExecutor;
 
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -185,6 +223,858 @@ public class BuilderTest {
         assertTrue("The calculation should have stopped now", calculation.isDone());
     }
 
+    @Test
+    public void testIdenticalSourceIsCompiledOnce() throws CompilationException {
+        final RendererClassCache classCache = new RendererClassCache(8);
+
+        // Create two builders with the same source, but different parameter values
+        final RendererBuilder builder1 = createParameterBuilder(classCache, 3f);
+        final RendererBuilder builder2 = createParameterBuilder(classCache, 7f);
+
+        final Renderer renderer1 = builder1.compilePixelCalculator();
+        final Renderer renderer2 = builder2.compilePixelCalculator();
+
+        assertEquals("The source should be the same", builder1.getSource(), builder2.getSource());
+        assertEquals("Only one class should have been compiled", 1, classCache.size());
+        assertSame("The renderers should share the compiled class", renderer1.getClass(), renderer2.getClass());
+        assertNotSame("The renderers should be separate instances", renderer1, renderer2);
+
+        // Check that the renderers use their own parameters
+        final float[] data = new float[1];
+        renderer1.calculatePixels(1, 1, new String[]{"value"}, data, 0, 0, 1, 1, null, 0);
+        assertEquals("The first renderer should use its own parameter", 3f, data[0], 0.0001);
+        renderer2.calculatePixels(1, 1, new String[]{"value"}, data, 0, 0, 1, 1, null, 0);
+        assertEquals("The second renderer should use its own parameter", 7f, data[0], 0.0001);
+    }
+
+    @Test
+    public void testWaitingForCompilationDoesNotBlockForkJoinPool() throws Exception {
+        final RendererClassCache classCache = new RendererClassCache(8);
+        final String source = "package org.rasterfun.test; public class Waiting {}";
+        final String className = "org.rasterfun.test.Waiting";
+        final CountDownLatch poolRanOtherTask = new CountDownLatch(1);
+
+        // Compile in a thread outside the pool, until a task queued in the pool has run
+        final Callable<Map<String, byte[]>> bytecodeGenerator = new Callable<Map<String, byte[]>>() {
+            @Override
+            public Map<String, byte[]> call() throws Exception {
+                assertTrue("The pool should run other tasks while a worker waits", poolRanOtherTask.await(10, TimeUnit.SECONDS));
+                return RendererClassCache.compileToBytecode(source);
+            }
+        };
+        final FutureTask<RendererClassCache.CompiledClass> compilation = new FutureTask<RendererClassCache.CompiledClass>(new Callable<RendererClassCache.CompiledClass>() {
+            @Override
+            public RendererClassCache.CompiledClass call() throws Exception {
+                return classCache.compile(source, className, "Waiting", bytecodeGenerator);
+            }
+        });
+        new Thread(compilation).start();
+        while (classCache.size() == 0) {
+            Thread.sleep(1);
+        }
+
+        // The only worker of the pool waits for the same class, the pool should start another worker for the next task
+        final ForkJoinPool pool = new ForkJoinPool(1);
+        try {
+            final ForkJoinTask<Class<?>> waitingTask = pool.submit(new Callable<Class<?>>() {
+                @Override
+                public Class<?> call() throws Exception {
+                    return classCache.compile(source, className, "Waiting", bytecodeGenerator).getCompiledClass();
+                }
+            });
+            pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    poolRanOtherTask.countDown();
+                }
+            });
+
+            assertEquals(className, compilation.get().getCompiledClass().getName());
+            assertSame("The waiting worker should get the same class", compilation.get().getCompiledClass(), waitingTask.get());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testBytecodeCachedOnDisk() throws Exception {
+        final File cacheDirectory = File.createTempFile("rendererCache", "");
+        assertTrue(cacheDirectory.delete());
+
+        try {
+            // Compile with one cache
+            final RendererClassCache firstRunCache = new RendererClassCache(8);
+            firstRunCache.setCacheDirectory(cacheDirectory);
+            createParameterBuilder(firstRunCache, 3f).compilePixelCalculator();
+
+            final File[] cacheFiles = cacheDirectory.listFiles();
+            assertEquals("The compiled renderer should have been stored", 1, cacheFiles.length);
+
+            // Mark the file with an old timestamp, so that any rewrite of it can be detected
+            final File cacheFile = cacheFiles[0];
+            final long markedTime = 1000000000L;
+            assertTrue(cacheFile.setLastModified(markedTime));
+            final long storedLength = cacheFile.length();
+
+            // Load with another cache using the same directory, as a later program run would
+            final RendererClassCache secondRunCache = new RendererClassCache(8);
+            secondRunCache.setCacheDirectory(cacheDirectory);
+            final Renderer renderer = createParameterBuilder(secondRunCache, 5f).compilePixelCalculator();
+
+            final float[] data = new float[1];
+            renderer.calculatePixels(1, 1, new String[]{"value"}, data, 0, 0, 1, 1, null, 0);
+            assertEquals("The loaded renderer should work", 5f, data[0], 0.0001);
+            assertEquals("No new files should have been stored", 1, cacheDirectory.listFiles().length);
+            assertEquals("The stored renderer should have been loaded, not compiled and stored again",
+                         markedTime, cacheFile.lastModified());
+            assertEquals(storedLength, cacheFile.length());
+        } finally {
+            for (File file : cacheDirectory.listFiles()) {
+                file.delete();
+            }
+            cacheDirectory.delete();
+        }
+    }
+
+    @Test
+    public void testLargePixelCalculationIsSplit() throws CompilationException {
+        final RendererBuilder builder = new RendererBuilder("TestPic", 3, 2, channelsList("value", "other"), channelsList(), 0, 1);
+        final RendererClassCache classCache = new RendererClassCache(10);
+        builder.setClassCache(classCache);
+
+        // Create a pixel calculation too large to fit in one method
+        final int variableCount = 3000;
+        builder.addVariable(SourceLocation.AT_PIXEL, "v0", "x");
+        for (int i = 1; i < variableCount; i++) {
+            builder.addVariable(SourceLocation.AT_PIXEL, "v" + i, "v" + (i - 1) + " * 0.5f + 1f + y");
+            if (i == variableCount / 2) builder.addChannelAssignment("other", "v" + i + " - v0");
+        }
+        builder.addChannelAssignment("value", "v" + (variableCount - 1) + " + v0");
+
+        final Renderer renderer = builder.compilePixelCalculator();
+
+        // Check that the methods can be JIT compiled
+        final Map<String, Integer> methodSizes = builder.getMethodSizes();
+        assertTrue("The pixel calculation should have been split", methodSizes.size() > 4);
+        for (Map.Entry<String, Integer> entry : methodSizes.entrySet()) {
+            assertTrue("The method " + entry.getKey() + " should not be too large, but was " + entry.getValue() + " bytes",
+                       entry.getValue() <= RendererBuilder.HUGE_METHOD_LIMIT);
+        }
+        assertEquals("Only the split class should be cached", 1, classCache.size());
+
+        // Check that the calculation still works
+        final float[] data = new float[3 * 2 * 2];
+        renderer.calculatePixels(3, 2, new String[]{"value", "other"}, data, 0, 0, 3, 2, null, 0);
+        for (int y = 0; y < 2; y++) {
+            for (int x = 0; x < 3; x++) {
+                float v = x;
+                float other = 0;
+                for (int i = 1; i < variableCount; i++) {
+                    v = v * 0.5f + 1f + y;
+                    if (i == variableCount / 2) other = v - x;
+                }
+                final int index = (y * 3 + x) * 2;
+                assertEquals("The value channel should be correct", v + x, data[index], 0.0001);
+                assertEquals("The other channel should be correct", other, data[index + 1], 0.0001);
+            }
+        }
+
+        // The bytecode backend leaves the calculation to the source compilation, which splits it right away
+        final RendererClassCache bytecodeClassCache = new RendererClassCache(10);
+        builder.setClassCache(bytecodeClassCache);
+        builder.setCompilerBackend(CompilerBackend.BYTECODE);
+        builder.compilePixelCalculator();
+        assertEquals(CompilerBackend.JANINO, builder.getUsedCompilerBackend());
+        assertTrue(builder.getCompilerBackendFallbackReason().contains("split into several methods"));
+        assertEquals("Only the split class should be cached", 1, bytecodeClassCache.size());
+    }
+
+    @Test
+    public void testRendererWithOnlyBasicMethods() {
+        // A renderer written before pixel steps and data layouts existed
+        final Renderer renderer = new Renderer() {
+            @Override
+            public void calculatePixels(int width, int height, String[] channelNames, float[] pixelData,
+                                        int startX, int startY, int endX, int endY,
+                                        CalculationListener listener, int calculatorIndex) {
+                for (int y = startY; y < endY; y++) {
+                    for (int x = startX; x < endX; x++) {
+                        pixelData[(y * width + x) * 2] = x;
+                        pixelData[(y * width + x) * 2 + 1] = y;
+                    }
+                }
+            }
+
+            @Override
+            public void stop() {
+            }
+        };
+        assertFalse(renderer.isPlanar());
+
+        // Render the second pass of a 4 x 3 tile at 2, 1 into a scratch array holding only the tile
+        final float[] tile = new float[4 * 3 * 2];
+        final int dataOffset = -(1 * 4 + 2) * 2;
+        renderer.calculatePixels(10, 5, new String[]{"xs", "ys"}, tile, dataOffset, 4 * 2, 1, 2, 1, 6, 4, 1, true, null, 0);
+        assertEquals("Pixels on the finer grid should be calculated", 3f, tile[(1 * 4 + 1) * 2], 0.0001);
+        assertEquals("Pixels on the finer grid should be calculated", 3f, tile[(2 * 4 + 1) * 2 + 1], 0.0001);
+        assertEquals("Pixels on the coarser grid should be skipped", 0f, tile[(1 * 4 + 0) * 2], 0.0001);
+    }
+
+    @Test
+    public void testTiledRendering() throws CompilationException {
+        rendererBuilder = new RendererBuilder("TestPic", 37, 23, channelsList("xs", "ys"), channelsList(), 0, 1);
+        rendererBuilder.addChannelAssignment("xs", "x");
+        rendererBuilder.addChannelAssignment("ys", "y");
+        final Renderer renderer = rendererBuilder.compilePixelCalculator();
+
+        // Render in small tiles with several threads
+        final float[] data = new float[37 * 23 * 2];
+        final int[] completedPixels = {0};
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        pool.invoke(new RenderTileTask(renderer, 37, 23, new String[]{"xs", "ys"}, data, 0, 0, 37, 23, 16,
+                                       new CalculationListener() {
+                                           @Override
+                                           public synchronized void onCalculationProgress(int calculationIndex, int completed) {
+                                               completedPixels[0] += completed;
+                                           }
+
+                                           @Override
+                                           public void onPictureSliceReady(int calculationIndex, int pictureIndex, Picture picture, boolean isPreview) {
+                                           }
+
+                                           @Override
+                                           public void onError(int calculationIndex, String shortSummary, String longDescription, Throwable cause) {
+                                           }
+                                       }, 0));
+        pool.shutdown();
+
+        assertEquals("All pixels should have been reported as completed", 37 * 23, completedPixels[0]);
+        for (int y = 0; y < 23; y++) {
+            for (int x = 0; x < 37; x++) {
+                assertEquals("xs should be correct at " + x + ", " + y, x, data[(y * 37 + x) * 2], 0.0001);
+                assertEquals("ys should be correct at " + x + ", " + y, y, data[(y * 37 + x) * 2 + 1], 0.0001);
+            }
+        }
+    }
+
+    @Test
+    public void testCompileTaskStartsRenderTasks() throws Exception {
+        // Compiles, and then starts the render task with the compiled renderer
+        rendererBuilder = new RendererBuilder("TestPic", 4, 3, channelsList("xs"), channelsList(), 0, 1);
+        rendererBuilder.addChannelAssignment("xs", "x");
+        final Picture picture = new PictureImpl("TestPic", 4, 3, channelsList("xs"));
+        assertCompileTaskStartsRenderTask(rendererBuilder, picture, true);
+        assertPixelCorrect(picture, "xs", 3, 2, 3);
+
+        // Reports the error, and still starts the render task, which completes without rendering anything
+        rendererBuilder = new RendererBuilder("TestPic", 4, 3, channelsList("xs"), channelsList(), 0, 1);
+        rendererBuilder.addChannelAssignment("xs", "noSuchVariable");
+        final Picture failedPicture = new PictureImpl("TestPic", 4, 3, channelsList("xs"));
+        assertCompileTaskStartsRenderTask(rendererBuilder, failedPicture, false);
+        assertPixelCorrect(failedPicture, "xs", 3, 2, 0);
+    }
+
+    @Test
+    public void testStoppedCompileTaskDoesNotStartRenderTasks() throws Exception {
+        final List<Runnable> startedTasks = new ArrayList<Runnable>();
+        final Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                startedTasks.add(command);
+            }
+        };
+        rendererBuilder = new RendererBuilder("TestPic", 4, 3, channelsList("xs"), channelsList(), 0, 1);
+        rendererBuilder.addChannelAssignment("xs", "x");
+        final Picture picture = new PictureImpl("TestPic", 4, 3, channelsList("xs"));
+
+        final CompileTask compileTask = new CompileTask(0, rendererBuilder, null, executor);
+        final Future<Picture> renderFuture = compileTask.addRenderTask(new RenderTask(0, 0, false, 0, 3, picture, null));
+
+        // Nobody should need to wait for the compilation of a stopped task
+        compileTask.stop();
+        assertTrue("The waiting render task should be done when stopped", renderFuture.isDone());
+        assertTrue("The waiting render task should be cancelled", renderFuture.isCancelled());
+
+        assertNull("A stopped task should not compile", compileTask.call());
+        assertTrue("A stopped task should not start its render tasks", startedTasks.isEmpty());
+    }
+
+    private void assertCompileTaskStartsRenderTask(RendererBuilder builder, Picture picture, boolean compiles) throws Exception {
+        final List<Runnable> startedTasks = new ArrayList<Runnable>();
+        final Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                startedTasks.add(command);
+            }
+        };
+        final int[] readySlices = {0};
+        final int[] errors = {0};
+        final CalculationListener listener = new CalculationListener() {
+            @Override
+            public void onCalculationProgress(int calculationIndex, int completedPixels) {
+            }
+
+            @Override
+            public void onPictureSliceReady(int calculationIndex, int pictureIndex, Picture picture, boolean isPreview) {
+                readySlices[0]++;
+            }
+
+            @Override
+            public void onError(int calculationIndex, String shortSummary, String longDescription, Throwable cause) {
+                errors[0]++;
+            }
+        };
+
+        final CompileTask compileTask = new CompileTask(0, builder, listener, executor);
+        final Future<Picture> renderFuture = compileTask.addRenderTask(new RenderTask(0, 0, false, 0, 3, picture, listener));
+        assertTrue("The render task should not be started before the compilation", startedTasks.isEmpty());
+
+        final Renderer renderer = compileTask.call();
+        assertEquals("The renderer should be returned if the compilation succeeded", compiles, renderer != null);
+        assertEquals("An error should be reported only if the compilation failed", compiles ? 0 : 1, errors[0]);
+        assertEquals("The compile task should start its render task when done", 1, startedTasks.size());
+        assertFalse("The render task should not be done before it is run", renderFuture.isDone());
+
+        startedTasks.get(0).run();
+        assertSame("The render task should complete with its picture", picture, renderFuture.get());
+        assertEquals("The slice should be reported ready only if it was rendered", compiles ? 1 : 0, readySlices[0]);
+    }
+
+    @Test
+    public void testPlanarPictureCalculation() throws CompilationException {
+        rendererBuilder = new RendererBuilder("TestPic", 30, 20, channelsList("xs", "ys"), channelsList(), 0, 1);
+        rendererBuilder.addChannelAssignment("xs", "x");
+        rendererBuilder.addChannelAssignment("ys", "y");
+        rendererBuilder.setPlanar(true);
+
+        final PictureCalculations calculation = new PictureCalculations(rasterExecutor.getExecutor(), rendererBuilder);
+        calculation.setProgressive(true);
+        calculation.start(TEST_CALCULATION_INDEX);
+        final Picture result = calculation.getPicturesAndWait().get(0);
+
+        // Check that the channels are stored in separate planes
+        assertTrue("The picture should be planar", result instanceof PlanarPicture);
+        final PlanarPicture planarResult = (PlanarPicture) result;
+        assertEquals("Pixels of a channel should be next to each other", 1, planarResult.getPixelStride());
+        assertEquals("The second channel should start after the first", 30 * 20, planarResult.getChannelOffset(1));
+        final float[] data = planarResult.getData();
+        for (int y = 0; y < 20; y++) {
+            for (int x = 0; x < 30; x++) {
+                assertEquals("xs should be correct at " + x + ", " + y, x, data[y * 30 + x], 0.0001);
+                assertEquals("ys should be correct at " + x + ", " + y, y, data[30 * 20 + y * 30 + x], 0.0001);
+                assertPixelCorrect(result, "ys", x, y, y);
+            }
+        }
+    }
+
+    @Test
+    public void testOffHeapPictureCalculation() throws CompilationException {
+        rendererBuilder = new RendererBuilder("TestPic", 30, 20, channelsList("xs", "ys"), channelsList(), 0, 1);
+        rendererBuilder.addChannelAssignment("xs", "x");
+        rendererBuilder.addChannelAssignment("ys", "y");
+
+        // Use small buffers, so that the picture is split into several bands
+        final OffHeapPicture picture = new OffHeapPicture("TestPic", 30, 20, channelsList("xs", "ys"), 30 * 3);
+        assertEquals("The picture should be split into bands", 7, picture.getBandCount());
+
+        final List<Picture> pictures = new ArrayList<Picture>();
+        pictures.add(picture);
+        final PictureCalculations calculation = new PictureCalculations(rasterExecutor.getExecutor(),
+                                                                        Arrays.asList(rendererBuilder),
+                                                                        pictures,
+                                                                        new ArrayList<Picture>(),
+                                                                        false);
+        calculation.setProgressive(true);
+        calculation.start(TEST_CALCULATION_INDEX);
+        final Picture result = calculation.getPicturesAndWait().get(0);
+
+        assertSame("The passed in picture should be rendered to", picture, result);
+        for (int y = 0; y < 20; y++) {
+            for (int x = 0; x < 30; x++) {
+                assertPixelCorrect(result, "xs", x, y, x);
+                assertPixelCorrect(result, "ys", x, y, y);
+                assertEquals("Pixels should be readable with long indexes", y, picture.getPixel(1, (long) y * 30 + x), 0.0001);
+            }
+        }
+    }
+
+    @Test
+    public void testRenderToPictureViews() throws CompilationException {
+        final RendererBuilder leftBuilder = new RendererBuilder("Left", 20, 10, channelsList("xs", "ys"), channelsList(), 0, 1);
+        leftBuilder.addChannelAssignment("xs", "x");
+        leftBuilder.addChannelAssignment("ys", "y");
+        final RendererBuilder rightBuilder = new RendererBuilder("Right", 15, 10, channelsList("xs", "ys"), channelsList(), 0, 1);
+        rightBuilder.addChannelAssignment("xs", "x + 100");
+        rightBuilder.addChannelAssignment("ys", "y");
+
+        // Render two cells of an atlas picture directly into it
+        final PictureImpl atlas = new PictureImpl("Atlas", 40, 12, channelsList("xs", "ys"));
+        final List<Picture> cells = new ArrayList<Picture>();
+        cells.add(new ArrayPictureView("Left", atlas, 0, 1, 20, 10));
+        cells.add(new ArrayPictureView("Right", atlas, 22, 2, 15, 10));
+        final PictureCalculations calculation = new PictureCalculations(rasterExecutor.getExecutor(),
+                                                                        Arrays.asList(leftBuilder, rightBuilder),
+                                                                        cells,
+                                                                        new ArrayList<Picture>(),
+                                                                        false);
+        calculation.start(TEST_CALCULATION_INDEX);
+        final List<Picture> results = calculation.getPicturesAndWait();
+
+        assertSame("The views should be rendered to", cells.get(0), results.get(0));
+        assertSame("The views should be rendered to", cells.get(1), results.get(1));
+        assertPixelCorrect(atlas, "xs", 5, 1, 5);
+        assertPixelCorrect(atlas, "ys", 5, 1, 0);
+        assertPixelCorrect(atlas, "xs", 19, 10, 19);
+        assertPixelCorrect(atlas, "xs", 23, 3, 101);
+        assertPixelCorrect(atlas, "ys", 23, 3, 1);
+        assertPixelCorrect(atlas, "xs", 20, 5, 0);
+        assertPixelCorrect(atlas, "xs", 5, 0, 0);
+
+        // A view with some of the channels
+        final Picture ysView = new PictureView("Ys", atlas, 22, 2, 15, 10, channelsList("ys"));
+        assertEquals(1, ysView.getChannelCount());
+        assertPixelCorrect(ysView, "ys", 1, 1, 1);
+
+        // Render into a view with some of the channels of the atlas, it can not be rendered to directly
+        final RendererBuilder ysBuilder = new RendererBuilder("Ys", 15, 10, channelsList("ys"), channelsList(), 0, 1);
+        ysBuilder.addChannelAssignment("ys", "y + 50");
+        final List<Picture> ysViews = new ArrayList<Picture>();
+        ysViews.add(new ArrayPictureView("Ys", atlas, 22, 2, 15, 10, channelsList("ys")));
+        final PictureCalculations ysCalculation = new PictureCalculations(rasterExecutor.getExecutor(),
+                                                                          Arrays.asList(ysBuilder),
+                                                                          ysViews,
+                                                                          new ArrayList<Picture>(),
+                                                                          false);
+        ysCalculation.start(TEST_CALCULATION_INDEX);
+        assertSame("The channel view should be rendered to", ysViews.get(0), ysCalculation.getPicturesAndWait().get(0));
+        assertPixelCorrect(atlas, "ys", 23, 3, 51);
+        assertPixelCorrect(atlas, "ys", 36, 11, 59);
+        assertPixelCorrect(atlas, "xs", 23, 3, 101);
+        assertPixelCorrect(atlas, "ys", 5, 1, 0);
+
+        // Draw from a view
+        final PictureImpl values = new PictureImpl("Values", 4, 4, channelsList(Picture.VALUE));
+        values.setPixel(0, 3, 2, 1f);
+        final int[] target = new int[4];
+        new RgbPictureDrawer().draw(target, 2, 2, 0, 0, 2, 2, new ArrayPictureView("Corner", values, 2, 2, 2, 2), 0, 0, 2, 2, false);
+        assertEquals(0xFFFFFFFF, target[1]);
+        assertEquals(0, target[0]);
+    }
+
+    @Test
+    public void testDrawPicture() {
+        // Missing color channels are taken from the first channel
+        final Picture arrayPicture = new PictureImpl("Array", 4, 3, channelsList(Picture.RED, Picture.ALPHA));
+        final Picture offHeapPicture = new OffHeapPicture("OffHeap", 4, 3, channelsList(Picture.RED, Picture.ALPHA));
+        for (Picture picture : Arrays.asList(arrayPicture, offHeapPicture)) {
+            for (int y = 0; y < 3; y++) {
+                for (int x = 0; x < 4; x++) {
+                    picture.setPixel(0, x, y, (x + 4 * y) / 255f);
+                    picture.setPixel(1, x, y, 1f);
+                }
+            }
+
+            // One to one, partly outside the target
+            final int[] target = new int[3 * 2];
+            new RgbPictureDrawer().draw(target, 3, 2, -1, 0, 3, 3, picture, 0, 0, 4, 3, false);
+            assertEquals(0xFF010101, target[0]);
+            assertEquals(0xFF030303, target[2]);
+            assertEquals(0xFF050505, target[3]);
+
+            // Scaled up two times
+            final int[] scaled = new int[8 * 6];
+            new RgbPictureDrawer().draw(scaled, 8, 6, 0, 0, 8, 6, picture, 0, 0, 4, 3, false);
+            assertEquals(0xFF000000, scaled[0]);
+            assertEquals(0xFF000000, scaled[1 + 8]);
+            assertEquals(0xFF010101, scaled[2]);
+            assertEquals(0xFF0B0B0B, scaled[7 + 5 * 8]);
+        }
+    }
+
+    @Test
+    public void testDrawCompletedAreas() throws CompilationException {
+        rendererBuilder = new RendererBuilder("TestPic", 150, 100, channelsList("red", "green"), channelsList(), 0, 1);
+        rendererBuilder.addChannelAssignment("red", "x / 150f");
+        rendererBuilder.addChannelAssignment("green", "y / 100f");
+
+        // Draw each area as it is reported completed, in bands of rows drawn in parallel
+        final int[] target = new int[300 * 200];
+        final RgbPictureDrawer drawer = new RgbPictureDrawer();
+        final ForkJoinPool drawPool = new ForkJoinPool(3);
+        try {
+            drawer.setPool(drawPool);
+            drawer.setMinBandRows(4);
+            final int[] reportedPixels = new int[1];
+            final PictureCalculations calculation = new PictureCalculations(rasterExecutor.getExecutor(), rendererBuilder);
+            calculation.addListener(new PictureCalculationsListenerAdapter() {
+                @Override
+                public void onPictureAreaReady(int calculationIndex, int pictureIndex, Picture picture, int startX, int startY, int endX, int endY) {
+                    synchronized (target) {
+                        reportedPixels[0] += (endX - startX) * (endY - startY);
+                        drawer.drawChangedArea(target, 300, 200, 0, 0, 300, 200, picture, 0, 0, 150, 100, true,
+                                               startX, startY, endX, endY);
+                    }
+                }
+            });
+            calculation.start(TEST_CALCULATION_INDEX);
+            final Picture result = calculation.getPicturesAndWait().get(0);
+
+            synchronized (target) {
+                assertEquals("The reported areas should cover the picture", 150 * 100, reportedPixels[0]);
+
+                // Should be the same as drawing everything at once
+                final int[] expected = new int[300 * 200];
+                new RgbPictureDrawer().draw(expected, 300, 200, 0, 0, 300, 200, result, 0, 0, 150, 100);
+                assertArrayEquals(expected, target);
+            }
+        } finally {
+            drawPool.shutdown();
+        }
+    }
+
+    @Test
+    public void testCreateBufferedImage() {
+        final Picture picture = new PictureImpl("Colors", 3, 2, channelsList(Picture.RED, Picture.GREEN, Picture.BLUE, Picture.ALPHA));
+        picture.setPixel(0, 1, 0, 1f);
+        picture.setPixel(2, 1, 0, 0.5f);
+        picture.setPixel(3, 1, 0, 0.5f);
+        picture.setPixel(1, 2, 1, 1f);
+        picture.setPixel(3, 2, 1, 1f);
+
+        final BufferedImage image = PictureImages.createBufferedImage(picture);
+        assertEquals(BufferedImage.TYPE_INT_ARGB, image.getType());
+        assertEquals("Alpha should be kept", 0x80FF0080, image.getRGB(1, 0));
+        assertEquals(0xFF00FF00, image.getRGB(2, 1));
+        assertEquals(0, image.getRGB(0, 0));
+
+        // Wrapped data is shared with the image
+        final int[] data = new int[]{0x12345678, 0xFF000000};
+        final BufferedImage wrapped = PictureImages.wrapArgbData(data, 2, 1);
+        assertEquals(0x12345678, wrapped.getRGB(0, 0));
+        data[1] = 0xFF0000FF;
+        assertEquals(0xFF0000FF, wrapped.getRGB(1, 0));
+    }
+
+    @Test
+    public void testMappedPictureCalculation() throws Exception {
+        rendererBuilder = new RendererBuilder("TestPic", 30, 20, channelsList("xs", "ys"), channelsList(), 0, 1);
+        rendererBuilder.addChannelAssignment("xs", "x");
+        rendererBuilder.addChannelAssignment("ys", "y");
+
+        final File directory = new File(System.getProperty("java.io.tmpdir"), "rasterfun-test-" + System.nanoTime());
+        try {
+            // Render to a memory mapped file
+            final MappedPictureFactory factory = new MappedPictureFactory(directory);
+            final PictureCalculations calculation = new PictureCalculations(rasterExecutor.getExecutor(), rendererBuilder);
+            calculation.setPictureFactory(factory);
+            calculation.start(TEST_CALCULATION_INDEX);
+            final MappedPicture result = (MappedPicture) calculation.getPicturesAndWait().get(0);
+            result.flush();
+
+            // Open the file again and check the contents
+            final MappedPicture opened = MappedPicture.open(result.getFile(), true);
+            assertEquals("The name should be stored", "TestPic", opened.getName());
+            assertEquals("The width should be stored", 30, opened.getWidth());
+            assertEquals("The height should be stored", 20, opened.getHeight());
+            assertEquals("The channels should be stored", channelsList("xs", "ys"), opened.getChannelNames());
+            for (int y = 0; y < 20; y++) {
+                for (int x = 0; x < 30; x++) {
+                    assertPixelCorrect(opened, "xs", x, y, x);
+                    assertPixelCorrect(opened, "ys", x, y, y);
+                }
+            }
+
+            // Released pictures should not leave files behind, and their names should be reused
+            factory.releasePicture(result);
+            assertFalse("The file of a released picture should be deleted", result.getFile().exists());
+            final MappedPicture next = (MappedPicture) factory.createPicture("TestPic", 3, 2, channelsList("xs"), false);
+            assertEquals("The file name should be reused", result.getFile(), next.getFile());
+        } finally {
+            final File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testPicturesAreReleasedWhenOutOfMemory() {
+        final RendererBuilder secondBuilder = new RendererBuilder("Second", 30, 20, channelsList("xs"), channelsList(), 0, 1);
+        secondBuilder.addChannelAssignment("xs", "x");
+
+        // A factory that runs out of memory on the second picture
+        final List<Picture> released = new ArrayList<Picture>();
+        final PicturePool pool = new PicturePool();
+        final PictureFactory factory = new PictureFactory() {
+            private int createdCount = 0;
+
+            @Override
+            public Picture createPicture(String name, int width, int height, List<String> channelNames, boolean planar) {
+                if (createdCount++ > 0) throw new OutOfMemoryError("Test out of memory");
+                return pool.createPicture(name, width, height, channelNames, planar);
+            }
+
+            @Override
+            public void releasePicture(Picture picture) {
+                released.add(picture);
+                pool.releasePicture(picture);
+            }
+        };
+
+        final String[] error = new String[1];
+        final PictureCalculations calculation = new PictureCalculations(rasterExecutor.getExecutor(),
+                                                                        Arrays.asList(rendererBuilder, secondBuilder),
+                                                                        null, null, false);
+        calculation.setPictureFactory(factory);
+        calculation.addListener(new PictureCalculationsListenerAdapter() {
+            @Override
+            public void onError(int calculationIndex, String shortDescription, String longDescription, Throwable cause) {
+                error[0] = shortDescription;
+            }
+        });
+        calculation.start(TEST_CALCULATION_INDEX);
+
+        assertEquals("Not enough memory for pictures", error[0]);
+        assertEquals("The picture created before running out of memory should be released", 1, released.size());
+        assertEquals(1, pool.getPooledArrayCount());
+        assertTrue(calculation.getPictures().isEmpty());
+    }
+
+    @Test
+    public void testPooledPictures() throws CompilationException {
+        final PicturePool pool = new PicturePool();
+
+        // Render a picture with the pool and release it
+        final PictureCalculations firstCalculation = createPooledCalculation(pool, 40, 30);
+        final float[] firstData = ((ArrayPicture) firstCalculation.getPicturesAndWait().get(0)).getData();
+        firstCalculation.releasePictures();
+        assertEquals("The picture and preview arrays should be pooled", 2, pool.getPooledArrayCount());
+
+        // A slightly smaller picture should reuse the array
+        final PictureCalculations secondCalculation = createPooledCalculation(pool, 39, 30);
+        final Picture picture = secondCalculation.getPicturesAndWait().get(0);
+        assertSame("The array should be reused", firstData, ((ArrayPicture) picture).getData());
+        assertEquals("The picture and preview should both reuse arrays", 2, pool.getReuseCount());
+        assertPixelCorrect(picture, "xs", 38, 29, 38);
+        assertPixelCorrect(picture, "ys", 38, 29, 29);
+
+        // Releasing twice should not pool the array twice
+        secondCalculation.releasePictures();
+        pool.releasePicture(picture);
+        assertEquals("Arrays should only be pooled once", 2, pool.getPooledArrayCount());
+
+        // Pools with a small memory cap should evict released arrays
+        final PicturePool smallPool = new PicturePool(4 * 40 * 30 * 2);
+        createPooledCalculation(smallPool, 40, 30).releasePictures();
+        assertTrue("The memory cap should not be exceeded", smallPool.getPooledBytes() <= 4 * 40 * 30 * 2);
+        assertEquals("Only the preview array should fit in the pool", 1, smallPool.getPooledArrayCount());
+
+        // Pictures passed in belong to the caller, the calculation should only release the ones it created
+        final PicturePool callerPool = new PicturePool();
+        final Picture wrongSize = callerPool.createPicture("Supplied", 10, 10, channelsList("xs", "ys"), false);
+        final Picture supplied = callerPool.createPicture("Supplied", 40, 30, channelsList("xs", "ys"), false);
+        final PictureCalculations suppliedCalculation = createPooledCalculation(callerPool, 40, 30, Arrays.asList(supplied, wrongSize));
+        assertSame("The supplied picture should be rendered to", supplied, suppliedCalculation.getPicturesAndWait().get(0));
+        suppliedCalculation.releasePictures();
+        assertEquals("Only the created preview array should be pooled", 1, callerPool.getPooledArrayCount());
+
+        // A calculation reusing the pictures of an earlier one should release those that no longer fit
+        final PicturePool reusePool = new PicturePool();
+        final PictureCalculations earlierCalculation = createPooledCalculation(reusePool, 40, 30);
+        earlierCalculation.getPicturesAndWait();
+        final RendererBuilder resizedBuilder = new RendererBuilder("TestPic", 20, 10, channelsList("xs", "ys"), channelsList(), 0, 1);
+        resizedBuilder.addChannelAssignment("xs", "x");
+        resizedBuilder.addChannelAssignment("ys", "y");
+        final PictureCalculations resizedCalculation = new PictureCalculations(rasterExecutor.getExecutor(), Arrays.asList(resizedBuilder),
+                                                                               null, null, true, 0.5, 4);
+        resizedCalculation.reusePicturesOf(earlierCalculation);
+        resizedCalculation.start(TEST_CALCULATION_INDEX);
+        assertSame("The factory of the earlier calculation should be used", reusePool, resizedCalculation.getPictureFactory());
+        // The new picture or preview may already have taken one of the released arrays
+        final int pooledCount = reusePool.getPooledArrayCount();
+        assertEquals("The replaced picture and preview should be released", 2, pooledCount + reusePool.getReuseCount());
+        assertPixelCorrect(resizedCalculation.getPicturesAndWait().get(0), "xs", 19, 9, 19);
+
+        // The taken over pictures belong to the later calculation, so the earlier one should not release anything
+        earlierCalculation.releasePictures();
+        assertEquals(pooledCount, reusePool.getPooledArrayCount());
+        resizedCalculation.releasePictures();
+        assertEquals(pooledCount + 2, reusePool.getPooledArrayCount());
+    }
+
+    private PictureCalculations createPooledCalculation(PicturePool pool, int width, int height) {
+        return createPooledCalculation(pool, width, height, null);
+    }
+
+    private PictureCalculations createPooledCalculation(PicturePool pool, int width, int height, List<Picture> pictures) {
+        final RendererBuilder builder = new RendererBuilder("TestPic", width, height, channelsList("xs", "ys"), channelsList(), 0, 1);
+        builder.addChannelAssignment("xs", "x");
+        builder.addChannelAssignment("ys", "y");
+
+        final PictureCalculations calculation = new PictureCalculations(rasterExecutor.getExecutor(), Arrays.asList(builder),
+                                                                        pictures, null, true, 0.5, 4);
+        calculation.setPictureFactory(pool);
+        calculation.setPreviewFactory(pool);
+        calculation.start(TEST_CALCULATION_INDEX);
+        return calculation;
+    }
+
+    @Test
+    public void testCompactPictureCalculation() throws CompilationException {
+        rendererBuilder = new RendererBuilder("TestPic", 30, 20, channelsList("exact", "half", "unorm16", "unorm8"), channelsList(), 0, 1);
+        rendererBuilder.addChannelAssignment("exact", "x + 0.1f");
+        rendererBuilder.addChannelAssignment("half", "x + 0.1f");
+        rendererBuilder.addChannelAssignment("unorm16", "relX");
+        rendererBuilder.addChannelAssignment("unorm8", "relX * 2f - 0.5f");
+
+        final CompactPictureFactory factory = new CompactPictureFactory(ChannelFormat.FLOAT);
+        factory.setChannelFormat("half", ChannelFormat.HALF);
+        factory.setChannelFormat("unorm16", ChannelFormat.UNORM16);
+        factory.setChannelFormat("unorm8", ChannelFormat.UNORM8);
+
+        final PictureCalculations calculation = new PictureCalculations(rasterExecutor.getExecutor(), rendererBuilder);
+        calculation.setPictureFactory(factory);
+        calculation.start(TEST_CALCULATION_INDEX);
+        final CompactPicture result = (CompactPicture) calculation.getPicturesAndWait().get(0);
+
+        assertEquals("The reduced precision channels should use less memory", 30 * 20 * (4 + 2 + 2 + 1), result.getDataBytes());
+        for (int y = 0; y < 20; y++) {
+            for (int x = 0; x < 30; x++) {
+                final float relX = x / 29f;
+                assertPixelCorrect(result, "exact", x, y, x + 0.1f);
+                assertEquals("Half floats should be accurate to three digits", x + 0.1f, result.getPixel("half", x, y), 0.02);
+                assertEquals("16 bit values should be accurate", relX, result.getPixel("unorm16", x, y), 1.0 / 65535);
+                assertEquals("8 bit values should be accurate and clamped",
+                             Math.max(0, Math.min(1, relX * 2f - 0.5f)), result.getPixel("unorm8", x, y), 1.0 / 255);
+            }
+        }
+    }
+
+    @Test
+    public void testSparsePictureCalculation() throws CompilationException {
+        // Render a small stamp in a large, otherwise empty picture
+        rendererBuilder = new RendererBuilder("TestPic", 256, 256, channelsList("alpha"), channelsList(), 0, 1);
+        rendererBuilder.addChannelAssignment("alpha", "(x >= 10 && x < 20 && y >= 100 && y < 110) ? 1f : 0f");
+
+        final PictureCalculations calculation = new PictureCalculations(rasterExecutor.getExecutor(), rendererBuilder);
+        calculation.setPictureFactory(new SparsePictureFactory(32));
+        calculation.start(TEST_CALCULATION_INDEX);
+        final SparsePicture result = (SparsePicture) calculation.getPicturesAndWait().get(0);
+
+        assertEquals("Only the tile with the stamp should be allocated", 1, result.getAllocatedTileCount());
+        assertPixelCorrect(result, "alpha", 15, 105, 1);
+        assertPixelCorrect(result, "alpha", 20, 105, 0);
+        assertPixelCorrect(result, "alpha", 200, 200, 0);
+
+        // Writing a background value should not allocate anything, other values should
+        result.setPixel(0, 200, 200, 0f);
+        assertEquals("Background values should not allocate tiles", 1, result.getAllocatedTileCount());
+        result.setPixel(0, 200, 200, 0.5f);
+        assertEquals("Other values should allocate tiles", 2, result.getAllocatedTileCount());
+        assertPixelCorrect(result, "alpha", 200, 200, 0.5f);
+    }
+
+    @Test
+    public void testMipPyramidCalculation() throws CompilationException {
+        rendererBuilder = new RendererBuilder("TestPic", 150, 100, channelsList("xs", "ys"), channelsList(), 0, 1);
+        rendererBuilder.addChannelAssignment("xs", "x");
+        rendererBuilder.addChannelAssignment("ys", "y");
+
+        final PictureCalculations calculation = new PictureCalculations(rasterExecutor.getExecutor(), rendererBuilder);
+        calculation.setGenerateMipPyramids(true);
+        calculation.start(TEST_CALCULATION_INDEX);
+        final Picture result = calculation.getPicturesAndWait().get(0);
+        final MipPyramid pyramid = calculation.getMipPyramids().get(0);
+
+        assertEquals("Levels should go down to one pixel", 8, pyramid.getLevelCount());
+        assertEquals(75, pyramid.getLevelWidth(1));
+        assertEquals(50, pyramid.getLevelHeight(1));
+        assertEquals(9, pyramid.getLevelWidth(4));
+        assertEquals(6, pyramid.getLevelHeight(4));
+        assertEquals(1, pyramid.getLevelWidth(7));
+        assertEquals(1, pyramid.getLevelHeight(7));
+
+        // Box filtered values
+        assertEquals(6.5f, pyramid.getPixel(1, 0, 3, 2), 0.0001f);
+        assertEquals(4.5f, pyramid.getPixel(1, 1, 3, 2), 0.0001f);
+        assertEquals(49.5f, pyramid.getPixel(2, 0, 12, 7), 0.0001f);
+        assertEquals(29.5f, pyramid.getPixel(2, 1, 12, 7), 0.0001f);
+
+        // Downsampling tile by tile should give the same result as downsampling the completed picture
+        final MipPyramid expected = MipPyramid.calculate(result);
+        assertArrayEquals(expected.getData(), pyramid.getData(), 0f);
+    }
+
+    @Test
+    public void testHalfFloatConversion() {
+        assertEquals("One should convert exactly", (short) 0x3c00, ChannelFormat.floatToHalf(1f));
+        assertEquals("Negative values should keep the sign", (short) 0xc000, ChannelFormat.floatToHalf(-2f));
+        assertEquals("The largest half should convert exactly", (short) 0x7bff, ChannelFormat.floatToHalf(65504f));
+        assertEquals("Too large values should become infinite", (short) 0x7c00, ChannelFormat.floatToHalf(70000f));
+        assertEquals("The smallest subnormal should convert exactly", (short) 0x0001, ChannelFormat.floatToHalf(5.9604645E-8f));
+        assertEquals("Ties should round to even", (short) 0x3c00, ChannelFormat.floatToHalf(1f + 1f / 2048));
+        assertTrue("NaN should stay NaN", Float.isNaN(ChannelFormat.halfToFloat(ChannelFormat.floatToHalf(Float.NaN))));
+
+        // All finite halves should survive a round trip
+        for (int i = 0; i < 0x10000; i++) {
+            final short half = (short) i;
+            final float value = ChannelFormat.halfToFloat(half);
+            if (!Float.isNaN(value)) assertEquals("Round trip of " + i, half, ChannelFormat.floatToHalf(value));
+        }
+    }
+
+    @Test
+    public void testProgressiveCalculation() throws CompilationException {
+        rendererBuilder = new RendererBuilder("TestPic", 45, 30, channelsList("xs", "ys"), channelsList(), 0, 1);
+        rendererBuilder.addChannelAssignment("xs", "x");
+        rendererBuilder.addChannelAssignment("ys", "y");
+
+        final PictureCalculations calculation = new PictureCalculations(rasterExecutor.getExecutor(), rendererBuilder);
+        calculation.setProgressive(true);
+
+        final List<Integer> refinedSteps = new ArrayList<Integer>();
+        final float[] maxProgress = {0};
+        calculation.addListener(new PictureCalculationsListenerAdapter() {
+            @Override
+            public void onProgress(int calculationIndex, float progress) {
+                synchronized (maxProgress) {
+                    maxProgress[0] = Math.max(maxProgress[0], progress);
+                }
+            }
+
+            @Override
+            public void onPictureRefined(int calculationIndex, int pictureIndex, Picture picture, int pixelStep) {
+                // Pixels on the grid should be calculated, and the ones between copies of them
+                assertPixelCorrect(picture, "xs", 17, 13, 17 - 17 % pixelStep);
+                assertPixelCorrect(picture, "ys", 17, 13, 13 - 13 % pixelStep);
+                refinedSteps.add(pixelStep);
+            }
+        });
+        calculation.start();
+        final Picture result = calculation.getPicturesAndWait().get(0);
+
+        assertEquals("Each refinement should have been reported", Arrays.asList(8, 4, 2), refinedSteps);
+        assertNull("No separate preview should be rendered", calculation.getPreviews().get(0));
+        assertEquals("Each pixel should be calculated once", 1f, maxProgress[0], 0.0001);
+        for (int y = 0; y < 30; y++) {
+            for (int x = 0; x < 45; x++) {
+                assertPixelCorrect(result, "xs", x, y, x);
+                assertPixelCorrect(result, "ys", x, y, y);
+            }
+        }
+    }
+
+    private RendererBuilder createParameterBuilder(RendererClassCache classCache, float parameterValue) {
+        final RendererBuilder builder = new RendererBuilder("TestPic", 1, 1, channelsList("value"), channelsList(), 0, 1);
+        builder.setClassCache(classCache);
+        final String parameter = builder.addParameter("level", parameterValue, Float.class);
+        builder.addChannelAssignment("value", parameter);
+        return builder;
+    }
+
     private void delay(long millis) {
         try {
             Thread.sleep(millis);
@@ -2,19 +2,44 @@ package org.rasterfun;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.rasterfun.core.ParameterizedRenderer;
 import org.rasterfun.core.PictureCalculations;
+import org.rasterfun.core.Renderer;
+import org.rasterfun.core.compiler.CommonVariables;
+import org.rasterfun.core.compiler.CompilerBackend;
+import org.rasterfun.core.compiler.RendererClassCache;
+import org.rasterfun.core.compiler.RendererBuilder;
+import org.rasterfun.core.compiler.SourceLocation;
 import org.rasterfun.core.listeners.PictureCalculationsListener;
+import org.rasterfun.core.listeners.PictureCalculationsListenerAdapter;
+import org.rasterfun.effect.Effect;
+import org.rasterfun.effect.EffectBase;
 import org.rasterfun.effect.NoiseEffect;
 import org.rasterfun.effect.CompositeEffect;
+import org.rasterfun.effect.ScaleAddEffect;
+import org.rasterfun.effect.container.EffectContainer;
 import org.rasterfun.effect.variable.InputVariable;
+import org.rasterfun.effect.variable.OutputVariable;
+import org.rasterfun.effect.variable.VariableExpression;
 import org.rasterfun.generator.Generator;
 import org.rasterfun.generator.GeneratorListener;
+import org.rasterfun.generator.RenderSession;
 import org.rasterfun.generator.SimpleGenerator;
 import org.rasterfun.picture.Picture;
 import org.rasterfun.utils.RasterExecutor;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -283,11 +308,412 @@ public class GeneratorTest {
         assertEquals("Copy should not be modified by changes to the original", 99, noiseEffectCopy.getAmplitudeVar().getValue());
     }
 
+    @Test
+    public void testInvariantEffectsAreHoistedOutOfPixelLoop() throws Exception {
+        generator.setSize(10, 10);
+        generator.setChannels(channelsList("red", "green"));
+
+        // Depends only on constants
+        final ScaleAddEffect constantEffect = generator.addEffect(new ScaleAddEffect(2, 1));
+
+        // Depends on the y coordinate
+        final ScaleAddEffect lineEffect = generator.addEffect(new ScaleAddEffect(2));
+        lineEffect.in.setToVariable(CommonVariables.ABSOLUTE_Y);
+        lineEffect.offset.setToVariable(constantEffect.out);
+
+        // Depends on the x coordinate
+        final ScaleAddEffect pixelEffect = generator.addEffect(new ScaleAddEffect(1));
+        pixelEffect.in.setToVariable(CommonVariables.ABSOLUTE_X);
+        pixelEffect.offset.setToVariable(lineEffect.out);
+
+        generator.getEffectContainer().setChannelVar("red", lineEffect.out);
+        generator.getEffectContainer().setChannelVar("green", pixelEffect.out);
+
+        final RendererBuilder builder = generator.createBuilders().get(0);
+        builder.compilePixelCalculator();
+        final String source = builder.getSource();
+        final int beforeLine = source.indexOf("// BEFORE_LINE");
+        final int beforePixel = source.indexOf("// BEFORE_PIXEL");
+        assertTrue("Constant output should be calculated before the loops",
+                   source.indexOf(constantEffect.out.getCodeIdentifier() + " = ") < beforeLine);
+        final int lineVar = source.indexOf(lineEffect.out.getCodeIdentifier() + " = ");
+        assertTrue("Line dependent output should be calculated once per line", lineVar > beforeLine && lineVar < beforePixel);
+        assertTrue("Pixel dependent output should be calculated for each pixel",
+                   source.indexOf(pixelEffect.out.getCodeIdentifier() + " = ") > beforePixel);
+
+        // Check the results are still correct
+        final Picture picture = generator.generatePictures(rasterExecutor.getExecutor()).getPicturesAndWait().get(0);
+        assertEquals(2 * 7 + 1, picture.getPixel("red", 3, 7), 0.0001);
+        assertEquals(3 + 2 * 7 + 1, picture.getPixel("green", 3, 7), 0.0001);
+    }
+
+    @Test
+    public void testInertEffectsAreRemovedFromGeneratedCode() throws Exception {
+        generator.setSize(10, 10);
+        generator.setChannels(channelsList("red", "green"));
+
+        // Folds to a constant
+        final ScaleAddEffect constantEffect = generator.addEffect(new ScaleAddEffect(2, 1));
+
+        // Identity operation on the constant
+        final ScaleAddEffect identityEffect = generator.addEffect(new ScaleAddEffect(1, 0));
+        identityEffect.in.setToVariable(constantEffect.out);
+
+        // Used output
+        final ScaleAddEffect pixelEffect = generator.addEffect(new ScaleAddEffect(3));
+        pixelEffect.in.setToVariable(CommonVariables.ABSOLUTE_X);
+        pixelEffect.offset.setToVariable(identityEffect.out);
+
+        // Output that nothing reads
+        final ScaleAddEffect unusedEffect = generator.addEffect(new ScaleAddEffect(5));
+        unusedEffect.in.setToVariable(CommonVariables.ABSOLUTE_X);
+
+        // Writes to a temporary value channel that nothing reads
+        generator.addEffect(new NoiseEffect());
+
+        generator.getEffectContainer().setChannelVar("red", pixelEffect.out);
+
+        final RendererBuilder builder = generator.createBuilders().get(0);
+        builder.compilePixelCalculator();
+        final String source = builder.getSource();
+        assertFalse("Constant output should be folded", source.contains(constantEffect.out.getCodeIdentifier() + " = "));
+        assertFalse("Identity output should be removed", source.contains(identityEffect.out.getCodeIdentifier() + " = "));
+        assertTrue("Folded constant should be inlined", source.contains(pixelEffect.out.getCodeIdentifier() + " = xF * 3.0f + 1.0f"));
+        assertFalse("Unused output should be removed", source.contains("5.0f"));
+        assertFalse("Unread temporary channel should be removed", source.contains(RendererBuilder.CHANNEL_PREFIX + "value"));
+        assertFalse("Noise for the unread channel should not be calculated", source.contains("tilingNoise"));
+
+        // Check the results are still correct
+        final Picture picture = generator.generatePictures(rasterExecutor.getExecutor()).getPicturesAndWait().get(0);
+        assertEquals(3 * 3 + 1, picture.getPixel("red", 3, 7), 0.0001);
+    }
+
+    @Test
+    public void testConstantOutputsOfAnyEffectAreFolded() throws Exception {
+        generator.setSize(10, 10);
+        generator.setChannels(channelsList("red", "green"));
+
+        // Effects that build their expressions without folding anything themselves
+        final DifferenceEffect constantEffect = generator.addEffect(new DifferenceEffect(5, 2));
+        final DifferenceEffect chainedEffect = generator.addEffect(new DifferenceEffect(10, 0));
+        chainedEffect.b.setToVariable(constantEffect.out);
+
+        final ScaleAddEffect pixelEffect = generator.addEffect(new ScaleAddEffect(1));
+        pixelEffect.in.setToVariable(CommonVariables.ABSOLUTE_X);
+        pixelEffect.offset.setToVariable(chainedEffect.out);
+        generator.getEffectContainer().setChannelVar("red", pixelEffect.out);
+
+        final RendererBuilder builder = generator.createBuilders().get(0);
+        builder.compilePixelCalculator();
+        final String source = builder.getSource();
+        assertFalse("Constant output should be folded", source.contains(constantEffect.out.getCodeIdentifier() + " = "));
+        assertFalse("Output calculated from a folded output should be folded", source.contains(chainedEffect.out.getCodeIdentifier() + " = "));
+        assertEquals(7f, chainedEffect.out.getLiteralValue());
+        assertTrue("Folded constant should be inlined", source.contains(pixelEffect.out.getCodeIdentifier() + " = xF + 7.0f"));
+
+        // Check the results are still correct
+        final Picture picture = generator.generatePictures(rasterExecutor.getExecutor()).getPicturesAndWait().get(0);
+        assertEquals(3 + 7, picture.getPixel("red", 3, 7), 0.0001);
+    }
+
+    @Test
+    public void testSameNoiseIsCalculatedOnce() throws Exception {
+        generator.setSize(10, 10);
+        generator.setChannels(channelsList("red", "green"));
+
+        // Same noise with different amplitudes
+        final NoiseEffect noise = generator.addEffect(new NoiseEffect(42, 3));
+        final NoiseEffect strongerNoise = generator.addEffect(new NoiseEffect(42, 3, 0, 2));
+        generator.getEffectContainer().setChannelVar("red", noise.getOutput());
+        generator.getEffectContainer().setChannelVar("green", strongerNoise.getOutput());
+
+        final RendererBuilder builder = generator.createBuilders().get(0);
+        builder.compilePixelCalculator();
+        final String source = builder.getSource();
+        assertEquals("The noise should only be calculated once", source.indexOf("tilingNoise("), source.lastIndexOf("tilingNoise("));
+
+        // Check that both effects still get the noise
+        final Picture picture = generator.generatePictures(rasterExecutor.getExecutor()).getPicturesAndWait().get(0);
+        assertTrue("There should be some noise", picture.getPixel("red", 3, 7) != 0);
+        assertEquals(2 * picture.getPixel("red", 3, 7), picture.getPixel("green", 3, 7), 0.0001);
+    }
+
+    @Test
+    public void testBytecodeBackendRendersSameAsJanino() throws Exception {
+        generator.setSize(9, 7);
+        generator.setChannels(channelsList("red", "green", "blue"));
+        generator.setConstantsAsParameters(true);
+
+        final NoiseEffect noise = generator.addEffect(new NoiseEffect(42, 3));
+        final ScaleAddEffect effect = generator.addEffect(new ScaleAddEffect(2, 1));
+        effect.in.setToVariable(CommonVariables.ABSOLUTE_X);
+        generator.getEffectContainer().setChannelVar("red", noise.getOutput());
+        generator.getEffectContainer().setChannelVar("green", effect.out);
+
+        final float[] janinoData = renderWithBackend(CompilerBackend.JANINO);
+        final float[] bytecodeData = renderWithBackend(CompilerBackend.BYTECODE);
+        assertTrue("There should be some noise", janinoData[(3 * 9 + 4) * 3] != 0);
+        assertTrue("The renderers should calculate the same pixels", Arrays.equals(janinoData, bytecodeData));
+
+        // The classes of the two backends are cached separately
+        final RendererClassCache classCache = new RendererClassCache(10);
+        final RendererBuilder janinoBuilder = generator.createBuilders().get(0);
+        janinoBuilder.setClassCache(classCache);
+        janinoBuilder.compilePixelCalculator();
+        final RendererBuilder bytecodeBuilder = generator.createBuilders().get(0);
+        bytecodeBuilder.setClassCache(classCache);
+        bytecodeBuilder.setCompilerBackend(CompilerBackend.BYTECODE);
+        bytecodeBuilder.compilePixelCalculator();
+        assertEquals(CompilerBackend.BYTECODE, bytecodeBuilder.getUsedCompilerBackend());
+        assertEquals("Both classes should be cached", 2, classCache.size());
+        bytecodeBuilder.compilePixelCalculator();
+        assertEquals("The generated class should be reused", 2, classCache.size());
+
+        // Without constants as parameters, the parameter fields are final, and can not be updated
+        generator.setConstantsAsParameters(false);
+        final float[] finalJaninoData = renderWithBackend(CompilerBackend.JANINO);
+        final float[] finalBytecodeData = renderWithBackend(CompilerBackend.BYTECODE);
+        assertTrue("The renderers should calculate the same pixels with final parameters", Arrays.equals(finalJaninoData, finalBytecodeData));
+        final RendererBuilder finalBuilder = generator.createBuilders().get(0);
+        finalBuilder.setClassCache(null);
+        finalBuilder.compilePixelCalculator();
+        assertTrue("The source should declare final parameter fields", finalBuilder.getSource().contains("private final "));
+        generator.setConstantsAsParameters(true);
+
+        // Code that the bytecode generator does not understand is compiled from source instead
+        final RendererBuilder builder = generator.createBuilders().get(0);
+        builder.setClassCache(null);
+        builder.setCompilerBackend(CompilerBackend.BYTECODE);
+        builder.addPixelCalculationLine("channel_blue = (float) Math.sqrt(channel_green)");
+        builder.compilePixelCalculator();
+        assertEquals(CompilerBackend.JANINO, builder.getUsedCompilerBackend());
+        assertTrue(builder.getCompilerBackendFallbackReason().contains("Unstructured statement"));
+    }
+
+    @Test
+    public void testBytecodeBackendFallsBackToJanino() throws Exception {
+        generator.setSize(9, 7);
+        generator.setChannels(channelsList("red", "green", "blue"));
+        final ScaleAddEffect effect = generator.addEffect(new ScaleAddEffect(2, 1));
+        effect.in.setToVariable(CommonVariables.ABSOLUTE_X);
+        generator.getEffectContainer().setChannelVar("red", effect.out);
+
+        final RendererBuilder supportedBuilder = createBytecodeBuilder();
+        final float[] expectedData = render(supportedBuilder.compilePixelCalculator());
+        assertEquals(CompilerBackend.BYTECODE, supportedBuilder.getUsedCompilerBackend());
+        assertNull("Nothing should fall back when the bytecode backend is used", supportedBuilder.getCompilerBackendFallbackReason());
+
+        // Row kernels are only generated as source
+        generator.setRowKernels(true);
+        final RendererBuilder rowKernelBuilder = createBytecodeBuilder();
+        final Renderer rowKernelRenderer = rowKernelBuilder.compilePixelCalculator();
+        assertEquals(CompilerBackend.JANINO, rowKernelBuilder.getUsedCompilerBackend());
+        assertTrue(rowKernelBuilder.getCompilerBackendFallbackReason().contains("Row kernels"));
+        assertTrue(Arrays.equals(expectedData, render(rowKernelRenderer)));
+        generator.setRowKernels(false);
+
+        // Fields and methods are not generated as bytecode
+        final RendererBuilder fieldBuilder = createBytecodeBuilder();
+        fieldBuilder.addSourceLine(SourceLocation.FIELDS, "private float unused = 1f");
+        final Renderer fieldRenderer = fieldBuilder.compilePixelCalculator();
+        assertEquals(CompilerBackend.JANINO, fieldBuilder.getUsedCompilerBackend());
+        assertTrue(fieldBuilder.getCompilerBackendFallbackReason().contains("Fields and methods"));
+        assertTrue(Arrays.equals(expectedData, render(fieldRenderer)));
+
+        final RendererBuilder methodBuilder = createBytecodeBuilder();
+        methodBuilder.addSourceLine(SourceLocation.METHODS, "private static float half(float value) { return value * 0.5f; }");
+        methodBuilder.compilePixelCalculator();
+        assertEquals(CompilerBackend.JANINO, methodBuilder.getUsedCompilerBackend());
+        assertTrue(methodBuilder.getCompilerBackendFallbackReason().contains("Fields and methods"));
+    }
+
+    private RendererBuilder createBytecodeBuilder() throws Exception {
+        final RendererBuilder builder = generator.createBuilders().get(0);
+        builder.setClassCache(null);
+        builder.setCompilerBackend(CompilerBackend.BYTECODE);
+        return builder;
+    }
+
+    @Test
+    public void testInterpretedRendererRendersSameAsCompiled() throws Exception {
+        generator.setSize(9, 7);
+        generator.setChannels(channelsList("red", "green", "blue"));
+        generator.setConstantsAsParameters(true);
+
+        final NoiseEffect noise = generator.addEffect(new NoiseEffect(42, 3));
+        final ScaleAddEffect effect = generator.addEffect(new ScaleAddEffect(2, 1));
+        effect.in.setToVariable(CommonVariables.ABSOLUTE_X);
+        generator.getEffectContainer().setChannelVar("red", noise.getOutput());
+        generator.getEffectContainer().setChannelVar("green", effect.out);
+
+        final float[] compiledData = renderWithBackend(CompilerBackend.JANINO);
+        final Renderer interpretedRenderer = generator.createBuilders().get(0).createInterpretedRenderer();
+        assertNotNull("The code should be supported by the interpreter", interpretedRenderer);
+        final float[] interpretedData = render(interpretedRenderer);
+        assertTrue("The renderers should calculate the same pixels", Arrays.equals(compiledData, interpretedData));
+
+        // The whole calculation renders the same picture when it starts with the interpreter
+        final PictureCalculations calculation = generator.generatePicturesWithoutStarting(rasterExecutor.getExecutor(), null, null);
+        calculation.setInterpretWhileCompiling(true);
+        calculation.start();
+        final Picture picture = calculation.getPicturesAndWait().get(0);
+        assertEquals(compiledData[(3 * 9 + 4) * 3], picture.getPixel("red", 4, 3), 0.0001);
+        assertNotNull("The compiled renderer should be available for reuse", calculation.getRenderers().get(0));
+    }
+
+    @Test
+    public void testRowKernelsRenderSameAsScalar() throws Exception {
+        generator.setSize(9, 7);
+        generator.setChannels(channelsList("red", "green", "blue"));
+
+        final NoiseEffect noise = generator.addEffect(new NoiseEffect(42, 3));
+        final ScaleAddEffect effect = generator.addEffect(new ScaleAddEffect(2, 1));
+        effect.in.setToVariable(CommonVariables.ABSOLUTE_X);
+        generator.getEffectContainer().setChannelVar("red", noise.getOutput());
+        generator.getEffectContainer().setChannelVar("green", effect.out);
+
+        final float[] scalarData = renderWithBackend(CompilerBackend.JANINO);
+
+        generator.setRowKernels(true);
+        final RendererBuilder builder = generator.createBuilders().get(0);
+        builder.setClassCache(null);
+        final float[] rowKernelData = render(builder.compilePixelCalculator());
+        assertTrue("The pixel calculation should be done with row kernels", builder.getSource().contains("row kernels"));
+        assertTrue("The renderers should calculate the same pixels", Arrays.equals(scalarData, rowKernelData));
+    }
+
+    private float[] renderWithBackend(CompilerBackend backend) throws Exception {
+        final RendererBuilder builder = generator.createBuilders().get(0);
+        builder.setClassCache(null);
+        builder.setCompilerBackend(backend);
+        final Renderer renderer = builder.compilePixelCalculator();
+        assertEquals(backend, builder.getUsedCompilerBackend());
+        assertEquals("Only renderers with constants as parameters should have replaceable parameters",
+                     builder.isConstantsAsParameters(), renderer instanceof ParameterizedRenderer);
+        return render(renderer);
+    }
+
+    private float[] render(Renderer renderer) {
+        // Render a coarse pass and then the remaining pixels
+        final String[] channels = {"red", "green", "blue"};
+        final float[] data = new float[9 * 7 * 3];
+        renderer.calculatePixels(9, 7, channels, data, 0, 0, 9, 7, 2, false, null, 0);
+        renderer.calculatePixels(9, 7, channels, data, 0, 0, 9, 7, 1, true, null, 0);
+        return data;
+    }
+
+    @Test
+    public void testConstantChangeUpdatesRendererInPlace() throws Exception {
+        generator.setSize(4, 4);
+        generator.setChannels(channelsList("red"));
+        generator.setConstantsAsParameters(true);
+
+        final ScaleAddEffect effect = generator.addEffect(new ScaleAddEffect(2, 1));
+        effect.in.setToVariable(CommonVariables.ABSOLUTE_X);
+        generator.getEffectContainer().setChannelVar("red", effect.out);
+
+        final RendererBuilder firstBuilder = generator.createBuilders().get(0);
+        final Renderer renderer = firstBuilder.compilePixelCalculator();
+
+        // Change a constant and compile again, reusing the renderer
+        effect.scale.setValue(5f);
+        final RendererBuilder secondBuilder = generator.createBuilders().get(0);
+        final Renderer updatedRenderer = secondBuilder.compilePixelCalculator(renderer);
+
+        assertEquals("The source should not change when a constant changes", firstBuilder.getSource(), secondBuilder.getSource());
+        assertSame("The renderer should have been reused", renderer, updatedRenderer);
+
+        // Check that the new value is used
+        final float[] data = new float[4 * 4];
+        updatedRenderer.calculatePixels(4, 4, new String[]{"red"}, data, 0, 0, 4, 4, null, 0);
+        assertEquals("The updated constant should be used", 3 * 5 + 1, data[3], 0.0001);
+    }
+
+    @Test
+    public void testRenderSessionCoalescesChanges() throws Exception {
+        generator.setSize(40, 30);
+
+        final ManualScheduler scheduler = new ManualScheduler();
+        final List<Integer> readyRenders = new CopyOnWriteArrayList<Integer>();
+        final RenderSession session = new RenderSession(generator, rasterExecutor.getExecutor(), 100, scheduler);
+        session.addListener(new PictureCalculationsListenerAdapter() {
+            @Override
+            public void onReady(int calculationIndex, List<Picture> pictures) {
+                readyRenders.add(calculationIndex);
+            }
+        });
+
+        try {
+            // A burst of changes should postpone the render each time, and only result in one render
+            for (int i = 0; i < 10; i++) {
+                generator.setGeneratorSeed(i + 1);
+                assertEquals("Each change should reschedule the render", 1, scheduler.getPendingCount());
+            }
+            assertNull("Nothing should be rendered before the delay has passed", session.getCurrentCalculation());
+            scheduler.runPending();
+            final PictureCalculations firstCalculation = session.getCurrentCalculation();
+            firstCalculation.getPicturesAndWait();
+            assertEquals("The changes should have been coalesced into one render", Arrays.asList(1), readyRenders);
+
+            // A change after the render is done should reuse the picture
+            generator.setGeneratorSeed(1234);
+            scheduler.runPending();
+            final PictureCalculations secondCalculation = session.getCurrentCalculation();
+            secondCalculation.getPicturesAndWait();
+            assertEquals("The next render should be reported", Arrays.asList(1, 2), readyRenders);
+            assertSame("The picture should have been reused",
+                       firstCalculation.getPictures().get(0), secondCalculation.getPictures().get(0));
+
+            // A change while rendering should stop the render, wait for it, and then reuse its picture
+            generator.setGeneratorSeed(5678);
+            scheduler.runPending();
+            final PictureCalculations stoppedCalculation = session.getCurrentCalculation();
+            generator.setGeneratorSeed(91011);
+            scheduler.runPending();
+            assertTrue("The stopped render should be done", stoppedCalculation.isDone());
+            final PictureCalculations fourthCalculation = session.getCurrentCalculation();
+            fourthCalculation.getPicturesAndWait();
+            assertSame("The picture of the stopped render should have been reused",
+                       stoppedCalculation.getPictures().get(0), fourthCalculation.getPictures().get(0));
+            assertEquals("The latest render should be reported", Integer.valueOf(4), readyRenders.get(readyRenders.size() - 1));
+
+            // Changing the size needs a new picture
+            generator.setSize(20, 10);
+            scheduler.runPending();
+            final List<Picture> resizedPictures = session.getCurrentCalculation().getPicturesAndWait();
+            assertEquals("The resized picture should be rendered", 20, resizedPictures.get(0).getWidth());
+        } finally {
+            session.dispose();
+        }
+    }
+
     private void assertListenerCallCount(int expected) {
         assertEquals("Listener should have been notified about changes the correct number of times", expected, testListener.getChangeCount());
     }
 
 
+    /**
+     * Calculates a - b, with an expression that is written out as is.
+     */
+    public static final class DifferenceEffect extends EffectBase {
+        public final InputVariable a = addInput("a", 0f, Float.class, "Value to subtract from");
+        public final InputVariable b = addInput("b", 0f, Float.class, "Value to subtract");
+        public final OutputVariable out = addOutput("out", "The result of a - b.", Float.class, new VariableExpression() {
+            @Override
+            public String getExpressionString(EffectContainer container, Effect effect, String internalVarPrefix) {
+                return "(" + a.getExpr() + ") - (" + b.getExpr() + ")";
+            }
+        });
+
+        public DifferenceEffect() {
+        }
+
+        public DifferenceEffect(float a, float b) {
+            this.a.setValue(a);
+            this.b.setValue(b);
+        }
+    }
+
     private final static class TestListener implements GeneratorListener {
         private int changeCount = 0;
         private Generator generator;
@@ -315,6 +741,99 @@ public class GeneratorTest {
         }
     }
 
+    /**
+     * Scheduler that ignores the delays, and runs the scheduled tasks in the calling thread when asked to.
+     */
+    private static final class ManualScheduler extends AbstractExecutorService implements ScheduledExecutorService {
+        private final List<ManualFuture<?>> scheduledTasks = new ArrayList<ManualFuture<?>>();
+
+        public synchronized int getPendingCount() {
+            int count = 0;
+            for (ManualFuture<?> task : scheduledTasks) {
+                if (!task.isDone()) count++;
+            }
+            return count;
+        }
+
+        public void runPending() {
+            final List<ManualFuture<?>> tasks;
+            synchronized (this) {
+                tasks = new ArrayList<ManualFuture<?>>(scheduledTasks);
+                scheduledTasks.clear();
+            }
+            for (ManualFuture<?> task : tasks) {
+                task.run();
+            }
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            return schedule(Executors.callable(command), delay, unit);
+        }
+
+        @Override
+        public synchronized <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+            final ManualFuture<V> task = new ManualFuture<V>(callable);
+            scheduledTasks.add(task);
+            return task;
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            schedule(command, 0, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return new ArrayList<Runnable>();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return false;
+        }
+    }
+
+    private static final class ManualFuture<V> extends FutureTask<V> implements ScheduledFuture<V> {
+        private ManualFuture(Callable<V> callable) {
+            super(callable);
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return 0;
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return 0;
+        }
+    }
+
     private List<String> channelsList(String ... names) {
         return Arrays.asList(names);
     }